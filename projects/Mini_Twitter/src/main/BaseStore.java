@@ -48,8 +48,11 @@ public abstract class BaseStore {
      * @param key A single key to which the values are mapped
      * @param values JSONObject of value mappings
      * @param append Indicates whether to append the values to an existing list
+     * @return List of the values that were not already mapped to the key
      */
-    protected void writeStore(String key, JSONObject values, boolean append) {
+    protected List<String> writeStore(String key, JSONObject values, boolean append) {
+
+        List<String> added_values = new ArrayList<String>();
 
         if (store_map.get(key) == null || !append) {
 
@@ -65,8 +68,11 @@ public abstract class BaseStore {
             if (store_map.get(key).get(store_entry) == null) {
 
                 store_map.get(key).put(store_entry, timestamp);
+                added_values.add(store_entry);
             }
         }
+
+        return added_values;
     }
 
     /**
@@ -3,23 +3,32 @@ package main;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
  * Front end cache class. This child class of BaseStore provides concurrency
- * control and cache entry version management.
+ * control and cache entry version management. Each cache entry also keeps a
+ * recency index listing its results in causal order, so reads and pages of
+ * the most recent results do not need to sort the entry.
  *
  * Created by luke on 9/27/14.
  */
 public class CacheStore extends BaseStore {
 
     private HashMap<String, String> version_numbers;
+    private HashMap<String, String> version_sources;
+    private HashMap<String, ArrayList<String>> recency_index;
+    private HashMap<String, Integer> index_generations;
     private static CacheStore singleton_cache_store = null;
 
     private CacheStore() {
 
         super(10);
         this.version_numbers = new HashMap<String, String>();
+        this.version_sources = new HashMap<String, String>();
+        this.recency_index = new HashMap<String, ArrayList<String>>();
+        this.index_generations = new HashMap<String, Integer>();
     }
 
     /**
@@ -48,29 +57,102 @@ public class CacheStore extends BaseStore {
 
         lock.lockRead();
 
-        final HashMap<String, VectorTimestamp> results = readStore(query);
+        JSONArray results = new JSONArray();
+        if (recency_index.get(query) != null) {
 
-        JSONArray results_replacement = new JSONArray();
+            results.addAll(recency_index.get(query));
+        }
+
+        lock.unlockRead();
+
+        return results;
+    }
+
+    /**
+     * Uses a multi-read lock to provide concurrent reads of the results for
+     * a query along with their timestamps.
+     *
+     * @param query Single query key to be read
+     * @return JSONObject mapping each result to its timestamp
+     */
+    public JSONObject readCacheResults(String query) {
+
+        lock.lockRead();
 
-        if (results != null) {
+        JSONObject results = new JSONObject();
+        HashMap<String, VectorTimestamp> timestamps = readStore(query);
+        if (timestamps != null) {
 
-            for (Map.Entry<String, VectorTimestamp> entry : results.entrySet()) {
+            for (Map.Entry<String, VectorTimestamp> entry : timestamps.entrySet()) {
 
-                results_replacement.add(entry.getKey());
+                results.put(entry.getKey(), entry.getValue().toJSONObject());
             }
         }
 
-        // Sort the mapped results before returning them
-        Collections.sort(results_replacement, new Comparator<String>() {
-            @Override
-            public int compare(String o, String o2) {
-                return (results.get(o).precedes(results.get(o2), null) ? -1 : 1);
+        lock.unlockRead();
+
+        return results;
+    }
+
+    /**
+     * Uses a multi-read lock to read one page of the most recent results for
+     * a query. Pages are read backwards from the end of the recency index,
+     * and each page is returned in causal order. The cursor is bound to its
+     * query and holds the position and sort key of the oldest result already
+     * returned, so the next page starts right before that result wherever
+     * merged deltas have placed it. A cursor stays valid until the cache
+     * entry is replaced by a full refresh.
+     *
+     * @param query Single query key to be read
+     * @param limit Maximum number of results in the page
+     * @param cursor Cursor returned with the previous page, or null for the first page
+     * @return JSONObject with the page of results and the next cursor, or null if the cursor is invalid
+     */
+    public JSONObject readCachePage(String query, int limit, String cursor) {
+
+        lock.lockRead();
+
+        ArrayList<String> index = recency_index.get(query);
+        int generation = (index_generations.get(query) == null) ? 0 : index_generations.get(query);
+        int size = (index == null) ? 0 : index.size();
+
+        int end = size;
+        if (cursor != null) {
+
+            long[] cursor_values = decodeCursor(query, cursor);
+            end = (cursor_values == null || cursor_values[0] != generation) ? -1 :
+                    findPosition(query, (int) cursor_values[1], cursor_values[2], (int) cursor_values[3]);
+            if (end < 0) {
+
+                lock.unlockRead();
+                return null;
             }
-        });
+        }
+
+        int start = Math.max(0, end - limit);
+        JSONArray page = new JSONArray();
+        String next_cursor = null;
+        if (index != null) {
+
+            page.addAll(index.subList(start, end));
+            if (start > 0) {
+
+                String oldest_result = index.get(start);
+                next_cursor = encodeCursor(query, generation, start,
+                        readStore(query).get(oldest_result).getStampTotal(), oldest_result);
+            }
+        }
 
         lock.unlockRead();
 
-        return results_replacement;
+        JSONObject page_json = new JSONObject();
+        page_json.put(Constants.Tokens.TWEETS, page);
+        if (next_cursor != null) {
+
+            page_json.put(Constants.Tokens.CURSOR, next_cursor);
+        }
+
+        return page_json;
     }
 
     /**
@@ -82,14 +164,221 @@ public class CacheStore extends BaseStore {
      */
     public void writeCache(String query, JSONObject results, String version_number) {
 
+        writeCache(query, results, version_number, null);
+    }
+
+    /**
+     * Uses a lock to provide mutually exclusive writes to the data map,
+     * replacing any cached results for the query.
+     *
+     * @param query Single query key to be written
+     * @param results List of values to be written
+     * @param version_number Update to the version number for query
+     * @param source_id ID of the data store that issued the version number
+     */
+    public void writeCache(String query, JSONObject results, String version_number, String source_id) {
+
         lock.lockReadWrite();
 
         updateVersionNumber(version_number, query);
+        version_sources.put(query, source_id);
         writeStore(query, results, false);
 
+        // Rebuild the recency index and invalidate any outstanding cursors
+        recency_index.put(query, sortCausally(query, readStore(query).keySet()));
+        Integer generation = index_generations.get(query);
+        index_generations.put(query, (generation == null) ? 1 : generation + 1);
+
+        lock.unlockReadWrite();
+    }
+
+    /**
+     * Uses a lock to provide mutually exclusive writes to the data map,
+     * merging a delta of new results into the cached results for the query.
+     *
+     * @param query Single query key to be written
+     * @param results Results added since the cached version number
+     * @param version_number Update to the version number for query
+     * @param source_id ID of the data store that issued the version number
+     */
+    public void mergeCache(String query, JSONObject results, String version_number, String source_id) {
+
+        lock.lockReadWrite();
+
+        updateVersionNumber(version_number, query);
+        version_sources.put(query, source_id);
+        List<String> added_results = writeStore(query, results, true);
+
+        // Merge the new results into the recency index, since replication
+        // can deliver them after results that causally follow them
+        ArrayList<String> index = recency_index.get(query);
+        ArrayList<String> sorted_added = sortCausally(query, added_results);
+        if (index == null) {
+
+            recency_index.put(query, sorted_added);
+        } else if (!sorted_added.isEmpty()) {
+
+            HashMap<String, VectorTimestamp> timestamps = readStore(query);
+            ArrayList<String> merged = new ArrayList<String>(index.size() + sorted_added.size());
+            int i = 0;
+            int j = 0;
+            while (i < index.size() || j < sorted_added.size()) {
+
+                if (j >= sorted_added.size() || (i < index.size() && compareResults(timestamps, index.get(i),
+                        timestamps.get(sorted_added.get(j)).getStampTotal(), sorted_added.get(j)) < 0)) {
+
+                    merged.add(index.get(i++));
+                } else {
+
+                    merged.add(sorted_added.get(j++));
+                }
+            }
+            recency_index.put(query, merged);
+        }
+
         lock.unlockReadWrite();
     }
 
+    /**
+     * Sorts results so that every result follows the results that causally
+     * precede it. Results are ordered by the total of their timestamp values,
+     * which extends the causal order, and ties are broken by result text.
+     * There are no locks in this method, because the locking is managed in
+     * the calling methods.
+     *
+     * @param query Query to which the results are mapped
+     * @param results Results to be sorted
+     * @return Sorted list of results
+     */
+    private ArrayList<String> sortCausally(String query, Collection<String> results) {
+
+        final HashMap<String, VectorTimestamp> timestamps = readStore(query);
+        ArrayList<String> sorted_results = new ArrayList<String>(results);
+
+        Collections.sort(sorted_results, new Comparator<String>() {
+            @Override
+            public int compare(String o, String o2) {
+                return compareResults(timestamps, o, timestamps.get(o2).getStampTotal(), o2);
+            }
+        });
+
+        return sorted_results;
+    }
+
+    /**
+     * Compares a cached result with the sort key of another result, first by
+     * timestamp total and then by text.
+     *
+     * @param timestamps Timestamps of the cached results
+     * @param result Cached result
+     * @param total Timestamp total of the other result
+     * @param result2 Text of the other result
+     * @return Negative, zero or positive as the cached result sorts before, with or after the key
+     */
+    private static int compareResults(HashMap<String, VectorTimestamp> timestamps, String result, long total,
+                                      String result2) {
+
+        long result_total = timestamps.get(result).getStampTotal();
+
+        return (result_total != total) ? (result_total < total ? -1 : 1) : result.compareTo(result2);
+    }
+
+    /**
+     * Finds the position a result held when a cursor was issued for it. A
+     * generation of the recency index only gains results, so the result has
+     * stayed at its position or moved later, and it is found among the
+     * results from that position on with the same timestamp total by binary
+     * search. There are no locks in this method, because the locking is
+     * managed in the calling methods.
+     *
+     * @param query Query to which the results are mapped
+     * @param position Position of the result when the cursor was issued
+     * @param total Timestamp total of the result
+     * @param result_hash Hash code of the result text
+     * @return Current position of the result, or -1 if it is not found
+     */
+    private int findPosition(String query, int position, long total, int result_hash) {
+
+        ArrayList<String> index = recency_index.get(query);
+        if (index == null || position < 0 || position > index.size()) {
+
+            return -1;
+        }
+
+        HashMap<String, VectorTimestamp> timestamps = readStore(query);
+        int low = position;
+        int high = index.size();
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+            if (timestamps.get(index.get(mid)).getStampTotal() < total) {
+
+                low = mid + 1;
+            } else {
+
+                high = mid;
+            }
+        }
+
+        for (int i = low; i < index.size() && timestamps.get(index.get(i)).getStampTotal() == total; i++) {
+
+            if (index.get(i).hashCode() == result_hash) {
+
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Encodes a cursor for a query as an opaque string holding a hash of the
+     * query, the index generation, and the position, timestamp total and
+     * text hash of a result.
+     *
+     * @param query Query the cursor pages through
+     * @param generation Generation of the recency index
+     * @param position Position of the result in the recency index
+     * @param total Timestamp total of the result
+     * @param result Text of the result
+     * @return URL-safe cursor string
+     */
+    private static String encodeCursor(String query, int generation, int position, long total, String result) {
+
+        String cursor_value = query.hashCode() + ":" + generation + ":" + position + ":" + total + ":" +
+                result.hashCode();
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor_value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor for a query into its index generation and the
+     * position, timestamp total and text hash of its result.
+     *
+     * @param query Query being paged through
+     * @param cursor Cursor string
+     * @return Array holding the generation, position, timestamp total and text hash, or null if the cursor is
+     * malformed or was issued for another query
+     */
+    private static long[] decodeCursor(String query, String cursor) {
+
+        try {
+
+            String[] cursor_values = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8)
+                    .split(":");
+            if (cursor_values.length != 5 || Integer.parseInt(cursor_values[0]) != query.hashCode()) {
+
+                return null;
+            }
+
+            return new long[] { Integer.parseInt(cursor_values[1]), Integer.parseInt(cursor_values[2]),
+                    Long.parseLong(cursor_values[3]), Integer.parseInt(cursor_values[4]) };
+        } catch (IllegalArgumentException e) {
+
+            return null;
+        }
+    }
+
     /**
      * Updates the version number for the given query. There are no locks in
      * this method, because the locking is managed in the calling methods.
@@ -123,4 +412,23 @@ public class CacheStore extends BaseStore {
 
         return version_number_temp;
     }
+
+    /**
+     * Retrieves the ID of the data store that issued the cached version
+     * number for the given query. A multi-read lock is used to provide
+     * concurrent access to multiple readers.
+     *
+     * @param query Query for which the version source is requested
+     * @return Data store ID, or null if unknown
+     */
+    public String getVersionSource(String query) {
+
+        lock.lockRead();
+
+        String source_id = version_sources.get(query);
+
+        lock.unlockRead();
+
+        return source_id;
+    }
 }
@@ -0,0 +1,130 @@
+package main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.Socket;
+
+/**
+ * Writes a HTTP response to a socket using chunked transfer encoding, so a
+ * response can be sent while it is still being built. Characters written to
+ * the writer are gathered into a fixed size buffer that is sent as a chunk
+ * whenever it fills or the writer is flushed. Chunk sizes count the encoded
+ * bytes of the chunk.
+ */
+public class ChunkedResponseWriter extends Writer {
+
+    private Socket socket;
+    private OutputStream out;
+    private char[] chunk;
+    private int chunk_length;
+
+    public ChunkedResponseWriter(Socket socket, String response_code) throws IOException {
+
+        this(socket, response_code, Constants.Snapshot.CHUNKSIZE);
+    }
+
+    public ChunkedResponseWriter(Socket socket, String response_code, int chunk_size) throws IOException {
+
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+        this.chunk = new char[chunk_size];
+        this.chunk_length = 0;
+
+        // Send the status line and headers before any of the body
+        String header = Constants.Tokens.HTTPVERSION + " " + response_code + "\n" +
+                Constants.Tokens.TRANSFERENCODING + ":" + Constants.Tokens.CHUNKED + "\n\n";
+        out.write(header.getBytes());
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+
+        while (length > 0) {
+
+            int copy_length = Math.min(length, chunk.length - chunk_length);
+            System.arraycopy(buffer, offset, chunk, chunk_length, copy_length);
+            chunk_length += copy_length;
+            offset += copy_length;
+            length -= copy_length;
+
+            if (chunk_length == chunk.length) {
+
+                writeChunk();
+            }
+        }
+    }
+
+    /**
+     * Sends any buffered characters as a chunk and flushes the socket.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+
+        writeChunk();
+        out.flush();
+    }
+
+    /**
+     * Sends any buffered characters followed by the last chunk, then closes
+     * the socket.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        try {
+
+            writeChunk();
+            out.write("0\r\n\r\n".getBytes());
+            out.flush();
+        } finally {
+
+            abort();
+        }
+    }
+
+    /**
+     * Closes the socket without sending the last chunk, so the client sees
+     * an incomplete response.
+     */
+    public void abort() {
+
+        try {
+
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Sends the buffered characters as a single chunk. A trailing high
+     * surrogate is held back for the next chunk so that no character is
+     * split between chunks.
+     *
+     * @throws IOException
+     */
+    private void writeChunk() throws IOException {
+
+        int length = chunk_length;
+        if (length > 1 && Character.isHighSurrogate(chunk[length - 1])) {
+
+            length--;
+        }
+        if (length == 0) {
+
+            return;
+        }
+
+        byte[] chunk_bytes = new String(chunk, 0, length).getBytes();
+        out.write((Integer.toHexString(chunk_bytes.length) + "\r\n").getBytes());
+        out.write(chunk_bytes);
+        out.write("\r\n".getBytes());
+
+        // Keep any held back character at the start of the buffer
+        System.arraycopy(chunk, length, chunk, 0, chunk_length - length);
+        chunk_length -= length;
+    }
+}
@@ -29,6 +29,8 @@ public class Constants {
         public static final String BADPATH = "Unsupported URI path";
         public static final String BADMETHOD = "Unsupported HTTP method";
         public static final String INTERRUPTED = "Thread interrupted";
+        public static final String BADCURSOR = "Invalid or expired cursor";
+        public static final String BADTOKEN = "Invalid snapshot token";
     }
 
     public class Config {
@@ -65,12 +67,151 @@ public class Constants {
         public static final String VERSIONMAP = "version_map";
         public static final String LAYER = "layer";
         public static final String SNAPSHOT = "snapshot";
+        public static final String SOURCE = "src";
+        public static final String DELTA = "delta";
+        public static final String LIMIT = "limit";
+        public static final String CURSOR = "cursor";
+        public static final String BATCH = "batch";
+        public static final String RESULTS = "results";
+        public static final String QUERIES = "queries";
+        public static final String CODE = "code";
+        public static final String SINCE = "since";
+        public static final String TOKEN = "token";
+        public static final String MARKER = "marker";
+        public static final String MARKERS = "markers";
+        public static final String ORIGINS = "origins";
+        public static final String EXPORT = "export";
+        public static final String FILE = "file";
+        public static final String ROWS = "rows";
+        public static final String TRANSFERENCODING = "transfer-encoding";
+        public static final String CHUNKED = "chunked";
+        public static final String GOSSIP = "gossip";
+        public static final String LIVENESS = "liveness";
+        public static final String CONSENSUS = "consensus";
+        public static final String SHARDS = "shards";
+    }
+
+    public class Snapshot {
+
+        public static final int CHUNKSIZE = 8192;
+        public static final int MARKERS = 16;
+        public static final String EXPORTDIR = "snapshots";
+        public static final int ROWGROUP = 4096;
+        public static final int MAPWINDOW = 8 * 1024 * 1024;
+    }
+
+    public class Pagination {
+
+        public static final int DEFAULTLIMIT = 20;
+    }
+
+    public class Batching {
+
+        public static final boolean ENABLED = true;
+        public static final int WINDOW = 2;
+        public static final int MAXSIZE = 64;
+    }
+
+    public class ResponseCache {
+
+        public static final int CAPACITY = 256;
+    }
+
+    public class Routing {
+
+        public static final double EWMAWEIGHT = 0.3;
+        public static final double SWITCHFACTOR = 3;
+        public static final double STALEPENALTY = 4;
+    }
+
+    public class Hedging {
+
+        public static final boolean ENABLED = false;
+        public static final double PERCENTILE = 0.95;
+        public static final int MINDELAY = 10;
+        public static final int SAMPLES = 256;
+        public static final int MINSAMPLES = 20;
     }
 
     public class Discovery {
 
         public static final int TIMEOUT = 5000;
         public static final String SERVERS = "servers";
+        public static final String VERSION = "version";
+        public static final String BASE = "base";
+        public static final String EPOCH = "epoch";
+        public static final String ADDED = "added";
+        public static final String FAILED = "failed";
+        public static final String RECOVERED = "recovered";
         public static final int LATENCYUPBOUND = 1000;
+        public static final int HEARTBEATINTERVAL = TIMEOUT / 5;
+        public static final double PHITHRESHOLD = 8.0;
+        public static final int PHIWINDOW = 100;
+        public static final int HEARTBEATTHREADS = 4;
+        public static final int LIVENESSINTERVAL = HEARTBEATINTERVAL / 2;
+        public static final int BROADCASTTHREADS = 8;
+    }
+
+    public class Gossip {
+
+        public static final boolean ENABLED = false;
+        public static final int PERIOD = 1000;
+        public static final int INDIRECTPROBES = 3;
+        public static final int SUSPICIONPERIODS = 5;
+        public static final int MAXPIGGYBACK = 8;
+        public static final int RETRANSMITMULT = 3;
+        public static final String TYPE = "type";
+        public static final String PING = "ping";
+        public static final String PINGREQ = "ping_req";
+        public static final String TARGET = "target";
+        public static final String UPDATES = "updates";
+        public static final String ACKED = "acked";
+        public static final String STATE = "state";
+        public static final String INCARNATION = "incarnation";
+        public static final String ALIVE = "alive";
+        public static final String SUSPECT = "suspect";
+        public static final String DEAD = "dead";
+    }
+
+    public class Consensus {
+
+        public static final int ELECTIONTIMEOUT = 1500;
+        public static final int MAXENTRIES = 64;
+        public static final String FOLLOWER = "follower";
+        public static final String CANDIDATE = "candidate";
+        public static final String LEADER = "leader";
+        public static final String TYPE = "type";
+        public static final String VOTE = "vote";
+        public static final String APPEND = "append";
+        public static final String TERM = "term";
+        public static final String LASTINDEX = "last_index";
+        public static final String LASTTERM = "last_term";
+        public static final String PREVINDEX = "prev_index";
+        public static final String PREVTERM = "prev_term";
+        public static final String ENTRIES = "entries";
+        public static final String COMMIT = "commit";
+        public static final String GRANTED = "granted";
+        public static final String SUCCESS = "success";
+        public static final String MATCH = "match";
+        public static final String COMMAND = "command";
+        public static final String COMMITTED = "committed";
+        public static final String OP = "op";
+        public static final String ADD = "add";
+        public static final String FAIL = "fail";
+        public static final String NOOP = "noop";
+        public static final String STATE = "state";
+        public static final String ENTRY = "entry";
+        public static final String INDEX = "index";
+        public static final String VOTEDFOR = "voted_for";
+        public static final String STATEDIR = "consensus";
+    }
+
+    public class Sharding {
+
+        public static final boolean ENABLED = false;
+        public static final int SHARDS = 32;
+        public static final int REPLICATION = 2;
+        public static final int VIRTUALNODES = 64;
+        public static final String SEPARATOR = "@";
     }
 }
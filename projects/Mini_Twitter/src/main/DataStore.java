@@ -7,19 +7,35 @@ import java.util.*;
 
 /**
  * Data store memory class. This child class of BaseStore provides concurrency
- * control and data store entry version management.
+ * control and data store entry version management. The tweets and version
+ * numbers are held in persistent maps that are replaced rather than changed
+ * by each write, so a copy of the data store only needs to capture the
+ * current maps under the lock and can walk them after releasing it.
  *
  * Created by luke on 9/28/14.
  */
 public class DataStore extends BaseStore {
 
-    private HashMap<String, String> version_numbers;
+    private volatile PersistentMap<String, PersistentMap<String, VectorTimestamp>> tweet_map;
+    private volatile PersistentMap<String, String> version_numbers;
+    private volatile PersistentMap<String, String> origin_map;
+    private HashMap<String, PostingList> history_map;
+    private LinkedHashMap<String, EncodedJSON> response_cache;
     private static DataStore singleton_data_store = null;
 
     private DataStore() {
 
         super(3);
-        this.version_numbers = new HashMap<String, String>();
+        this.tweet_map = PersistentMap.empty();
+        this.version_numbers = PersistentMap.empty();
+        this.origin_map = PersistentMap.empty();
+        this.history_map = new HashMap<String, PostingList>();
+        this.response_cache = new LinkedHashMap<String, EncodedJSON>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, EncodedJSON> eldest) {
+                return size() > Constants.ResponseCache.CAPACITY;
+            }
+        };
     }
 
     /**
@@ -47,16 +63,111 @@ public class DataStore extends BaseStore {
      */
     public void postToDataStore(List<String> hashtags, String tweet, VectorTimestamp timestamp) {
 
+        postToDataStore(hashtags, tweet, timestamp, null);
+    }
+
+    /**
+     * Uses a lock to provide mutually exclusive writes to the data map,
+     * recording the server the tweet was first posted to.
+
+     * @param hashtags List of keys to which the tweet value will be mapped
+     * @param tweet Value to be mapped to each hashtag key
+     * @param timestamp VectorTimestamp to be mapped to tweet
+     * @param origin_id ID of the server the tweet was posted to, or null if unknown
+     */
+    public void postToDataStore(List<String> hashtags, String tweet, VectorTimestamp timestamp, String origin_id) {
+
         lock.lockReadWrite();
 
-        writeStore(hashtags, tweet, timestamp.copy());
+        writeTweet(hashtags, tweet, timestamp.copy(), origin_id);
+
+        lock.unlockReadWrite();
+    }
+
+    /**
+     * Uses a single lock acquisition to provide mutually exclusive writes of
+     * a batch of tweets to the data map. The lists are matched by index.
+     *
+     * @param hashtag_lists List of the keys to which each tweet will be mapped
+     * @param tweets List of tweet values
+     * @param timestamps List of the VectorTimestamps to be mapped to each tweet
+     */
+    public void postBatchToDataStore(List<List<String>> hashtag_lists, List<String> tweets,
+                                     List<VectorTimestamp> timestamps) {
+
+        postBatchToDataStore(hashtag_lists, tweets, timestamps, null);
+    }
+
+    /**
+     * Uses a single lock acquisition to provide mutually exclusive writes of
+     * a batch of tweets posted to the same server. The lists are matched by
+     * index.
+     *
+     * @param hashtag_lists List of the keys to which each tweet will be mapped
+     * @param tweets List of tweet values
+     * @param timestamps List of the VectorTimestamps to be mapped to each tweet
+     * @param origin_id ID of the server the tweets were posted to, or null if unknown
+     */
+    public void postBatchToDataStore(List<List<String>> hashtag_lists, List<String> tweets,
+                                     List<VectorTimestamp> timestamps, String origin_id) {
+
+        lock.lockReadWrite();
+
+        for (int i = 0; i < tweets.size(); i++) {
+
+            writeTweet(hashtag_lists.get(i), tweets.get(i), timestamps.get(i).copy(), origin_id);
+        }
+
+        lock.unlockReadWrite();
+    }
+
+    /**
+     * Writes a tweet to each of its hashtags and updates their version
+     * numbers and histories. There are no locks in this method, because the
+     * locking is managed in the calling methods.
+     *
+     * @param hashtags List of keys to which the tweet value will be mapped
+     * @param tweet Value to be mapped to each hashtag key
+     * @param timestamp VectorTimestamp to be mapped to tweet
+     * @param origin_id ID of the server the tweet was posted to, or null if unknown
+     */
+    private void writeTweet(List<String> hashtags, String tweet, VectorTimestamp timestamp, String origin_id) {
+
+        if (origin_id != null && !origin_map.containsKey(tweet)) {
+
+            origin_map = origin_map.put(tweet, origin_id);
+        }
+
+        // Record which hashtags have not seen this tweet before it is written
+        ArrayList<String> new_hashtags = new ArrayList<String>();
+        for (String hashtag : hashtags) {
+
+            PersistentMap<String, VectorTimestamp> tweets = readTweets(hashtag);
+            if (tweets == null || !tweets.containsKey(tweet)) {
+
+                new_hashtags.add(hashtag);
+            }
+        }
+
+        for (String hashtag : hashtags) {
+
+            PersistentMap<String, VectorTimestamp> tweets = readTweets(hashtag);
+            if (tweets == null) {
+
+                tweets = PersistentMap.empty();
+            }
+            tweet_map = tweet_map.put(hashtag, tweets.put(tweet, timestamp));
+        }
 
         for (String hashtag : hashtags) {
 
             incrementVersionNumber(hashtag);
         }
 
-        lock.unlockReadWrite();
+        for (String hashtag : new_hashtags) {
+
+            appendToHistory(hashtag, Collections.singletonList(tweet));
+        }
     }
 
     /**
@@ -76,25 +187,430 @@ public class DataStore extends BaseStore {
             lock.unlockRead();
         } else {
 
-            HashMap<String, VectorTimestamp> results = readStore(query);
-            if (results != null) {
+            readSearchResults(query, search_results);
+
+            version_number = getVersionNumber(query);
+            lock.unlockRead();
+        }
+
+        if (version_number == null) {
+
+            version_number = "0";
+        }
+
+        return version_number;
+    }
+
+    /**
+     * Uses a multi-read lock to evaluate a boolean hashtag query against the
+     * data map. Single-hashtag queries are searched directly, while other
+     * queries are evaluated by intersecting, subtracting and merging the
+     * sorted posting lists of their hashtags. The version number of a
+     * multi-hashtag query combines the version numbers of all its hashtags.
+     *
+     * @param query Parsed query to be evaluated
+     * @param version_number Version number to be compared
+     * @param search_results List of results to be populated
+     * @return The current version number of the query
+     */
+    public String searchDataStore(HashtagQuery query, String version_number, JSONObject search_results) {
+
+        if (query.isSingleTerm()) {
+
+            return searchDataStore(query.toString(), version_number, search_results);
+        }
+
+        lock.lockRead();
 
-                for (Map.Entry<String, VectorTimestamp> entry : results.entrySet()) {
+        String current_version_number = getQueryVersionNumber(query);
+
+        if (!version_number.equals(current_version_number)) {
+
+            readSearchResults(query, search_results);
+        }
+
+        lock.unlockRead();
+
+        return current_version_number;
+    }
+
+    /**
+     * Uses a multi-read lock to search the data store and add the results,
+     * already encoded as JSON, to a response body. Encoded results are cached
+     * per query and version number, so repeated searches for the same
+     * version reuse the encoding instead of rebuilding it.
+     *
+     * @param query Parsed query to be evaluated
+     * @param version_number Version number to be compared
+     * @param response_body Response body to which the encoded results are added
+     * @return The current version number of the query
+     */
+    public String searchDataStoreEncoded(HashtagQuery query, String version_number, JSONObject response_body) {
+
+        lock.lockRead();
 
-                    search_results.put(entry.getKey(), entry.getValue().toJSONObject());
+        String current_version_number = readEncodedResults(query, version_number, response_body);
+
+        lock.unlockRead();
+
+        return current_version_number;
+    }
+
+    /**
+     * Uses a single multi-read lock acquisition to search the data store for
+     * a batch of queries. Each query is answered with its current version
+     * number and, if that differs from the given version number, its
+     * results. Queries marked for a delta receive only the tweets added
+     * since their version number when such a delta can be built.
+     *
+     * @param queries List of parsed queries
+     * @param version_numbers List of the version numbers held by the caller
+     * @param deltas List of flags indicating which queries may receive a delta
+     * @return List of results holding the version number, the delta flag and
+     * any tweets for each query
+     */
+    public List<JSONObject> searchDataStoreBatch(List<HashtagQuery> queries, List<String> version_numbers,
+                                                 List<Boolean> deltas) {
+
+        ArrayList<JSONObject> batch_results = new ArrayList<JSONObject>();
+
+        lock.lockRead();
+
+        for (int i = 0; i < queries.size(); i++) {
+
+            JSONObject result = new JSONObject();
+            String current_version_number = null;
+            boolean delta = false;
+
+            if (deltas.get(i)) {
+
+                JSONObject search_results = new JSONObject();
+                current_version_number = readDeltaResults(queries.get(i).toString(), version_numbers.get(i),
+                        search_results);
+                if (current_version_number != null) {
+
+                    result.put(Constants.Tokens.TWEETS, search_results);
+                    delta = true;
                 }
             }
 
-            version_number = getVersionNumber(query);
-            lock.unlockRead();
+            if (current_version_number == null) {
+
+                current_version_number = readEncodedResults(queries.get(i), version_numbers.get(i), result);
+            }
+
+            result.put(Constants.Tokens.VERSIONNUM, current_version_number);
+            result.put(Constants.Tokens.DELTA, delta);
+            batch_results.add(result);
+        }
+
+        lock.unlockRead();
+
+        return batch_results;
+    }
+
+    /**
+     * Adds the encoded results of a query to a response body if the given
+     * version number is not current, reusing a cached encoding when one
+     * exists. There are no locks in this method, because the locking is
+     * managed in the calling methods.
+     *
+     * @param query Parsed query to be evaluated
+     * @param version_number Version number to be compared
+     * @param response_body Response body to which the encoded results are added
+     * @return The current version number of the query
+     */
+    private String readEncodedResults(HashtagQuery query, String version_number, JSONObject response_body) {
+
+        String current_version_number = query.isSingleTerm() ?
+                getVersionNumber(query.toString()) : getQueryVersionNumber(query);
+        if (current_version_number == null) {
+
+            current_version_number = "0";
+        }
+
+        if (!version_number.equals(current_version_number)) {
+
+            String cache_key = getResponseCacheKey(query.toString(), current_version_number);
+            EncodedJSON encoded_results;
+            synchronized (response_cache) {
+
+                encoded_results = response_cache.get(cache_key);
+            }
+
+            if (encoded_results == null) {
+
+                JSONObject search_results = new JSONObject();
+                if (query.isSingleTerm()) {
+
+                    readSearchResults(query.toString(), search_results);
+                } else {
+
+                    readSearchResults(query, search_results);
+                }
+                encoded_results = new EncodedJSON(search_results.toJSONString());
+
+                synchronized (response_cache) {
+
+                    response_cache.put(cache_key, encoded_results);
+                }
+            }
+
+            response_body.put(Constants.Tokens.TWEETS, encoded_results);
+        }
+
+        return current_version_number;
+    }
+
+    /**
+     * Adds the tweets mapped to a single hashtag to the search results. There
+     * are no locks in this method, because the locking is managed in the
+     * calling methods.
+     *
+     * @param hashtag Hashtag to be read
+     * @param search_results Map of results to be populated
+     */
+    private void readSearchResults(String hashtag, JSONObject search_results) {
+
+        PersistentMap<String, VectorTimestamp> results = readTweets(hashtag);
+        if (results != null) {
+
+            for (Map.Entry<String, VectorTimestamp> entry : results) {
+
+                search_results.put(entry.getKey(), entry.getValue().toJSONObject());
+            }
+        }
+    }
+
+    /**
+     * Adds the tweets matching a boolean query to the search results. There
+     * are no locks in this method, because the locking is managed in the
+     * calling methods.
+     *
+     * @param query Parsed query to be evaluated
+     * @param search_results Map of results to be populated
+     */
+    private void readSearchResults(HashtagQuery query, JSONObject search_results) {
+
+        List<String> terms = query.getTerms();
+        for (String tweet : evaluateQuery(query)) {
+
+            // Take the tweet's timestamp from any hashtag that maps it
+            for (String term : terms) {
+
+                PersistentMap<String, VectorTimestamp> results = readTweets(term);
+                if (results != null && results.containsKey(tweet)) {
+
+                    search_results.put(tweet, results.get(tweet).toJSONObject());
+                    break;
+                }
+            }
         }
+    }
+
+    /**
+     * Drops the cached encoding of a hashtag's results for a version that is
+     * about to be replaced. Boolean queries involving the hashtag are keyed
+     * by their combined version number, so their stale entries are never
+     * read again and age out of the cache.
+     *
+     * @param hashtag Hashtag whose version number is changing
+     * @param version_number Version number being replaced
+     */
+    private void invalidateEncodedResults(String hashtag, String version_number) {
 
+        // Unknown hashtags are searched as version zero
         if (version_number == null) {
 
             version_number = "0";
         }
 
-        return version_number;
+        synchronized (response_cache) {
+
+            response_cache.remove(getResponseCacheKey(hashtag, version_number));
+        }
+    }
+
+    /**
+     * Builds the response cache key for a normalized query and version.
+     *
+     * @param query Normalized query string
+     * @param version_number Version number of the query
+     * @return Response cache key
+     */
+    private static String getResponseCacheKey(String query, String version_number) {
+
+        return version_number + "@" + query;
+    }
+
+    /**
+     * Evaluates each conjunction of a query, starting from its shortest
+     * posting list, and merges the matches of all conjunctions. There are no
+     * locks in this method, because the locking is managed in the calling
+     * methods.
+     *
+     * @param query Parsed query to be evaluated
+     * @return Sorted list of matching tweets
+     */
+    private List<String> evaluateQuery(HashtagQuery query) {
+
+        List<String> matches = new ArrayList<String>();
+
+        for (HashtagQuery.Conjunction conjunction : query.getConjunctions()) {
+
+            List<List<String>> included_lists = new ArrayList<List<String>>();
+            for (String term : conjunction.getIncluded()) {
+
+                included_lists.add(getSortedPostingList(term));
+            }
+
+            Collections.sort(included_lists, new Comparator<List<String>>() {
+                @Override
+                public int compare(List<String> list, List<String> list2) {
+                    return list.size() - list2.size();
+                }
+            });
+
+            List<String> conjunction_matches = included_lists.get(0);
+            for (int i = 1; i < included_lists.size() && !conjunction_matches.isEmpty(); i++) {
+
+                conjunction_matches = PostingList.intersect(conjunction_matches, included_lists.get(i));
+            }
+
+            for (String term : conjunction.getExcluded()) {
+
+                if (conjunction_matches.isEmpty()) {
+
+                    break;
+                }
+                conjunction_matches = PostingList.subtract(conjunction_matches, getSortedPostingList(term));
+            }
+
+            matches = PostingList.union(matches, conjunction_matches);
+        }
+
+        return matches;
+    }
+
+    /**
+     * Returns the sorted posting list for a hashtag, or an empty list if the
+     * hashtag is unknown.
+     *
+     * @param hashtag Hashtag for which the posting list is requested
+     * @return Sorted list of tweets mapped to the hashtag
+     */
+    private List<String> getSortedPostingList(String hashtag) {
+
+        PostingList posting_list = history_map.get(hashtag);
+
+        return (posting_list == null) ? Collections.<String>emptyList() : posting_list.getSortedEntries();
+    }
+
+    /**
+     * Builds the version number of a query from the version numbers of its
+     * hashtags, in sorted hashtag order.
+     *
+     * @param query Parsed query
+     * @return Combined version number
+     */
+    private String getQueryVersionNumber(HashtagQuery query) {
+
+        StringBuilder version_builder = new StringBuilder();
+        for (String term : query.getTerms()) {
+
+            String term_version = getVersionNumber(term);
+            if (version_builder.length() > 0) {
+
+                version_builder.append(".");
+            }
+            version_builder.append((term_version == null) ? "0" : term_version);
+        }
+
+        return version_builder.toString();
+    }
+
+    /**
+     * Uses a multi-read lock to read only the tweets added to the data map
+     * since the given version number. The given version number must have
+     * been issued by this data store.
+     *
+     * @param query Single query key to be read
+     * @param version_number Version number already known to the caller
+     * @param search_results Map of results to be populated
+     * @return The current version number, or null if no delta can be built
+     */
+    public String searchDataStoreDelta(String query, String version_number, JSONObject search_results) {
+
+        lock.lockRead();
+
+        String current_version_number = readDeltaResults(query, version_number, search_results);
+
+        lock.unlockRead();
+
+        return current_version_number;
+    }
+
+    /**
+     * Reads the tweets added to a single query key since the given version
+     * number. There are no locks in this method, because the locking is
+     * managed in the calling methods.
+     *
+     * @param query Single query key to be read
+     * @param version_number Version number already known to the caller
+     * @param search_results Map of results to be populated
+     * @return The current version number, or null if no delta can be built
+     */
+    private String readDeltaResults(String query, String version_number, JSONObject search_results) {
+
+        String current_version_number = getVersionNumber(query);
+        PostingList history = history_map.get(query);
+
+        int known_version;
+        try {
+
+            known_version = Integer.decode(version_number);
+        } catch (NumberFormatException e) {
+
+            known_version = -1;
+        }
+
+        // A delta can only be built for a version this data store has already passed
+        if (current_version_number == null || history == null || known_version < 0 ||
+                known_version > Integer.decode(current_version_number)) {
+
+            return null;
+        }
+
+        if (known_version < Integer.decode(current_version_number)) {
+
+            PersistentMap<String, VectorTimestamp> results = readTweets(query);
+            for (String tweet : history.getEntriesSince(known_version)) {
+
+                search_results.put(tweet, results.get(tweet).toJSONObject());
+            }
+        }
+
+        return current_version_number;
+    }
+
+    /**
+     * Appends newly written tweets to the history of a hashtag, tagging them
+     * with the hashtag's current version number. There are no locks in this
+     * method, because the locking is managed in the calling methods.
+     *
+     * @param hashtag Hashtag to which the tweets were written
+     * @param tweets Tweets written to the hashtag
+     */
+    private void appendToHistory(String hashtag, List<String> tweets) {
+
+        PostingList history = history_map.get(hashtag);
+        if (history == null) {
+
+            history = new PostingList();
+            history_map.put(hashtag, history);
+        }
+
+        history.appendAll(tweets, Integer.decode(getVersionNumber(hashtag)));
     }
 
     /**
@@ -105,12 +621,13 @@ public class DataStore extends BaseStore {
     private void incrementVersionNumber(String hashtag) {
 
         String version_number = this.getVersionNumber(hashtag);
+        invalidateEncodedResults(hashtag, version_number);
         if (version_number != null) {
 
-            this.version_numbers.put(hashtag, String.valueOf(Integer.decode(version_number) + 1));
+            this.version_numbers = this.version_numbers.put(hashtag, String.valueOf(Integer.decode(version_number) + 1));
         } else {
 
-            this.version_numbers.put(hashtag, "1");
+            this.version_numbers = this.version_numbers.put(hashtag, "1");
         }
     }
 
@@ -134,7 +651,8 @@ public class DataStore extends BaseStore {
 
         if (version_number < Integer.decode(new_version)) {
 
-            this.version_numbers.put(hashtag, new_version);
+            invalidateEncodedResults(hashtag, num_temp);
+            this.version_numbers = this.version_numbers.put(hashtag, new_version);
         }
     }
 
@@ -149,6 +667,66 @@ public class DataStore extends BaseStore {
         return version_numbers.get(hashtag);
     }
 
+    /**
+     * Adds the server a tweet was posted to, if known, to a map of origins.
+     *
+     * @param origins Map of tweets to the servers they were posted to
+     * @param tweet Tweet whose origin is copied
+     * @param origins_copy Map to which the origin is written
+     */
+    private static void copyOrigin(PersistentMap<String, String> origins, String tweet, JSONObject origins_copy) {
+
+        String origin_id = origins.get(tweet);
+        if (origin_id != null) {
+
+            origins_copy.put(tweet, origin_id);
+        }
+    }
+
+    /**
+     * Reads the tweets mapped to the given hashtag.
+     *
+     * @param hashtag Hashtag for which the tweets are requested
+     * @return Map of the tweets to their timestamps, or null if none exist
+     */
+    private PersistentMap<String, VectorTimestamp> readTweets(String hashtag) {
+
+        return tweet_map.get(hashtag);
+    }
+
+    /**
+     * Writes the tweets in a map of tweets to timestamps to a hashtag,
+     * keeping any existing timestamp of a tweet already mapped. There are no
+     * locks in this method, because the locking is managed in the calling
+     * methods.
+     *
+     * @param hashtag Hashtag to which the tweets are written
+     * @param tweets JSONObject mapping tweets to timestamps
+     * @return List of the tweets that were not already mapped to the hashtag
+     */
+    private List<String> mergeTweets(String hashtag, JSONObject tweets) {
+
+        List<String> added_tweets = new ArrayList<String>();
+        PersistentMap<String, VectorTimestamp> hashtag_tweets = readTweets(hashtag);
+        if (hashtag_tweets == null) {
+
+            hashtag_tweets = PersistentMap.empty();
+        }
+
+        for (Map.Entry<String, JSONObject> entry : new HashMap<String, JSONObject>(tweets).entrySet()) {
+
+            if (!hashtag_tweets.containsKey(entry.getKey())) {
+
+                hashtag_tweets = hashtag_tweets.put(entry.getKey(),
+                        new VectorTimestamp(new HashMap<String, String>(entry.getValue())));
+                added_tweets.add(entry.getKey());
+            }
+        }
+        tweet_map = tweet_map.put(hashtag, hashtag_tweets);
+
+        return added_tweets;
+    }
+
     /**
      * Merges this data store with another, writing all values from the latter
      * to the former. Additionally updates the version numbers to reflect all
@@ -159,23 +737,67 @@ public class DataStore extends BaseStore {
      */
     public void mergeReplicationData(JSONObject data_map, JSONObject versions) {
 
+        mergeReplicationData(data_map, versions, null);
+    }
+
+    /**
+     * Merges this data store with another, writing all values from the latter
+     * to the former along with the servers the merged tweets were posted to.
+     * Additionally updates the version numbers to reflect all changes
+     * resulting from the merge.
+     *
+     * @param data_map Map of the keys and values to be merged in
+     * @param versions Map of the version numbers of the merge keys
+     * @param origins Map of tweets to the servers they were posted to, or null
+     */
+    public void mergeReplicationData(JSONObject data_map, JSONObject versions, Map<?, ?> origins) {
+
         lock.lockReadWrite();
 
-        HashMap<String, JSONObject> map_copy = new HashMap<String, JSONObject>(data_map);
-        HashMap<String, String> version_map = new HashMap<String, String>(versions);
-        for (Map.Entry<String, JSONObject> entry : map_copy.entrySet()) {
+        try {
 
-            String key = entry.getKey();
-            writeStore(key, entry.getValue(), true);
-            updateVersionNumber(key, version_map.get(key));
-        }
+            if (origins != null) {
 
-        lock.unlockReadWrite();
+                for (Map.Entry<?, ?> entry : origins.entrySet()) {
+
+                    Object tweet = entry.getKey();
+                    Object origin_id = entry.getValue();
+                    if (tweet instanceof String && origin_id instanceof String && !origin_map.containsKey(tweet)) {
+
+                        origin_map = origin_map.put((String) tweet, (String) origin_id);
+                    }
+                }
+            }
+
+            HashMap<String, JSONObject> map_copy = new HashMap<String, JSONObject>(data_map);
+            HashMap<String, String> version_map = new HashMap<String, String>(versions);
+            for (Map.Entry<String, JSONObject> entry : map_copy.entrySet()) {
+
+                String key = entry.getKey();
+                String previous_version_number = getVersionNumber(key);
+                List<String> added_tweets = mergeTweets(key, entry.getValue());
+                updateVersionNumber(key, version_map.get(key));
+
+                if (!added_tweets.isEmpty()) {
+
+                    // Tag merged tweets with a version this data store has not yet issued
+                    if (getVersionNumber(key) == null || getVersionNumber(key).equals(previous_version_number)) {
+
+                        incrementVersionNumber(key);
+                    }
+                    appendToHistory(key, added_tweets);
+                }
+            }
+        } finally {
+
+            lock.unlockReadWrite();
+        }
     }
 
     /**
      * Builds a JSONObject that stores a copy of this data store's data map
-     * and version map.
+     * and version map. Hashtags without tweets between the bounds are left
+     * out.
      *
      * @param min_stamp_value Minimum timestamp value allowed
      * @param max_stamp_value Maximum timestamp value allowed
@@ -184,35 +806,44 @@ public class DataStore extends BaseStore {
      */
     public JSONObject getDataStoreCopy(int min_stamp_value, int max_stamp_value, String server_id) {
 
+        // Capture the current maps, which no later write can change
         lock.lockRead();
+        PersistentMap<String, PersistentMap<String, VectorTimestamp>> captured_tweet_map = this.tweet_map;
+        PersistentMap<String, String> captured_version_numbers = this.version_numbers;
+        PersistentMap<String, String> captured_origin_map = this.origin_map;
+        lock.unlockRead();
 
         JSONObject store_data_json_copy = new JSONObject();
+        JSONObject origins_copy = new JSONObject();
 
         // Collect tweets for which the timestamp falls between the provided bounds with respect to the provided ID
-        for (Map.Entry<String, HashMap<String, VectorTimestamp>> store_entry : this.store_map.entrySet()) {
+        for (Map.Entry<String, PersistentMap<String, VectorTimestamp>> store_entry : captured_tweet_map) {
 
             JSONObject tweet_mapping = new JSONObject();
 
-            for (Map.Entry<String, VectorTimestamp> tweet_entry : store_entry.getValue().entrySet()) {
+            for (Map.Entry<String, VectorTimestamp> tweet_entry : store_entry.getValue()) {
 
                 Integer stamp_value = tweet_entry.getValue().getTimestamp(server_id);
                 stamp_value = (stamp_value == null) ? 0 : stamp_value;
                 if ((min_stamp_value == -1 && max_stamp_value == -1) || stamp_value > min_stamp_value && stamp_value <= max_stamp_value) {
 
                     tweet_mapping.put(tweet_entry.getKey(), tweet_entry.getValue().toJSONObject());
+                    copyOrigin(captured_origin_map, tweet_entry.getKey(), origins_copy);
                 }
             }
 
-            store_data_json_copy.put(store_entry.getKey(), tweet_mapping);
+            if (!tweet_mapping.isEmpty()) {
+
+                store_data_json_copy.put(store_entry.getKey(), tweet_mapping);
+            }
         }
 
-        JSONObject versions_copy = new JSONObject(this.version_numbers);
+        JSONObject versions_copy = new JSONObject(captured_version_numbers.toHashMap());
 
         JSONObject complete_store_copy = new JSONObject();
         complete_store_copy.put(Constants.Tokens.DATASTORE, store_data_json_copy);
         complete_store_copy.put(Constants.Tokens.VERSIONMAP, versions_copy);
-
-        lock.unlockRead();
+        complete_store_copy.put(Constants.Tokens.ORIGINS, origins_copy);
 
         return complete_store_copy;
     }
@@ -227,34 +858,134 @@ public class DataStore extends BaseStore {
      */
     public JSONObject getDataStoreCopy(VectorTimestamp upper_bound_timestamp, String ignore_id) {
 
+        return getDataStoreCopy(upper_bound_timestamp, ignore_id, -1);
+    }
+
+    /**
+     * Builds a JSONObject that stores a copy of this data store's data map
+     * and version map. If a lower bound is given, only tweets whose stamp
+     * value for the ignored server ID is above the lower bound are copied,
+     * and hashtags without such tweets are left out.
+     *
+     * @param upper_bound_timestamp Upper bound timestamp to compare against
+     * @param ignore_id Server ID to be ignored during copy
+     * @param lower_bound_stamp Stamp value of the ignored server ID already
+     *                          covered by a previous copy, or -1 for none
+     * @return JSONObject containing copies of this data store's maps
+     */
+    public JSONObject getDataStoreCopy(VectorTimestamp upper_bound_timestamp, String ignore_id, int lower_bound_stamp) {
+
+        // Capture the current maps, which no later write can change
         lock.lockRead();
+        PersistentMap<String, PersistentMap<String, VectorTimestamp>> captured_tweet_map = this.tweet_map;
+        PersistentMap<String, String> captured_version_numbers = this.version_numbers;
+        PersistentMap<String, String> captured_origin_map = this.origin_map;
+        lock.unlockRead();
 
         JSONObject store_data_json_copy = new JSONObject();
+        JSONObject origins_copy = new JSONObject();
 
         // Collect tweets for which the timestamp precedes the provided comparison timestamp
-        for (Map.Entry<String, HashMap<String, VectorTimestamp>> store_entry : this.store_map.entrySet()) {
+        for (Map.Entry<String, PersistentMap<String, VectorTimestamp>> store_entry : captured_tweet_map) {
 
             JSONObject tweet_mapping = new JSONObject();
 
-            for (Map.Entry<String, VectorTimestamp> tweet_entry : store_entry.getValue().entrySet()) {
+            for (Map.Entry<String, VectorTimestamp> tweet_entry : store_entry.getValue()) {
+
+                if (lower_bound_stamp >= 0) {
+
+                    Integer stamp_value = tweet_entry.getValue().getTimestamp(ignore_id);
+                    if (stamp_value == null || stamp_value <= lower_bound_stamp) {
+
+                        continue;
+                    }
+                }
 
                 if (upper_bound_timestamp == null || tweet_entry.getValue().precedes(upper_bound_timestamp, ignore_id)) {
 
                     tweet_mapping.put(tweet_entry.getKey(), tweet_entry.getValue().toJSONObject());
+                    copyOrigin(captured_origin_map, tweet_entry.getKey(), origins_copy);
                 }
             }
 
-            store_data_json_copy.put(store_entry.getKey(), tweet_mapping);
+            if (lower_bound_stamp < 0 || !tweet_mapping.isEmpty()) {
+
+                store_data_json_copy.put(store_entry.getKey(), tweet_mapping);
+            }
         }
 
-        JSONObject versions_copy = new JSONObject(this.version_numbers);
+        JSONObject versions_copy = new JSONObject(captured_version_numbers.toHashMap());
 
         JSONObject complete_store_copy = new JSONObject();
         complete_store_copy.put(Constants.Tokens.DATASTORE, store_data_json_copy);
         complete_store_copy.put(Constants.Tokens.VERSIONMAP, versions_copy);
+        complete_store_copy.put(Constants.Tokens.ORIGINS, origins_copy);
 
+        return complete_store_copy;
+    }
+
+    /**
+     * Builds a JSONObject that stores a copy of the tweets carrying a hashtag
+     * of the given shards. Each tweet is copied under all of its hashtags,
+     * so the receiving server can answer any conjunction requiring a hashtag
+     * of those shards, and the version numbers of the hashtags copied are
+     * included.
+     *
+     * @param shards Shard numbers to be copied
+     * @return JSONObject containing copies of this data store's maps
+     */
+    public JSONObject getShardCopy(Set<Integer> shards) {
+
+        // Capture the current maps, which no later write can change
+        lock.lockRead();
+        PersistentMap<String, PersistentMap<String, VectorTimestamp>> captured_tweet_map = this.tweet_map;
+        PersistentMap<String, String> captured_version_numbers = this.version_numbers;
+        PersistentMap<String, String> captured_origin_map = this.origin_map;
         lock.unlockRead();
 
+        // Collect the tweets carrying a hashtag of the shards
+        HashSet<String> shard_tweets = new HashSet<String>();
+        for (Map.Entry<String, PersistentMap<String, VectorTimestamp>> store_entry : captured_tweet_map) {
+
+            if (shards.contains(DirectoryView.getShard(store_entry.getKey()))) {
+
+                for (Map.Entry<String, VectorTimestamp> tweet_entry : store_entry.getValue()) {
+
+                    shard_tweets.add(tweet_entry.getKey());
+                }
+            }
+        }
+
+        JSONObject store_data_json_copy = new JSONObject();
+        JSONObject versions_copy = new JSONObject();
+        JSONObject origins_copy = new JSONObject();
+
+        // Copy those tweets under every hashtag they are mapped to
+        for (Map.Entry<String, PersistentMap<String, VectorTimestamp>> store_entry : captured_tweet_map) {
+
+            JSONObject tweet_mapping = new JSONObject();
+
+            for (Map.Entry<String, VectorTimestamp> tweet_entry : store_entry.getValue()) {
+
+                if (shard_tweets.contains(tweet_entry.getKey())) {
+
+                    tweet_mapping.put(tweet_entry.getKey(), tweet_entry.getValue().toJSONObject());
+                    copyOrigin(captured_origin_map, tweet_entry.getKey(), origins_copy);
+                }
+            }
+
+            if (!tweet_mapping.isEmpty()) {
+
+                store_data_json_copy.put(store_entry.getKey(), tweet_mapping);
+                versions_copy.put(store_entry.getKey(), captured_version_numbers.get(store_entry.getKey()));
+            }
+        }
+
+        JSONObject complete_store_copy = new JSONObject();
+        complete_store_copy.put(Constants.Tokens.DATASTORE, store_data_json_copy);
+        complete_store_copy.put(Constants.Tokens.VERSIONMAP, versions_copy);
+        complete_store_copy.put(Constants.Tokens.ORIGINS, origins_copy);
+
         return complete_store_copy;
     }
 }
@@ -0,0 +1,413 @@
+package main;
+
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the data store server that a front end sends each request to. The
+ * router keeps a list of live data store servers that is rebuilt only when
+ * the server directory changes, and tracks an exponentially weighted average
+ * of each server's response latency along with its number of requests in
+ * flight. A request goes to its preferred server unless that server is down
+ * or much slower than the better of two randomly chosen live servers. When
+ * the data store tier is sharded, the choice is limited to the owners of the
+ * shard a request concerns.
+ */
+public class DataStoreRouter {
+
+    private static DataStoreRouter singleton_router = null;
+    private volatile String[] candidate_ids;
+    private volatile DirectoryView refreshed_view;
+    private ConcurrentHashMap<String, RouteStats> route_stats;
+    private Random random;
+    private long[] latency_samples;
+    private int sample_count;
+    private int next_sample;
+
+    final static Logger logger = Logger.getLogger(DataStoreRouter.class);
+
+    private DataStoreRouter() {
+
+        this.candidate_ids = null;
+        this.refreshed_view = null;
+        this.route_stats = new ConcurrentHashMap<String, RouteStats>();
+        this.random = new Random();
+        this.latency_samples = new long[Constants.Hedging.SAMPLES];
+        this.sample_count = 0;
+        this.next_sample = 0;
+    }
+
+    /**
+     * Provides access to the singleton router for use across multiple front
+     * end threads.
+     *
+     * @return An instance of the singleton router
+     */
+    public synchronized static DataStoreRouter getInstance() {
+
+        if (singleton_router == null) {
+
+            singleton_router = new DataStoreRouter();
+        }
+
+        return singleton_router;
+    }
+
+    /**
+     * Rebuilds the list of live data store servers from the server directory.
+     * This method should be called whenever the directory is updated.
+     *
+     * @param server_directory Server directory to read live servers from
+     */
+    public void refresh(ServerDirectory server_directory) {
+
+        List<String> live_ids = Collections.emptyList();
+        DirectoryView directory_view = null;
+
+        if (server_directory != null) {
+
+            // The view lists live data stores already sorted
+            directory_view = server_directory.getView();
+            live_ids = directory_view.getLiveDataStoreIDs();
+        }
+
+        candidate_ids = live_ids.toArray(new String[live_ids.size()]);
+        refreshed_view = directory_view;
+
+        logger.debug("Refreshed data store candidates: " + live_ids);
+    }
+
+    /**
+     * Indicates whether the candidate list has been built.
+     *
+     * @return Boolean indicating the router has been refreshed
+     */
+    public boolean isInitialized() {
+
+        return candidate_ids != null;
+    }
+
+    /**
+     * Indicates whether the candidate list was built from the current view
+     * of the given server directory.
+     *
+     * @param server_directory Server directory to compare against
+     * @return Boolean indicating the router is up to date
+     */
+    public boolean isCurrent(ServerDirectory server_directory) {
+
+        return candidate_ids != null && refreshed_view == server_directory.getView();
+    }
+
+    /**
+     * Selects a live data store server for a request. The preferred server is
+     * kept unless it is down or its score is worse than the switch factor
+     * times the score of the better of two randomly chosen candidates. A
+     * server's score grows with its average latency and its requests in
+     * flight, and is penalized if the server has not yet been seen to reach
+     * the required timestamp, since it may have to wait for replication
+     * before answering.
+     *
+     * @param preferred_id ID of the preferred data store server, or null
+     * @param required_timestamp Timestamp the response must reflect, or null
+     * @return ID of the selected data store server, or null if none is live
+     */
+    public String selectDataStore(String preferred_id, VectorTimestamp required_timestamp) {
+
+        return selectDataStore(preferred_id, required_timestamp, null);
+    }
+
+    /**
+     * Selects a live data store server for a request among the given owners
+     * of a shard, in the same way as among all live servers.
+     *
+     * @param preferred_id ID of the preferred data store server, or null
+     * @param required_timestamp Timestamp the response must reflect, or null
+     * @param owner_ids IDs of the servers able to answer, or null for any live server
+     * @return ID of the selected data store server, or null if none is live
+     */
+    public String selectDataStore(String preferred_id, VectorTimestamp required_timestamp, List<String> owner_ids) {
+
+        String[] candidates = getCandidates(owner_ids);
+        if (candidates == null || candidates.length == 0) {
+
+            return null;
+        }
+
+        // Pick the better of two distinct random candidates
+        String choice = candidates[random.nextInt(candidates.length)];
+        if (candidates.length > 1) {
+
+            String second_choice = candidates[random.nextInt(candidates.length - 1)];
+            if (second_choice.equals(choice)) {
+
+                second_choice = candidates[candidates.length - 1];
+            }
+            if (score(second_choice, required_timestamp) < score(choice, required_timestamp)) {
+
+                choice = second_choice;
+            }
+        }
+
+        if (preferred_id != null && Arrays.binarySearch(candidates, preferred_id) >= 0 &&
+                score(preferred_id, required_timestamp) <=
+                        Constants.Routing.SWITCHFACTOR * score(choice, required_timestamp)) {
+
+            return preferred_id;
+        }
+
+        logger.debug("Routing request away from " + preferred_id + " to " + choice);
+
+        return choice;
+    }
+
+    /**
+     * Selects a live data store server other than the given one to receive a
+     * hedged copy of a request. The candidate with the best score is chosen.
+     *
+     * @param excluded_id ID of the server already handling the request
+     * @param required_timestamp Timestamp the response must reflect, or null
+     * @return ID of the selected data store server, or null if none is live
+     */
+    public String selectHedge(String excluded_id, VectorTimestamp required_timestamp) {
+
+        return selectHedge(excluded_id, required_timestamp, null);
+    }
+
+    /**
+     * Selects a server among the given owners of a shard, other than the
+     * given one, to receive a hedged copy of a request.
+     *
+     * @param excluded_id ID of the server already handling the request
+     * @param required_timestamp Timestamp the response must reflect, or null
+     * @param owner_ids IDs of the servers able to answer, or null for any live server
+     * @return ID of the selected data store server, or null if none is live
+     */
+    public String selectHedge(String excluded_id, VectorTimestamp required_timestamp, List<String> owner_ids) {
+
+        String[] candidates = getCandidates(owner_ids);
+        if (candidates == null) {
+
+            return null;
+        }
+
+        String choice = null;
+        double choice_score = 0;
+        for (String candidate : candidates) {
+
+            if (candidate.equals(excluded_id)) {
+
+                continue;
+            }
+
+            double candidate_score = score(candidate, required_timestamp);
+            if (choice == null || candidate_score < choice_score) {
+
+                choice = candidate;
+                choice_score = candidate_score;
+            }
+        }
+
+        return choice;
+    }
+
+    /**
+     * Returns the given percentile of recently observed request latencies.
+     * Until enough requests have completed, the latency upper bound is
+     * returned instead.
+     *
+     * @param percentile Percentile between 0 and 1
+     * @return Latency in milliseconds
+     */
+    public synchronized long getLatencyPercentile(double percentile) {
+
+        int sample_size = sample_count;
+        if (sample_size < Constants.Hedging.MINSAMPLES) {
+
+            return Constants.Discovery.LATENCYUPBOUND;
+        }
+
+        long[] sorted_samples = Arrays.copyOf(latency_samples, sample_size);
+        Arrays.sort(sorted_samples);
+        int index = (int) Math.ceil(percentile * sample_size) - 1;
+
+        return sorted_samples[Math.max(0, Math.min(index, sample_size - 1))];
+    }
+
+    /**
+     * Records the start of a request to a data store server.
+     *
+     * @param server_id ID of the data store server
+     * @return Start time in milliseconds
+     */
+    public long beginRequest(String server_id) {
+
+        getStats(server_id).begin();
+
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Records the completion of a request to a data store server.
+     *
+     * @param server_id ID of the data store server
+     * @param start_time Start time returned by beginRequest
+     * @param response Response received, or null if the request failed
+     */
+    public void endRequest(String server_id, long start_time, HTTPObject response) {
+
+        long latency = System.currentTimeMillis() - start_time;
+        VectorTimestamp response_timestamp = null;
+
+        if (response == null) {
+
+            // Treat a failed request as a very slow one
+            latency = Math.max(latency, Constants.Discovery.LATENCYUPBOUND);
+        } else if (response.getBody().get(Constants.Tokens.TIMESTAMP) instanceof Map) {
+
+            response_timestamp = new VectorTimestamp(
+                    new HashMap<String, String>((Map) response.getBody().get(Constants.Tokens.TIMESTAMP)));
+        }
+
+        getStats(server_id).end(latency, response_timestamp);
+
+        if (response != null) {
+
+            recordLatency(latency);
+        }
+    }
+
+    /**
+     * Records that a request to a data store server was abandoned before it
+     * completed. No latency is recorded for the request.
+     *
+     * @param server_id ID of the data store server
+     */
+    public void cancelRequest(String server_id) {
+
+        getStats(server_id).cancel();
+    }
+
+    /**
+     * Adds a latency to the ring of recent samples used for percentiles.
+     *
+     * @param latency Latency in milliseconds
+     */
+    private synchronized void recordLatency(long latency) {
+
+        latency_samples[next_sample] = latency;
+        next_sample = (next_sample + 1) % latency_samples.length;
+        sample_count = Math.min(sample_count + 1, latency_samples.length);
+    }
+
+    /**
+     * Returns the candidates for a request, which are the live servers that
+     * are among the given owners.
+     *
+     * @param owner_ids IDs of the servers able to answer, or null for any live server
+     * @return Sorted array of server IDs, or null if the router was never refreshed
+     */
+    private String[] getCandidates(List<String> owner_ids) {
+
+        String[] candidates = candidate_ids;
+        if (candidates == null || owner_ids == null) {
+
+            return candidates;
+        }
+
+        ArrayList<String> owner_candidates = new ArrayList<String>();
+        for (String candidate : candidates) {
+
+            if (owner_ids.contains(candidate)) {
+
+                owner_candidates.add(candidate);
+            }
+        }
+
+        return owner_candidates.toArray(new String[owner_candidates.size()]);
+    }
+
+    /**
+     * Returns the routing score of a data store server. Lower is better.
+     *
+     * @param server_id ID of the data store server
+     * @param required_timestamp Timestamp the response must reflect, or null
+     * @return Routing score
+     */
+    private double score(String server_id, VectorTimestamp required_timestamp) {
+
+        return getStats(server_id).score(required_timestamp);
+    }
+
+    /**
+     * Returns the statistics for a data store server, creating them if needed.
+     *
+     * @param server_id ID of the data store server
+     * @return Statistics for the server
+     */
+    private RouteStats getStats(String server_id) {
+
+        RouteStats stats = route_stats.get(server_id);
+        if (stats == null) {
+
+            route_stats.putIfAbsent(server_id, new RouteStats());
+            stats = route_stats.get(server_id);
+        }
+
+        return stats;
+    }
+
+    /**
+     * Latency, load and freshness statistics for a single data store server.
+     */
+    private static class RouteStats {
+
+        private double average_latency;
+        private int in_flight;
+        private VectorTimestamp last_timestamp;
+
+        public RouteStats() {
+
+            this.average_latency = 0;
+            this.in_flight = 0;
+            this.last_timestamp = null;
+        }
+
+        public synchronized void begin() {
+
+            in_flight++;
+        }
+
+        public synchronized void cancel() {
+
+            in_flight = Math.max(0, in_flight - 1);
+        }
+
+        public synchronized void end(long latency, VectorTimestamp response_timestamp) {
+
+            in_flight = Math.max(0, in_flight - 1);
+            average_latency = (average_latency == 0) ? latency :
+                    Constants.Routing.EWMAWEIGHT * latency + (1 - Constants.Routing.EWMAWEIGHT) * average_latency;
+
+            if (response_timestamp != null) {
+
+                last_timestamp = response_timestamp;
+            }
+        }
+
+        public synchronized double score(VectorTimestamp required_timestamp) {
+
+            double score = (average_latency + 1) * (in_flight + 1);
+
+            if (required_timestamp != null &&
+                    (last_timestamp == null || !required_timestamp.precedes(last_timestamp, null))) {
+
+                score *= Constants.Routing.STALEPENALTY;
+            }
+
+            return score;
+        }
+    }
+}
@@ -17,6 +17,8 @@ public class DataStoreWorker extends ServerWorkerThread {
 
     private DataStore data_store;
     private HeartBeatCounter heart_beat_counter;
+    private SnapshotMarkers snapshot_markers;
+    private LivenessReporter liveness_reporter;
     private int testing_delay;
     private static VectorTimestamp timestamp = null;
 
@@ -27,16 +29,27 @@ public class DataStoreWorker extends ServerWorkerThread {
 
         super(in_socket, server_id, development);
         this.data_store = DataStore.getInstance();
+        this.snapshot_markers = SnapshotMarkers.getInstance();
         this.heart_beat_counter = heart_beat_counter;
         this.testing_delay = testing_delay;
 
+        // Gossip membership has no discovery server to report liveness to
+        this.liveness_reporter = Constants.Gossip.ENABLED ? null : LivenessReporter.getInstance(server_id, development);
+
         if (development || this.valid_paths == null) {
 
             this.valid_paths = new HashSet<String>();
             this.valid_paths.add("/" + Constants.Tokens.TWEETS);
+            this.valid_paths.add("/" + Constants.Tokens.TWEETS + "/" + Constants.Tokens.BATCH);
             this.valid_paths.add("/" + Constants.Tokens.REPLICATE);
+            this.valid_paths.add("/" + Constants.Tokens.REPLICATE + "/" + Constants.Tokens.BATCH);
             this.valid_paths.add("/" + Constants.Tokens.DISCOVER);
             this.valid_paths.add("/" + Constants.Tokens.SNAPSHOT);
+
+            if (Constants.Gossip.ENABLED) {
+
+                this.valid_paths.add("/" + Constants.Tokens.GOSSIP);
+            }
         }
 
         if (timestamp == null) {
@@ -58,6 +71,13 @@ public class DataStoreWorker extends ServerWorkerThread {
             return;
         }
 
+        // Replication and catch up requests show their sender is alive
+        if (liveness_reporter != null && incoming_request_line.getUripath().startsWith("/" + Constants.Tokens.REPLICATE) &&
+                request_body != null && request_body.get(Constants.Tokens.SERVERID) instanceof String) {
+
+            liveness_reporter.recordContact((String) request_body.get(Constants.Tokens.SERVERID));
+        }
+
         if (incoming_request_line.getUripath().equals("/" + Constants.Tokens.TWEETS)) {
 
             if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.GET)) {
@@ -69,6 +89,26 @@ public class DataStoreWorker extends ServerWorkerThread {
                 logger.debug("Posting tweet to data store");
                 updateDataStore();
             }
+        } else if (incoming_request_line.getUripath().equals(
+                "/" + Constants.Tokens.TWEETS + "/" + Constants.Tokens.BATCH)) {
+
+            if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.GET)) {
+
+                logger.debug("Searching data store for query batch");
+                searchDataStoreBatch();
+            } else if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST)) {
+
+                logger.debug("Posting tweet batch to data store");
+                updateDataStoreBatch();
+            }
+        } else if (incoming_request_line.getUripath().equals(
+                "/" + Constants.Tokens.REPLICATE + "/" + Constants.Tokens.BATCH)) {
+
+            if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST)) {
+
+                logger.debug("Replicating tweet batch to data store");
+                replicateIncomingBatch();
+            }
         } else if (incoming_request_line.getUripath().equals("/" + Constants.Tokens.REPLICATE)) {
 
             if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.GET)) {
@@ -95,7 +135,11 @@ public class DataStoreWorker extends ServerWorkerThread {
                 logger.debug("Updating server directory");
                 updateServerDirectory();
 
-                if (timestamp.getTimestamp(this.server_id) == 0) {
+                if (Constants.Sharding.ENABLED) {
+
+                    // Copy the shards this server gained from the membership change
+                    ShardRebalancer.getInstance(this.server_id).rebalance(server_directory, timestamp);
+                } else if (timestamp.getTimestamp(this.server_id) == 0) {
 
                     logger.debug("Requesting data store catch up");
                     requestFullDataStoreUpdate();
@@ -109,6 +153,18 @@ public class DataStoreWorker extends ServerWorkerThread {
                 logger.debug("Retrieving server snapshots");
                 sendSnapshot();
             }
+        } else if (incoming_request_line.getUripath().equals("/" + Constants.Tokens.GOSSIP)) {
+
+            if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST)) {
+
+                logger.debug("Handling gossip message");
+                processGossip();
+                if (Constants.Sharding.ENABLED && server_directory != null) {
+
+                    ShardRebalancer.getInstance(this.server_id).rebalance(server_directory, timestamp);
+                }
+                timestamp.fillMissingValues(server_directory);
+            }
         }
     }
 
@@ -117,8 +173,273 @@ public class DataStoreWorker extends ServerWorkerThread {
      */
     private void searchDataStore() {
 
+        String query = incoming_request_line.getParameter(Constants.Tokens.QUERY);
+        String version_number = incoming_request_line.getParameter(Constants.Tokens.VERSIONNUM);
+
+        if (query == null || version_number == null) {
+
+            logger.error("Bad request: query=" + query + ", version=" + version_number);
+            setBadRequestResponse();
+            return;
+        }
+
+        HashtagQuery hashtag_query;
+        try {
+
+            hashtag_query = HashtagQuery.parse(query);
+            query = hashtag_query.toString();
+        } catch (HTTPRequestException e) {
+
+            logger.error("Bad request: " + e.getMessage());
+            setBadRequestResponse();
+            response = SystemUtility.buildResponse(response_code, response_body);
+            return;
+        }
+
+        // Block search until timestamp is brought up to date
+        waitForTimestamp(new VectorTimestamp((JSONObject) request_body.get(Constants.Tokens.TIMESTAMP)),
+                Collections.singletonList(hashtag_query));
+
+        logger.debug("Searching for query: " + query);
+        JSONObject search_results = new JSONObject();
+        String current_version_number = null;
+        boolean delta = false;
+
+        // Version numbers are only comparable when they were issued by this data store
+        String source_id = incoming_request_line.getParameter(Constants.Tokens.SOURCE);
+        if (source_id != null && !source_id.equals(this.server_id)) {
+
+            logger.debug("Version issued by " + source_id + ", sending full results");
+            version_number = "";
+        } else if (source_id != null && hashtag_query.isSingleTerm()) {
+
+            // Send only the tweets added since the cached version
+            current_version_number = data_store.searchDataStoreDelta(query, version_number, search_results);
+            delta = (current_version_number != null);
+        }
+
+        // Search the data store for the query, reusing any cached encoding of the results
+        JSONObject encoded_body = new JSONObject();
+        if (current_version_number == null) {
+
+            current_version_number = data_store.searchDataStoreEncoded(hashtag_query, version_number, encoded_body);
+        } else {
+
+            encoded_body.put(Constants.Tokens.TWEETS, search_results);
+        }
+
+        // Compare the version numbers to determine if an update must be sent
+        if (version_number.equals(current_version_number)) {
+
+            logger.debug("Cache is current, no updates");
+            response_body = new JSONObject();
+            response_body.put(Constants.Tokens.STATUS, Constants.Messages.NOTMODIFIED);
+
+            response = SystemUtility.buildResponse(Constants.Codes.NOTMODIFIED, this.response_body);
+        } else {
+
+            if (!version_number.equals(current_version_number)) {
+
+                logger.debug("Cache must update from " + version_number + " to " + current_version_number);
+            } else {
+
+                logger.debug("No search results for query: " + query);
+            }
+
+            // Prepare the response
+            response_body = encoded_body;
+            response_body.put(Constants.Tokens.QUERY, query);
+            response_body.put(Constants.Tokens.VERSIONNUM, current_version_number);
+            response_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
+            response_body.put(Constants.Tokens.SERVERID, this.server_id);
+            response_body.put(Constants.Tokens.DELTA, delta);
+
+            response = SystemUtility.buildResponse(Constants.Codes.OK, this.response_body);
+        }
+    }
+
+    /**
+     * Searches the data store for a batch of queries under a single read
+     * lock and prepares a HTTP response. The request maps each query to the
+     * version number and source held by the front end cache. The response
+     * maps each query to a result carrying its own response code, which is
+     * 304 if the cached version is current and 200 with the updated results
+     * otherwise.
+     */
+    private void searchDataStoreBatch() {
+
+        JSONObject timestamp_json = (JSONObject) request_body.get(Constants.Tokens.TIMESTAMP);
+        Object queries_json = request_body.get(Constants.Tokens.QUERIES);
+
+        if (timestamp_json == null || !(queries_json instanceof Map)) {
+
+            logger.error("Bad request: timestamp=" + timestamp_json + ", queries=" + queries_json);
+            setBadRequestResponse();
+            response = SystemUtility.buildResponse(response_code, response_body);
+            return;
+        }
+
+        JSONObject results = new JSONObject();
+        ArrayList<String> query_keys = new ArrayList<String>();
+        ArrayList<HashtagQuery> queries = new ArrayList<HashtagQuery>();
+        ArrayList<String> version_numbers = new ArrayList<String>();
+        ArrayList<Boolean> deltas = new ArrayList<Boolean>();
+
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) queries_json).entrySet()) {
+
+            Map<?, ?> query_params = (entry.getValue() instanceof Map) ? (Map<?, ?>) entry.getValue() : null;
+            String version_number = (query_params == null) ? null :
+                    (String) query_params.get(Constants.Tokens.VERSIONNUM);
+            String source_id = (query_params == null) ? null : (String) query_params.get(Constants.Tokens.SOURCE);
+
+            HashtagQuery hashtag_query;
+            try {
+
+                hashtag_query = HashtagQuery.parse(entry.getKey());
+            } catch (HTTPRequestException e) {
+
+                hashtag_query = null;
+            }
+
+            if (hashtag_query == null || version_number == null) {
+
+                logger.error("Bad batch query: query=" + entry.getKey() + ", version=" + version_number);
+                JSONObject result = new JSONObject();
+                result.put(Constants.Tokens.CODE, Constants.Codes.BADREQUEST);
+                result.put(Constants.Tokens.STATUS, Constants.Messages.BADREQUEST);
+                results.put(entry.getKey(), result);
+                continue;
+            }
+
+            // Version numbers are only comparable when they were issued by this data store
+            if (source_id != null && !source_id.equals(this.server_id)) {
+
+                version_number = "";
+            }
+
+            query_keys.add(entry.getKey());
+            queries.add(hashtag_query);
+            version_numbers.add(version_number);
+            deltas.add(source_id != null && version_number.length() > 0 && hashtag_query.isSingleTerm());
+        }
+
         // Block search until timestamp is brought up to date
-        VectorTimestamp comparison_timestamp = new VectorTimestamp((JSONObject) request_body.get(Constants.Tokens.TIMESTAMP));
+        waitForTimestamp(new VectorTimestamp(timestamp_json), queries);
+
+        List<JSONObject> search_results = data_store.searchDataStoreBatch(queries, version_numbers, deltas);
+
+        for (int i = 0; i < query_keys.size(); i++) {
+
+            JSONObject result = search_results.get(i);
+            String current_version_number = (String) result.get(Constants.Tokens.VERSIONNUM);
+
+            if (version_numbers.get(i).equals(current_version_number)) {
+
+                result = new JSONObject();
+                result.put(Constants.Tokens.CODE, Constants.Codes.NOTMODIFIED);
+                result.put(Constants.Tokens.STATUS, Constants.Messages.NOTMODIFIED);
+            } else {
+
+                result.put(Constants.Tokens.CODE, Constants.Codes.OK);
+                result.put(Constants.Tokens.QUERY, queries.get(i).toString());
+                result.put(Constants.Tokens.SERVERID, this.server_id);
+            }
+
+            results.put(query_keys.get(i), result);
+        }
+
+        logger.debug("Searched query batch of size " + query_keys.size());
+
+        response_body = new JSONObject();
+        response_body.put(Constants.Tokens.RESULTS, results);
+        response_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
+
+        response = SystemUtility.buildResponse(Constants.Codes.OK, this.response_body);
+    }
+
+    /**
+     * Blocks until this data store has caught up to the given timestamp as
+     * far as the given queries are concerned. With a sharded data store tier
+     * only the stamps of the shards this server answers the queries from
+     * are waited for, since the writes to other shards never reach it.
+     *
+     * @param comparison_timestamp Timestamp that must be reached
+     * @param queries Queries to be answered
+     */
+    private void waitForTimestamp(VectorTimestamp comparison_timestamp, List<HashtagQuery> queries) {
+
+        if (!Constants.Sharding.ENABLED) {
+
+            waitForTimestamp(comparison_timestamp);
+            return;
+        }
+
+        // A conjunction is answered from the shard of any hashtag it requires that this server owns
+        Set<Integer> owned_shards = server_directory.getView().getOwnedShards(this.server_id);
+        HashSet<Integer> query_shards = new HashSet<Integer>();
+        for (HashtagQuery query : queries) {
+
+            for (HashtagQuery.Conjunction conjunction : query.getConjunctions()) {
+
+                query_shards.addAll(getShards(conjunction.getIncluded()));
+            }
+        }
+        query_shards.retainAll(owned_shards);
+
+        waitForShardTimestamps(timestamp, comparison_timestamp, query_shards, this.server_id, server_directory);
+    }
+
+    /**
+     * Blocks until a data store has caught up to the stamps of the given
+     * shards in the given timestamp. Writes a failed server made to a shard
+     * but never replicated are lost with it, so its stamps are not waited
+     * for, and no stamp is waited for longer than the discovery timeout.
+     *
+     * @param timestamp Vector timestamp of the data store
+     * @param comparison_timestamp Timestamp that must be reached
+     * @param shards Shards whose stamps must be reached
+     * @param server_id String ID of the data store
+     * @param server_directory Server directory telling which writers are live
+     */
+    public static void waitForShardTimestamps(VectorTimestamp timestamp, VectorTimestamp comparison_timestamp,
+                                              Set<Integer> shards, String server_id, ServerDirectory server_directory) {
+
+        long deadline = System.currentTimeMillis() + Constants.Discovery.TIMEOUT;
+
+        for (Map.Entry<String, String> entry : comparison_timestamp.getShardTimestampMap(shards).entrySet()) {
+
+            String writer_id = entry.getKey().substring(0, entry.getKey().lastIndexOf(Constants.Sharding.SEPARATOR));
+            int required_stamp = Integer.decode(entry.getValue());
+
+            while (timestamp.getTimestamp(entry.getKey()) == null ||
+                    timestamp.getTimestamp(entry.getKey()) < required_stamp) {
+
+                if (writer_id.equals(server_id) || server_directory.getServerLocation(writer_id) == null ||
+                        System.currentTimeMillis() >= deadline) {
+
+                    logger.debug("DataStore stopped waiting for " + entry.getKey() + " to reach " + required_stamp);
+                    break;
+                }
+
+                // Wake as soon as replication advances the timestamp
+                try {
+
+                    timestamp.awaitUpdate(Constants.Discovery.LATENCYUPBOUND / 2);
+                } catch (InterruptedException e) {
+
+                    logger.error(Constants.Messages.INTERRUPTED);
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks until this data store has caught up to the given timestamp,
+     * requesting missing updates for any servers that are offline.
+     *
+     * @param comparison_timestamp Timestamp that must be reached
+     */
+    private void waitForTimestamp(VectorTimestamp comparison_timestamp) {
 
         LinkedList<String[]> outdated_servers = timestamp.getOutdatedServerID(comparison_timestamp, this.server_id);
 
@@ -127,19 +448,18 @@ public class DataStoreWorker extends ServerWorkerThread {
             String ahead_server_id = outdated_server[0];
             String ahead_time_stamp = outdated_server[1];
             String known_time_stamp = outdated_server[2];
-            String ahead_server_loc = server_directory.getServerLocation(ahead_server_id);
+            DirectoryView directory_view = server_directory.getView();
+            String ahead_server_loc = directory_view.getLocation(ahead_server_id);
 
             // Ahead server is offline, so check to see if the missing data was replicated
             if (ahead_server_loc == null) {
 
-                for (Map.Entry<String, String> entry : server_directory.getServerCollection().entrySet()) {
+                for (String candidate_server_id : directory_view.getLiveDataStoreIDs()) {
 
-                    String candidate_server_id = entry.getKey();
                     if (!candidate_server_id.equals(server_id) &&
-                            !candidate_server_id.equals(ahead_server_id) &&
-                            entry.getValue() != null) {
+                            !candidate_server_id.equals(ahead_server_id)) {
 
-                        ahead_server_loc = entry.getValue();
+                        ahead_server_loc = directory_view.getLocation(candidate_server_id);
                         break;
                     }
                 }
@@ -154,122 +474,265 @@ public class DataStoreWorker extends ServerWorkerThread {
                 while (timestamp.getTimestamp(ahead_server_id) != null &&
                         timestamp.getTimestamp(server_id) < Integer.decode(ahead_time_stamp)) {
 
-                    synchronized (this) {
-
-                        try {
+                    // Wake as soon as replication advances the timestamp
+                    try {
 
-                            this.wait(Constants.Discovery.LATENCYUPBOUND / 2);
-                        } catch (InterruptedException e) {
+                        timestamp.awaitUpdate(Constants.Discovery.LATENCYUPBOUND / 2);
+                    } catch (InterruptedException e) {
 
-                            logger.error(Constants.Messages.INTERRUPTED);
-                        }
+                        logger.error(Constants.Messages.INTERRUPTED);
                     }
                 }
 
                 logger.debug("DataStore received update for " + ahead_server_id + " while waiting.");
             }
         }
+    }
 
-        String query = incoming_request_line.getParameter(Constants.Tokens.QUERY);
-        String version_number = incoming_request_line.getParameter(Constants.Tokens.VERSIONNUM);
+    /**
+     * Updates the data store with a new tweet and prepares a HTTP response.
+     */
+    private void updateDataStore() {
 
-        if (query == null || version_number == null) {
+        String tweet = (request_body.get(Constants.Tokens.TWEET) instanceof String) ?
+                (String) request_body.get(Constants.Tokens.TWEET) : null;
 
-            logger.error("Bad request: query=" + query + ", version=" + version_number);
+        List<String> hashtags = isHashtagList(request_body.get(Constants.Tokens.HASH)) ?
+                (List<String>) request_body.get(Constants.Tokens.HASH) : null;
+
+        // Parse the hashtags if the tweet was posted without them
+        if (tweet != null && request_body.get(Constants.Tokens.HASH) == null) {
+
+            hashtags = HashtagTokenizer.extractHashtags(tweet);
+            request_body.put(Constants.Tokens.HASH, hashtags);
+        }
+
+        // Validate the provided tweet and hashtag set
+        if (tweet == null || hashtags == null || hashtags.isEmpty()) {
+
+            logger.error("Bad request: tweet=" + tweet + ", hashtags=" + hashtags);
             setBadRequestResponse();
+            response = SystemUtility.buildResponse(response_code, response_body);
             return;
         }
 
-        logger.debug("Searching for query: " + query);
-        JSONObject search_results = new JSONObject();
+        snapshot_markers.beginWrite();
+        try {
 
-        // Search the data store for the query
-        String current_version_number = data_store.searchDataStore(query, version_number, search_results);
+            timestamp.incrementTimestamp(this.server_id);
+            incrementShardTimestamps(hashtags);
+            if (ownsShardOf(hashtags)) {
 
-        // Compare the version numbers to determine if an update must be sent
-        if (version_number.equals(current_version_number)) {
+                data_store.postToDataStore(hashtags, tweet, timestamp, this.server_id);
+            }
+        } finally {
 
-            logger.debug("Cache is current, no updates");
-            response_body = new JSONObject();
-            response_body.put(Constants.Tokens.STATUS, Constants.Messages.NOTMODIFIED);
+            snapshot_markers.endWrite();
+        }
+        logger.debug("Tweet posted: " + tweet);
 
-            response = SystemUtility.buildResponse(Constants.Codes.NOTMODIFIED, this.response_body);
-        } else {
+        // Prepare the response
+        response_body = new JSONObject();
+        response_body.put(Constants.Tokens.STATUS, Constants.Messages.CREATED);
+        response_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
 
-            if (!version_number.equals(current_version_number)) {
+        response = SystemUtility.buildResponse(Constants.Codes.CREATED, this.response_body);
 
-                logger.debug("Cache must update from " + version_number + " to " + current_version_number);
-            } else {
+        broadcastWriteToReplicas(hashtags);
+        timestamp.incrementTimestamp(this.server_id);
+    }
 
-                logger.debug("No search results for query: " + query);
+    /**
+     * Updates the data store with a batch of new tweets and prepares a HTTP
+     * response. Each valid tweet is assigned its own timestamp, the batch is
+     * written under a single data store lock, and one replication request
+     * carrying the whole batch is sent to each replica. The response holds
+     * a result for each tweet, in request order, and the resulting timestamp.
+     */
+    private void updateDataStoreBatch() {
+
+        if (!(request_body.get(Constants.Tokens.TWEETS) instanceof List)) {
+
+            logger.error("Bad request: tweets=" + request_body.get(Constants.Tokens.TWEETS));
+            setBadRequestResponse();
+            response = SystemUtility.buildResponse(response_code, response_body);
+            return;
+        }
+
+        List<Object> items = (List<Object>) request_body.get(Constants.Tokens.TWEETS);
+        ArrayList<String> tweets = new ArrayList<String>();
+        ArrayList<List<String>> hashtag_lists = new ArrayList<List<String>>();
+        ArrayList<VectorTimestamp> timestamps = new ArrayList<VectorTimestamp>();
+        JSONArray replication_items = new JSONArray();
+        JSONArray results = new JSONArray();
+
+        // Validate each tweet and assign it a timestamp
+        snapshot_markers.beginWrite();
+        try {
+
+            for (Object item : items) {
+
+                JSONObject result = new JSONObject();
+                results.add(result);
+
+                Object tweet_value = (item instanceof Map) ? ((Map) item).get(Constants.Tokens.TWEET) : null;
+                Object hashtags_value = (item instanceof Map) ? ((Map) item).get(Constants.Tokens.HASH) : null;
+                String tweet = (tweet_value instanceof String) ? (String) tweet_value : null;
+                List<String> hashtags = isHashtagList(hashtags_value) ? (List<String>) hashtags_value : null;
+                if (tweet != null && hashtags_value == null) {
+
+                    hashtags = HashtagTokenizer.extractHashtags(tweet);
+                }
+
+                if (tweet == null || hashtags == null || hashtags.isEmpty()) {
+
+                    logger.error("Bad batch item: tweet=" + tweet_value + ", hashtags=" + hashtags_value);
+                    result.put(Constants.Tokens.STATUS, Constants.Messages.BADREQUEST);
+                    continue;
+                }
+
+                timestamp.incrementTimestamp(this.server_id);
+                incrementShardTimestamps(hashtags);
+                VectorTimestamp tweet_timestamp = timestamp.copy();
+
+                if (ownsShardOf(hashtags)) {
+
+                    tweets.add(tweet);
+                    hashtag_lists.add(hashtags);
+                    timestamps.add(tweet_timestamp);
+                }
+
+                JSONObject replication_item = new JSONObject();
+                replication_item.put(Constants.Tokens.TWEET, tweet);
+                replication_item.put(Constants.Tokens.HASH, hashtags);
+                replication_item.put(Constants.Tokens.TIMESTAMP, tweet_timestamp.toJSONObject());
+                replication_items.add(replication_item);
+
+                result.put(Constants.Tokens.STATUS, Constants.Messages.CREATED);
             }
 
-            // Prepare the response
-            response_body = new JSONObject();
-            response_body.put(Constants.Tokens.TWEETS, search_results);
-            response_body.put(Constants.Tokens.QUERY, query);
-            response_body.put(Constants.Tokens.VERSIONNUM, current_version_number);
-            response_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
+            if (!tweets.isEmpty()) {
 
-            response = SystemUtility.buildResponse(Constants.Codes.OK, this.response_body);
+                data_store.postBatchToDataStore(hashtag_lists, tweets, timestamps, this.server_id);
+                logger.debug("Tweet batch posted: " + tweets.size() + " tweets");
+            }
+        } finally {
+
+            snapshot_markers.endWrite();
+        }
+        response_code = replication_items.isEmpty() ? Constants.Codes.BADREQUEST : Constants.Codes.CREATED;
+
+        // Prepare the response
+        response_body = new JSONObject();
+        response_body.put(Constants.Tokens.RESULTS, results);
+        response_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
+
+        response = SystemUtility.buildResponse(response_code, this.response_body);
+
+        if (!replication_items.isEmpty()) {
+
+            broadcastBatchToReplicas(replication_items);
+            timestamp.incrementTimestamp(this.server_id);
         }
     }
 
     /**
-     * Updates the data store with a new tweet and prepares a HTTP response.
+     * Sends replication requests to the replicas of a tweet, which are the
+     * owners of the shards of its hashtags.
+     *
+     * @param hashtags Hashtags of the tweet
      */
-    private void updateDataStore() {
+    private void broadcastWriteToReplicas(List<String> hashtags) {
 
-        String tweet = (String) request_body.get(Constants.Tokens.TWEET);
+        broadcastToReplicas(Constants.Tokens.REPLICATE, request_body, server_directory.getView().getOwners(hashtags));
+    }
 
-        List<String> hashtags = (List<String>) request_body.get(Constants.Tokens.HASH);
+    /**
+     * Sends replication requests for a batch of tweets. With a sharded data
+     * store tier each replica is sent only the tweets of the shards it owns,
+     * otherwise every replica is sent the whole batch.
+     *
+     * @param replication_items Tweets of the batch, with their hashtags and timestamps
+     */
+    private void broadcastBatchToReplicas(JSONArray replication_items) {
 
-        // Validate the provided tweet and hashtag set
-        if (tweet == null || hashtags == null || hashtags.isEmpty()) {
+        String path = Constants.Tokens.REPLICATE + "/" + Constants.Tokens.BATCH;
+        DirectoryView directory_view = server_directory.getView();
 
-            logger.error("Bad request: tweet=" + tweet + ", hashtags=" + hashtags);
-            setBadRequestResponse();
-            response = SystemUtility.buildResponse(response_code, response_body);
+        if (!Constants.Sharding.ENABLED) {
+
+            JSONObject replication_body = new JSONObject();
+            replication_body.put(Constants.Tokens.TWEETS, replication_items);
+            broadcastToReplicas(path, replication_body, directory_view.getLiveDataStoreIDs());
             return;
         }
 
-        timestamp.incrementTimestamp(this.server_id);
-        data_store.postToDataStore(hashtags, tweet, timestamp);
-        logger.debug("Tweet posted: " + tweet);
+        for (Map.Entry<String, JSONArray> entry : splitBatchByOwner(replication_items, directory_view).entrySet()) {
 
-        // Prepare the response
-        response_body = new JSONObject();
-        response_body.put(Constants.Tokens.STATUS, Constants.Messages.CREATED);
-        response_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
+            JSONObject replication_body = new JSONObject();
+            replication_body.put(Constants.Tokens.TWEETS, entry.getValue());
+            broadcastToReplicas(path, replication_body, Collections.singletonList(entry.getKey()));
+        }
+    }
 
-        response = SystemUtility.buildResponse(Constants.Codes.CREATED, this.response_body);
+    /**
+     * Splits a batch of tweets by the owners of the shards of each tweet's
+     * hashtags, so each owner is sent only the tweets it stores.
+     *
+     * @param replication_items Tweets of the batch, with their hashtags and timestamps
+     * @param directory_view Current view of the directory
+     * @return Map of each owner's ID to its tweets, in batch order
+     */
+    public static HashMap<String, JSONArray> splitBatchByOwner(JSONArray replication_items,
+                                                               DirectoryView directory_view) {
 
-        broadcastWriteToReplicas();
-        timestamp.incrementTimestamp(this.server_id);
+        HashMap<String, JSONArray> replica_items = new HashMap<String, JSONArray>();
+        for (Object item : replication_items) {
+
+            for (String replica_id : directory_view.getOwners((List<String>) ((Map) item).get(Constants.Tokens.HASH))) {
+
+                if (!replica_items.containsKey(replica_id)) {
+
+                    replica_items.put(replica_id, new JSONArray());
+                }
+                replica_items.get(replica_id).add(item);
+            }
+        }
+
+        return replica_items;
     }
 
     /**
-     * Sends replication requests to all replicas.
+     * Sends a replication request with the given body to the given replicas,
+     * adding this server's ID and timestamp to the body along with the
+     * markers of the snapshots this server has recorded a cut for.
+     *
+     * @param path URI path of the replication request
+     * @param replication_body Body of the replication request
+     * @param replica_ids IDs of the data store servers to be sent the request
      */
-    private void broadcastWriteToReplicas() {
+    private void broadcastToReplicas(String path, JSONObject replication_body, Collection<String> replica_ids) {
 
-        request_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
-        request_body.put(Constants.Tokens.SERVERID, this.server_id);
+        replication_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
+        replication_body.put(Constants.Tokens.SERVERID, this.server_id);
+        replication_body.put(Constants.Tokens.MARKERS, snapshot_markers.getMarkers());
 
-        // Change URI path to /replicate and redirect tweet post request to all other data store servers
+        // Redirect the write to all other data store servers
         String request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.POST,
-                Constants.Tokens.REPLICATE, null, request_body).toString();
+                path, null, replication_body).toString();
 
-        logger.debug("Broadcasting tweet to all other data store servers");
-        for (Map.Entry<String, String> entry : server_directory.getServerCollection().entrySet()) {
+        logger.debug("Broadcasting tweet to other data store servers: " + replica_ids);
+        DirectoryView directory_view = server_directory.getView();
+        if (this.workers == null) {
 
-            String server_location = server_directory.getServerLocation(entry.getKey());
-            if (!entry.getKey().equals(this.server_id)
-                    && !entry.getKey().startsWith(Constants.Config.FRONTEND)
-                    && server_location != null) {
+            this.workers = new ArrayList<Thread>();
+        }
+        for (String replica_id : replica_ids) {
+
+            if (!replica_id.equals(this.server_id) && directory_view.getLocation(replica_id) != null) {
 
-                this.workers = new ArrayList<Thread>();
-                ReplicationBroadcastWorker rbw = new ReplicationBroadcastWorker(server_location, request, testing_delay);
+                ReplicationBroadcastWorker rbw = new ReplicationBroadcastWorker(directory_view.getLocation(replica_id),
+                        request, testing_delay);
                 this.workers.add(rbw);
                 rbw.start();
             }
@@ -282,25 +745,108 @@ public class DataStoreWorker extends ServerWorkerThread {
      */
     private void replicateIncomingData() {
 
+        Object server_value = request_body.get(Constants.Tokens.SERVERID);
+
+        // Validate the provided tweet, hashtag set and timestamp before any of them is applied
+        if (!(server_value instanceof String) || !isValidReplicationWrite(request_body, (String) server_value)) {
+
+            logger.error("Bad request: tweet=" + request_body.get(Constants.Tokens.TWEET) + ", hashtags=" +
+                    request_body.get(Constants.Tokens.HASH) + ", server_id=" + server_value + ", timestamp=" +
+                    request_body.get(Constants.Tokens.TIMESTAMP));
+            setBadRequestResponse();
+            return;
+        }
+
+        String server_id = (String) server_value;
         String tweet = (String) request_body.get(Constants.Tokens.TWEET);
-        String server_id = (String) request_body.get(Constants.Tokens.SERVERID);
+        List<String> hashtags = (List<String>) request_body.get(Constants.Tokens.HASH);
         JSONObject timestamp_json = (JSONObject) request_body.get(Constants.Tokens.TIMESTAMP);
 
-        List<String> hashtags = (List<String>) request_body.get(Constants.Tokens.HASH);
+        // Record the cut of any snapshot the sender has already recorded before applying its write
+        snapshot_markers.recordAll(request_body.get(Constants.Tokens.MARKERS), timestamp);
 
-        // Validate the provided tweet and hashtag set
-        if ((tweet == null || hashtags == null || hashtags.isEmpty() ||server_id == null || timestamp_json == null)) {
+        snapshot_markers.beginWrite();
+        try {
+
+            timestamp.updateTimestamp(server_id, (String) timestamp_json.get(server_id));
+            updateShardTimestamps(server_id, timestamp_json, hashtags);
+            timestamp.incrementTimestamp(this.server_id);
+            data_store.postToDataStore(hashtags, tweet, timestamp, server_id);
+        } finally {
+
+            snapshot_markers.endWrite();
+        }
+        logger.debug("Tweet replicated: " + tweet);
+        logger.debug("New timestamp: " + timestamp.toString());
+
+        response_body = new JSONObject();
+        response_body.put(Constants.Tokens.STATUS, Constants.Messages.OK);
+
+        response = SystemUtility.buildResponse(Constants.Codes.OK, this.response_body);
+    }
+
+    /**
+     * Updates the data store with a batch of writes extracted from a
+     * replication request. The stamp of the sending server is advanced to
+     * each tweet's stamp in turn, as if the tweets had been replicated one
+     * at a time, and the batch is written under a single data store lock.
+     */
+    private void replicateIncomingBatch() {
 
-            logger.error("Bad request: tweet=" + tweet + ", hashtags=" + hashtags + ", server_id=" + server_id +
-                    "timestamp=" + timestamp_json);
+        Object server_value = request_body.get(Constants.Tokens.SERVERID);
+        Object items = request_body.get(Constants.Tokens.TWEETS);
+
+        if (!(server_value instanceof String) || !(items instanceof List)) {
+
+            logger.error("Bad request: server_id=" + server_value + ", tweets=" + items);
             setBadRequestResponse();
             return;
         }
+        String server_id = (String) server_value;
 
-        timestamp.updateTimestamp(server_id, (String) timestamp_json.get(server_id));
-        timestamp.incrementTimestamp(this.server_id);
-        data_store.postToDataStore(hashtags, tweet, timestamp);
-        logger.debug("Tweet replicated: " + tweet);
+        // Keep only the well formed items, so nothing is cast while the write is in progress
+        ArrayList<Map<?, ?>> replication_items = new ArrayList<Map<?, ?>>();
+        for (Object item : (List) items) {
+
+            if (item instanceof Map && isValidReplicationWrite((Map<?, ?>) item, server_id)) {
+
+                replication_items.add((Map<?, ?>) item);
+            } else {
+
+                logger.error("Bad replication item: " + item);
+            }
+        }
+
+        ArrayList<String> tweets = new ArrayList<String>();
+        ArrayList<List<String>> hashtag_lists = new ArrayList<List<String>>();
+        ArrayList<VectorTimestamp> timestamps = new ArrayList<VectorTimestamp>();
+
+        // Record the cut of any snapshot the sender has already recorded before applying its writes
+        snapshot_markers.recordAll(request_body.get(Constants.Tokens.MARKERS), timestamp);
+
+        snapshot_markers.beginWrite();
+        try {
+
+            for (Map<?, ?> replication_item : replication_items) {
+
+                List<String> hashtags = (List<String>) replication_item.get(Constants.Tokens.HASH);
+                JSONObject timestamp_json = (JSONObject) replication_item.get(Constants.Tokens.TIMESTAMP);
+
+                timestamp.updateTimestamp(server_id, (String) timestamp_json.get(server_id));
+                updateShardTimestamps(server_id, timestamp_json, hashtags);
+                timestamp.incrementTimestamp(this.server_id);
+
+                tweets.add((String) replication_item.get(Constants.Tokens.TWEET));
+                hashtag_lists.add(hashtags);
+                timestamps.add(timestamp.copy());
+            }
+
+            data_store.postBatchToDataStore(hashtag_lists, tweets, timestamps, server_id);
+        } finally {
+
+            snapshot_markers.endWrite();
+        }
+        logger.debug("Tweet batch replicated: " + tweets.size() + " tweets");
         logger.debug("New timestamp: " + timestamp.toString());
 
         response_body = new JSONObject();
@@ -309,12 +855,150 @@ public class DataStoreWorker extends ServerWorkerThread {
         response = SystemUtility.buildResponse(Constants.Codes.OK, this.response_body);
     }
 
+    /**
+     * Indicates whether a value is a list of hashtags.
+     *
+     * @param value Value read from a request body
+     * @return Boolean indicating every element is a string
+     */
+    private static boolean isHashtagList(Object value) {
+
+        if (!(value instanceof List)) {
+
+            return false;
+        }
+
+        for (Object hashtag : (List) value) {
+
+            if (!(hashtag instanceof String)) {
+
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Indicates whether a replicated write can be applied: it holds a tweet,
+     * a non-empty list of hashtags and a timestamp holding the sender's
+     * stamp, whose stamps are all numbers. Replication bodies are checked in
+     * full before a write begins, since a write that fails part way would
+     * hold up the recording of snapshot cuts.
+     *
+     * @param write Replication body or batch item
+     * @param sender_id String ID of the server that sent the write
+     * @return Boolean indicating the write is well formed
+     */
+    private static boolean isValidReplicationWrite(Map<?, ?> write, String sender_id) {
+
+        Object hashtags = write.get(Constants.Tokens.HASH);
+        Object timestamp_json = write.get(Constants.Tokens.TIMESTAMP);
+        return write.get(Constants.Tokens.TWEET) instanceof String && isHashtagList(hashtags) &&
+                !((List) hashtags).isEmpty() && timestamp_json instanceof JSONObject &&
+                ((JSONObject) timestamp_json).containsKey(sender_id) && VectorTimestamp.isWellFormed(timestamp_json);
+    }
+
+    /**
+     * Advances this server's stamp for each shard the hashtags of a new tweet
+     * belong to. Without sharding there are no shard stamps.
+     *
+     * @param hashtags Hashtags of the tweet
+     */
+    private void incrementShardTimestamps(List<String> hashtags) {
+
+        if (Constants.Sharding.ENABLED) {
+
+            for (Integer shard : getShards(hashtags)) {
+
+                timestamp.incrementTimestamp(VectorTimestamp.getShardKey(this.server_id, shard));
+            }
+        }
+    }
+
+    /**
+     * Advances the sending server's stamps for the shards a replicated tweet
+     * belongs to. Stamps the sender keeps for other shards count writes
+     * this server was never sent, so they are left alone.
+     *
+     * @param sender_id String ID of the server that sent the tweet
+     * @param timestamp_json Timestamp sent with the tweet
+     * @param hashtags Hashtags of the tweet
+     */
+    private void updateShardTimestamps(String sender_id, JSONObject timestamp_json, List<String> hashtags) {
+
+        if (!Constants.Sharding.ENABLED) {
+
+            return;
+        }
+
+        HashMap<String, String> shard_stamps = new HashMap<String, String>();
+        for (Integer shard : getShards(hashtags)) {
+
+            String shard_key = VectorTimestamp.getShardKey(sender_id, shard);
+            if (timestamp_json.get(shard_key) instanceof String) {
+
+                shard_stamps.put(shard_key, (String) timestamp_json.get(shard_key));
+            }
+        }
+
+        timestamp.updateTimestamp(shard_stamps);
+    }
+
+    /**
+     * Indicates whether this server owns the shard of any of the hashtags of
+     * a tweet, and so stores the tweet. Without sharding every data store
+     * stores every tweet.
+     *
+     * @param hashtags Hashtags of the tweet
+     * @return Boolean indicating the tweet is stored by this server
+     */
+    private boolean ownsShardOf(List<String> hashtags) {
+
+        return !Constants.Sharding.ENABLED || server_directory.getView().getOwners(hashtags).contains(this.server_id);
+    }
+
+    /**
+     * Returns the shards the given hashtags belong to.
+     *
+     * @param hashtags Hashtags to be placed
+     * @return Set of shard numbers
+     */
+    private static Set<Integer> getShards(Collection<String> hashtags) {
+
+        HashSet<Integer> shards = new HashSet<Integer>();
+        for (String hashtag : hashtags) {
+
+            shards.add(DirectoryView.getShard(hashtag));
+        }
+
+        return shards;
+    }
+
     /**
      * Builds a copy of the data store for transmitting to the requesting
-     * server.
+     * server. A request naming shards is sent a copy of those shards along
+     * with this server's timestamp.
      */
     private void replicateDataStore() {
 
+        if (request_body.get(Constants.Tokens.SHARDS) instanceof List) {
+
+            HashSet<Integer> shards = new HashSet<Integer>();
+            for (Object shard : (List) request_body.get(Constants.Tokens.SHARDS)) {
+
+                shards.add(((Number) shard).intValue());
+            }
+
+            response_body = new JSONObject();
+            response_body.put(Constants.Tokens.STATUS, Constants.Messages.OK);
+            response_body.put(Constants.Tokens.REPLICATE, this.data_store.getShardCopy(shards));
+            response_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
+
+            response = SystemUtility.buildResponse(Constants.Codes.OK, this.response_body);
+            return;
+        }
+
         String server_id = (String) request_body.get(Constants.Tokens.SERVERID);
         JSONArray stamps_array = (JSONArray) request_body.get(Constants.Tokens.STAMPS);
         Integer stamp_min = (Integer) stamps_array.get(0);
@@ -381,7 +1065,8 @@ public class DataStoreWorker extends ServerWorkerThread {
 
                     timestamp.incrementTimestamp(this.server_id);
                     this.data_store.mergeReplicationData((JSONObject) data_store_json.get(Constants.Tokens.DATASTORE),
-                            (JSONObject) data_store_json.get(Constants.Tokens.VERSIONMAP));
+                            (JSONObject) data_store_json.get(Constants.Tokens.VERSIONMAP),
+                            (JSONObject) data_store_json.get(Constants.Tokens.ORIGINS));
 
                 }
             } catch (IOException e) {
@@ -422,7 +1107,12 @@ public class DataStoreWorker extends ServerWorkerThread {
     }
 
     /**
-     * Builds and sends a copy of the data store.
+     * Builds and sends a copy of the data store. If the request carries the
+     * cut of a previous snapshot, only the tweets written to this data store
+     * after that cut are copied. A request carrying a snapshot marker is
+     * answered without waiting: the copy holds exactly the writes applied
+     * before this server's cut for the snapshot, which is recorded now
+     * unless a replication request carrying the marker arrived first.
      */
     private void sendSnapshot() {
 
@@ -440,6 +1130,28 @@ public class DataStoreWorker extends ServerWorkerThread {
             }
         }
 
+        // Every write to this data store advances its own stamp, so the previous cut bounds the tweets already sent
+        int lower_bound_stamp = -1;
+        if (request_body.get(Constants.Tokens.SINCE) instanceof Map) {
+
+            String since_stamp = (String) ((Map) request_body.get(Constants.Tokens.SINCE)).get(this.server_id);
+            lower_bound_stamp = (since_stamp == null) ? 0 : Integer.decode(since_stamp);
+        }
+
+        if (request_body.get(Constants.Tokens.MARKER) instanceof String) {
+
+            VectorTimestamp cut_timestamp = snapshot_markers.record((String) request_body.get(Constants.Tokens.MARKER),
+                    timestamp);
+
+            response_body = new JSONObject();
+            response_body.put(Constants.Tokens.SNAPSHOT, this.data_store.getDataStoreCopy(
+                    lower_bound_stamp, cut_timestamp.getTimestamp(this.server_id), this.server_id));
+            response_body.put(Constants.Tokens.TIMESTAMP, cut_timestamp.toJSONObject());
+
+            response = SystemUtility.buildResponse(Constants.Codes.OK, response_body);
+            return;
+        }
+
         VectorTimestamp upper_bound_timestamp = null;
 
         // Check and wait for timestamp updates if a timestamp was required with the request
@@ -449,23 +1161,24 @@ public class DataStoreWorker extends ServerWorkerThread {
 
             while (timestamp.getTimestamp(this.server_id) < upper_bound_timestamp.getTimestamp(this.server_id)) {
 
-                synchronized (this) {
-
-                    try {
+                try {
 
-                        this.wait(Constants.Discovery.LATENCYUPBOUND / 2);
-                        logger.debug("Waiting for replication before returning snapshot");
-                    } catch (InterruptedException e) {
+                    logger.debug("Waiting for replication before returning snapshot");
+                    timestamp.awaitUpdate(Constants.Discovery.LATENCYUPBOUND / 2);
+                } catch (InterruptedException e) {
 
-                        logger.error(Constants.Messages.INTERRUPTED);
-                    }
+                    logger.error(Constants.Messages.INTERRUPTED);
                 }
             }
         }
 
+        // Read the timestamp before copying so the cut never claims a write missing from the copy
+        JSONObject snapshot_timestamp = this.timestamp.toJSONObject();
+
         response_body = new JSONObject();
-        response_body.put(Constants.Tokens.SNAPSHOT, this.data_store.getDataStoreCopy(upper_bound_timestamp, server_id));
-        response_body.put(Constants.Tokens.TIMESTAMP, this.timestamp.toJSONObject());
+        response_body.put(Constants.Tokens.SNAPSHOT,
+                this.data_store.getDataStoreCopy(upper_bound_timestamp, server_id, lower_bound_stamp));
+        response_body.put(Constants.Tokens.TIMESTAMP, snapshot_timestamp);
 
         response = SystemUtility.buildResponse(Constants.Codes.OK, response_body);
     }
@@ -0,0 +1,227 @@
+package main;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Sends copies of the server directory, and deltas of it, from the
+ * discovery server to other servers through a bounded pool of threads.
+ * Each recipient has at most one update waiting and at most one being sent,
+ * so updates reach it in order. An update for a recipient that already has
+ * one waiting is not queued behind it: both are replaced by a complete copy
+ * of the directory, taken when it is sent, so a burst of registrations
+ * costs each recipient a single request however many servers register.
+ * Updates wait a short delay before being sent, which gives a newly started
+ * server time to start listening and lets a burst be coalesced.
+ */
+public class DirectoryBroadcaster {
+
+    private static DirectoryBroadcaster singleton_directory_broadcaster = null;
+    private ServerDirectory server_directory;
+    private ScheduledExecutorService scheduler;
+    private int delay;
+    private HashMap<String, JSONObject> waiting_updates;
+    private HashSet<String> scheduled_recipients;
+    private int requests_sent;
+
+    final static Logger logger = Logger.getLogger(DirectoryBroadcaster.class);
+
+    // Marks a waiting update to be sent as a complete copy of the directory
+    private static final JSONObject FULLCOPY = new JSONObject();
+
+    public DirectoryBroadcaster(ServerDirectory server_directory, int delay, int threads) {
+
+        this.server_directory = server_directory;
+        this.delay = delay;
+        this.waiting_updates = new HashMap<String, JSONObject>();
+        this.scheduled_recipients = new HashSet<String>();
+        this.requests_sent = 0;
+        this.scheduler = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "broadcast");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Provides access to the singleton broadcaster for use across multiple
+     * discovery threads.
+     *
+     * @param server_directory Server directory master
+     * @return An instance of the singleton broadcaster
+     */
+    public synchronized static DirectoryBroadcaster getInstance(ServerDirectory server_directory) {
+
+        if (singleton_directory_broadcaster == null) {
+
+            singleton_directory_broadcaster = new DirectoryBroadcaster(server_directory,
+                    Constants.Discovery.LATENCYUPBOUND, Constants.Discovery.BROADCASTTHREADS);
+        }
+
+        return singleton_directory_broadcaster;
+    }
+
+    /**
+     * Queues a complete copy of the directory for a server.
+     *
+     * @param location Location of the receiving server
+     */
+    public void sendDirectory(String location) {
+
+        enqueue(location, FULLCOPY);
+    }
+
+    /**
+     * Queues a request body, such as a delta of the directory, for every
+     * live server in the directory other than the one given.
+     *
+     * @param request_body Body of the request to be sent
+     * @param excluded_id String ID of a server to be skipped, or null
+     */
+    public void broadcast(JSONObject request_body, String excluded_id) {
+
+        for (Map.Entry<String, String> entry : server_directory.getServerCollection().entrySet()) {
+
+            if (entry.getValue() != null && !entry.getKey().equals(excluded_id)) {
+
+                enqueue(entry.getValue(), request_body);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests delivered so far.
+     *
+     * @return Number of requests
+     */
+    public synchronized int getRequestsSent() {
+
+        return requests_sent;
+    }
+
+    /**
+     * Stops all broadcasts. Meant for tearing down test instances.
+     */
+    public void shutdown() {
+
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Queues an update for a recipient, coalescing it with any update
+     * already waiting, and schedules the recipient unless it is already
+     * scheduled or being sent to.
+     *
+     * @param location Location of the receiving server
+     * @param update Body of the request, or the full copy marker
+     */
+    private synchronized void enqueue(String location, JSONObject update) {
+
+        if (waiting_updates.containsKey(location)) {
+
+            logger.debug("Coalescing directory updates for: " + location);
+            waiting_updates.put(location, FULLCOPY);
+        } else {
+
+            waiting_updates.put(location, update);
+        }
+
+        if (!scheduled_recipients.contains(location)) {
+
+            scheduled_recipients.add(location);
+            schedule(location);
+        }
+    }
+
+    /**
+     * Schedules the waiting update of a recipient to be sent after the
+     * delay. Must be called while holding this object's monitor.
+     *
+     * @param location Location of the receiving server
+     */
+    private void schedule(final String location) {
+
+        try {
+
+            scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    sendWaitingUpdate(location);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+
+            scheduled_recipients.remove(location);
+        }
+    }
+
+    /**
+     * Sends the waiting update of a recipient, then schedules the recipient
+     * again if another update arrived in the meantime.
+     *
+     * @param location Location of the receiving server
+     */
+    private void sendWaitingUpdate(String location) {
+
+        JSONObject update;
+        synchronized (this) {
+
+            update = waiting_updates.remove(location);
+        }
+
+        boolean sent = update != null &&
+                send(location, (update == FULLCOPY) ? server_directory.toVersionedJSONObject() : update);
+
+        synchronized (this) {
+
+            requests_sent += sent ? 1 : 0;
+            if (waiting_updates.containsKey(location)) {
+
+                schedule(location);
+            } else {
+
+                scheduled_recipients.remove(location);
+            }
+        }
+    }
+
+    /**
+     * Builds and sends a HTTP request with the given body to a server.
+     *
+     * @param location Location of the receiving server
+     * @param body Body of the request
+     * @return Boolean indicating the server accepted the connection
+     */
+    private boolean send(String location, JSONObject body) {
+
+        try {
+
+            Socket broadcast_socket = new Socket(location.split(":")[0], Integer.decode(location.split(":")[1]));
+            HTTPObject request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.POST,
+                    Constants.Tokens.DISCOVER, null, body);
+
+            logger.debug("Sending server directory broadcast to: " + location);
+            SystemUtility.sendRequestWithoutWait(request.toString(), broadcast_socket);
+        } catch (IOException e) {
+
+            logger.error("Unable to initialize server socket for location: " + location);
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,323 @@
+package main;
+
+import java.util.*;
+
+/**
+ * Immutable copy of the server directory at a single version. Along with the
+ * location of every server, a view holds indexes derived from the locations
+ * when the view is built: the data store servers, the live data store and
+ * front end servers, and a slot for each server ID. The directory publishes
+ * a new view for every change, so readers use a view without locking and
+ * without copying, and every index of a view agrees with its locations.
+ *
+ * A view also places the shards of the data store tier. Every hashtag
+ * belongs to one of a fixed number of shards, each shard has a position on
+ * a consistent-hash ring of the live data stores, and it is owned by the
+ * first servers met walking clockwise from its position, up to the
+ * replication factor. A failed data store only hands its shards to the
+ * next servers on the ring, and a new one only takes the shards next to
+ * its virtual nodes. Without sharding, every live data store owns every
+ * shard.
+ */
+public final class DirectoryView {
+
+    private final Map<String, String> location_map;
+    private final long version;
+    private final List<String> data_store_ids;
+    private final List<String> live_data_store_ids;
+    private final List<String> live_front_end_ids;
+    private final Map<String, Integer> server_slots;
+    private final HashRing ring;
+
+    // Position of each shard on the ring
+    private static final long[] SHARD_POSITIONS = new long[Constants.Sharding.SHARDS];
+    static {
+
+        for (int shard = 0; shard < SHARD_POSITIONS.length; shard++) {
+
+            SHARD_POSITIONS[shard] = HashRing.getPosition("shard" + shard);
+        }
+    }
+
+    /**
+     * Builds a view of the given locations, placing every live data store
+     * on a new ring. The map is copied, so the caller may go on to change
+     * it.
+     *
+     * @param locations Map of server IDs to locations, with null for failed servers
+     * @param version Version of the directory
+     */
+    DirectoryView(Map<String, String> locations, long version) {
+
+        this(locations, version, null);
+    }
+
+    /**
+     * Builds a view of the given locations from the ring of a previous
+     * view, adding the data stores that have become live and removing
+     * those that are no longer live. The map is copied, so the caller may
+     * go on to change it.
+     *
+     * @param locations Map of server IDs to locations, with null for failed servers
+     * @param version Version of the directory
+     * @param previous_ring Ring of the previous view, or null to build a new ring
+     */
+    DirectoryView(Map<String, String> locations, long version, HashRing previous_ring) {
+
+        this.location_map = Collections.unmodifiableMap(new HashMap<String, String>(locations));
+        this.version = version;
+
+        ArrayList<String> server_ids = new ArrayList<String>(locations.keySet());
+        Collections.sort(server_ids);
+
+        ArrayList<String> all_data_stores = new ArrayList<String>();
+        ArrayList<String> live_data_stores = new ArrayList<String>();
+        ArrayList<String> live_front_ends = new ArrayList<String>();
+        HashMap<String, Integer> slots = new HashMap<String, Integer>();
+
+        for (String server_id : server_ids) {
+
+            slots.put(server_id, slots.size());
+            boolean live = locations.get(server_id) != null;
+
+            if (server_id.startsWith(Constants.Config.DATASTORE)) {
+
+                all_data_stores.add(server_id);
+                if (live) {
+
+                    live_data_stores.add(server_id);
+                }
+            } else if (server_id.startsWith(Constants.Config.FRONTEND) && live) {
+
+                live_front_ends.add(server_id);
+            }
+        }
+
+        this.data_store_ids = Collections.unmodifiableList(all_data_stores);
+        this.live_data_store_ids = Collections.unmodifiableList(live_data_stores);
+        this.live_front_end_ids = Collections.unmodifiableList(live_front_ends);
+        this.server_slots = Collections.unmodifiableMap(slots);
+
+        HashRing updated_ring = (previous_ring == null) ? new HashRing(Constants.Sharding.VIRTUALNODES) : previous_ring;
+        for (String server_id : updated_ring.getServerIDs()) {
+
+            if (locations.get(server_id) == null) {
+
+                updated_ring = updated_ring.withoutServer(server_id);
+            }
+        }
+        for (String server_id : live_data_stores) {
+
+            updated_ring = updated_ring.withServer(server_id);
+        }
+        this.ring = updated_ring;
+    }
+
+    /**
+     * Returns the location of the server with the given server ID.
+     *
+     * @param server_id String ID of the server to be located
+     * @return Location of the server, or null if it failed or is unknown
+     */
+    public String getLocation(String server_id) {
+
+        return (server_id == null) ? null : location_map.get(server_id);
+    }
+
+    /**
+     * Returns the location of every known server.
+     *
+     * @return Unmodifiable map of server IDs to locations
+     */
+    public Map<String, String> getLocations() {
+
+        return location_map;
+    }
+
+    public long getVersion() {
+
+        return version;
+    }
+
+    /**
+     * Returns the IDs of every known data store server, live or failed.
+     *
+     * @return Unmodifiable sorted list of server IDs
+     */
+    public List<String> getDataStoreIDs() {
+
+        return data_store_ids;
+    }
+
+    /**
+     * Returns the IDs of the live data store servers.
+     *
+     * @return Unmodifiable sorted list of server IDs
+     */
+    public List<String> getLiveDataStoreIDs() {
+
+        return live_data_store_ids;
+    }
+
+    /**
+     * Returns the IDs of the live front end servers.
+     *
+     * @return Unmodifiable sorted list of server IDs
+     */
+    public List<String> getLiveFrontEndIDs() {
+
+        return live_front_end_ids;
+    }
+
+    /**
+     * Returns the slot of a server, its position among all known server IDs
+     * in sorted order, for arrays indexed by server. Slots change only
+     * when a server is added.
+     *
+     * @param server_id String ID of the server
+     * @return Slot of the server, or -1 if it is unknown
+     */
+    public int getSlot(String server_id) {
+
+        Integer slot = server_slots.get(server_id);
+
+        return (slot == null) ? -1 : slot;
+    }
+
+    /**
+     * Returns the shard a hashtag belongs to.
+     *
+     * @param hashtag Hashtag to be placed
+     * @return Shard number of the hashtag
+     */
+    public static int getShard(String hashtag) {
+
+        return (hashtag.hashCode() & Integer.MAX_VALUE) % Constants.Sharding.SHARDS;
+    }
+
+    /**
+     * Returns the live data stores owning a shard, in the order they are met
+     * on the ring. The shard's first virtual node is found by binary search.
+     *
+     * @param shard Shard number
+     * @return List of server IDs
+     */
+    public List<String> getShardOwners(int shard) {
+
+        if (!Constants.Sharding.ENABLED) {
+
+            return live_data_store_ids;
+        }
+
+        return ring.getOwners(SHARD_POSITIONS[shard], Constants.Sharding.REPLICATION);
+    }
+
+    /**
+     * Returns every live data store in the order met walking the ring from
+     * a shard's position. Removing a server from the ring leaves the order
+     * of the others unchanged, so the servers met after the owners are the
+     * ones that owned the shard before a server placed ahead of them joined.
+     *
+     * @param shard Shard number
+     * @return List of server IDs, owners first
+     */
+    public List<String> getShardRanking(int shard) {
+
+        return ring.getOwners(SHARD_POSITIONS[shard], Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the consistent-hash ring of the live data stores.
+     *
+     * @return Ring of this view
+     */
+    public HashRing getRing() {
+
+        return ring;
+    }
+
+    /**
+     * Returns the live data stores owning the shard of a hashtag, in the
+     * order they are met on the ring.
+     *
+     * @param hashtag Hashtag to be placed
+     * @return List of server IDs
+     */
+    public List<String> getOwners(String hashtag) {
+
+        return getShardOwners(getShard(hashtag));
+    }
+
+    /**
+     * Returns the live data stores owning the shard of any of the given
+     * hashtags, which are the servers a tweet with those hashtags is
+     * written to.
+     *
+     * @param hashtags Hashtags of a tweet
+     * @return Sorted list of server IDs
+     */
+    public List<String> getOwners(Collection<String> hashtags) {
+
+        TreeSet<String> owner_ids = new TreeSet<String>();
+        for (String hashtag : hashtags) {
+
+            owner_ids.addAll(getOwners(hashtag));
+        }
+
+        return new ArrayList<String>(owner_ids);
+    }
+
+    /**
+     * Returns the shards owned by a data store.
+     *
+     * @param server_id String ID of the data store
+     * @return Set of shard numbers, empty if the server is not live
+     */
+    public Set<Integer> getOwnedShards(String server_id) {
+
+        HashSet<Integer> owned_shards = new HashSet<Integer>();
+        for (int shard = 0; shard < SHARD_POSITIONS.length; shard++) {
+
+            if (getShardOwners(shard).contains(server_id)) {
+
+                owned_shards.add(shard);
+            }
+        }
+
+        return owned_shards;
+    }
+
+    /**
+     * Returns the live data stores able to answer a query on their own. A
+     * data store holds every tweet carrying a hashtag of a shard it owns,
+     * indexed under all of the tweet's hashtags, so it can answer any
+     * conjunction requiring such a hashtag. A query is answered by a server
+     * that can answer each of its conjunctions.
+     *
+     * @param query Parsed query
+     * @return Sorted list of server IDs, empty if the query spans shards no
+     * single server owns
+     */
+    public List<String> getQueryOwners(HashtagQuery query) {
+
+        TreeSet<String> owner_ids = null;
+        for (HashtagQuery.Conjunction conjunction : query.getConjunctions()) {
+
+            TreeSet<String> conjunction_owner_ids = new TreeSet<String>();
+            for (String term : conjunction.getIncluded()) {
+
+                conjunction_owner_ids.addAll(getOwners(term));
+            }
+
+            if (owner_ids == null) {
+
+                owner_ids = conjunction_owner_ids;
+            } else {
+
+                owner_ids.retainAll(conjunction_owner_ids);
+            }
+        }
+
+        return (owner_ids == null) ? new ArrayList<String>() : new ArrayList<String>(owner_ids);
+    }
+}
@@ -0,0 +1,1153 @@
+package main;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A single replica of the discovery service when it runs as a group rather
+ * than a single server. The replicas keep a log of directory changes and
+ * agree on it following the Raft algorithm: one replica is elected leader,
+ * appends every registration and failure to its log, and replicates the log
+ * to the others, and an entry is committed once a majority of replicas hold
+ * it. Every replica applies committed entries to its own server directory
+ * in log order, so each replica's directory, including its version, matches
+ * the leader's and any replica can serve directory reads. If the leader
+ * stops sending entries for an election timeout, another replica with an
+ * up to date log is elected, so the group keeps registering servers and
+ * detecting failures as long as a majority of it is running.
+ *
+ * Each replica saves its term, vote and log to its own state file, and
+ * waits for them to reach the disk before answering a vote or append
+ * request, so a replica that restarts keeps every vote it gave and every
+ * entry it acknowledged. The first entry of the log carries the epoch of the
+ * replicated directory, so every replica, including one rebuilding its
+ * directory from its log after a restart, counts versions in the same epoch
+ * and the group can be restarted as a whole.
+ */
+public class DiscoveryReplica {
+
+    private static DiscoveryReplica singleton_discovery_replica = null;
+    private String replica_id;
+    private ArrayList<String> peer_ids;
+    private DiscoveryTransport transport;
+    private ServerDirectory server_directory;
+    private int election_timeout;
+    private int tick;
+    private String role;
+    private long current_term;
+    private String voted_for;
+    private String leader_id;
+    private ArrayList<LogEntry> log;
+    private long commit_index;
+    private long last_applied;
+    private HashMap<String, Long> next_index;
+    private HashMap<String, Long> match_index;
+    private HashMap<Long, JSONObject> applied_deltas;
+    private long last_contact;
+    private long current_timeout;
+    private Runnable leadership_listener;
+    private Random random;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService message_executor;
+    private File state_file;
+    private FileOutputStream state_stream;
+    private long state_records;
+
+    final static Logger logger = Logger.getLogger(DiscoveryReplica.class);
+
+    public DiscoveryReplica(String replica_id, Collection<String> peer_ids, DiscoveryTransport transport,
+                            ServerDirectory server_directory, int election_timeout, File state_file)
+            throws IOException {
+
+        this.replica_id = replica_id;
+        this.peer_ids = new ArrayList<String>(peer_ids);
+        this.peer_ids.remove(replica_id);
+        this.transport = transport;
+        this.server_directory = server_directory;
+        this.election_timeout = election_timeout;
+        this.tick = election_timeout / 5;
+        this.role = Constants.Consensus.FOLLOWER;
+        this.current_term = 0;
+        this.voted_for = null;
+        this.leader_id = null;
+        this.log = new ArrayList<LogEntry>();
+        this.commit_index = 0;
+        this.last_applied = 0;
+        this.next_index = new HashMap<String, Long>();
+        this.match_index = new HashMap<String, Long>();
+        this.applied_deltas = new HashMap<Long, JSONObject>();
+        this.leadership_listener = null;
+        this.random = new Random();
+        this.scheduler = null;
+        this.message_executor = null;
+        this.state_file = state_file;
+        this.state_stream = null;
+        this.state_records = 0;
+
+        // The log is indexed from one, so a sentinel entry fills index zero
+        this.log.add(new LogEntry(0, null));
+        loadState();
+    }
+
+    /**
+     * Creates and starts the singleton replica of this discovery server,
+     * with every configured discovery replica as a peer.
+     *
+     * @param replica_id String ID of this replica
+     * @param development Environment flag for choosing ports
+     * @return An instance of the singleton replica
+     */
+    public synchronized static DiscoveryReplica getInstance(String replica_id, boolean development) {
+
+        if (singleton_discovery_replica == null) {
+
+            Map<String, String> replica_locations = SystemUtility.getDiscoveryLocations(development);
+            File state_dir = new File(Constants.Consensus.STATEDIR);
+            state_dir.mkdirs();
+
+            try {
+
+                singleton_discovery_replica = new DiscoveryReplica(replica_id, replica_locations.keySet(),
+                        new HTTPTransport(replica_locations), ServerDirectory.getInstance(null, false),
+                        Constants.Consensus.ELECTIONTIMEOUT, new File(state_dir, replica_id + ".log"));
+            } catch (IOException e) {
+
+                logger.error("Unable to read consensus state: " + e.getMessage());
+                System.exit(1);
+            }
+            singleton_discovery_replica.start();
+        }
+
+        return singleton_discovery_replica;
+    }
+
+    /**
+     * Provides access to the singleton replica once it has been started.
+     *
+     * @return An instance of the singleton replica, or null if discovery is not replicated
+     */
+    public synchronized static DiscoveryReplica getInstance() {
+
+        return singleton_discovery_replica;
+    }
+
+    /**
+     * Builds a command registering a server at a location.
+     *
+     * @param server_id String ID of the server
+     * @param location Location of the server
+     * @return Command to be proposed
+     */
+    public static JSONObject addCommand(String server_id, String location) {
+
+        JSONObject command = new JSONObject();
+        command.put(Constants.Consensus.OP, Constants.Consensus.ADD);
+        command.put(Constants.Tokens.SERVERID, server_id);
+        command.put(Constants.Tokens.SERVERLOC, location);
+
+        return command;
+    }
+
+    /**
+     * Builds a command marking a server as failed.
+     *
+     * @param server_id String ID of the server
+     * @return Command to be proposed
+     */
+    public static JSONObject failCommand(String server_id) {
+
+        JSONObject command = new JSONObject();
+        command.put(Constants.Consensus.OP, Constants.Consensus.FAIL);
+        command.put(Constants.Tokens.SERVERID, server_id);
+
+        return command;
+    }
+
+    public String getReplicaID() {
+
+        return replica_id;
+    }
+
+    public ServerDirectory getServerDirectory() {
+
+        return server_directory;
+    }
+
+    public synchronized boolean isLeader() {
+
+        return role.equals(Constants.Consensus.LEADER);
+    }
+
+    /**
+     * Returns the replica this replica believes to be leader.
+     *
+     * @return String ID of the leader, or null if none is known
+     */
+    public synchronized String getLeaderID() {
+
+        return leader_id;
+    }
+
+    public synchronized long getTerm() {
+
+        return current_term;
+    }
+
+    public synchronized long getCommitIndex() {
+
+        return commit_index;
+    }
+
+    /**
+     * Sets a task run each time this replica becomes leader, for taking
+     * over duties only the leader performs. The task is run at once if this
+     * replica is already leader.
+     *
+     * @param leadership_listener Task to be run
+     */
+    public void setLeadershipListener(Runnable leadership_listener) {
+
+        boolean leader;
+        synchronized (this) {
+
+            this.leadership_listener = leadership_listener;
+            leader = role.equals(Constants.Consensus.LEADER);
+        }
+
+        // A replica that is already leader takes over at once
+        if (leader) {
+
+            leadership_listener.run();
+        }
+    }
+
+    /**
+     * Starts the election timer and, once leader, the replication of the log.
+     */
+    public synchronized void start() {
+
+        if (scheduler != null) {
+
+            return;
+        }
+
+        ThreadFactory daemon_factory = new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "consensus");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemon_factory);
+        message_executor = Executors.newCachedThreadPool(daemon_factory);
+
+        last_contact = System.currentTimeMillis();
+        current_timeout = randomTimeout();
+
+        scheduler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    runTick();
+                } catch (RuntimeException e) {
+
+                    logger.error("Consensus tick failed: " + e.getMessage());
+                }
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the replica, as though it had crashed. Messages it receives are
+     * no longer answered.
+     */
+    public synchronized void stop() {
+
+        if (scheduler != null) {
+
+            scheduler.shutdownNow();
+            message_executor.shutdownNow();
+            scheduler = null;
+            message_executor = null;
+        }
+        role = Constants.Consensus.FOLLOWER;
+        notifyAll();
+    }
+
+    /**
+     * Appends a command to the log and waits for it to be committed and
+     * applied to the server directory. Only the leader accepts commands.
+     *
+     * @param command Command to be proposed
+     * @return JSON object holding whether the command was committed, the
+     * directory delta it produced if any, and the ID of the known leader
+     */
+    public JSONObject propose(JSONObject command) {
+
+        long index;
+        long term;
+        synchronized (this) {
+
+            if (!role.equals(Constants.Consensus.LEADER)) {
+
+                return buildProposalResult(false, null);
+            }
+
+            log.add(new LogEntry(current_term, command));
+            index = log.size() - 1;
+            term = current_term;
+
+            // The leader counts itself as holding the entry, so it must be saved first
+            if (!saveState(index)) {
+
+                log.remove((int) index);
+                return buildProposalResult(false, null);
+            }
+            applied_deltas.put(index, null);
+        }
+
+        replicateToPeers();
+
+        synchronized (this) {
+
+            long deadline = System.currentTimeMillis() + election_timeout;
+            while (last_applied < index && role.equals(Constants.Consensus.LEADER) && current_term == term) {
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+
+                    break;
+                }
+
+                try {
+
+                    wait(remaining);
+                } catch (InterruptedException e) {
+
+                    logger.error(Constants.Messages.INTERRUPTED);
+                    break;
+                }
+            }
+
+            // The entry may have been replaced by a new leader before it was applied
+            boolean committed = last_applied >= index && log.size() > index && log.get((int) index).term == term;
+            JSONObject delta = applied_deltas.remove(index);
+
+            return buildProposalResult(committed, committed ? delta : null);
+        }
+    }
+
+    /**
+     * Handles a consensus message from another replica and builds the
+     * reply.
+     *
+     * @param message Body of the consensus message
+     * @return Body of the reply, or null if the message is not understood
+     */
+    public JSONObject handleMessage(JSONObject message) {
+
+        if (!(message.get(Constants.Consensus.TERM) instanceof Number)) {
+
+            return null;
+        }
+
+        synchronized (this) {
+
+            if (scheduler == null) {
+
+                return null;
+            }
+
+            if (Constants.Consensus.VOTE.equals(message.get(Constants.Consensus.TYPE))) {
+
+                return handleVote(message);
+            } else if (Constants.Consensus.APPEND.equals(message.get(Constants.Consensus.TYPE))) {
+
+                return handleAppend(message);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Runs one tick of the timer: the leader replicates its log, which also
+     * tells followers it is alive, while a follower that has not heard from
+     * a leader within its election timeout stands for election.
+     */
+    private void runTick() {
+
+        boolean leader;
+        boolean election = false;
+        synchronized (this) {
+
+            leader = role.equals(Constants.Consensus.LEADER);
+            if (!leader && System.currentTimeMillis() - last_contact >= current_timeout) {
+
+                election = true;
+            }
+        }
+
+        if (leader) {
+
+            replicateToPeers();
+        } else if (election) {
+
+            runElection();
+        }
+    }
+
+    /**
+     * Stands for election in a new term, becoming leader if a majority of
+     * the group votes for this replica before the votes time out.
+     */
+    private void runElection() {
+
+        final JSONObject request = new JSONObject();
+        long term;
+        synchronized (this) {
+
+            current_term++;
+            term = current_term;
+            role = Constants.Consensus.CANDIDATE;
+            voted_for = replica_id;
+            leader_id = null;
+            last_contact = System.currentTimeMillis();
+            current_timeout = randomTimeout();
+
+            if (!saveState(log.size())) {
+
+                role = Constants.Consensus.FOLLOWER;
+                return;
+            }
+
+            request.put(Constants.Consensus.TYPE, Constants.Consensus.VOTE);
+            request.put(Constants.Consensus.TERM, term);
+            request.put(Constants.Tokens.SERVERID, replica_id);
+            request.put(Constants.Consensus.LASTINDEX, (long) (log.size() - 1));
+            request.put(Constants.Consensus.LASTTERM, log.get(log.size() - 1).term);
+        }
+
+        logger.debug(replica_id + " standing for election in term " + term);
+
+        int votes = 1;
+        for (JSONObject reply : sendToPeers(request, election_timeout / 2)) {
+
+            if (reply != null && observeTerm(reply) && Boolean.TRUE.equals(reply.get(Constants.Consensus.GRANTED))) {
+
+                votes++;
+            }
+        }
+
+        Runnable listener = null;
+        synchronized (this) {
+
+            if (role.equals(Constants.Consensus.CANDIDATE) && current_term == term && votes > (peer_ids.size() + 1) / 2) {
+
+                logger.debug(replica_id + " elected leader in term " + term + " with " + votes + " votes");
+                for (String peer_id : peer_ids) {
+
+                    next_index.put(peer_id, (long) log.size());
+                    match_index.put(peer_id, 0L);
+                }
+
+                // An entry of the new term lets entries of earlier terms be committed
+                JSONObject noop = new JSONObject();
+                noop.put(Constants.Consensus.OP, Constants.Consensus.NOOP);
+                if (log.size() == 1) {
+
+                    // The first entry of the log starts the epoch of the replicated directory
+                    noop.put(Constants.Discovery.EPOCH, UUID.randomUUID().toString());
+                }
+                log.add(new LogEntry(current_term, noop));
+
+                if (saveState(log.size() - 1)) {
+
+                    role = Constants.Consensus.LEADER;
+                    leader_id = replica_id;
+                    listener = leadership_listener;
+                } else {
+
+                    log.remove(log.size() - 1);
+                    role = Constants.Consensus.FOLLOWER;
+                }
+            }
+        }
+
+        if (listener != null) {
+
+            replicateToPeers();
+            listener.run();
+        }
+    }
+
+    /**
+     * Sends each peer the entries it is missing along with the commit
+     * index, then advances the commit index to the highest entry held by a
+     * majority of the group.
+     */
+    private void replicateToPeers() {
+
+        final HashMap<String, JSONObject> requests = new HashMap<String, JSONObject>();
+        long term;
+        synchronized (this) {
+
+            if (!role.equals(Constants.Consensus.LEADER)) {
+
+                return;
+            }
+            term = current_term;
+
+            for (String peer_id : peer_ids) {
+
+                long prev_index = next_index.get(peer_id) - 1;
+                JSONArray entries = new JSONArray();
+                for (long i = prev_index + 1; i < log.size() && entries.size() < Constants.Consensus.MAXENTRIES; i++) {
+
+                    entries.add(log.get((int) i).toJSONObject());
+                }
+
+                JSONObject request = new JSONObject();
+                request.put(Constants.Consensus.TYPE, Constants.Consensus.APPEND);
+                request.put(Constants.Consensus.TERM, term);
+                request.put(Constants.Consensus.LEADER, replica_id);
+                request.put(Constants.Consensus.PREVINDEX, prev_index);
+                request.put(Constants.Consensus.PREVTERM, log.get((int) prev_index).term);
+                request.put(Constants.Consensus.ENTRIES, entries);
+                request.put(Constants.Consensus.COMMIT, commit_index);
+                requests.put(peer_id, request);
+            }
+        }
+
+        HashMap<String, Future<JSONObject>> replies = new HashMap<String, Future<JSONObject>>();
+        for (final Map.Entry<String, JSONObject> request : requests.entrySet()) {
+
+            Future<JSONObject> reply = submit(request.getKey(), request.getValue(), tick);
+            if (reply != null) {
+
+                replies.put(request.getKey(), reply);
+            }
+        }
+
+        for (Map.Entry<String, Future<JSONObject>> reply : replies.entrySet()) {
+
+            JSONObject reply_body = awaitReply(reply.getValue(), tick);
+            if (reply_body == null || !observeTerm(reply_body) ||
+                    !(reply_body.get(Constants.Consensus.MATCH) instanceof Number)) {
+
+                continue;
+            }
+
+            synchronized (this) {
+
+                if (!role.equals(Constants.Consensus.LEADER) || current_term != term) {
+
+                    return;
+                }
+
+                String peer_id = reply.getKey();
+                long peer_match = ((Number) reply_body.get(Constants.Consensus.MATCH)).longValue();
+                if (Boolean.TRUE.equals(reply_body.get(Constants.Consensus.SUCCESS))) {
+
+                    match_index.put(peer_id, Math.max(match_index.get(peer_id), peer_match));
+                    next_index.put(peer_id, match_index.get(peer_id) + 1);
+                } else {
+
+                    // Step back to the end of the peer's log, or by one entry if the logs conflict there
+                    next_index.put(peer_id, Math.max(1, Math.min(next_index.get(peer_id) - 1, peer_match + 1)));
+                }
+            }
+        }
+
+        synchronized (this) {
+
+            if (role.equals(Constants.Consensus.LEADER) && current_term == term) {
+
+                advanceCommitIndex();
+            }
+        }
+    }
+
+    /**
+     * Answers a request for a vote. The vote is granted if the candidate's
+     * term is current, this replica has not voted for another candidate in
+     * the term, and the candidate's log is at least as up to date as this
+     * replica's. The term and vote are saved before the reply is built. Must
+     * be called while holding this object's monitor.
+     *
+     * @return Body of the reply, or null if the term and vote could not be saved
+     */
+    private JSONObject handleVote(JSONObject message) {
+
+        long term = ((Number) message.get(Constants.Consensus.TERM)).longValue();
+        long previous_term = current_term;
+        String previous_vote = voted_for;
+        if (term > current_term) {
+
+            stepDown(term);
+        }
+
+        String candidate_id = (String) message.get(Constants.Tokens.SERVERID);
+        long last_term = ((Number) message.get(Constants.Consensus.LASTTERM)).longValue();
+        long last_index = ((Number) message.get(Constants.Consensus.LASTINDEX)).longValue();
+        long own_last_term = log.get(log.size() - 1).term;
+
+        boolean up_to_date = last_term > own_last_term || (last_term == own_last_term && last_index >= log.size() - 1);
+        boolean granted = term == current_term && up_to_date && (voted_for == null || voted_for.equals(candidate_id));
+
+        if (granted) {
+
+            voted_for = candidate_id;
+            last_contact = System.currentTimeMillis();
+        }
+
+        if ((current_term != previous_term || (granted && !candidate_id.equals(previous_vote))) &&
+                !saveState(log.size())) {
+
+            return null;
+        }
+
+        JSONObject reply = new JSONObject();
+        reply.put(Constants.Consensus.TERM, current_term);
+        reply.put(Constants.Consensus.GRANTED, granted);
+
+        return reply;
+    }
+
+    /**
+     * Appends entries sent by the leader, provided the entry before them
+     * matches this replica's log, replacing any conflicting entries, and
+     * applies the entries the leader has committed. The term and any changed
+     * entries are saved before the reply is built. Must be called while
+     * holding this object's monitor.
+     *
+     * @return Body of the reply, or null if the term and entries could not be saved
+     */
+    private JSONObject handleAppend(JSONObject message) {
+
+        long term = ((Number) message.get(Constants.Consensus.TERM)).longValue();
+        JSONObject reply = new JSONObject();
+
+        if (term < current_term) {
+
+            reply.put(Constants.Consensus.TERM, current_term);
+            reply.put(Constants.Consensus.SUCCESS, false);
+            reply.put(Constants.Consensus.MATCH, (long) (log.size() - 1));
+            return reply;
+        }
+
+        long previous_term = current_term;
+        stepDown(term);
+        leader_id = (String) message.get(Constants.Consensus.LEADER);
+        last_contact = System.currentTimeMillis();
+
+        long prev_index = ((Number) message.get(Constants.Consensus.PREVINDEX)).longValue();
+        long prev_term = ((Number) message.get(Constants.Consensus.PREVTERM)).longValue();
+        reply.put(Constants.Consensus.TERM, current_term);
+
+        if (prev_index >= log.size() || log.get((int) prev_index).term != prev_term) {
+
+            if (current_term != previous_term && !saveState(log.size())) {
+
+                return null;
+            }
+            reply.put(Constants.Consensus.SUCCESS, false);
+            reply.put(Constants.Consensus.MATCH, Math.min(log.size() - 1, prev_index - 1));
+            return reply;
+        }
+
+        long index = prev_index;
+        long first_changed = log.size();
+        for (Object entry : (List) message.get(Constants.Consensus.ENTRIES)) {
+
+            LogEntry log_entry = new LogEntry((JSONObject) entry);
+            index++;
+
+            if (index < log.size() && log.get((int) index).term != log_entry.term) {
+
+                // Committed entries never conflict, so only unapplied entries are removed
+                log.subList((int) index, log.size()).clear();
+                first_changed = Math.min(first_changed, index);
+            }
+            if (index == log.size()) {
+
+                log.add(log_entry);
+            }
+        }
+
+        if ((current_term != previous_term || first_changed < log.size()) && !saveState(first_changed)) {
+
+            return null;
+        }
+
+        long leader_commit = ((Number) message.get(Constants.Consensus.COMMIT)).longValue();
+        if (leader_commit > commit_index) {
+
+            commit_index = Math.min(leader_commit, index);
+            applyCommitted();
+        }
+
+        reply.put(Constants.Consensus.SUCCESS, true);
+        reply.put(Constants.Consensus.MATCH, index);
+
+        return reply;
+    }
+
+    /**
+     * Steps down on seeing a reply from a later term.
+     *
+     * @param reply Body of a reply from a peer
+     * @return Boolean indicating the reply is not from a later term
+     */
+    private synchronized boolean observeTerm(JSONObject reply) {
+
+        if (!(reply.get(Constants.Consensus.TERM) instanceof Number)) {
+
+            return false;
+        }
+
+        long term = ((Number) reply.get(Constants.Consensus.TERM)).longValue();
+        if (term > current_term) {
+
+            stepDown(term);
+            saveState(log.size());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Becomes a follower, moving to the given term if it is later than the
+     * current one. Must be called while holding this object's monitor.
+     *
+     * @param term Term seen in a message
+     */
+    private void stepDown(long term) {
+
+        if (term > current_term) {
+
+            current_term = term;
+            voted_for = null;
+        }
+
+        if (!role.equals(Constants.Consensus.FOLLOWER)) {
+
+            logger.debug(replica_id + " stepping down in term " + current_term);
+            role = Constants.Consensus.FOLLOWER;
+            current_timeout = randomTimeout();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Commits the latest entry of the current term held by a majority of the
+     * group, along with every entry before it. Must be called while holding
+     * this object's monitor.
+     */
+    private void advanceCommitIndex() {
+
+        for (long index = log.size() - 1; index > commit_index; index--) {
+
+            if (log.get((int) index).term != current_term) {
+
+                break;
+            }
+
+            int holders = 1;
+            for (long peer_match : match_index.values()) {
+
+                if (peer_match >= index) {
+
+                    holders++;
+                }
+            }
+
+            if (holders > (peer_ids.size() + 1) / 2) {
+
+                commit_index = index;
+                applyCommitted();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Applies committed entries to the server directory in log order,
+     * keeping the delta of each entry a proposal is waiting on. Must be
+     * called while holding this object's monitor.
+     */
+    private void applyCommitted() {
+
+        while (last_applied < commit_index) {
+
+            last_applied++;
+            JSONObject command = log.get((int) last_applied).command;
+            JSONObject delta = null;
+
+            if (Constants.Consensus.ADD.equals(command.get(Constants.Consensus.OP))) {
+
+                delta = server_directory.addServer((String) command.get(Constants.Tokens.SERVERID),
+                        (String) command.get(Constants.Tokens.SERVERLOC));
+            } else if (Constants.Consensus.FAIL.equals(command.get(Constants.Consensus.OP))) {
+
+                delta = server_directory.setServerFailed((String) command.get(Constants.Tokens.SERVERID));
+            } else if (command.get(Constants.Discovery.EPOCH) != null) {
+
+                server_directory.setEpoch((String) command.get(Constants.Discovery.EPOCH));
+            }
+
+            if (applied_deltas.containsKey(last_applied)) {
+
+                applied_deltas.put(last_applied, delta);
+            }
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Reads the term, vote and log saved before this replica last stopped,
+     * then rewrites the state file holding only them. Records are replayed
+     * in order, and a saved entry replaces the entry at its index and every
+     * entry after it. A record cut short by a crash ends the file and is
+     * dropped, since no reply was sent for it.
+     */
+    private void loadState() throws IOException {
+
+        if (state_file.exists()) {
+
+            BufferedReader state_reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(state_file), "UTF-8"));
+            JSONParser parser = new JSONParser();
+
+            try {
+
+                String line;
+                while ((line = state_reader.readLine()) != null) {
+
+                    JSONObject record;
+                    try {
+
+                        record = (JSONObject) parser.parse(line);
+                    } catch (ParseException e) {
+
+                        break;
+                    }
+
+                    if (Constants.Consensus.STATE.equals(record.get(Constants.Consensus.TYPE))) {
+
+                        current_term = ((Number) record.get(Constants.Consensus.TERM)).longValue();
+                        voted_for = (String) record.get(Constants.Consensus.VOTEDFOR);
+                    } else if (Constants.Consensus.ENTRY.equals(record.get(Constants.Consensus.TYPE))) {
+
+                        long index = ((Number) record.get(Constants.Consensus.INDEX)).longValue();
+                        if (index < 1 || index > log.size()) {
+
+                            throw new IOException("Log entry " + index + " out of order in " + state_file);
+                        }
+                        log.subList((int) index, log.size()).clear();
+                        log.add(new LogEntry(record));
+                    }
+                }
+            } finally {
+
+                state_reader.close();
+            }
+        }
+
+        rewriteState();
+        logger.debug(replica_id + " loaded term " + current_term + " and " + (log.size() - 1) + " log entries");
+    }
+
+    /**
+     * Appends the current term and vote, and the log entries from the given
+     * index on, to the state file and waits for them to reach the disk. The
+     * file is rewritten once it holds more records than twice the log. Must
+     * be called while holding this object's monitor.
+     *
+     * @param first_index Index of the first entry to be saved, or the log's size to save none
+     * @return Boolean indicating the state was saved
+     */
+    private boolean saveState(long first_index) {
+
+        try {
+
+            if (state_records + 1 + log.size() - first_index > 2 * log.size()) {
+
+                rewriteState();
+            } else {
+
+                writeRecords(state_stream, first_index);
+            }
+
+            return true;
+        } catch (IOException e) {
+
+            logger.error("Unable to save consensus state: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the state file with one holding only the current term, vote
+     * and log. The new file is written aside and renamed over the old one, so
+     * a crash leaves one of them whole.
+     */
+    private void rewriteState() throws IOException {
+
+        File temp_file = new File(state_file.getPath() + ".tmp");
+        FileOutputStream temp_stream = new FileOutputStream(temp_file);
+        try {
+
+            state_records = 0;
+            writeRecords(temp_stream, 1);
+        } finally {
+
+            temp_stream.close();
+        }
+
+        if (state_stream != null) {
+
+            state_stream.close();
+            state_stream = null;
+        }
+        if (!temp_file.renameTo(state_file)) {
+
+            throw new IOException("Unable to replace " + state_file);
+        }
+        state_stream = new FileOutputStream(state_file, true);
+    }
+
+    /**
+     * Writes a record of the term and vote, followed by a record of each log
+     * entry from the given index on, one JSON object per line, and waits for
+     * them to reach the disk.
+     */
+    private void writeRecords(FileOutputStream stream, long first_index) throws IOException {
+
+        JSONObject state_record = new JSONObject();
+        state_record.put(Constants.Consensus.TYPE, Constants.Consensus.STATE);
+        state_record.put(Constants.Consensus.TERM, current_term);
+        state_record.put(Constants.Consensus.VOTEDFOR, voted_for);
+
+        StringBuilder records = new StringBuilder(state_record.toJSONString()).append('\n');
+        for (long index = first_index; index < log.size(); index++) {
+
+            JSONObject entry_record = log.get((int) index).toJSONObject();
+            entry_record.put(Constants.Consensus.TYPE, Constants.Consensus.ENTRY);
+            entry_record.put(Constants.Consensus.INDEX, index);
+            records.append(entry_record.toJSONString()).append('\n');
+        }
+
+        stream.write(records.toString().getBytes("UTF-8"));
+        stream.getFD().sync();
+        state_records += 1 + Math.max(0, log.size() - first_index);
+    }
+
+    /**
+     * Sends a message to every peer in parallel and waits for the replies.
+     *
+     * @param message Body of the message
+     * @param timeout Time to wait for the replies in milliseconds
+     * @return Replies, with null for each peer that did not reply in time
+     */
+    private ArrayList<JSONObject> sendToPeers(JSONObject message, int timeout) {
+
+        ArrayList<Future<JSONObject>> futures = new ArrayList<Future<JSONObject>>();
+        for (String peer_id : peer_ids) {
+
+            futures.add(submit(peer_id, message, timeout));
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        ArrayList<JSONObject> replies = new ArrayList<JSONObject>();
+        for (Future<JSONObject> future : futures) {
+
+            replies.add(awaitReply(future, Math.max(0, deadline - System.currentTimeMillis())));
+        }
+
+        return replies;
+    }
+
+    /**
+     * Sends a message to a peer on the message executor.
+     *
+     * @return Future reply, or null if the replica has been stopped
+     */
+    private Future<JSONObject> submit(final String peer_id, final JSONObject message, final int timeout) {
+
+        ExecutorService executor;
+        synchronized (this) {
+
+            executor = message_executor;
+        }
+
+        if (executor == null) {
+
+            return null;
+        }
+
+        try {
+
+            return executor.submit(new Callable<JSONObject>() {
+
+                @Override
+                public JSONObject call() {
+
+                    return transport.send(peer_id, message, timeout);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+
+            return null;
+        }
+    }
+
+    /**
+     * Waits for a reply from a peer.
+     *
+     * @return Body of the reply, or null if none arrived in time
+     */
+    private static JSONObject awaitReply(Future<JSONObject> future, long timeout) {
+
+        if (future == null) {
+
+            return null;
+        }
+
+        try {
+
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+
+            logger.error(Constants.Messages.INTERRUPTED);
+        } catch (ExecutionException ignored) {
+        } catch (TimeoutException e) {
+
+            future.cancel(true);
+        }
+
+        return null;
+    }
+
+    /**
+     * Builds the result of a proposal.
+     */
+    private synchronized JSONObject buildProposalResult(boolean committed, JSONObject delta) {
+
+        JSONObject result = new JSONObject();
+        result.put(Constants.Consensus.COMMITTED, committed);
+        result.put(Constants.Consensus.LEADER, leader_id);
+        if (delta != null) {
+
+            result.put(Constants.Tokens.DELTA, delta);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns an election timeout chosen at random between one and two
+     * times the configured timeout, so replicas rarely stand at once.
+     */
+    private long randomTimeout() {
+
+        return election_timeout + random.nextInt(election_timeout);
+    }
+
+    /**
+     * A single entry of the replicated log.
+     */
+    private static class LogEntry {
+
+        private long term;
+        private JSONObject command;
+
+        private LogEntry(long term, JSONObject command) {
+
+            this.term = term;
+            this.command = command;
+        }
+
+        private LogEntry(JSONObject entry_json) {
+
+            this.term = ((Number) entry_json.get(Constants.Consensus.TERM)).longValue();
+            this.command = (JSONObject) entry_json.get(Constants.Consensus.COMMAND);
+        }
+
+        private JSONObject toJSONObject() {
+
+            JSONObject entry_json = new JSONObject();
+            entry_json.put(Constants.Consensus.TERM, term);
+            entry_json.put(Constants.Consensus.COMMAND, command);
+
+            return entry_json;
+        }
+    }
+
+    /**
+     * Sends consensus messages to other discovery replicas over HTTP.
+     */
+    private static class HTTPTransport implements DiscoveryTransport {
+
+        private Map<String, String> replica_locations;
+
+        private HTTPTransport(Map<String, String> replica_locations) {
+
+            this.replica_locations = replica_locations;
+        }
+
+        @Override
+        public JSONObject send(String replica_id, JSONObject message, int timeout) {
+
+            String location = replica_locations.get(replica_id);
+            if (location == null) {
+
+                return null;
+            }
+
+            HTTPObject request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.POST,
+                    Constants.Tokens.DISCOVER + "/" + Constants.Tokens.CONSENSUS, null, message);
+
+            Socket consensus_socket = new Socket();
+            try {
+
+                consensus_socket.connect(new InetSocketAddress(location.split(":")[0],
+                        Integer.decode(location.split(":")[1])), timeout);
+                consensus_socket.setSoTimeout(timeout);
+            } catch (IOException e) {
+
+                try {
+
+                    consensus_socket.close();
+                } catch (IOException ignored) { }
+
+                return null;
+            }
+
+            HTTPObject response = SystemUtility.sendRequest(request.toString(), consensus_socket);
+            if (response == null || !response.getStatusCode().equals(Constants.Codes.OK)) {
+
+                return null;
+            }
+
+            return response.getBody();
+        }
+    }
+}
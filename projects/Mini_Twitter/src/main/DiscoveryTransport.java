@@ -0,0 +1,22 @@
+package main;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Carries consensus messages between the replicas of the discovery service.
+ * Replicas normally reach each other over HTTP, but any transport that
+ * delivers a message to the named replica and returns its reply will do,
+ * such as one calling replicas in the same process.
+ */
+public interface DiscoveryTransport {
+
+    /**
+     * Sends a message to a replica and waits for its reply.
+     *
+     * @param replica_id String ID of the receiving replica
+     * @param message Body of the message
+     * @param timeout Time to wait for the reply in milliseconds
+     * @return Body of the reply, or null if none arrived
+     */
+    JSONObject send(String replica_id, JSONObject message, int timeout);
+}
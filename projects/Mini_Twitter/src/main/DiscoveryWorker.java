@@ -23,16 +23,28 @@ public class DiscoveryWorker extends ServerWorkerThread {
     public DiscoveryWorker(Socket in_socket, String server_id, boolean development) {
 
         super(in_socket, server_id, development);
-        if (heart_beat_monitor == null) {
-
-            heart_beat_monitor = HeartBeatMonitor.getInstance();
-            server_directory = heart_beat_monitor.server_directory;
-        }
+        startHeartBeatMonitor();
+        server_directory = HeartBeatMonitor.server_directory;
 
         if (development || this.valid_paths == null) {
 
             this.valid_paths = new HashSet<String>();
             this.valid_paths.add("/" + Constants.Tokens.DISCOVER);
+            this.valid_paths.add("/" + Constants.Tokens.DISCOVER + "/" + Constants.Tokens.LIVENESS);
+            this.valid_paths.add("/" + Constants.Tokens.DISCOVER + "/" + Constants.Tokens.CONSENSUS);
+        }
+    }
+
+    /**
+     * Starts the heart beat monitor unless it is already running. A
+     * discovery replica starts it before serving requests, since it may be
+     * elected leader before any request arrives.
+     */
+    public synchronized static void startHeartBeatMonitor() {
+
+        if (heart_beat_monitor == null) {
+
+            heart_beat_monitor = HeartBeatMonitor.getInstance();
         }
     }
 
@@ -49,11 +61,26 @@ public class DiscoveryWorker extends ServerWorkerThread {
             return;
         }
 
-        if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.GET)) {
+        if (incoming_request_line.getUripath().equals(
+                "/" + Constants.Tokens.DISCOVER + "/" + Constants.Tokens.CONSENSUS)) {
+
+            if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST)) {
+
+                handleConsensusMessage();
+            }
+        } else if (incoming_request_line.getUripath().equals(
+                "/" + Constants.Tokens.DISCOVER + "/" + Constants.Tokens.LIVENESS)) {
+
+            if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST) && !forwardToLeader()) {
+
+                logger.debug("Recording liveness reported by " + request_body.get(Constants.Tokens.SERVERID));
+                recordLiveness();
+            }
+        } else if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.GET)) {
 
             logger.debug("Retrieving server from directory master");
             sendServerDirectory();
-        } else if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST)) {
+        } else if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST) && !forwardToLeader()) {
 
             logger.debug("Adding server to directory master");
             addServerToDirectory((String) request_body.get(Constants.Tokens.SERVERID),
@@ -61,37 +88,162 @@ public class DiscoveryWorker extends ServerWorkerThread {
         }
     }
 
+    /**
+     * Hands a consensus message from another discovery replica to this
+     * server's replica and prepares its reply.
+     */
+    private void handleConsensusMessage() {
+
+        DiscoveryReplica replica = DiscoveryReplica.getInstance();
+        JSONObject reply = (replica == null || request_body == null) ? null : replica.handleMessage(request_body);
+
+        if (reply == null) {
+
+            setBadRequestResponse();
+        } else {
+
+            response_code = Constants.Codes.OK;
+            response_body = reply;
+        }
+
+        response = SystemUtility.buildResponse(response_code, response_body);
+    }
+
+    /**
+     * Passes a directory change on to the leader when this server is a
+     * replica that is not the leader, waiting for an election to finish if
+     * no leader is known. Requests that change the directory are sent
+     * without waiting for a reply, so none is sent back.
+     *
+     * @return Boolean indicating the request was passed on and needs no further handling
+     */
+    private boolean forwardToLeader() {
+
+        DiscoveryReplica replica = DiscoveryReplica.getInstance();
+        if (replica == null) {
+
+            return false;
+        }
+
+        long deadline = System.currentTimeMillis() + 2 * Constants.Consensus.ELECTIONTIMEOUT;
+        String leader_id = replica.getLeaderID();
+        while (leader_id == null && System.currentTimeMillis() < deadline) {
+
+            try {
+
+                Thread.sleep(Constants.Consensus.ELECTIONTIMEOUT / 10);
+            } catch (InterruptedException e) {
+
+                logger.error(Constants.Messages.INTERRUPTED);
+                break;
+            }
+            leader_id = replica.getLeaderID();
+        }
+
+        // Without a leader the request is handled here and fails like any proposal to a follower
+        String leader_location = SystemUtility.getDiscoveryLocations(this.development).get(leader_id);
+        if (leader_id == null || leader_id.equals(replica.getReplicaID()) || leader_location == null) {
+
+            return false;
+        }
+
+        logger.debug("Forwarding " + incoming_request_line.getUripath() + " to leader " + leader_id);
+        String request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.POST,
+                incoming_request_line.getUripath().substring(1), null, request_body).toString();
+
+        try {
+
+            input_socket.close();
+            SystemUtility.sendRequestWithoutWait(request,
+                    new Socket(leader_location.split(":")[0], Integer.decode(leader_location.split(":")[1])));
+        } catch (IOException e) {
+
+            logger.error("Unable to forward request to leader at: " + leader_location);
+        }
+
+        return true;
+    }
+
     /**
      * Builds a response to requests for a copy of the server directory master.
      */
     private void sendServerDirectory() {
 
-        JSONObject server_json_mapping = heart_beat_monitor.server_directory.toJSONObject();
-        response_body = new JSONObject();
+        response_body = HeartBeatMonitor.server_directory.toVersionedJSONObject();
         response_body.put(Constants.Tokens.STATUS, Constants.Messages.OK);
-        response_body.put(Constants.Discovery.SERVERS, server_json_mapping);
         response = SystemUtility.buildResponse(Constants.Codes.OK, response_body);
         response_code = Constants.Codes.OK;
     }
 
+    /**
+     * Records the liveness evidence reported by a data store server, which
+     * gives the age of its latest contact with each server, for the heart
+     * beat monitor.
+     */
+    private void recordLiveness() {
+
+        if (!(request_body.get(Constants.Tokens.LIVENESS) instanceof Map)) {
+
+            setBadRequestResponse();
+            response = SystemUtility.buildResponse(response_code, response_body);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (Object entry : ((Map) request_body.get(Constants.Tokens.LIVENESS)).entrySet()) {
+
+            Map.Entry<?, ?> contact = (Map.Entry<?, ?>) entry;
+            if (contact.getKey() instanceof String && contact.getValue() instanceof Number) {
+
+                heart_beat_monitor.recordLiveness((String) contact.getKey(),
+                        now - ((Number) contact.getValue()).longValue());
+            }
+        }
+
+        response_body = new JSONObject();
+        response_body.put(Constants.Tokens.STATUS, Constants.Messages.OK);
+        response = SystemUtility.buildResponse(Constants.Codes.OK, response_body);
+    }
+
     /**
      * Updates the server directory master with the given server id and its
      * location. If the given server is a data store server, it is registered
-     * with the heart beat monitor. Finally, broadcasts the updated server
-     * directory master to all active, registered servers.
+     * with the heart beat monitor. Finally, sends the whole directory to the
+     * registering server and broadcasts only the change to all other active,
+     * registered servers.
      *
      * @param id
      * @param location
      */
     private void addServerToDirectory(String id, String location) {
 
-        heart_beat_monitor.server_directory.addServer(id, location);
-        logger.debug("Updated server directory master:\n" + heart_beat_monitor.server_directory.toJSONObject().toJSONString());
+        JSONObject delta;
+        DiscoveryReplica replica = DiscoveryReplica.getInstance();
+
+        if (replica == null) {
+
+            delta = HeartBeatMonitor.server_directory.addServer(id, location);
+        } else {
+
+            // A replicated directory changes only once a majority of the replicas log the change
+            JSONObject proposal_result = replica.propose(DiscoveryReplica.addCommand(id, location));
+            if (!Boolean.TRUE.equals(proposal_result.get(Constants.Consensus.COMMITTED))) {
+
+                logger.error("Unable to commit registration of server: " + id);
+                response_code = Constants.Codes.INTERNALSERVERERROR;
+                response_body = new JSONObject();
+                response_body.put(Constants.Tokens.STATUS, Constants.Messages.INTERNALSERVERERROR);
+                response = SystemUtility.buildResponse(response_code, response_body);
+                return;
+            }
+            delta = (JSONObject) proposal_result.get(Constants.Tokens.DELTA);
+        }
+        logger.debug("Updated server directory master:\n" + HeartBeatMonitor.server_directory.toJSONObject().toJSONString());
 
         // If new server is a DataStore, then register it for heart beat monitoring
         if (request_body.get(Constants.Tokens.LAYER).equals(Constants.Config.DATASTORE)) {
 
-            heart_beat_monitor.addMonitor(id, location);
+            heart_beat_monitor.addMonitor(id);
         }
 
         try {
@@ -100,18 +252,16 @@ public class DiscoveryWorker extends ServerWorkerThread {
             input_socket.close();
         } catch (IOException ignored) { }
 
-        // Broadcast new directory mapping
-        workers = new ArrayList<Thread>();
-        HashMap<String, String> server_map = heart_beat_monitor.server_directory.getServerCollection();
-        for (Map.Entry<String, String> entry : server_map.entrySet()) {
-
-            location = entry.getValue();
-            if (location != null) {
-                
-                DiscoveryBroadcastWorker dbw = new DiscoveryBroadcastWorker(location, heart_beat_monitor.server_directory);
-                workers.add(dbw);
-                dbw.start();
-            }
+        // Send the whole directory to the new server
+        DirectoryBroadcaster directory_broadcaster = DirectoryBroadcaster.getInstance(HeartBeatMonitor.server_directory);
+        directory_broadcaster.sendDirectory(location);
+
+        // Broadcast the change to the other servers
+        if (delta != null) {
+
+            JSONObject delta_body = new JSONObject();
+            delta_body.put(Constants.Tokens.DELTA, delta);
+            directory_broadcaster.broadcast(delta_body, id);
         }
     }
 
@@ -123,7 +273,7 @@ public class DiscoveryWorker extends ServerWorkerThread {
 
         private static HeartBeatMonitor heart_beat_monitor = null;
         private static ServerDirectory server_directory;
-        private static HashSet<String> active_monitors;
+        private static HeartbeatScheduler heartbeat_scheduler;
 
         final static Logger logger = Logger.getLogger(HeartBeatMonitor.class);
 
@@ -141,41 +291,49 @@ public class DiscoveryWorker extends ServerWorkerThread {
 
         private HeartBeatMonitor(ServerDirectory server_directory) {
 
-            this.server_directory = server_directory;
-            active_monitors = new HashSet<String>();
+            HeartBeatMonitor.server_directory = server_directory;
+            heartbeat_scheduler = HeartbeatScheduler.getInstance(server_directory);
+
+            // Only the leader of a replicated discovery service monitors, taking over every live data store
+            DiscoveryReplica replica = DiscoveryReplica.getInstance();
+            if (replica != null) {
+
+                heartbeat_scheduler.setReplica(replica);
+                replica.setLeadershipListener(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        for (String data_store_id : HeartBeatMonitor.server_directory.getView().getLiveDataStoreIDs()) {
+
+                            heartbeat_scheduler.startMonitor(data_store_id);
+                        }
+                    }
+                });
+            }
         }
 
         /**
-         * Adds a server to the server directory master, and starts a heart
-         * beat monitoring thread if one is not already active for the given
-         * server.
+         * Starts heart beat monitoring of a server already added to the
+         * server directory master if it is not already being monitored.
          *
          * @param id String ID of the new server
-         * @param location Location of the new server
          */
-        private void addMonitor(String id, String location) {
+        private void addMonitor(String id) {
 
-            server_directory.addServer(id, location);
-            startMonitor(id, location);
+            heartbeat_scheduler.startMonitor(id);
         }
 
         /**
-         * Starts the monitoring of the given server if it is not already
-         * being monitored by a DiscoveryHeartbeatWorker.
+         * Passes evidence that a server was alive on to the heart beat
+         * scheduler.
          *
-         * @param id String ID of the new server
-         * @param location Location of the new server
+         * @param id String ID of the server seen alive
+         * @param observed_time Time the server was seen alive in milliseconds
          */
-        private void startMonitor(String id, String location) {
+        private void recordLiveness(String id, long observed_time) {
 
-            // Verify location is not already being monitored
-            if (!active_monitors.contains(location)) {
-
-                logger.debug("Starting heart beat monitor for server ID: " + id);
-                int timeout = Constants.Discovery.TIMEOUT;
-                new DiscoveryHeartbeatWorker(server_directory, timeout, id).start();
-                active_monitors.add(location);
-            }
+            heartbeat_scheduler.recordLiveness(id, observed_time);
         }
     }
 }
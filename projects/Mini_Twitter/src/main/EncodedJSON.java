@@ -0,0 +1,34 @@
+package main;
+
+import org.json.simple.JSONAware;
+
+/**
+ * JSON value that has already been encoded. When placed in a JSONObject, the
+ * stored encoding is written as-is instead of serializing the value again.
+ */
+public class EncodedJSON implements JSONAware {
+
+    private String encoding;
+
+    public EncodedJSON(String encoding) {
+
+        this.encoding = encoding;
+    }
+
+    /**
+     * Provides access to the stored encoding.
+     *
+     * @return JSON encoding of the value
+     */
+    @Override
+    public String toJSONString() {
+
+        return encoding;
+    }
+
+    @Override
+    public String toString() {
+
+        return encoding;
+    }
+}
@@ -3,12 +3,14 @@ package main;
 import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Worker thread for the front end server.
@@ -22,6 +24,10 @@ public class FrontEndWorker extends ServerWorkerThread {
     private CacheStore cache;
     private JSONObject cache_update;
     private String target_id;
+    private List<String> owner_ids;
+    private QueryCoalescer coalescer;
+    private DataStoreRouter router;
+    private ValidationBatcher batcher;
     private static VectorTimestamp timestamp = null;
 
     final static Logger logger = Logger.getLogger(FrontEndWorker.class);
@@ -30,20 +36,37 @@ public class FrontEndWorker extends ServerWorkerThread {
 
         super(in_socket, server_id, development);
         this.cache = CacheStore.getInstance();
+        this.coalescer = QueryCoalescer.getInstance();
+        this.router = DataStoreRouter.getInstance();
+        this.batcher = ValidationBatcher.getInstance();
 
         if (development || this.valid_paths == null) {
 
             this.valid_paths = new HashSet<String>();
             this.valid_paths.add("/" + Constants.Tokens.TWEETS);
+            this.valid_paths.add("/" + Constants.Tokens.TWEETS + "/" + Constants.Tokens.BATCH);
             this.valid_paths.add("/" + Constants.Tokens.REPLICATE);
             this.valid_paths.add("/" + Constants.Tokens.DISCOVER);
             this.valid_paths.add("/" + Constants.Tokens.SNAPSHOT);
+            this.valid_paths.add("/" + Constants.Tokens.SNAPSHOT + "/" + Constants.Tokens.EXPORT);
+
+            if (Constants.Gossip.ENABLED) {
+
+                this.valid_paths.add("/" + Constants.Tokens.GOSSIP);
+            }
         }
 
         if (timestamp == null) {
 
             timestamp = new VectorTimestamp(server_directory, server_id);
         }
+
+        // Gossip changes the directory without a discovery request, so catch up with it here
+        if (server_directory != null && !router.isCurrent(server_directory)) {
+
+            timestamp.fillMissingValues(server_directory);
+            router.refresh(server_directory);
+        }
     }
 
     /**
@@ -65,22 +88,29 @@ public class FrontEndWorker extends ServerWorkerThread {
 
             if (incoming_request_line.getUripath().equals("/" + Constants.Tokens.TWEETS)) {
 
-                selectDataStoreServer();
-
-                // Open a socket for sending a request to the data store server
-                request_socket = new Socket(datastore_ip, datastore_port);
-
                 if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.GET)) {
 
                     logger.debug("Reading cache");
-                    readCache(request_socket);
+                    readCache();
                     // Incorporate the response body into a valid HTTP response
                     response = SystemUtility.buildResponse(response_code, response_body);
                 } else if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST)) {
 
+                    // Open a socket for sending a request to the pinned data store server
+                    selectDataStoreServer(null, getTweetOwners());
+                    request_socket = new Socket(datastore_ip, datastore_port);
+
                     logger.debug("Relaying tweet to data store");
                     relayTweet(request_socket);
                 }
+            } else if (incoming_request_line.getUripath().equals(
+                    "/" + Constants.Tokens.TWEETS + "/" + Constants.Tokens.BATCH)) {
+
+                if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST)) {
+
+                    logger.debug("Relaying tweet batch to data store");
+                    relayTweetBatch();
+                }
             } else if (incoming_request_line.getUripath().equals("/" + Constants.Tokens.DISCOVER)) {
 
                 if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST)) {
@@ -88,6 +118,7 @@ public class FrontEndWorker extends ServerWorkerThread {
                     logger.debug("Updating server directory");
                     updateServerDirectory();
                     timestamp.fillMissingValues(server_directory);
+                    router.refresh(server_directory);
                 }
             } else if (incoming_request_line.getUripath().equals("/" + Constants.Tokens.SNAPSHOT)) {
 
@@ -96,6 +127,22 @@ public class FrontEndWorker extends ServerWorkerThread {
                     logger.debug("Retrieving server snapshots");
                     relaySnapshotRequest();
                 }
+            } else if (incoming_request_line.getUripath().equals(
+                    "/" + Constants.Tokens.SNAPSHOT + "/" + Constants.Tokens.EXPORT)) {
+
+                if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST)) {
+
+                    logger.debug("Exporting snapshot to file");
+                    exportSnapshot();
+                    response = SystemUtility.buildResponse(response_code, response_body);
+                }
+            } else if (incoming_request_line.getUripath().equals("/" + Constants.Tokens.GOSSIP)) {
+
+                if (incoming_request_line.getMethod().equals(HTTPConstants.HTTPMethod.POST)) {
+
+                    logger.debug("Handling gossip message");
+                    processGossip();
+                }
             }
         } catch (IOException e) {
 
@@ -112,15 +159,18 @@ public class FrontEndWorker extends ServerWorkerThread {
 
     /**
      * Reads the cache for a given query if the version number is valid.
+     * Concurrent searches for the same query share a single validation
+     * request, so only the leading worker contacts the data store and writes
+     * any update to the cache.
      *
-     * @param request_socket Socket for sending the cache validation request
+     * @throws IOException If the validation request could not be completed
      */
-    private void readCache(Socket request_socket) {
+    private void readCache() throws IOException {
 
         String query = incoming_request_line.getParameter(Constants.Tokens.QUERY);
 
         // Validate the query
-        // (Note: queries containing a space are filtered in the HTTPRequestLine parsing)
+        // (Note: raw spaces are rejected by the request line parsing, while escaped spaces separate boolean terms)
         if (query == null) {
 
             logger.error("Bad request: missing query");
@@ -128,23 +178,107 @@ public class FrontEndWorker extends ServerWorkerThread {
             return;
         }
 
-        // Retrieve the cache status for the query
-        HTTPObject cache_validation_response = validateCache(query, request_socket);
-        String cache_validation_code = cache_validation_response.getStatusCode();
+        // Normalize the query so equivalent boolean queries share a cache entry
+        HashtagQuery hashtag_query;
+        try {
 
-        // Update the cache if 200 was received as response code
-        if (cache_validation_code.equals(Constants.Codes.OK)) {
+            hashtag_query = HashtagQuery.parse(query);
+            query = hashtag_query.toString();
+        } catch (HTTPRequestException e) {
 
-            cache_update = cache_validation_response.getBody();
+            logger.error("Bad request: " + e.getMessage());
+            setBadRequestResponse();
+            return;
+        }
+
+        // Parse the optional page size and cursor
+        String limit_param = incoming_request_line.getParameter(Constants.Tokens.LIMIT);
+        String cursor = incoming_request_line.getParameter(Constants.Tokens.CURSOR);
+        cursor = (cursor == null || cursor.isEmpty()) ? null : cursor;
+        int limit = -1;
 
-            cache.writeCache((String) cache_update.get(Constants.Tokens.QUERY),
-                    (JSONObject) cache_update.get(Constants.Tokens.TWEETS),
-                    (String) cache_update.get(Constants.Tokens.VERSIONNUM));
+        if (limit_param != null || cursor != null) {
 
-            logger.debug("Updated cache for query=" + query + " to version=" +
-                    cache_update.get(Constants.Tokens.VERSIONNUM));
+            try {
+
+                limit = (limit_param == null) ? Constants.Pagination.DEFAULTLIMIT : Integer.parseInt(limit_param);
+            } catch (NumberFormatException e) {
+
+                limit = 0;
+            }
+
+            if (limit <= 0) {
+
+                logger.error("Bad request: limit=" + limit_param);
+                setBadRequestResponse();
+                return;
+            }
         }
 
+        // Retrieve the cache status for the query, sharing any validation already in flight
+        HTTPObject cache_validation_response = null;
+        QueryCoalescer.InFlightQuery in_flight_query = coalescer.join(query, timestamp);
+
+        if (in_flight_query.isLeader()) {
+
+            try {
+
+                // A sharded data store tier may hold the results of the query on several servers
+                List<String> query_owner_ids = Constants.Sharding.ENABLED ?
+                        server_directory.getView().getQueryOwners(hashtag_query) : null;
+
+                if (query_owner_ids != null && query_owner_ids.isEmpty()) {
+
+                    cache_validation_response = new ShardedSearch(hashtag_query, timestamp, router, cache)
+                            .send(server_directory.getView());
+                } else {
+
+                    // Prefer the data store that issued the cached version so it can send a delta
+                    selectDataStoreServer(cache.getVersionSource(query), query_owner_ids);
+                    cache_validation_response = validateCache(query);
+                }
+
+                // Update the cache if 200 was received as response code
+                if (cache_validation_response != null &&
+                        cache_validation_response.getStatusCode().equals(Constants.Codes.OK)) {
+
+                    cache_update = cache_validation_response.getBody();
+
+                    // Merge a delta in place, otherwise replace the cached results
+                    if (Boolean.TRUE.equals(cache_update.get(Constants.Tokens.DELTA))) {
+
+                        cache.mergeCache((String) cache_update.get(Constants.Tokens.QUERY),
+                                (JSONObject) cache_update.get(Constants.Tokens.TWEETS),
+                                (String) cache_update.get(Constants.Tokens.VERSIONNUM),
+                                (String) cache_update.get(Constants.Tokens.SERVERID));
+                    } else {
+
+                        cache.writeCache((String) cache_update.get(Constants.Tokens.QUERY),
+                                (JSONObject) cache_update.get(Constants.Tokens.TWEETS),
+                                (String) cache_update.get(Constants.Tokens.VERSIONNUM),
+                                (String) cache_update.get(Constants.Tokens.SERVERID));
+                    }
+
+                    logger.debug("Updated cache for query=" + query + " to version=" +
+                            cache_update.get(Constants.Tokens.VERSIONNUM));
+                }
+            } finally {
+
+                coalescer.complete(in_flight_query, cache_validation_response);
+            }
+        } else {
+
+            logger.debug("Waiting for in-flight validation of query: " + query);
+            cache_validation_response = in_flight_query.awaitResponse();
+        }
+
+        if (cache_validation_response == null) {
+
+            throw new IOException("Cache validation failed for query: " + query);
+        }
+
+        String cache_validation_code = cache_validation_response.getStatusCode();
+
         // Verify the validation request was processed successfully
         if (!cache_validation_code.equals(Constants.Codes.NOTMODIFIED) &&
                 !cache_validation_code.equals(Constants.Codes.OK)) {
@@ -164,35 +298,142 @@ public class FrontEndWorker extends ServerWorkerThread {
             logger.debug("Cache is current - reading cache");
         }
 
-        // Prepare the response
-        response_code = Constants.Codes.OK;
-        response_body = new JSONObject();
-        response_body.put(Constants.Tokens.TWEETS, cache.readCache(query));
-        response_body.put(Constants.Tokens.QUERY, query);
         cache_update = null;
+
+        // Prepare the response, reading only the requested page if a limit was given
+        if (limit > 0) {
+
+            JSONObject page = cache.readCachePage(query, limit, cursor);
+            if (page == null) {
+
+                logger.error("Bad request: cursor=" + cursor);
+                response_code = Constants.Codes.BADREQUEST;
+                response_body = new JSONObject();
+                response_body.put(Constants.Tokens.STATUS, Constants.Messages.BADCURSOR);
+                return;
+            }
+
+            response_code = Constants.Codes.OK;
+            response_body = page;
+            response_body.put(Constants.Tokens.QUERY, query);
+        } else {
+
+            response_code = Constants.Codes.OK;
+            response_body = new JSONObject();
+            response_body.put(Constants.Tokens.TWEETS, cache.readCache(query));
+            response_body.put(Constants.Tokens.QUERY, query);
+        }
     }
 
     /**
      * Sends a validation request to the data store for the query and its
-     * version number in the cache.
+     * version number in the cache. If batching is enabled, the query is sent
+     * together with the other queries validated against the same data store
+     * during the batch window.
      *
      * @param query Query to be validated
-     * @param request_socket Socket for sending the cache validation request
      * @return Response to the validation request
+     * @throws IOException If the data store server cannot be reached
      */
-    private HTTPObject validateCache(String query, Socket request_socket) {
+    private HTTPObject validateCache(String query) throws IOException {
+
+        if (Constants.Batching.ENABLED && !development) {
+
+            return validateCacheInBatch(query);
+        }
 
         HashMap<String, String> query_params = new HashMap<String, String>();
         query_params.put(Constants.Tokens.QUERY, query);
         query_params.put(Constants.Tokens.VERSIONNUM, cache.getVersionNumber(query));
 
+        // Identify the data store that issued the cached version so it can send a delta
+        String source_id = cache.getVersionSource(query);
+        if (source_id != null) {
+
+            query_params.put(Constants.Tokens.SOURCE, source_id);
+        }
+
         request_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
         String request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.GET,
                 Constants.Tokens.TWEETS, query_params, request_body).toString();
 
         logger.debug("Sending request to validate cache");
 
-        return SystemUtility.sendRequest(request, request_socket);
+        return sendValidationRequest(request);
+    }
+
+    /**
+     * Adds the query to a batch of validations for the selected data store.
+     * The worker leading the batch sends it once the batch window closes,
+     * and every worker in the batch receives its own query's result.
+     *
+     * @param query Query to be validated
+     * @return Response to the validation request
+     * @throws IOException If the data store server cannot be reached
+     */
+    private HTTPObject validateCacheInBatch(String query) throws IOException {
+
+        ValidationBatcher.PendingBatch batch = batcher.join(target_id, query,
+                cache.getVersionNumber(query), cache.getVersionSource(query));
+
+        if (!batch.isLeader()) {
+
+            logger.debug("Waiting for batched validation of query: " + query);
+            return batch.awaitResponse(query);
+        }
+
+        HTTPObject batch_response = null;
+        try {
+
+            batcher.close(batch);
+
+            JSONObject batch_body = new JSONObject();
+            batch_body.put(Constants.Tokens.QUERIES, batch.getQueries());
+            batch_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
+            String request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.GET,
+                    Constants.Tokens.TWEETS + "/" + Constants.Tokens.BATCH, null, batch_body).toString();
+
+            logger.debug("Sending batch of " + batch.size() + " validations to " + target_id);
+            batch_response = sendValidationRequest(request);
+        } finally {
+
+            batcher.complete(batch, batch_response);
+        }
+
+        return ValidationBatcher.PendingBatch.getQueryResponse(batch_response, query);
+    }
+
+    /**
+     * Sends a validation request to the selected data store. If hedging is
+     * enabled, the request is repeated to a second data store when the first
+     * is slower than the configured latency percentile.
+     *
+     * @param request Validation request to be sent
+     * @return Response to the validation request
+     * @throws IOException If the data store server cannot be reached
+     */
+    private HTTPObject sendValidationRequest(String request) throws IOException {
+
+        if (Constants.Hedging.ENABLED && !development) {
+
+            long hedge_delay = Math.max(Constants.Hedging.MINDELAY,
+                    router.getLatencyPercentile(Constants.Hedging.PERCENTILE));
+
+            return new HedgedRequest(request, timestamp, router, server_directory, owner_ids).send(target_id, hedge_delay);
+        }
+
+        long start_time = router.beginRequest(target_id);
+        HTTPObject validation_response = null;
+        try {
+
+            validation_response = SystemUtility.sendRequest(request, new Socket(datastore_ip, datastore_port));
+        } finally {
+
+            // A refused connection is recorded as a failed request
+            router.endRequest(target_id, start_time, validation_response);
+        }
+
+        return validation_response;
     }
 
     /**
@@ -216,13 +457,7 @@ public class FrontEndWorker extends ServerWorkerThread {
         }
 
         // Parse hashtags from the request's tweet
-        Matcher hashtag_matcher = Pattern.compile("#(\\S)+").matcher(tweet);
-        JSONArray hashtags = new JSONArray();
-
-        while (hashtag_matcher.find()) {
-
-            hashtags.add(hashtag_matcher.group().substring(1));
-        }
+        JSONArray hashtags = HashtagTokenizer.extractHashtags(tweet);
 
         // Verify at least one hashtag was included
         if (hashtags.size() == 0) {
@@ -240,7 +475,9 @@ public class FrontEndWorker extends ServerWorkerThread {
                 Constants.Tokens.TWEETS, null, request_body).toString();
 
         logger.debug("Sending tweet to data store");
+        long start_time = router.beginRequest(target_id);
         response = SystemUtility.sendRequest(request, request_socket);
+        router.endRequest(target_id, start_time, response);
         response_code = response.getStatusCode();
 
         JSONObject response_json_obj;
@@ -252,188 +489,443 @@ public class FrontEndWorker extends ServerWorkerThread {
         timestamp.updateTimestamp(new HashMap<String, String>(timestamp_json_obj));
     }
 
+    /**
+     * Parses the tweets of a batch from the client request and relays every
+     * tweet with at least one hashtag to the data store server in a single
+     * request. The response holds a result for each tweet, in request order,
+     * and the timestamp resulting from the batch.
+     *
+     * @throws IOException If no data store server can be reached
+     */
+    private void relayTweetBatch() throws IOException {
+
+        if (!(request_body.get(Constants.Tokens.TWEETS) instanceof List)) {
+
+            logger.error("Tweet batch missing");
+            setBadRequestResponse();
+            response = SystemUtility.buildResponse(response_code, response_body);
+            return;
+        }
+
+        List<Object> tweets = (List<Object>) request_body.get(Constants.Tokens.TWEETS);
+        JSONArray results = new JSONArray();
+        JSONArray batch_items = new JSONArray();
+        ArrayList<Integer> batch_indices = new ArrayList<Integer>();
+
+        // Parse the hashtags of each tweet, rejecting tweets without any
+        for (int i = 0; i < tweets.size(); i++) {
+
+            String tweet = (tweets.get(i) instanceof String) ? (String) tweets.get(i) : null;
+            JSONArray hashtags = (tweet == null) ? new JSONArray() : HashtagTokenizer.extractHashtags(tweet);
+
+            JSONObject result = new JSONObject();
+            results.add(result);
+
+            if (hashtags.size() == 0) {
+
+                logger.error("Batch tweet without hashtags rejected: " + tweet);
+                result.put(Constants.Tokens.STATUS, Constants.Messages.BADREQUEST);
+                continue;
+            }
+
+            JSONObject batch_item = new JSONObject();
+            batch_item.put(Constants.Tokens.TWEET, tweet);
+            batch_item.put(Constants.Tokens.HASH, hashtags);
+            batch_items.add(batch_item);
+            batch_indices.add(i);
+        }
+
+        response_body = new JSONObject();
+        response_body.put(Constants.Tokens.RESULTS, results);
+
+        if (batch_items.isEmpty()) {
+
+            response_code = Constants.Codes.BADREQUEST;
+            response = SystemUtility.buildResponse(response_code, response_body);
+            return;
+        }
+
+        JSONObject batch_body = new JSONObject();
+        batch_body.put(Constants.Tokens.TWEETS, batch_items);
+        String request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.POST,
+                Constants.Tokens.TWEETS + "/" + Constants.Tokens.BATCH, null, batch_body).toString();
+
+        selectDataStoreServer(null, null);
+
+        logger.debug("Sending tweet batch to data store");
+        long start_time = router.beginRequest(target_id);
+        HTTPObject batch_response = null;
+        try {
+
+            batch_response = SystemUtility.sendRequest(request, new Socket(datastore_ip, datastore_port));
+        } finally {
+
+            router.endRequest(target_id, start_time, batch_response);
+        }
+
+        if (batch_response == null) {
+
+            throw new IOException("Tweet batch was not acknowledged");
+        }
+
+        // Place the data store results at the positions of the relayed tweets
+        Object batch_results = batch_response.getBody().get(Constants.Tokens.RESULTS);
+        if (batch_results instanceof List && ((List) batch_results).size() == batch_indices.size()) {
+
+            for (int i = 0; i < batch_indices.size(); i++) {
+
+                results.set(batch_indices.get(i), ((List) batch_results).get(i));
+            }
+        }
+
+        JSONObject timestamp_json_obj = (JSONObject) batch_response.getBody().get(Constants.Tokens.TIMESTAMP);
+        if (timestamp_json_obj != null) {
+
+            timestamp.updateTimestamp(new HashMap<String, String>(timestamp_json_obj));
+            response_body.put(Constants.Tokens.TIMESTAMP, timestamp_json_obj);
+        }
+
+        response_code = batch_response.getStatusCode();
+        response = SystemUtility.buildResponse(response_code, response_body);
+    }
+
     /**
      * Chooses a destination data store server to send a request. Front end
-     * servers will choose the same server each time based on their server ID
-     * instance number. If the data store server is down, a new server is
-     * selected until the old one is brought online.
+     * servers prefer the given server, or otherwise the server matching their
+     * own instance number, and fall back to the data store router's choice
+     * of live server when the preferred server is down or lagging. When the
+     * data store tier is sharded, only the owners of the shard the request
+     * concerns are chosen from.
+     *
+     * @param preferred_id ID of the preferred data store server, or null
+     * @param owner_ids IDs of the servers able to handle the request, or null for any
+     * @throws IOException If no live data store server is known
      */
-    private void selectDataStoreServer() {
+    private void selectDataStoreServer(String preferred_id, List<String> owner_ids) throws IOException {
+
+        this.owner_ids = owner_ids;
 
-        String[] location;
         if (development && request_body.containsKey(Constants.Tokens.SERVERID)) {
 
             target_id = (String) request_body.get(Constants.Tokens.SERVERID);
         } else {
 
-            String instance = this.server_id.replace(Constants.Config.FRONTEND, "");
-            target_id = Constants.Config.DATASTORE + instance;
-
-            if (server_directory.getServerLocation(target_id) == null) {
+            if (preferred_id == null) {
 
-                ArrayList<String> candidate_ids = new ArrayList<String>();
-                for (Map.Entry<String, String> entry : server_directory.getServerCollection().entrySet()) {
+                preferred_id = Constants.Config.DATASTORE + this.server_id.replace(Constants.Config.FRONTEND, "");
+            }
+            target_id = router.selectDataStore(preferred_id, timestamp, owner_ids);
+        }
 
-                    if (!entry.getKey().startsWith(Constants.Config.FRONTEND) && entry.getValue() != null) {
+        String location = server_directory.getServerLocation(target_id);
+        if (location == null) {
 
-                        candidate_ids.add(entry.getKey().replace(Constants.Config.DATASTORE, ""));
-                    }
-                }
+            throw new IOException("No live data store server available");
+        }
 
-                Collections.sort(candidate_ids, new Comparator<String>() {
-                    @Override
-                    public int compare(String s, String s2) {
-                        return Integer.decode(s) - Integer.decode(s2);
-                    }
-                });
+        this.datastore_ip = location.split(":")[0];
+        this.datastore_port = Integer.decode(location.split(":")[1]);
+    }
 
-                for (String candidate_id : candidate_ids) {
+    /**
+     * Returns the data stores owning the shard of the first hashtag of the
+     * tweet being posted, which store it and send it on to the owners of
+     * the shards of its other hashtags.
+     *
+     * @return IDs of the owning servers, or null if any data store may take the tweet
+     */
+    private List<String> getTweetOwners() {
 
-                    int candidate_idx = Integer.decode(candidate_id.replace(Constants.Config.DATASTORE, ""));
-                    if (Integer.decode(instance) < candidate_idx) {
+        if (!Constants.Sharding.ENABLED || !(request_body.get(Constants.Tokens.TWEET) instanceof String)) {
 
-                        target_id = candidate_id;
-                        break;
-                    }
-                }
-            }
+            return null;
         }
-        location = server_directory.getServerLocation(target_id).split(":");
 
-        this.datastore_ip = location[0];
-        this.datastore_port = Integer.decode(location[1]);
+        JSONArray hashtags = HashtagTokenizer.extractHashtags((String) request_body.get(Constants.Tokens.TWEET));
+
+        return hashtags.isEmpty() ? null : server_directory.getView().getOwners((String) hashtags.get(0));
     }
 
     /**
-     * Relays a snapshot request to each of the data store servers. If
-     * incongruous snapshots are received in return, a second request is sent
-     * for each outdated server snapshot.
+     * Relays a snapshot request to each of the data store servers in a single
+     * round. The request carries a new snapshot marker, and each data store
+     * server answers at once with its section below its own cut for the
+     * snapshot, so the sections together form a consistent snapshot without
+     * any server waiting for replication. Each section is streamed to the
+     * client with chunked encoding as soon as it arrives, so no more than
+     * one section is encoded at a time. The response carries a token for the
+     * snapshot's cut, and a request carrying the token of an earlier
+     * snapshot receives only the tweets written between the two cuts.
      */
     public void relaySnapshotRequest() {
 
-        HashMap<String, JSONObject> collection_map = new HashMap<String, JSONObject>();
-        HashMap<String, VectorTimestamp> timestamp_map = new HashMap<String, VectorTimestamp>();
         workers = new ArrayList<Thread>();
 
-        // Request snapshots from each data store server
-        sendSnapshotRequestsViaWorkers(null, null);
+        // Decode the cut of the earlier snapshot if one was given
+        VectorTimestamp since_timestamp = null;
+        String since_token = incoming_request_line.getParameter(Constants.Tokens.SINCE);
+        if (since_token != null) {
 
-        // Gather the snapshots into snapshot collection and timestamp maps
-        collectDataFromWorkers(collection_map, timestamp_map);
+            since_timestamp = VectorTimestamp.fromToken(since_token);
+            if (since_timestamp == null) {
 
-        // Determine which if any servers returned an incongruous snapshot
-        HashSet<String> outdated_servers = new HashSet<String>();
+                logger.error("Bad request: since=" + since_token);
+                response_code = Constants.Codes.BADREQUEST;
+                response_body = new JSONObject();
+                response_body.put(Constants.Tokens.STATUS, Constants.Messages.BADTOKEN);
 
-        HashMap<String, String> upper_bound_timestamp_map = new HashMap<String, String>();
+                response = SystemUtility.buildResponse(response_code, response_body);
+                return;
+            }
+        }
 
-        for (Map.Entry<String, VectorTimestamp> server_entry : timestamp_map.entrySet()) {
+        // Request the section of every data store server for a new snapshot
+        JSONObject snapshot_request_body = new JSONObject();
+        snapshot_request_body.put(Constants.Tokens.MARKER, this.server_id + ":" + UUID.randomUUID().toString());
+        if (since_timestamp != null) {
 
-                for (Map.Entry<String, String> timestamp_entry : server_entry.getValue().getTimestampMap().entrySet()) {
+            snapshot_request_body.put(Constants.Tokens.SINCE, since_timestamp.toJSONObject());
+        }
 
-                    String candidate_server_id = timestamp_entry.getKey();
-                    Integer stamp_val_from_candidate = timestamp_map.get(candidate_server_id).getTimestamp(candidate_server_id);
+        LinkedBlockingQueue<SnapshotRequestWorker> completed_workers = new LinkedBlockingQueue<SnapshotRequestWorker>();
+        sendSnapshotRequestsViaWorkers(snapshot_request_body, completed_workers);
 
-                    if (!upper_bound_timestamp_map.containsKey(candidate_server_id) ||
-                            Integer.decode(upper_bound_timestamp_map.get(candidate_server_id)) < stamp_val_from_candidate) {
+        streamSnapshotSections(since_token, completed_workers, workers.size());
+    }
 
-                        upper_bound_timestamp_map.put(candidate_server_id, stamp_val_from_candidate.toString());
-                    }
+    /**
+     * Starts a set of worker threads to send snapshot requests to each data
+     * store server.
+     *
+     * @param snapshot_request_body Body to be sent with each request
+     * @param completion_queue Optional queue each worker is added to when it finishes
+     */
+    public void sendSnapshotRequestsViaWorkers(JSONObject snapshot_request_body,
+                                               BlockingQueue<SnapshotRequestWorker> completion_queue) {
 
-                if (!server_entry.getKey().equals(candidate_server_id) &&
-                        Integer.decode(timestamp_entry.getValue()) > stamp_val_from_candidate) {
+        HTTPObject snapshot_request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.GET,
+                Constants.Tokens.SNAPSHOT, null, snapshot_request_body);
 
-                    if (!outdated_servers.contains(candidate_server_id)) {
+        DirectoryView directory_view = server_directory.getView();
+        for (String data_store_id : directory_view.getLiveDataStoreIDs()) {
 
-                        outdated_servers.add(candidate_server_id);
+            logger.debug("Sending snapshot request to " + data_store_id);
 
-                        logger.debug("Found outdated server " + candidate_server_id);
-                    }
+            SnapshotRequestWorker srw = new SnapshotRequestWorker(directory_view.getLocation(data_store_id),
+                    snapshot_request.toString(), data_store_id, completion_queue);
+            srw.start();
+            workers.add(srw);
+        }
+    }
+
+    /**
+     * Streams the snapshot to the client as the sections arrive. Each
+     * section is written straight from its response into the chunked
+     * response and released, and a server that fails to answer is left out
+     * of the snapshot. The token for the snapshot's cut follows the
+     * sections, since each server reports its own stamp at the cut along
+     * with its section. The response is sent here, so no response is left
+     * for the run method to send.
+     *
+     * @param since_token Token of the earlier snapshot, or null
+     * @param completed_workers Queue the section workers are added to as they finish
+     * @param section_count Number of section workers started
+     */
+    private void streamSnapshotSections(String since_token, BlockingQueue<SnapshotRequestWorker> completed_workers,
+                                        int section_count) {
+
+        response_code = Constants.Codes.OK;
+        response = null;
+
+        HashMap<String, String> cut_map = new HashMap<String, String>();
+        ChunkedResponseWriter writer = null;
+        try {
+
+            writer = new ChunkedResponseWriter(input_socket, response_code);
+            writer.write("{\"" + Constants.Tokens.SNAPSHOT + "\":{");
+
+            for (int i = 0; i < section_count; i++) {
+
+                SnapshotRequestWorker worker = completed_workers.take();
+                Map<?, ?> section = takeSnapshotSection(worker, cut_map);
+                if (section == null) {
+
+                    continue;
                 }
+
+                logger.debug("Streaming snapshot section from " + worker.getServerID());
+                writer.write((cut_map.size() == 1 ? "" : ",") + "\"" + JSONValue.escape(worker.getServerID()) + "\":");
+                JSONObject.writeJSONString(section, writer);
+                writer.flush();
+            }
+
+            writer.write("},\"" + Constants.Tokens.TOKEN + "\":\"" +
+                    JSONValue.escape(new VectorTimestamp(cut_map).toToken()) + "\"");
+            if (since_token != null) {
+
+                writer.write(",\"" + Constants.Tokens.SINCE + "\":\"" + JSONValue.escape(since_token) + "\"");
             }
+            writer.write("}");
+            writer.close();
+        } catch (IOException e) {
+
+            logger.error("Unable to stream snapshot to client");
+            if (writer != null) {
+
+                writer.abort();
+            }
+        } catch (InterruptedException e) {
+
+            logger.error(Constants.Messages.INTERRUPTED);
+            writer.abort();
         }
+    }
+
+    /**
+     * Takes the response of a finished section worker and records the
+     * sending server's own stamp value at the cut of its section.
+     *
+     * @param worker Finished section worker
+     * @param cut_map Map of server IDs to stamp values at the cut, to which the server is added
+     * @return Section held by the response, or null if no valid section was received
+     */
+    private static Map<?, ?> takeSnapshotSection(SnapshotRequestWorker worker, HashMap<String, String> cut_map) {
+
+        HTTPObject snapshot_response = worker.takeResponse();
 
-        // Send second round requests to any servers that provided incongruous snapshots
-        if (outdated_servers.size() > 0) {
+        if (snapshot_response == null || !snapshot_response.getStatusCode().equals(Constants.Codes.OK) ||
+                !(snapshot_response.getBody().get(Constants.Tokens.SNAPSHOT) instanceof Map) ||
+                !(snapshot_response.getBody().get(Constants.Tokens.TIMESTAMP) instanceof Map)) {
 
-            VectorTimestamp upper_bound_timestamp = new VectorTimestamp(upper_bound_timestamp_map);
-            sendSnapshotRequestsViaWorkers(outdated_servers, upper_bound_timestamp);
-            collectDataFromWorkers(collection_map, timestamp_map);
+            logger.error("No snapshot section received from " + worker.getServerID());
+            return null;
         }
 
-        response_code = Constants.Codes.OK;
-        response_body = new JSONObject();
-        response_body.put(Constants.Tokens.SNAPSHOT, new JSONObject(collection_map));
+        // The cut holds each data store's own stamp value at the time of its section
+        Object stamp_value = ((Map) snapshot_response.getBody().get(Constants.Tokens.TIMESTAMP))
+                .get(worker.getServerID());
+        cut_map.put(worker.getServerID(), (stamp_value == null) ? "0" : stamp_value.toString());
 
-        response = SystemUtility.buildResponse(Constants.Codes.OK, response_body);
+        return (Map) snapshot_response.getBody().get(Constants.Tokens.SNAPSHOT);
     }
 
     /**
-     * Starts a set of worker threads to send snapshot requests to each data
-     * store server.
+     * Takes a snapshot in the same single round as relaySnapshotRequest and
+     * writes it to a local snapshot file instead of sending it to the
+     * client. Each section is turned from hashtags mapped to tweets into one
+     * row per tweet and written as it arrives, and a tweet found in more than
+     * one section is written only once. Written tweets are remembered by their
+     * text, since distinct tweets may share a hashed ID. The response names
+     * the file and carries the token for the snapshot's cut.
      *
-     * @param outdated_servers Optional list of target servers
-     * @param upper_bound_timestamp Optional upper bound timestamp to be sent
+     * @throws IOException If the snapshot file could not be written
      */
-    public void sendSnapshotRequestsViaWorkers(HashSet<String> outdated_servers, VectorTimestamp upper_bound_timestamp) {
+    private void exportSnapshot() throws IOException {
 
-        for (Map.Entry<String, String> entry : server_directory.getServerCollection().entrySet()) {
+        workers = new ArrayList<Thread>();
 
-            if (!entry.getKey().startsWith(Constants.Config.FRONTEND) && entry.getValue() != null &&
-                    (outdated_servers == null || outdated_servers.contains(entry.getKey()))) {
+        JSONObject snapshot_request_body = new JSONObject();
+        snapshot_request_body.put(Constants.Tokens.MARKER, this.server_id + ":" + UUID.randomUUID().toString());
 
-                JSONObject snapshot_request_body = null;
-                if (outdated_servers != null) {
+        LinkedBlockingQueue<SnapshotRequestWorker> completed_workers = new LinkedBlockingQueue<SnapshotRequestWorker>();
+        sendSnapshotRequestsViaWorkers(snapshot_request_body, completed_workers);
 
-                    snapshot_request_body = new JSONObject();
-                    snapshot_request_body.put(Constants.Tokens.TIMESTAMP, upper_bound_timestamp.toJSONObject());
-                    logger.debug("Sending snapshot update request to " + entry.getKey());
-                } else {
+        File export_dir = new File(Constants.Snapshot.EXPORTDIR);
+        if (!export_dir.isDirectory() && !export_dir.mkdirs()) {
 
-                    logger.debug("Sending first round snapshot request to " + entry.getKey());
-                }
+            throw new IOException("Unable to create snapshot directory " + export_dir);
+        }
+        File export_file = new File(export_dir, "snapshot-" + UUID.randomUUID().toString() + ".mts");
 
-                HTTPObject snapshot_request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.GET,
-                        Constants.Tokens.SNAPSHOT, null, snapshot_request_body);
+        HashMap<String, String> cut_map = new HashMap<String, String>();
+        HashSet<String> written_tweets = new HashSet<String>();
+        SnapshotFileWriter writer = new SnapshotFileWriter(export_file);
+        try {
+
+            for (int i = 0; i < workers.size(); i++) {
 
-                SnapshotRequestWorker srw = new SnapshotRequestWorker(entry.getValue(), snapshot_request.toString(), entry.getKey());
-                srw.start();
-                workers.add(srw);
+                SnapshotRequestWorker worker = completed_workers.take();
+                Map<?, ?> section = takeSnapshotSection(worker, cut_map);
+                if (section == null) {
+
+                    continue;
+                }
+
+                logger.debug("Exporting snapshot section from " + worker.getServerID());
+                writeSectionRows(section, written_tweets, writer);
             }
+
+            writer.finish(new VectorTimestamp(cut_map).toToken());
+        } catch (InterruptedException e) {
+
+            logger.error(Constants.Messages.INTERRUPTED);
+            writer.close();
+            export_file.delete();
+            throw new IOException(Constants.Messages.INTERRUPTED);
+        } catch (IOException e) {
+
+            writer.close();
+            export_file.delete();
+            throw e;
         }
+
+        response_code = Constants.Codes.CREATED;
+        response_body = new JSONObject();
+        response_body.put(Constants.Tokens.STATUS, Constants.Messages.CREATED);
+        response_body.put(Constants.Tokens.FILE, export_file.getPath());
+        response_body.put(Constants.Tokens.TOKEN, new VectorTimestamp(cut_map).toToken());
+        response_body.put(Constants.Tokens.ROWS, writer.getRowCount());
     }
 
     /**
-     * Collects the snapshot responses from the snapshot request workers.
+     * Writes a row for each tweet of a snapshot section not already written.
      *
-     * @param collection_map Map to which data store collections are written
-     * @param timestamp_map Map to which timestamps are written
+     * @param section Copy of a data store holding hashtags mapped to tweets and their timestamps
+     * @param written_tweets Tweets already written, to which the section's tweets are added
+     * @param writer Snapshot file to write to
+     * @throws IOException If the snapshot file could not be written
      */
-    public void collectDataFromWorkers(HashMap<String, JSONObject> collection_map, HashMap<String, VectorTimestamp> timestamp_map) {
+    private static void writeSectionRows(Map<?, ?> section, HashSet<String> written_tweets,
+                                         SnapshotFileWriter writer) throws IOException {
 
-        for (Thread worker : workers) {
+        if (!(section.get(Constants.Tokens.DATASTORE) instanceof Map)) {
 
-            try {
+            return;
+        }
 
-                worker.join();
-                HTTPObject snapshot_response = ((SnapshotRequestWorker) worker).getResponse();
+        Map<?, ?> origins = (section.get(Constants.Tokens.ORIGINS) instanceof Map) ?
+                (Map<?, ?>) section.get(Constants.Tokens.ORIGINS) : new HashMap<Object, Object>();
 
-                if (snapshot_response != null) {
+        // Gather the hashtags of each tweet, keeping the first timestamp seen
+        LinkedHashMap<String, ArrayList<String>> tweet_hashtags = new LinkedHashMap<String, ArrayList<String>>();
+        HashMap<String, Map<String, String>> tweet_timestamps = new HashMap<String, Map<String, String>>();
+        for (Object hashtag_entry : ((Map) section.get(Constants.Tokens.DATASTORE)).entrySet()) {
 
-                    logger.debug("Received snapshot response from " + ((SnapshotRequestWorker) worker).getServerID());
+            String hashtag = (String) ((Map.Entry) hashtag_entry).getKey();
+            for (Object tweet_entry : ((Map) ((Map.Entry) hashtag_entry).getValue()).entrySet()) {
 
-                    JSONObject snapshot_response_body = snapshot_response.getBody();
-                    String snapshot_server_id = ((SnapshotRequestWorker) worker).getServerID();
+                String tweet = (String) ((Map.Entry) tweet_entry).getKey();
+                if (written_tweets.contains(tweet)) {
+
+                    continue;
+                }
 
-                    collection_map.put(snapshot_server_id,
-                            (JSONObject) snapshot_response_body.get(Constants.Tokens.SNAPSHOT));
+                ArrayList<String> hashtags = tweet_hashtags.get(tweet);
+                if (hashtags == null) {
 
-                    timestamp_map.put(snapshot_server_id,
-                            new VectorTimestamp(
-                                    new HashMap((JSONObject) snapshot_response_body.get(Constants.Tokens.TIMESTAMP))));
+                    hashtags = new ArrayList<String>();
+                    tweet_hashtags.put(tweet, hashtags);
+                    tweet_timestamps.put(tweet, new HashMap<String, String>((Map) ((Map.Entry) tweet_entry).getValue()));
                 }
-            } catch (InterruptedException ignored) { }
+                hashtags.add(hashtag);
+            }
         }
 
-        workers.clear();
+        for (Map.Entry<String, ArrayList<String>> entry : tweet_hashtags.entrySet()) {
+
+            writer.addRow(entry.getKey(), (String) origins.get(entry.getKey()), entry.getValue(),
+                    tweet_timestamps.get(entry.getKey()));
+            written_tweets.add(entry.getKey());
+        }
     }
 }
@@ -0,0 +1,679 @@
+package main;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Membership and failure detection run among the data store and front end
+ * servers themselves, following the SWIM protocol, as an alternative to the
+ * heart beats of the discovery server. Once per protocol period each server
+ * pings one other member, taking members in a shuffled round robin order.
+ * If no ack arrives in time, the server asks a few other members to ping the
+ * target on its behalf, and only if none of them reaches it is the target
+ * suspected. A suspected member that does not refute the suspicion within
+ * a few periods is declared dead. Each server therefore sends a constant
+ * number of messages per period whatever the size of the cluster.
+ *
+ * Changes in membership are not broadcast. Instead each message carries a
+ * few recent updates, each sent a number of times that grows with the
+ * logarithm of the cluster size, so updates spread through the cluster as
+ * an epidemic. Every update carries the incarnation of the member it
+ * describes, which only that member advances, so a member that hears it is
+ * suspected can refute the suspicion with a newer alive update. A member
+ * starts from its startup time as its incarnation, so a restarted member
+ * overrides the dead update its previous run left behind.
+ *
+ * Members that become alive or dead are added to or failed in the server
+ * directory, so the rest of the server reads membership through the same
+ * ServerDirectory API either way.
+ */
+public class GossipMembership {
+
+    private static GossipMembership singleton_gossip_membership = null;
+    private String server_id;
+    private String location;
+    private long incarnation;
+    private ServerDirectory server_directory;
+    private HashMap<String, Member> members;
+    private LinkedHashMap<String, JSONObject> pending_updates;
+    private HashMap<String, Integer> transmit_counts;
+    private ArrayList<String> probe_order;
+    private int probe_index;
+    private ArrayList<String> seed_locations;
+    private int period;
+    private int probe_timeout;
+    private Random random;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService probe_executor;
+
+    final static Logger logger = Logger.getLogger(GossipMembership.class);
+
+    public GossipMembership(String server_id, String location, ServerDirectory server_directory,
+                            Collection<String> seed_locations, int period) {
+
+        this.server_id = server_id;
+        this.location = location;
+        this.incarnation = System.currentTimeMillis();
+        this.server_directory = server_directory;
+        this.members = new HashMap<String, Member>();
+        this.pending_updates = new LinkedHashMap<String, JSONObject>();
+        this.transmit_counts = new HashMap<String, Integer>();
+        this.probe_order = new ArrayList<String>();
+        this.probe_index = 0;
+        this.seed_locations = new ArrayList<String>(seed_locations);
+        this.seed_locations.remove(location);
+        this.period = period;
+        this.probe_timeout = period / 3;
+        this.random = new Random();
+        this.scheduler = null;
+        this.probe_executor = null;
+
+        server_directory.addServer(server_id, location);
+    }
+
+    /**
+     * Creates and starts the singleton membership of this server, seeded
+     * with the configured location of every server.
+     *
+     * @param server_id String ID of this server
+     * @param location Location of this server
+     * @param development Environment flag for choosing ports
+     * @return An instance of the singleton membership
+     */
+    public synchronized static GossipMembership getInstance(String server_id, String location, boolean development) {
+
+        if (singleton_gossip_membership == null) {
+
+            singleton_gossip_membership = new GossipMembership(server_id, location,
+                    ServerDirectory.getInstance(null, false),
+                    SystemUtility.getConfiguredLocations(development).values(), Constants.Gossip.PERIOD);
+            singleton_gossip_membership.start();
+        }
+
+        return singleton_gossip_membership;
+    }
+
+    /**
+     * Provides access to the singleton membership once it has been started.
+     *
+     * @return An instance of the singleton membership, or null if gossip is not running
+     */
+    public synchronized static GossipMembership getInstance() {
+
+        return singleton_gossip_membership;
+    }
+
+    public ServerDirectory getServerDirectory() {
+
+        return server_directory;
+    }
+
+    /**
+     * Starts the protocol periods.
+     */
+    public synchronized void start() {
+
+        if (scheduler != null) {
+
+            return;
+        }
+
+        ThreadFactory daemon_factory = new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "gossip");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemon_factory);
+        probe_executor = Executors.newCachedThreadPool(daemon_factory);
+
+        scheduler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    runProtocolPeriod();
+                } catch (RuntimeException e) {
+
+                    logger.error("Gossip protocol period failed: " + e.getMessage());
+                }
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the protocol periods. Messages from other members are still
+     * answered.
+     */
+    public synchronized void stop() {
+
+        if (scheduler != null) {
+
+            scheduler.shutdownNow();
+            probe_executor.shutdownNow();
+            scheduler = null;
+            probe_executor = null;
+        }
+    }
+
+    /**
+     * Returns the state this server holds for a member.
+     *
+     * @param member_id String ID of the member
+     * @return Member state, or null if the member is unknown
+     */
+    public synchronized String getState(String member_id) {
+
+        Member member = members.get(member_id);
+
+        return (member == null) ? null : member.state;
+    }
+
+    /**
+     * Handles a gossip message from another member and builds the reply. A
+     * ping is acked at once. A ping request is acked only if the target
+     * acks a ping sent on the sender's behalf. Either reply carries updates
+     * for the sender, and a sender not yet known or held dead also receives
+     * every member so it can join or rejoin the cluster through any member.
+     *
+     * @param message Body of the gossip request
+     * @return Body of the reply
+     */
+    public JSONObject handleMessage(JSONObject message) {
+
+        boolean sender_known;
+        synchronized (this) {
+
+            Member sender = members.get(message.get(Constants.Tokens.SERVERID));
+            sender_known = sender != null && !sender.state.equals(Constants.Gossip.DEAD);
+        }
+        applyMessage(message);
+
+        boolean acked = true;
+        if (Constants.Gossip.PINGREQ.equals(message.get(Constants.Gossip.TYPE))) {
+
+            String target_location = null;
+            synchronized (this) {
+
+                Member target = members.get(message.get(Constants.Gossip.TARGET));
+                if (target != null) {
+
+                    target_location = target.location;
+                }
+            }
+            acked = target_location != null && ping(target_location, probe_timeout);
+        }
+
+        JSONObject reply = buildMessage(null, null);
+        reply.put(Constants.Gossip.ACKED, acked);
+        if (!sender_known) {
+
+            reply.put(Constants.Gossip.UPDATES, getAllMembers());
+        }
+
+        return reply;
+    }
+
+    /**
+     * Runs a single protocol period: expires suspicions, then probes the
+     * next member directly and, failing that, indirectly.
+     */
+    private void runProtocolPeriod() {
+
+        expireSuspicions(System.currentTimeMillis());
+
+        Member target;
+        synchronized (this) {
+
+            target = nextProbeTarget();
+        }
+
+        if (target == null) {
+
+            // No members known yet, so join through a seed
+            if (!seed_locations.isEmpty()) {
+
+                ping(seed_locations.get(random.nextInt(seed_locations.size())), probe_timeout);
+            }
+            return;
+        }
+
+        if (ping(target.location, probe_timeout) || pingIndirectly(target.server_id)) {
+
+            return;
+        }
+
+        logger.debug("No ack from " + target.server_id + ", suspecting it");
+        applyUpdate(target.server_id, target.location, Constants.Gossip.SUSPECT, target.incarnation);
+    }
+
+    /**
+     * Asks several other members to ping the target, waiting until the end
+     * of the protocol period for any of them to report an ack.
+     *
+     * @param target_id String ID of the member to be probed
+     * @return Boolean indicating an ack was reported
+     */
+    private boolean pingIndirectly(final String target_id) {
+
+        ArrayList<Callable<Boolean>> indirect_probes = new ArrayList<Callable<Boolean>>();
+        synchronized (this) {
+
+            ArrayList<Member> helpers = new ArrayList<Member>();
+            for (Member member : members.values()) {
+
+                if (!member.server_id.equals(target_id) && member.state.equals(Constants.Gossip.ALIVE)) {
+
+                    helpers.add(member);
+                }
+            }
+            Collections.shuffle(helpers, random);
+
+            for (final Member helper : helpers.subList(0, Math.min(Constants.Gossip.INDIRECTPROBES, helpers.size()))) {
+
+                indirect_probes.add(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() throws IOException {
+
+                        JSONObject reply = sendMessage(helper.location,
+                                buildMessage(Constants.Gossip.PINGREQ, target_id), period - probe_timeout);
+                        if (reply == null || !Boolean.TRUE.equals(reply.get(Constants.Gossip.ACKED))) {
+
+                            throw new IOException("No indirect ack from " + helper.server_id);
+                        }
+                        return true;
+                    }
+                });
+            }
+        }
+
+        ExecutorService executor = probe_executor;
+        if (indirect_probes.isEmpty() || executor == null) {
+
+            return false;
+        }
+
+        try {
+
+            return executor.invokeAny(indirect_probes, period - probe_timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+
+            logger.error(Constants.Messages.INTERRUPTED);
+        } catch (ExecutionException ignored) {
+        } catch (TimeoutException ignored) { }
+
+        return false;
+    }
+
+    /**
+     * Sends a ping and applies the updates carried by its ack.
+     *
+     * @param target_location Location of the member to be pinged
+     * @param timeout Time to wait for the ack in milliseconds
+     * @return Boolean indicating the ping was acked
+     */
+    private boolean ping(String target_location, int timeout) {
+
+        JSONObject reply = sendMessage(target_location, buildMessage(Constants.Gossip.PING, null), timeout);
+
+        return reply != null && Boolean.TRUE.equals(reply.get(Constants.Gossip.ACKED));
+    }
+
+    /**
+     * Sends a gossip message and applies the updates carried by the reply.
+     *
+     * @param target_location Location of the receiving member
+     * @param message Body of the gossip request
+     * @param timeout Time to wait for the connection and again for the reply in milliseconds
+     * @return Body of the reply, or null if none arrived
+     */
+    private JSONObject sendMessage(String target_location, JSONObject message, int timeout) {
+
+        HTTPObject request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.POST,
+                Constants.Tokens.GOSSIP, null, message);
+
+        Socket gossip_socket = new Socket();
+        try {
+
+            gossip_socket.connect(new InetSocketAddress(target_location.split(":")[0],
+                    Integer.decode(target_location.split(":")[1])), timeout);
+            gossip_socket.setSoTimeout(timeout);
+        } catch (IOException e) {
+
+            try {
+
+                gossip_socket.close();
+            } catch (IOException ignored) { }
+
+            return null;
+        }
+
+        HTTPObject response = SystemUtility.sendRequest(request.toString(), gossip_socket);
+        if (response == null || !response.getStatusCode().equals(Constants.Codes.OK)) {
+
+            return null;
+        }
+
+        applyMessage(response.getBody());
+
+        return response.getBody();
+    }
+
+    /**
+     * Builds a gossip message identifying this server and carrying the
+     * updates due for dissemination.
+     *
+     * @param type Message type, or null for a reply
+     * @param target_id String ID of the target of a ping request, or null
+     * @return Body of the message
+     */
+    private synchronized JSONObject buildMessage(String type, String target_id) {
+
+        JSONObject message = new JSONObject();
+        if (type != null) {
+
+            message.put(Constants.Gossip.TYPE, type);
+        }
+        if (target_id != null) {
+
+            message.put(Constants.Gossip.TARGET, target_id);
+        }
+        message.put(Constants.Tokens.SERVERID, server_id);
+        message.put(Constants.Tokens.SERVERLOC, location);
+        message.put(Constants.Gossip.INCARNATION, incarnation);
+        message.put(Constants.Gossip.UPDATES, takePiggybackedUpdates());
+
+        return message;
+    }
+
+    /**
+     * Applies the sender of a message, which is evidently alive, and the
+     * updates the message carries.
+     *
+     * @param message Body of a gossip request or reply
+     */
+    private void applyMessage(JSONObject message) {
+
+        if (message == null) {
+
+            return;
+        }
+
+        if (message.get(Constants.Tokens.SERVERID) instanceof String &&
+                message.get(Constants.Tokens.SERVERLOC) instanceof String &&
+                message.get(Constants.Gossip.INCARNATION) instanceof Number) {
+
+            applyUpdate((String) message.get(Constants.Tokens.SERVERID), (String) message.get(Constants.Tokens.SERVERLOC),
+                    Constants.Gossip.ALIVE, ((Number) message.get(Constants.Gossip.INCARNATION)).longValue());
+        }
+
+        if (message.get(Constants.Gossip.UPDATES) instanceof List) {
+
+            for (Object update : (List) message.get(Constants.Gossip.UPDATES)) {
+
+                if (update instanceof Map && ((Map) update).get(Constants.Gossip.INCARNATION) instanceof Number) {
+
+                    Map<?, ?> update_map = (Map<?, ?>) update;
+                    applyUpdate((String) update_map.get(Constants.Tokens.SERVERID),
+                            (String) update_map.get(Constants.Tokens.SERVERLOC),
+                            (String) update_map.get(Constants.Gossip.STATE),
+                            ((Number) update_map.get(Constants.Gossip.INCARNATION)).longValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies an update about a member if it is newer than what this server
+     * holds, queueing it for dissemination and updating the server
+     * directory. An alive update overrides older incarnations in any state,
+     * a suspect update overrides an alive update of the same incarnation,
+     * and a dead update overrides everything of the same incarnation. An
+     * update suspecting this server is refuted with a new incarnation.
+     *
+     * @param member_id String ID of the member
+     * @param member_location Location of the member
+     * @param state New state of the member
+     * @param member_incarnation Incarnation of the member the update applies to
+     */
+    private void applyUpdate(String member_id, String member_location, String state, long member_incarnation) {
+
+        if (member_id == null || member_location == null || state == null) {
+
+            return;
+        }
+
+        boolean now_alive = false;
+        boolean now_dead = false;
+
+        synchronized (this) {
+
+            if (member_id.equals(server_id)) {
+
+                if (!state.equals(Constants.Gossip.ALIVE) && member_incarnation >= incarnation) {
+
+                    incarnation = member_incarnation + 1;
+                    logger.debug("Refuting " + state + " with incarnation " + incarnation);
+                    queueUpdate(server_id, location, Constants.Gossip.ALIVE, incarnation);
+                }
+                return;
+            }
+
+            Member member = members.get(member_id);
+            if (member != null && !overrides(state, member_incarnation, member.state, member.incarnation)) {
+
+                return;
+            }
+
+            boolean was_alive = member != null && !member.state.equals(Constants.Gossip.DEAD);
+            if (member == null) {
+
+                member = new Member(member_id);
+                members.put(member_id, member);
+                probe_order.add(random.nextInt(probe_order.size() + 1), member_id);
+            }
+            member.location = member_location;
+            member.state = state;
+            member.incarnation = member_incarnation;
+            member.suspected_time = System.currentTimeMillis();
+
+            now_alive = !was_alive && !state.equals(Constants.Gossip.DEAD);
+            now_dead = was_alive && state.equals(Constants.Gossip.DEAD);
+
+            logger.debug("Member " + member_id + " is " + state + " at incarnation " + member_incarnation);
+            queueUpdate(member_id, member_location, state, member_incarnation);
+        }
+
+        if (now_alive) {
+
+            server_directory.addServer(member_id, member_location);
+        } else if (now_dead) {
+
+            server_directory.setServerFailed(member_id);
+        }
+    }
+
+    /**
+     * Indicates whether an update overrides the state held for a member.
+     */
+    private static boolean overrides(String state, long new_incarnation, String held_state, long held_incarnation) {
+
+        if (state.equals(Constants.Gossip.ALIVE)) {
+
+            return new_incarnation > held_incarnation;
+        } else if (state.equals(Constants.Gossip.SUSPECT)) {
+
+            return (new_incarnation >= held_incarnation && held_state.equals(Constants.Gossip.ALIVE)) ||
+                    new_incarnation > held_incarnation;
+        }
+
+        return !held_state.equals(Constants.Gossip.DEAD) || new_incarnation > held_incarnation;
+    }
+
+    /**
+     * Declares dead every member suspected for longer than the suspicion
+     * timeout.
+     *
+     * @param now Current time in milliseconds
+     */
+    private void expireSuspicions(long now) {
+
+        ArrayList<Member> expired = new ArrayList<Member>();
+        synchronized (this) {
+
+            for (Member member : members.values()) {
+
+                if (member.state.equals(Constants.Gossip.SUSPECT) &&
+                        now - member.suspected_time >= Constants.Gossip.SUSPICIONPERIODS * period) {
+
+                    expired.add(member);
+                }
+            }
+        }
+
+        for (Member member : expired) {
+
+            logger.debug("Suspicion of " + member.server_id + " expired, declaring it dead");
+            applyUpdate(member.server_id, member.location, Constants.Gossip.DEAD, member.incarnation);
+        }
+    }
+
+    /**
+     * Returns the next member to probe, reshuffling the probe order after
+     * each full round. Dead members are skipped. Must be called while
+     * holding this object's monitor.
+     *
+     * @return Member to probe, or null if no member is alive or suspected
+     */
+    private Member nextProbeTarget() {
+
+        for (int i = 0; i < probe_order.size(); i++) {
+
+            if (probe_index >= probe_order.size()) {
+
+                Collections.shuffle(probe_order, random);
+                probe_index = 0;
+            }
+
+            Member member = members.get(probe_order.get(probe_index++));
+            if (!member.state.equals(Constants.Gossip.DEAD)) {
+
+                return member;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Queues an update for dissemination, replacing any older update about
+     * the same member. Must be called while holding this object's monitor.
+     */
+    private void queueUpdate(String member_id, String member_location, String state, long member_incarnation) {
+
+        JSONObject update = new JSONObject();
+        update.put(Constants.Tokens.SERVERID, member_id);
+        update.put(Constants.Tokens.SERVERLOC, member_location);
+        update.put(Constants.Gossip.STATE, state);
+        update.put(Constants.Gossip.INCARNATION, member_incarnation);
+
+        pending_updates.put(member_id, update);
+        transmit_counts.put(member_id, 0);
+    }
+
+    /**
+     * Returns the updates sent the fewest times so far, counting each as
+     * sent once more. An update is dropped once it has been sent a number
+     * of times proportional to the logarithm of the cluster size. Must be
+     * called while holding this object's monitor.
+     *
+     * @return Array of updates
+     */
+    private JSONArray takePiggybackedUpdates() {
+
+        ArrayList<String> update_ids = new ArrayList<String>(pending_updates.keySet());
+        Collections.sort(update_ids, new Comparator<String>() {
+
+            @Override
+            public int compare(String first_id, String second_id) {
+
+                return transmit_counts.get(first_id) - transmit_counts.get(second_id);
+            }
+        });
+
+        int transmit_limit = Constants.Gossip.RETRANSMITMULT *
+                (int) Math.ceil(Math.log(members.size() + 2) / Math.log(2));
+
+        JSONArray updates = new JSONArray();
+        for (String update_id : update_ids.subList(0, Math.min(Constants.Gossip.MAXPIGGYBACK, update_ids.size()))) {
+
+            updates.add(pending_updates.get(update_id));
+
+            int transmit_count = transmit_counts.get(update_id) + 1;
+            if (transmit_count >= transmit_limit) {
+
+                pending_updates.remove(update_id);
+                transmit_counts.remove(update_id);
+            } else {
+
+                transmit_counts.put(update_id, transmit_count);
+            }
+        }
+
+        return updates;
+    }
+
+    /**
+     * Returns an update for every member, this server included.
+     *
+     * @return Array of updates
+     */
+    private synchronized JSONArray getAllMembers() {
+
+        JSONArray updates = new JSONArray();
+        for (Member member : members.values()) {
+
+            JSONObject update = new JSONObject();
+            update.put(Constants.Tokens.SERVERID, member.server_id);
+            update.put(Constants.Tokens.SERVERLOC, member.location);
+            update.put(Constants.Gossip.STATE, member.state);
+            update.put(Constants.Gossip.INCARNATION, member.incarnation);
+            updates.add(update);
+        }
+
+        return updates;
+    }
+
+    /**
+     * State held for a single member of the cluster.
+     */
+    private static class Member {
+
+        private String server_id;
+        private String location;
+        private String state;
+        private long incarnation;
+        private long suspected_time;
+
+        private Member(String server_id) {
+
+            this.server_id = server_id;
+            this.state = Constants.Gossip.ALIVE;
+            this.incarnation = -1;
+        }
+    }
+}
@@ -16,6 +16,7 @@ public class HTTPObject {
     private HTTPRequestLine request_line = null;
     private HashMap<String, String> header_map;
     private JSONObject body;
+    private String encoded_body = null;
 
     public HTTPObject(String intro_line, HashMap<String, String> headers, JSONObject body) {
 
@@ -62,6 +63,23 @@ public class HTTPObject {
         return body;
     }
 
+    /**
+     * Provides access to the JSON encoding of the HTTP body. The body is
+     * encoded on first access and the encoding is reused afterwards, so the
+     * body must not be modified once it has been encoded.
+     *
+     * @return JSON encoding of the HTTP body
+     */
+    public String getEncodedBody() {
+
+        if (encoded_body == null) {
+
+            encoded_body = body.toJSONString();
+        }
+
+        return encoded_body;
+    }
+
     /**
      * Provides access to the request line if this object represents an HTTP
      * request. The request line is parsed and converted to a HTTPRequestLine
@@ -116,6 +134,6 @@ public class HTTPObject {
             header_map_string += entry.getKey() + ":" + entry.getValue() + "\n";
         }
 
-        return intro_line + "\n" + header_map_string + "\n" + body;
+        return intro_line + "\n" + header_map_string + "\n" + getEncodedBody();
     }
 }
@@ -81,7 +81,7 @@ public class HTTPRequestLine {
 
             for (Map.Entry entry : parameters.entrySet()) {
 
-                request_line_string += entry.getKey() + "=" + entry.getValue() + "&";
+                request_line_string += entry.getKey() + "=" + encodeParameter(String.valueOf(entry.getValue())) + "&";
             }
 
             if (request_line_string.endsWith("&")) {
@@ -94,4 +94,18 @@ public class HTTPRequestLine {
 
         return  request_line_string;
     }
+
+    /**
+     * Escapes the characters of a parameter value that cannot appear as
+     * they are in a request line: spaces, which separate boolean query
+     * terms, and the percent and number signs, which may appear in
+     * hashtags. The escapes are decoded when the request line is parsed.
+     *
+     * @param value Parameter value
+     * @return Escaped parameter value
+     */
+    private static String encodeParameter(String value) {
+
+        return value.replace("%", "%25").replace(" ", "%20").replace("#", "%23");
+    }
 }
@@ -20,7 +20,6 @@ public class HTTPServer {
     private String instance_id;
     private String server_id;
     private boolean development;
-    private String[] discovery_server_location;
     private int testing_delay;
     private HeartBeatCounter heart_beat_counter;
 
@@ -43,16 +42,30 @@ public class HTTPServer {
         if (this.layer.equals(Constants.Config.DISCOVERY)) {
 
             this.server_id = this.layer;
+
+            // An instance configured as a discovery replica joins the replicated discovery service
+            if (SystemUtility.getDiscoveryLocations(this.development).containsKey(this.layer + this.instance_id)) {
+
+                logger.debug("Starting discovery replica: " + this.layer + this.instance_id);
+                DiscoveryReplica.getInstance(this.layer + this.instance_id, this.development);
+                DiscoveryWorker.startHeartBeatMonitor();
+            }
         } else {
 
             this.server_id = this.layer + this.instance_id;
-            discovery_server_location = SystemUtility.getServerConfig(Constants.Config.DISCOVERY,
-                    null,
-                    this.development);
-
-            logger.debug("Registering new server: " + this.server_id);
             String[] add_and_port = SystemUtility.getServerConfig(this.layer, this.instance_id, this.development);
-            SystemUtility.registerWithDiscoveryServer(this.server_id, add_and_port, this.layer, discovery_server_location);
+
+            if (Constants.Gossip.ENABLED) {
+
+                // Join the cluster through the configured servers instead of the discovery server
+                logger.debug("Joining gossip membership: " + this.server_id);
+                GossipMembership.getInstance(this.server_id, add_and_port[0] + ":" + add_and_port[1], this.development);
+            } else {
+
+                logger.debug("Registering new server: " + this.server_id);
+                SystemUtility.registerWithDiscoveryGroup(this.server_id, add_and_port, this.layer,
+                        SystemUtility.getDiscoveryLocations(this.development).values());
+            }
 
             // Set a replication delay for demonstration purposes only
             if (delay != null) {
@@ -0,0 +1,203 @@
+package main;
+
+import java.util.*;
+
+/**
+ * Immutable consistent-hash ring of data store servers. Each server is
+ * placed on the ring at a number of virtual nodes, whose positions depend
+ * only on the server ID, and a key is owned by the distinct servers met
+ * walking clockwise from the key's position. Adding or removing a server
+ * only moves the keys next to its virtual nodes, and leaves the order in
+ * which the other servers are met unchanged. A changed ring is built from
+ * the previous one by merging in or filtering out a single server's
+ * virtual nodes, so the ring is never sorted again from scratch.
+ */
+public final class HashRing {
+
+    private final long[] positions;
+    private final String[] server_ids;
+    private final Set<String> members;
+    private final int virtual_nodes;
+
+    /**
+     * Builds an empty ring.
+     *
+     * @param virtual_nodes Number of virtual nodes placed for each server
+     */
+    public HashRing(int virtual_nodes) {
+
+        this(new long[0], new String[0], Collections.<String>emptySet(), virtual_nodes);
+    }
+
+    private HashRing(long[] positions, String[] server_ids, Set<String> members, int virtual_nodes) {
+
+        this.positions = positions;
+        this.server_ids = server_ids;
+        this.members = members;
+        this.virtual_nodes = virtual_nodes;
+    }
+
+    /**
+     * Returns a ring holding the given server along with the servers of
+     * this ring.
+     *
+     * @param server_id String ID of the server to be added
+     * @return Ring with the server added, or this ring if it already holds it
+     */
+    public HashRing withServer(String server_id) {
+
+        if (contains(server_id)) {
+
+            return this;
+        }
+
+        long[] added_positions = new long[virtual_nodes];
+        for (int i = 0; i < virtual_nodes; i++) {
+
+            added_positions[i] = getPosition(server_id + "#" + i);
+        }
+        Arrays.sort(added_positions);
+
+        // Merge the new virtual nodes into the sorted nodes of this ring
+        long[] merged_positions = new long[positions.length + virtual_nodes];
+        String[] merged_ids = new String[positions.length + virtual_nodes];
+        int current = 0;
+        int added = 0;
+        for (int merged = 0; merged < merged_positions.length; merged++) {
+
+            if (added < virtual_nodes && (current == positions.length ||
+                    precedes(added_positions[added], server_id, positions[current], server_ids[current]))) {
+
+                merged_positions[merged] = added_positions[added++];
+                merged_ids[merged] = server_id;
+            } else {
+
+                merged_positions[merged] = positions[current];
+                merged_ids[merged] = server_ids[current++];
+            }
+        }
+
+        TreeSet<String> merged_members = new TreeSet<String>(members);
+        merged_members.add(server_id);
+
+        return new HashRing(merged_positions, merged_ids, Collections.unmodifiableSet(merged_members), virtual_nodes);
+    }
+
+    /**
+     * Returns a ring holding the servers of this ring other than the given
+     * server.
+     *
+     * @param server_id String ID of the server to be removed
+     * @return Ring with the server removed, or this ring if it does not hold it
+     */
+    public HashRing withoutServer(String server_id) {
+
+        if (!contains(server_id)) {
+
+            return this;
+        }
+
+        long[] kept_positions = new long[positions.length - virtual_nodes];
+        String[] kept_ids = new String[positions.length - virtual_nodes];
+        int kept = 0;
+        for (int i = 0; i < positions.length; i++) {
+
+            if (!server_ids[i].equals(server_id)) {
+
+                kept_positions[kept] = positions[i];
+                kept_ids[kept++] = server_ids[i];
+            }
+        }
+
+        TreeSet<String> kept_members = new TreeSet<String>(members);
+        kept_members.remove(server_id);
+
+        return new HashRing(kept_positions, kept_ids, Collections.unmodifiableSet(kept_members), virtual_nodes);
+    }
+
+    /**
+     * Indicates whether a server is on the ring.
+     *
+     * @param server_id String ID of the server
+     * @return Boolean indicating the server has virtual nodes on the ring
+     */
+    public boolean contains(String server_id) {
+
+        return members.contains(server_id);
+    }
+
+    /**
+     * Returns the IDs of the servers on the ring.
+     *
+     * @return Unmodifiable sorted set of server IDs
+     */
+    public Set<String> getServerIDs() {
+
+        return members;
+    }
+
+    /**
+     * Returns the owners of a position on the ring: the first distinct
+     * servers met walking clockwise from the position. The first virtual
+     * node is found by binary search, and the walk stops once enough
+     * servers are met.
+     *
+     * @param position Position on the ring
+     * @param count Maximum number of owners
+     * @return List of server IDs in the order met
+     */
+    public List<String> getOwners(long position, int count) {
+
+        ArrayList<String> owner_ids = new ArrayList<String>();
+        if (positions.length == 0) {
+
+            return owner_ids;
+        }
+
+        int start = Arrays.binarySearch(positions, position);
+        if (start < 0) {
+
+            start = -start - 1;
+        }
+
+        for (int i = 0; i < positions.length && owner_ids.size() < count; i++) {
+
+            String server_id = server_ids[(start + i) % positions.length];
+            if (!owner_ids.contains(server_id)) {
+
+                owner_ids.add(server_id);
+            }
+        }
+
+        return owner_ids;
+    }
+
+    /**
+     * Returns the position of a key on the ring, a 64-bit FNV-1a hash of the
+     * key with its bits mixed so that similar keys land far apart.
+     *
+     * @param key Key to be placed
+     * @return Position of the key
+     */
+    public static long getPosition(String key) {
+
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+
+            hash ^= key.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Orders virtual nodes by position, and by server ID for equal positions.
+     */
+    private static boolean precedes(long position, String server_id, long position2, String server_id2) {
+
+        return position < position2 || (position == position2 && server_id.compareTo(server_id2) < 0);
+    }
+}
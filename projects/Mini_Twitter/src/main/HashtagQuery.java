@@ -0,0 +1,241 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Parsed form of a boolean hashtag search. A query is a disjunction of
+ * conjunctions, where each conjunction requires a set of hashtags and may
+ * exclude another set, e.g. "news AND sports AND NOT football OR breaking".
+ * Terms are separated by single spaces, which never occur in a hashtag, so
+ * a query without a space is a single hashtag taken literally, whatever
+ * characters it holds, and existing searches such as "c++" or "OR" are
+ * unchanged. In a query with spaces the operators AND, OR and NOT are
+ * reserved, and adjacent terms without an operator are joined by AND. AND
+ * binds tighter than OR, and every conjunction must require at least one
+ * hashtag. Clients send the spaces escaped as %20.
+ */
+public class HashtagQuery {
+
+    public static final String AND = "AND";
+    public static final String OR = "OR";
+    public static final String NOT = "NOT";
+    public static final String SEPARATOR = " ";
+
+    private ArrayList<Conjunction> conjunctions;
+
+    private HashtagQuery(ArrayList<Conjunction> conjunctions) {
+
+        this.conjunctions = conjunctions;
+    }
+
+    /**
+     * Parses a query string into its normalized boolean form.
+     *
+     * @param query Query string from the request line
+     * @return HashtagQuery representing the query
+     * @throws HTTPRequestException If the query is not a valid boolean query
+     */
+    public static HashtagQuery parse(String query) throws HTTPRequestException {
+
+        if (query == null || query.isEmpty()) {
+
+            throw new HTTPRequestException("Empty query");
+        }
+
+        TreeSet<Conjunction> conjunction_set = new TreeSet<Conjunction>();
+        Conjunction conjunction = new Conjunction();
+
+        // A query without a separator is a single hashtag
+        if (!query.contains(SEPARATOR)) {
+
+            conjunction.included.add(query);
+            conjunction_set.add(conjunction);
+            return new HashtagQuery(new ArrayList<Conjunction>(conjunction_set));
+        }
+
+        boolean negate = false;
+        boolean expect_term = true;
+
+        for (String token : query.split(SEPARATOR, -1)) {
+
+            if (token.isEmpty()) {
+
+                throw new HTTPRequestException("Empty term in query: " + query);
+            } else if (token.equals(OR)) {
+
+                if (expect_term) {
+
+                    throw new HTTPRequestException("Missing term before OR in query: " + query);
+                }
+                conjunction_set.add(conjunction.validate(query));
+                conjunction = new Conjunction();
+                expect_term = true;
+            } else if (token.equals(AND)) {
+
+                if (expect_term) {
+
+                    throw new HTTPRequestException("Missing term before AND in query: " + query);
+                }
+                expect_term = true;
+            } else if (token.equals(NOT)) {
+
+                if (negate) {
+
+                    throw new HTTPRequestException("Repeated NOT in query: " + query);
+                }
+                negate = true;
+                expect_term = true;
+            } else {
+
+                if (negate) {
+
+                    conjunction.excluded.add(token);
+                } else {
+
+                    conjunction.included.add(token);
+                }
+                negate = false;
+                expect_term = false;
+            }
+        }
+
+        if (expect_term) {
+
+            throw new HTTPRequestException("Missing term at end of query: " + query);
+        }
+        conjunction_set.add(conjunction.validate(query));
+
+        return new HashtagQuery(new ArrayList<Conjunction>(conjunction_set));
+    }
+
+    /**
+     * Indicates whether the query is a single hashtag without operators.
+     *
+     * @return Boolean indicating a single-term query
+     */
+    public boolean isSingleTerm() {
+
+        return conjunctions.size() == 1 && conjunctions.get(0).included.size() == 1 &&
+                conjunctions.get(0).excluded.isEmpty();
+    }
+
+    /**
+     * Returns every hashtag involved in the query in sorted order.
+     *
+     * @return Sorted list of hashtags
+     */
+    public List<String> getTerms() {
+
+        TreeSet<String> terms = new TreeSet<String>();
+        for (Conjunction conjunction : conjunctions) {
+
+            terms.addAll(conjunction.included);
+            terms.addAll(conjunction.excluded);
+        }
+
+        return new ArrayList<String>(terms);
+    }
+
+    /**
+     * Returns the conjunctions making up the query.
+     *
+     * @return List of conjunctions
+     */
+    public List<Conjunction> getConjunctions() {
+
+        return conjunctions;
+    }
+
+    /**
+     * Returns the normalized string form of the query. Equivalent queries
+     * produce the same string, and a single hashtag is returned unchanged.
+     *
+     * @return Normalized query string
+     */
+    @Override
+    public String toString() {
+
+        StringBuilder query_builder = new StringBuilder();
+        for (Conjunction conjunction : conjunctions) {
+
+            if (query_builder.length() > 0) {
+
+                query_builder.append(SEPARATOR).append(OR).append(SEPARATOR);
+            }
+            query_builder.append(conjunction.toString());
+        }
+
+        return query_builder.toString();
+    }
+
+    /**
+     * A set of required hashtags and a set of excluded hashtags.
+     */
+    public static class Conjunction implements Comparable<Conjunction> {
+
+        private TreeSet<String> included;
+        private TreeSet<String> excluded;
+
+        private Conjunction() {
+
+            this.included = new TreeSet<String>();
+            this.excluded = new TreeSet<String>();
+        }
+
+        /**
+         * Verifies the conjunction requires at least one hashtag.
+         *
+         * @param query Query string for the exception message
+         * @return This conjunction
+         * @throws HTTPRequestException If no hashtag is required
+         */
+        private Conjunction validate(String query) throws HTTPRequestException {
+
+            if (included.isEmpty()) {
+
+                throw new HTTPRequestException("Conjunction without a required term in query: " + query);
+            }
+
+            return this;
+        }
+
+        public List<String> getIncluded() {
+
+            return new ArrayList<String>(included);
+        }
+
+        public List<String> getExcluded() {
+
+            return new ArrayList<String>(excluded);
+        }
+
+        @Override
+        public String toString() {
+
+            StringBuilder conjunction_builder = new StringBuilder();
+            for (String term : included) {
+
+                if (conjunction_builder.length() > 0) {
+
+                    conjunction_builder.append(SEPARATOR).append(AND).append(SEPARATOR);
+                }
+                conjunction_builder.append(term);
+            }
+            for (String term : excluded) {
+
+                conjunction_builder.append(SEPARATOR).append(AND).append(SEPARATOR)
+                        .append(NOT).append(SEPARATOR).append(term);
+            }
+
+            return conjunction_builder.toString();
+        }
+
+        @Override
+        public int compareTo(Conjunction conjunction) {
+
+            return toString().compareTo(conjunction.toString());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package main;
+
+import org.json.simple.JSONArray;
+
+/**
+ * Extracts tags such as hashtags and mentions from a tweet in a single pass
+ * without regular expressions. A tag starts at a sigil character and runs
+ * until the next whitespace character, matching the pattern "#\S+": a bare
+ * sigil is not a tag, and a sigil inside a tag is part of that tag. Tags are
+ * returned without the sigil, in order of first appearance, and repeated
+ * tags are dropped before a copy of them is made.
+ */
+public class HashtagTokenizer {
+
+    public static final char HASHTAG = '#';
+    public static final char MENTION = '@';
+
+    /**
+     * Extracts the distinct hashtags from a tweet.
+     *
+     * @param tweet Tweet to be tokenized
+     * @return Array of distinct hashtags without the '#'
+     */
+    public static JSONArray extractHashtags(String tweet) {
+
+        return extract(tweet, HASHTAG);
+    }
+
+    /**
+     * Extracts the distinct tags starting with the given sigil from a tweet.
+     *
+     * @param tweet Tweet to be tokenized
+     * @param sigil Character that starts a tag
+     * @return Array of distinct tags without the sigil
+     */
+    public static JSONArray extract(String tweet, char sigil) {
+
+        JSONArray tags = new JSONArray();
+        int length = tweet.length();
+        int position = tweet.indexOf(sigil);
+
+        while (position >= 0 && position < length) {
+
+            // Find the end of the tag
+            int start = position + 1;
+            int end = start;
+            while (end < length && !isWhitespace(tweet.charAt(end))) {
+
+                end++;
+            }
+
+            if (end > start && !containsTag(tags, tweet, start, end)) {
+
+                tags.add(tweet.substring(start, end));
+            }
+
+            // Continue from the next sigil after the tag
+            position = (end < length) ? tweet.indexOf(sigil, end) : -1;
+        }
+
+        return tags;
+    }
+
+    /**
+     * Indicates whether the tag found in the given region of the tweet has
+     * already been extracted, comparing in place to avoid copying the tag.
+     *
+     * @param tags Tags extracted so far
+     * @param tweet Tweet being tokenized
+     * @param start Start of the tag in the tweet
+     * @param end End of the tag in the tweet
+     * @return Boolean indicating the tag is a repeat
+     */
+    private static boolean containsTag(JSONArray tags, String tweet, int start, int end) {
+
+        int tag_length = end - start;
+        for (Object tag : tags) {
+
+            String existing_tag = (String) tag;
+            if (existing_tag.length() == tag_length && tweet.regionMatches(start, existing_tag, 0, tag_length)) {
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Indicates whether a character is whitespace as defined by the regular
+     * expression class \s.
+     *
+     * @param character Character to be checked
+     * @return Boolean indicating whitespace
+     */
+    private static boolean isWhitespace(char character) {
+
+        return character == ' ' || character == '\t' || character == '\n' ||
+                character == '\u000B' || character == '\f' || character == '\r';
+    }
+}
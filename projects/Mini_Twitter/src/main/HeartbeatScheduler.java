@@ -0,0 +1,371 @@
+package main;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.*;
+
+/**
+ * Monitors the health of every registered data store server from a single
+ * scheduled thread pool. Each monitored server has a heart beat scheduled
+ * at a fixed rate on the pool, so the beat rate does not depend on how any
+ * thread is scheduled, and a small pool serves any number of servers. Each
+ * server has its own accrual failure detector fed with the arrival times of
+ * its heart beats, and the server is declared failed once the detector's
+ * suspicion level reaches the threshold, after which its failure is
+ * broadcast to all other servers. A server that answers slowly while under
+ * load widens its own distribution of intervals instead of being declared
+ * failed for a single late reply.
+ *
+ * Data store servers also report when they last exchanged replication
+ * traffic with each other. Such evidence stands in for a heart beat, so a
+ * server seen alive within the last interval is not sent one, and heart
+ * beats are only sent to servers on idle links.
+ */
+public class HeartbeatScheduler {
+
+    private static HeartbeatScheduler singleton_heartbeat_scheduler = null;
+    private ServerDirectory server_directory;
+    private ScheduledExecutorService scheduler;
+    private HashMap<String, MonitoredServer> monitored_servers;
+    private int initial_delay;
+    private int interval;
+    private double phi_threshold;
+    private DiscoveryReplica replica;
+
+    final static Logger logger = Logger.getLogger(HeartbeatScheduler.class);
+
+    public HeartbeatScheduler(ServerDirectory server_directory, int initial_delay, int interval, double phi_threshold) {
+
+        this.server_directory = server_directory;
+        this.initial_delay = initial_delay;
+        this.interval = interval;
+        this.phi_threshold = phi_threshold;
+        this.replica = null;
+        this.monitored_servers = new HashMap<String, MonitoredServer>();
+        this.scheduler = Executors.newScheduledThreadPool(Constants.Discovery.HEARTBEATTHREADS, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Provides access to the singleton scheduler for use across multiple
+     * discovery threads.
+     *
+     * @param server_directory Server directory master
+     * @return An instance of the singleton heart beat scheduler
+     */
+    public synchronized static HeartbeatScheduler getInstance(ServerDirectory server_directory) {
+
+        if (singleton_heartbeat_scheduler == null) {
+
+            singleton_heartbeat_scheduler = new HeartbeatScheduler(server_directory, Constants.Discovery.TIMEOUT,
+                    Constants.Discovery.HEARTBEATINTERVAL, Constants.Discovery.PHITHRESHOLD);
+        }
+
+        return singleton_heartbeat_scheduler;
+    }
+
+    /**
+     * Starts monitoring the given server unless it is already being
+     * monitored. A server that was declared failed and registers again is
+     * monitored anew. The first beat is sent after the initial delay to give
+     * the server time to start.
+     *
+     * @param server_id String ID of the server to be monitored
+     */
+    public synchronized void startMonitor(String server_id) {
+
+        MonitoredServer monitored_server = monitored_servers.get(server_id);
+        if (monitored_server != null && !monitored_server.failed) {
+
+            return;
+        }
+
+        logger.debug("Starting heart beat monitor for server ID: " + server_id);
+        monitored_server = new MonitoredServer(server_id);
+        monitored_server.future = scheduler.scheduleAtFixedRate(monitored_server, initial_delay, interval,
+                TimeUnit.MILLISECONDS);
+        monitored_servers.put(server_id, monitored_server);
+    }
+
+    /**
+     * Indicates whether the given server is monitored and has not failed.
+     *
+     * @param server_id String ID of the server
+     * @return Boolean indicating the server is considered alive
+     */
+    public synchronized boolean isMonitored(String server_id) {
+
+        MonitoredServer monitored_server = monitored_servers.get(server_id);
+
+        return monitored_server != null && !monitored_server.failed;
+    }
+
+    /**
+     * Returns the number of consecutive beats the given server has missed.
+     *
+     * @param server_id String ID of the server
+     * @return Number of missed beats, or -1 if the server is not monitored
+     */
+    public synchronized int getMissedBeats(String server_id) {
+
+        MonitoredServer monitored_server = monitored_servers.get(server_id);
+
+        return (monitored_server == null) ? -1 : monitored_server.missed_beats;
+    }
+
+    /**
+     * Returns the current suspicion level of the given server.
+     *
+     * @param server_id String ID of the server
+     * @return Suspicion level phi, or -1 if the server is not monitored
+     */
+    public synchronized double getPhi(String server_id) {
+
+        MonitoredServer monitored_server = monitored_servers.get(server_id);
+
+        return (monitored_server == null) ? -1.0 : monitored_server.detector.phi(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the number of heart beats sent to the given server.
+     *
+     * @param server_id String ID of the server
+     * @return Number of heart beats sent, or -1 if the server is not monitored
+     */
+    public synchronized int getHeartBeatsSent(String server_id) {
+
+        MonitoredServer monitored_server = monitored_servers.get(server_id);
+
+        return (monitored_server == null) ? -1 : monitored_server.heart_beats_sent;
+    }
+
+    /**
+     * Records evidence that the given server was alive at the given time,
+     * such as replication traffic seen by another server. The evidence is
+     * taken in place of the next heart beat to the server.
+     *
+     * @param server_id String ID of the server
+     * @param observed_time Time the server was seen alive in milliseconds
+     */
+    public synchronized void recordLiveness(String server_id, long observed_time) {
+
+        MonitoredServer monitored_server = monitored_servers.get(server_id);
+
+        if (monitored_server != null && !monitored_server.failed) {
+
+            monitored_server.last_evidence = Math.max(monitored_server.last_evidence, observed_time);
+        }
+    }
+
+    /**
+     * Sets the replica through which failures are recorded when the
+     * discovery service is replicated. Servers are then only monitored
+     * while the replica is leader.
+     *
+     * @param replica Discovery replica of this server
+     */
+    public synchronized void setReplica(DiscoveryReplica replica) {
+
+        this.replica = replica;
+    }
+
+    /**
+     * Stops all monitoring. Meant for tearing down test instances.
+     */
+    public void shutdown() {
+
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Sends a single heart beat request to a server, waiting no longer than
+     * the beat interval to connect and again to read the reply.
+     *
+     * @param location Location of the server
+     * @return Boolean indicating a reply was received
+     */
+    private boolean sendHeartBeat(String location) {
+
+        HTTPObject request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.GET,
+                Constants.Tokens.DISCOVER, null, null);
+
+        Socket heartbeat_socket = new Socket();
+        try {
+
+            heartbeat_socket.connect(new InetSocketAddress(location.split(":")[0],
+                    Integer.decode(location.split(":")[1])), interval);
+            heartbeat_socket.setSoTimeout(interval);
+        } catch (IOException e) {
+
+            try {
+
+                heartbeat_socket.close();
+            } catch (IOException ignored) { }
+
+            return false;
+        }
+
+        return SystemUtility.sendRequest(request.toString(), heartbeat_socket) != null;
+    }
+
+    /**
+     * Marks a server as failed in the server directory master and broadcasts
+     * the change to all other servers.
+     *
+     * @param server_id String ID of the failed server
+     */
+    private void registerFailure(String server_id) {
+
+        logger.debug("Server failed, broadcasting death of server: " + server_id);
+        JSONObject delta;
+        DiscoveryReplica failure_replica;
+        synchronized (this) {
+
+            failure_replica = replica;
+        }
+
+        if (failure_replica == null) {
+
+            delta = server_directory.setServerFailed(server_id);
+        } else {
+
+            // If the failure is not committed, leadership has moved and the new leader monitors the server
+            JSONObject proposal_result = failure_replica.propose(DiscoveryReplica.failCommand(server_id));
+            delta = (JSONObject) proposal_result.get(Constants.Tokens.DELTA);
+        }
+
+        if (delta != null) {
+
+            JSONObject request_body = new JSONObject();
+            request_body.put(Constants.Tokens.DELTA, delta);
+            DirectoryBroadcaster.getInstance(server_directory).broadcast(request_body, null);
+        }
+    }
+
+    /**
+     * Heart beat task, failure detector and missed beat count for a single
+     * monitored server.
+     */
+    private class MonitoredServer implements Runnable {
+
+        private String server_id;
+        private PhiAccrualDetector detector;
+        private boolean replied_once;
+        private int missed_beats;
+        private int heart_beats_sent;
+        private long last_evidence;
+        private boolean failed;
+        private ScheduledFuture<?> future;
+
+        private MonitoredServer(String server_id) {
+
+            this.server_id = server_id;
+            this.missed_beats = 0;
+            this.heart_beats_sent = 0;
+            this.last_evidence = -1;
+            this.replied_once = false;
+            this.failed = false;
+
+            // The deviation floor and acceptable pause scale with the interval so short test intervals behave alike
+            this.detector = new PhiAccrualDetector(interval, Constants.Discovery.PHIWINDOW, interval / 2, interval);
+            this.detector.start(System.currentTimeMillis() + initial_delay);
+        }
+
+        @Override
+        public void run() {
+
+            synchronized (HeartbeatScheduler.this) {
+
+                if (failed) {
+
+                    return;
+                }
+
+                // A replica that is not leader leaves monitoring to the leader, restarting the clock for when it leads
+                long now = System.currentTimeMillis();
+                if (replica != null && !replica.isLeader()) {
+
+                    detector.start(now);
+                    replied_once = false;
+                    missed_beats = 0;
+                    return;
+                }
+
+                // Recent evidence from replication traffic takes the place of this beat
+                if (last_evidence > detector.getLastHeartBeat() && now - last_evidence < interval) {
+
+                    logger.debug("Liveness reported for server: " + server_id);
+                    recordBeat(last_evidence);
+                    return;
+                }
+                heart_beats_sent++;
+            }
+
+            String location = server_directory.getServerLocation(server_id);
+            boolean replied = location != null && sendHeartBeat(location);
+
+            synchronized (HeartbeatScheduler.this) {
+
+                if (failed) {
+
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                if (replied) {
+
+                    logger.debug("Heart beat received from server: " + server_id);
+                    recordBeat(now);
+                    return;
+                }
+
+                missed_beats++;
+                double phi = detector.phi(now);
+                logger.debug("Heart beat missed by server: " + server_id + " (" + missed_beats + ", phi=" + phi + ")");
+                if (phi < phi_threshold) {
+
+                    return;
+                }
+
+                failed = true;
+                future.cancel(false);
+            }
+
+            registerFailure(server_id);
+        }
+
+        /**
+         * Feeds a sign of life to the failure detector. Must be called while
+         * holding the scheduler's monitor.
+         *
+         * @param time Time the server was seen alive in milliseconds
+         */
+        private void recordBeat(long time) {
+
+            missed_beats = 0;
+
+            // The first reply only starts the clock, since the wait before it is not an interval
+            if (replied_once) {
+
+                detector.heartBeat(time);
+            } else {
+
+                detector.start(time);
+                replied_once = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package main;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends a search request to a data store server and, if no acceptable
+ * response arrives within the hedge delay, sends the same request to a
+ * second live data store server. The first response that satisfies the
+ * required timestamp is returned, and the other request is cancelled by
+ * closing its socket.
+ */
+public class HedgedRequest {
+
+    private String request;
+    private VectorTimestamp required_timestamp;
+    private DataStoreRouter router;
+    private ServerDirectory server_directory;
+    private List<String> owner_ids;
+    private ArrayList<RequestAttempt> attempts;
+    private HTTPObject accepted_response;
+    private HTTPObject fallback_response;
+    private int pending;
+
+    final static Logger logger = Logger.getLogger(HedgedRequest.class);
+
+    public HedgedRequest(String request, VectorTimestamp required_timestamp,
+                         DataStoreRouter router, ServerDirectory server_directory) {
+
+        this(request, required_timestamp, router, server_directory, null);
+    }
+
+    /**
+     * Builds a hedged request that only hedges to the given owners of the
+     * shard the request concerns.
+     *
+     * @param request Request to be sent
+     * @param required_timestamp Timestamp the response must reflect, or null
+     * @param router Router choosing the server to hedge to
+     * @param server_directory Server directory for locating servers
+     * @param owner_ids IDs of the servers able to answer, or null for any live server
+     */
+    public HedgedRequest(String request, VectorTimestamp required_timestamp,
+                         DataStoreRouter router, ServerDirectory server_directory, List<String> owner_ids) {
+
+        this.request = request;
+        this.required_timestamp = required_timestamp;
+        this.router = router;
+        this.server_directory = server_directory;
+        this.owner_ids = owner_ids;
+        this.attempts = new ArrayList<RequestAttempt>();
+        this.accepted_response = null;
+        this.fallback_response = null;
+        this.pending = 0;
+    }
+
+    /**
+     * Sends the request to the primary server, hedging to a second server if
+     * the primary has not answered within the hedge delay.
+     *
+     * @param primary_id ID of the primary data store server
+     * @param hedge_delay Milliseconds to wait before hedging
+     * @return Accepted response, the last response received if none was
+     * acceptable, or null if every request failed
+     */
+    public HTTPObject send(String primary_id, long hedge_delay) {
+
+        startAttempt(primary_id);
+
+        synchronized (this) {
+
+            waitForResponse(System.currentTimeMillis() + hedge_delay);
+
+            // Hedge if the primary is slow or failed without a response
+            if (accepted_response == null && (pending > 0 || fallback_response == null)) {
+
+                String hedge_id = router.selectHedge(primary_id, required_timestamp, owner_ids);
+                if (hedge_id != null) {
+
+                    logger.debug("No acceptable response from " + primary_id + " within " + hedge_delay +
+                            "ms, hedging to " + hedge_id);
+                    startAttempt(hedge_id);
+                }
+            }
+
+            waitForResponse(0);
+
+            // Cancel the requests still in flight
+            for (RequestAttempt attempt : attempts) {
+
+                attempt.cancel();
+            }
+
+            return (accepted_response != null) ? accepted_response : fallback_response;
+        }
+    }
+
+    /**
+     * Indicates whether a response satisfies the required timestamp. A 304
+     * response is accepted since data store servers only answer a search
+     * once they have caught up to the request timestamp. So is any 200
+     * response from a sharded data store, whose timestamp only holds the
+     * stamps of the shards it owns.
+     *
+     * @param response Response to be checked
+     * @param required_timestamp Timestamp the response must reflect, or null
+     * @return Boolean indicating the response is acceptable
+     */
+    public static boolean isAcceptable(HTTPObject response, VectorTimestamp required_timestamp) {
+
+        if (response == null) {
+
+            return false;
+        } else if (response.getStatusCode().equals(Constants.Codes.NOTMODIFIED)) {
+
+            return true;
+        } else if (!response.getStatusCode().equals(Constants.Codes.OK)) {
+
+            return false;
+        }
+
+        Object response_timestamp = response.getBody().get(Constants.Tokens.TIMESTAMP);
+        if (required_timestamp == null || Constants.Sharding.ENABLED) {
+
+            return true;
+        } else if (!(response_timestamp instanceof Map)) {
+
+            return false;
+        }
+
+        return required_timestamp.precedes(
+                new VectorTimestamp(new HashMap<String, String>((Map) response_timestamp)), null);
+    }
+
+    /**
+     * Starts a request attempt against the given server.
+     *
+     * @param server_id ID of the data store server
+     */
+    private synchronized void startAttempt(String server_id) {
+
+        RequestAttempt attempt = new RequestAttempt(server_id);
+        attempts.add(attempt);
+        pending++;
+        attempt.start();
+    }
+
+    /**
+     * Waits until a response is accepted, every attempt has finished, or the
+     * deadline passes. Must be called while holding this object's monitor.
+     *
+     * @param deadline Time in milliseconds to stop waiting, or 0 for none
+     */
+    private void waitForResponse(long deadline) {
+
+        while (accepted_response == null && pending > 0) {
+
+            long remaining = (deadline == 0) ? 0 : deadline - System.currentTimeMillis();
+            if (deadline != 0 && remaining <= 0) {
+
+                break;
+            }
+
+            try {
+
+                this.wait(remaining);
+            } catch (InterruptedException e) {
+
+                logger.error(Constants.Messages.INTERRUPTED);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Records the response of a finished attempt and wakes the waiting
+     * sender.
+     *
+     * @param response Response received, or null if the attempt failed
+     */
+    private synchronized void offerResponse(HTTPObject response) {
+
+        pending--;
+
+        if (accepted_response == null && isAcceptable(response, required_timestamp)) {
+
+            accepted_response = response;
+        } else if (response != null) {
+
+            fallback_response = response;
+        }
+
+        this.notifyAll();
+    }
+
+    /**
+     * Thread sending the request to a single data store server.
+     */
+    private class RequestAttempt extends Thread {
+
+        private String server_id;
+        private Socket request_socket;
+        private boolean finished;
+        private boolean cancelled;
+
+        public RequestAttempt(String server_id) {
+
+            this.server_id = server_id;
+            this.request_socket = null;
+            this.finished = false;
+            this.cancelled = false;
+        }
+
+        @Override
+        public void run() {
+
+            HTTPObject response = null;
+            String location = server_directory.getServerLocation(server_id);
+
+            if (location != null) {
+
+                long start_time = router.beginRequest(server_id);
+
+                try {
+
+                    Socket socket = new Socket(location.split(":")[0], Integer.decode(location.split(":")[1]));
+                    if (setSocket(socket)) {
+
+                        response = SystemUtility.sendRequest(request, socket);
+                    }
+                } catch (IOException e) {
+
+                    logger.error("Unable to initialize server socket for location: " + location);
+                }
+
+                if (markFinished()) {
+
+                    router.cancelRequest(server_id);
+                } else {
+
+                    router.endRequest(server_id, start_time, response);
+                }
+            }
+
+            offerResponse(response);
+        }
+
+        /**
+         * Registers the socket of the attempt, closing it if the attempt was
+         * already cancelled.
+         *
+         * @param socket Socket of the attempt
+         * @return Boolean indicating the request should be sent
+         */
+        private synchronized boolean setSocket(Socket socket) {
+
+            if (cancelled) {
+
+                closeSocket(socket);
+                return false;
+            }
+            request_socket = socket;
+
+            return true;
+        }
+
+        /**
+         * Marks the attempt finished.
+         *
+         * @return Boolean indicating the attempt had been cancelled
+         */
+        private synchronized boolean markFinished() {
+
+            finished = true;
+
+            return cancelled;
+        }
+
+        /**
+         * Cancels the attempt if it is still in flight.
+         */
+        public synchronized void cancel() {
+
+            if (finished) {
+
+                return;
+            }
+
+            logger.debug("Cancelling request to " + server_id);
+            cancelled = true;
+            if (request_socket != null) {
+
+                closeSocket(request_socket);
+            }
+        }
+
+        private void closeSocket(Socket socket) {
+
+            try {
+
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
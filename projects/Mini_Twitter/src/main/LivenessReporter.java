@@ -0,0 +1,135 @@
+package main;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Collects evidence that other data store servers are alive from the
+ * replication traffic this data store already exchanges with them, and
+ * reports it to the discovery server in batches. A replication request
+ * received from a server shows that server was alive at that moment, so the
+ * discovery server does not need to send it a heart beat of its own. A
+ * connection accepted by a replica is not counted, since the kernel of a
+ * hung server still completes connections into its listen backlog. Evidence
+ * is reported as the age of the latest contact with each server rather than
+ * a time, so the clocks of the two servers need not agree. A report also
+ * shows this server is alive. Nothing is sent while no replication traffic
+ * is seen, in which case the discovery server falls back to heart beats.
+ */
+public class LivenessReporter {
+
+    private static LivenessReporter singleton_liveness_reporter = null;
+    private String server_id;
+    private Collection<String> discovery_locations;
+    private ConcurrentHashMap<String, Long> last_contacts;
+    private ScheduledExecutorService scheduler;
+
+    final static Logger logger = Logger.getLogger(LivenessReporter.class);
+
+    private LivenessReporter(String server_id, Collection<String> discovery_locations) {
+
+        this.server_id = server_id;
+        this.discovery_locations = discovery_locations;
+        this.last_contacts = new ConcurrentHashMap<String, Long>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "liveness");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        scheduler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+
+                sendReport();
+            }
+        }, Constants.Discovery.LIVENESSINTERVAL, Constants.Discovery.LIVENESSINTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Provides access to the singleton reporter for use across multiple data
+     * store threads, starting its reports on first use.
+     *
+     * @param server_id String ID of this data store server
+     * @param development Environment flag for choosing ports
+     * @return An instance of the singleton liveness reporter
+     */
+    public synchronized static LivenessReporter getInstance(String server_id, boolean development) {
+
+        if (singleton_liveness_reporter == null) {
+
+            singleton_liveness_reporter = new LivenessReporter(server_id,
+                    SystemUtility.getDiscoveryLocations(development).values());
+        }
+
+        return singleton_liveness_reporter;
+    }
+
+    /**
+     * Records a successful exchange with another data store server.
+     *
+     * @param contact_id String ID of the server contacted
+     */
+    public void recordContact(String contact_id) {
+
+        if (contact_id != null && contact_id.startsWith(Constants.Config.DATASTORE) && !contact_id.equals(server_id)) {
+
+            last_contacts.put(contact_id, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Sends the contacts recorded since the last report to the discovery
+     * server, unless there are none.
+     */
+    private void sendReport() {
+
+        if (last_contacts.isEmpty()) {
+
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        JSONObject contact_ages = new JSONObject();
+        for (Map.Entry<String, Long> contact : last_contacts.entrySet()) {
+
+            // Remove only the contact reported, keeping any newer one for the next report
+            if (last_contacts.remove(contact.getKey(), contact.getValue())) {
+
+                contact_ages.put(contact.getKey(), Math.max(0, now - contact.getValue()));
+            }
+        }
+        contact_ages.put(server_id, 0L);
+
+        JSONObject request_body = new JSONObject();
+        request_body.put(Constants.Tokens.SERVERID, server_id);
+        request_body.put(Constants.Tokens.LIVENESS, contact_ages);
+        String request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.POST,
+                Constants.Tokens.DISCOVER + "/" + Constants.Tokens.LIVENESS, null, request_body).toString();
+
+        // Any member of a replicated discovery service passes the report on to its leader
+        for (String discovery_location : discovery_locations) {
+
+            try {
+
+                SystemUtility.sendRequestWithoutWait(request, new Socket(discovery_location.split(":")[0],
+                        Integer.decode(discovery_location.split(":")[1])));
+                return;
+            } catch (IOException ignored) { }
+        }
+
+        logger.error("Unable to report liveness to discovery server");
+    }
+}
@@ -0,0 +1,461 @@
+package main;
+
+import java.util.*;
+
+/**
+ * Immutable hash map built as a hash array mapped trie. Adding a mapping
+ * returns a new map that shares every node of the old map except those on
+ * the path to the changed mapping, so each version of the map stays valid
+ * and unchanged for as long as it is referenced. Taking a snapshot of the
+ * map is therefore only a matter of keeping a reference to it.
+ *
+ * Each trie node consumes five bits of a key's hash to choose among up to
+ * 32 children, and stores only the children present along with a bitmap of
+ * their positions. Keys whose hashes are identical share a collision node.
+ */
+public final class PersistentMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<Object, Object>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the empty map.
+     *
+     * @return Map without mappings
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * Returns the number of mappings in the map.
+     *
+     * @return Number of mappings
+     */
+    public int size() {
+
+        return size;
+    }
+
+    /**
+     * Indicates whether the map has no mappings.
+     *
+     * @return Boolean indicating the map is empty
+     */
+    public boolean isEmpty() {
+
+        return size == 0;
+    }
+
+    /**
+     * Returns the value mapped to the given key.
+     *
+     * @param key Key to look up
+     * @return Mapped value, or null if the key is not mapped
+     */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+
+        if (root == null) {
+
+            return null;
+        }
+
+        Entry entry = root.find(0, hash(key), key);
+
+        return (entry == null) ? null : (V) entry.value;
+    }
+
+    /**
+     * Indicates whether the given key is mapped.
+     *
+     * @param key Key to look up
+     * @return Boolean indicating the key is mapped
+     */
+    public boolean containsKey(Object key) {
+
+        return root != null && root.find(0, hash(key), key) != null;
+    }
+
+    /**
+     * Returns a map holding the mappings of this map and the given mapping,
+     * which replaces any existing mapping of the key. This map is left
+     * unchanged.
+     *
+     * @param key Key to be mapped
+     * @param value Value to be mapped to the key
+     * @return New version of the map, or this map if nothing changed
+     */
+    public PersistentMap<K, V> put(K key, V value) {
+
+        int key_hash = hash(key);
+        boolean[] added = new boolean[1];
+        Node new_root;
+
+        if (root == null) {
+
+            new_root = new BitmapNode(0, new Object[0]).put(0, key_hash, key, value, added);
+        } else {
+
+            new_root = root.put(0, key_hash, key, value, added);
+        }
+
+        if (new_root == root) {
+
+            return this;
+        }
+
+        return new PersistentMap<K, V>(new_root, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Copies the mappings into a mutable map.
+     *
+     * @return HashMap holding every mapping
+     */
+    public HashMap<K, V> toHashMap() {
+
+        HashMap<K, V> map = new HashMap<K, V>();
+        for (Map.Entry<K, V> entry : this) {
+
+            map.put(entry.getKey(), entry.getValue());
+        }
+
+        return map;
+    }
+
+    /**
+     * Iterates over the mappings in no particular order.
+     *
+     * @return Iterator over the mappings
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+
+        return new EntryIterator<K, V>(root);
+    }
+
+    private static int hash(Object key) {
+
+        int key_hash = key.hashCode();
+
+        // Mix the upper bits into the lower bits consumed by the top levels of the trie
+        return key_hash ^ (key_hash >>> 16);
+    }
+
+    /**
+     * Builds a node holding an existing child and a new entry whose hashes
+     * agree on all bits consumed above the given shift.
+     */
+    private static Node mergeNodes(int shift, Object existing, int existing_hash, Entry entry) {
+
+        if (existing_hash == entry.hash && existing instanceof Entry) {
+
+            return new CollisionNode(entry.hash, new Entry[]{(Entry) existing, entry});
+        }
+
+        int existing_position = (existing_hash >>> shift) & MASK;
+        int entry_position = (entry.hash >>> shift) & MASK;
+        int bitmap = (1 << existing_position) | (1 << entry_position);
+
+        if (existing_position == entry_position) {
+
+            return new BitmapNode(bitmap, new Object[]{mergeNodes(shift + BITS, existing, existing_hash, entry)});
+        } else if (existing_position < entry_position) {
+
+            return new BitmapNode(bitmap, new Object[]{existing, entry});
+        } else {
+
+            return new BitmapNode(bitmap, new Object[]{entry, existing});
+        }
+    }
+
+    private static int hashOf(Object child) {
+
+        return (child instanceof Entry) ? ((Entry) child).hash : ((CollisionNode) child).hash;
+    }
+
+    /**
+     * Single key and value mapping held at a leaf of the trie.
+     */
+    private static final class Entry implements Map.Entry<Object, Object> {
+
+        private final int hash;
+        private final Object key;
+        private final Object value;
+
+        private Entry(int hash, Object key, Object value) {
+
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public Object getKey() {
+
+            return key;
+        }
+
+        @Override
+        public Object getValue() {
+
+            return value;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Interior node of the trie.
+     */
+    private static abstract class Node {
+
+        abstract Entry find(int shift, int key_hash, Object key);
+
+        abstract Node put(int shift, int key_hash, Object key, Object value, boolean[] added);
+    }
+
+    /**
+     * Node holding up to 32 children, each either an entry or a subtree,
+     * indexed by five bits of the hash.
+     */
+    private static final class BitmapNode extends Node {
+
+        private final int bitmap;
+        private final Object[] children;
+
+        private BitmapNode(int bitmap, Object[] children) {
+
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        @Override
+        Entry find(int shift, int key_hash, Object key) {
+
+            int bit = 1 << ((key_hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+
+                return null;
+            }
+
+            Object child = children[Integer.bitCount(bitmap & (bit - 1))];
+            if (child instanceof Entry) {
+
+                Entry entry = (Entry) child;
+                return (entry.hash == key_hash && entry.key.equals(key)) ? entry : null;
+            }
+
+            return ((Node) child).find(shift + BITS, key_hash, key);
+        }
+
+        @Override
+        Node put(int shift, int key_hash, Object key, Object value, boolean[] added) {
+
+            int bit = 1 << ((key_hash >>> shift) & MASK);
+            int index = Integer.bitCount(bitmap & (bit - 1));
+
+            // Add a new child in an empty position
+            if ((bitmap & bit) == 0) {
+
+                Object[] new_children = new Object[children.length + 1];
+                System.arraycopy(children, 0, new_children, 0, index);
+                new_children[index] = new Entry(key_hash, key, value);
+                System.arraycopy(children, index, new_children, index + 1, children.length - index);
+                added[0] = true;
+
+                return new BitmapNode(bitmap | bit, new_children);
+            }
+
+            Object child = children[index];
+            Object new_child;
+
+            if (child instanceof Entry) {
+
+                Entry entry = (Entry) child;
+                if (entry.hash == key_hash && entry.key.equals(key)) {
+
+                    if (entry.value == value) {
+
+                        return this;
+                    }
+                    new_child = new Entry(key_hash, key, value);
+                } else {
+
+                    new_child = mergeNodes(shift + BITS, entry, entry.hash, new Entry(key_hash, key, value));
+                    added[0] = true;
+                }
+            } else if (child instanceof CollisionNode && ((CollisionNode) child).hash != key_hash) {
+
+                new_child = mergeNodes(shift + BITS, child, hashOf(child), new Entry(key_hash, key, value));
+                added[0] = true;
+            } else {
+
+                new_child = ((Node) child).put(shift + BITS, key_hash, key, value, added);
+                if (new_child == child) {
+
+                    return this;
+                }
+            }
+
+            Object[] new_children = children.clone();
+            new_children[index] = new_child;
+
+            return new BitmapNode(bitmap, new_children);
+        }
+    }
+
+    /**
+     * Node holding the entries of keys with identical hashes.
+     */
+    private static final class CollisionNode extends Node {
+
+        private final int hash;
+        private final Entry[] entries;
+
+        private CollisionNode(int hash, Entry[] entries) {
+
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        @Override
+        Entry find(int shift, int key_hash, Object key) {
+
+            for (Entry entry : entries) {
+
+                if (entry.key.equals(key)) {
+
+                    return entry;
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        Node put(int shift, int key_hash, Object key, Object value, boolean[] added) {
+
+            for (int i = 0; i < entries.length; i++) {
+
+                if (entries[i].key.equals(key)) {
+
+                    if (entries[i].value == value) {
+
+                        return this;
+                    }
+
+                    Entry[] new_entries = entries.clone();
+                    new_entries[i] = new Entry(key_hash, key, value);
+                    return new CollisionNode(hash, new_entries);
+                }
+            }
+
+            Entry[] new_entries = Arrays.copyOf(entries, entries.length + 1);
+            new_entries[entries.length] = new Entry(key_hash, key, value);
+            added[0] = true;
+
+            return new CollisionNode(hash, new_entries);
+        }
+    }
+
+    /**
+     * Depth first iterator over the entries of a trie.
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+
+        private final ArrayDeque<Object[]> child_stack;
+        private final ArrayDeque<Integer> index_stack;
+        private Entry next_entry;
+
+        private EntryIterator(Node root) {
+
+            this.child_stack = new ArrayDeque<Object[]>();
+            this.index_stack = new ArrayDeque<Integer>();
+            if (root != null) {
+
+                pushNode(root);
+            }
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            return next_entry != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next() {
+
+            if (next_entry == null) {
+
+                throw new NoSuchElementException();
+            }
+
+            Entry entry = next_entry;
+            advance();
+
+            return (Map.Entry<K, V>) entry;
+        }
+
+        @Override
+        public void remove() {
+
+            throw new UnsupportedOperationException();
+        }
+
+        private void pushNode(Node node) {
+
+            child_stack.push((node instanceof BitmapNode) ? ((BitmapNode) node).children : ((CollisionNode) node).entries);
+            index_stack.push(0);
+        }
+
+        /**
+         * Moves to the next entry in depth first order.
+         */
+        private void advance() {
+
+            next_entry = null;
+
+            while (!child_stack.isEmpty()) {
+
+                Object[] children = child_stack.peek();
+                int index = index_stack.pop();
+
+                if (index >= children.length) {
+
+                    child_stack.pop();
+                    continue;
+                }
+                index_stack.push(index + 1);
+
+                Object child = children[index];
+                if (child instanceof Entry) {
+
+                    next_entry = (Entry) child;
+                    return;
+                }
+                pushNode((Node) child);
+            }
+        }
+    }
+}
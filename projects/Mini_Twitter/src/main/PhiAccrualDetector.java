@@ -0,0 +1,152 @@
+package main;
+
+/**
+ * Accrual failure detector for a single monitored server, following Hayashibara
+ * et al. Rather than declaring the server failed after a fixed timeout, the
+ * detector keeps a window of the intervals observed between heart beats and
+ * reports a suspicion level phi, which grows with the time since the last heart
+ * beat relative to the usual interval and its variation. A phi of 1 means the
+ * silence would be exceeded about 10% of the time by a healthy server, a phi
+ * of 2 about 1% of the time, and so on, so a threshold on phi trades detection
+ * time for the chance of a false failure. A server whose heart beats are
+ * irregular, for example while it is under load, is given more time before
+ * phi rises.
+ *
+ * The normal distribution is approximated with a logistic function, and an
+ * acceptable pause is added to the mean interval to tolerate short stalls
+ * such as garbage collection on a server that is otherwise regular.
+ */
+public class PhiAccrualDetector {
+
+    private long[] intervals;
+    private int interval_count;
+    private int next_index;
+    private double interval_sum;
+    private double interval_squared_sum;
+    private long last_heart_beat;
+    private long min_std_deviation;
+    private long acceptable_pause;
+
+    /**
+     * Creates a detector that starts from the expected heart beat interval
+     * until intervals are observed.
+     *
+     * @param expected_interval Expected time between heart beats in milliseconds
+     * @param window_size Number of intervals kept
+     * @param min_std_deviation Lower bound on the standard deviation in milliseconds
+     * @param acceptable_pause Time added to the mean interval in milliseconds
+     */
+    public PhiAccrualDetector(long expected_interval, int window_size, long min_std_deviation, long acceptable_pause) {
+
+        this.intervals = new long[window_size];
+        this.interval_count = 0;
+        this.next_index = 0;
+        this.interval_sum = 0;
+        this.interval_squared_sum = 0;
+        this.last_heart_beat = -1;
+        this.min_std_deviation = min_std_deviation;
+        this.acceptable_pause = acceptable_pause;
+
+        // Seed the window so the first heart beats are judged against the expected interval
+        addInterval(expected_interval - min_std_deviation);
+        addInterval(expected_interval + min_std_deviation);
+    }
+
+    /**
+     * Starts the clock for the next heart beat without recording an
+     * interval, for when monitoring starts or a server first replies.
+     *
+     * @param now Start time in milliseconds
+     */
+    public void start(long now) {
+
+        last_heart_beat = now;
+    }
+
+    /**
+     * Records the arrival of a heart beat.
+     *
+     * @param now Arrival time in milliseconds
+     */
+    public void heartBeat(long now) {
+
+        if (last_heart_beat >= 0) {
+
+            addInterval(now - last_heart_beat);
+        }
+        last_heart_beat = now;
+    }
+
+    /**
+     * Returns the suspicion level for the server at the given time.
+     *
+     * @param now Current time in milliseconds
+     * @return Suspicion level phi, or 0 before the first heart beat
+     */
+    public double phi(long now) {
+
+        if (last_heart_beat < 0) {
+
+            return 0.0;
+        }
+
+        double observed_mean = interval_sum / interval_count;
+        double variance = interval_squared_sum / interval_count - observed_mean * observed_mean;
+        double mean = observed_mean + acceptable_pause;
+        double std_deviation = Math.max(Math.sqrt(Math.max(variance, 0.0)), min_std_deviation);
+
+        double y = (now - last_heart_beat - mean) / std_deviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+
+        if (now - last_heart_beat > mean) {
+
+            return -Math.log10(e / (1.0 + e));
+        }
+
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    /**
+     * Returns the mean of the observed intervals.
+     *
+     * @return Mean interval in milliseconds
+     */
+    public double getMeanInterval() {
+
+        return interval_sum / interval_count;
+    }
+
+    /**
+     * Returns the time of the last heart beat.
+     *
+     * @return Time in milliseconds, or -1 before the first heart beat
+     */
+    public long getLastHeartBeat() {
+
+        return last_heart_beat;
+    }
+
+    /**
+     * Adds an interval to the window, replacing the oldest interval once the
+     * window is full.
+     *
+     * @param interval Interval in milliseconds
+     */
+    private void addInterval(long interval) {
+
+        if (interval_count == intervals.length) {
+
+            long oldest = intervals[next_index];
+            interval_sum -= oldest;
+            interval_squared_sum -= (double) oldest * oldest;
+        } else {
+
+            interval_count++;
+        }
+
+        intervals[next_index] = interval;
+        interval_sum += interval;
+        interval_squared_sum += (double) interval * interval;
+        next_index = (next_index + 1) % intervals.length;
+    }
+}
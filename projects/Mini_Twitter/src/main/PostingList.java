@@ -0,0 +1,282 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-key record of the values added to a store, kept in the order they were
+ * added. Each value is tagged with the version number its addition produced,
+ * so the values added since any earlier version can be found without walking
+ * the whole list. A sorted copy of the values is kept up to date as values
+ * are appended, for intersecting the lists of several keys. Concurrency
+ * control is left to the owning store: appends must hold its write lock, and
+ * the sorted view may only be read while holding its read lock.
+ */
+public class PostingList {
+
+    private ArrayList<String> entries;
+    private ArrayList<Integer> versions;
+    private ArrayList<String> sorted_entries;
+
+    public PostingList() {
+
+        this.entries = new ArrayList<String>();
+        this.versions = new ArrayList<Integer>();
+        this.sorted_entries = new ArrayList<String>();
+    }
+
+    /**
+     * Appends a value to the end of the list and inserts it at its place in
+     * the sorted values, found by binary search. Version tags must be
+     * appended in non-decreasing order.
+     *
+     * @param entry Value to be appended
+     * @param version Version number produced by the addition
+     */
+    public void append(String entry, int version) {
+
+        entries.add(entry);
+        versions.add(version);
+
+        int position = Collections.binarySearch(sorted_entries, entry);
+        sorted_entries.add((position < 0) ? -position - 1 : position, entry);
+    }
+
+    /**
+     * Appends several values produced by the same addition. A single value
+     * is inserted by binary search, while larger groups, such as replicated
+     * copies, are sorted on their own and merged into the sorted values in
+     * one pass.
+     *
+     * @param added_entries Values to be appended, in the order they were added
+     * @param version Version number produced by the addition
+     */
+    public void appendAll(List<String> added_entries, int version) {
+
+        if (added_entries.size() == 1) {
+
+            append(added_entries.get(0), version);
+            return;
+        }
+
+        entries.addAll(added_entries);
+        versions.addAll(Collections.nCopies(added_entries.size(), version));
+
+        ArrayList<String> sorted_added = new ArrayList<String>(added_entries);
+        Collections.sort(sorted_added);
+
+        // Merge keeping duplicates, unlike union
+        ArrayList<String> merged = new ArrayList<String>(sorted_entries.size() + sorted_added.size());
+        int i = 0;
+        int j = 0;
+        while (i < sorted_entries.size() || j < sorted_added.size()) {
+
+            if (j >= sorted_added.size() || (i < sorted_entries.size() &&
+                    sorted_entries.get(i).compareTo(sorted_added.get(j)) <= 0)) {
+
+                merged.add(sorted_entries.get(i++));
+            } else {
+
+                merged.add(sorted_added.get(j++));
+            }
+        }
+        sorted_entries = merged;
+    }
+
+    /**
+     * Returns the values added after the given version, in the order they
+     * were added.
+     *
+     * @param version Version number already known to the caller
+     * @return List of values with a version tag greater than the given version
+     */
+    public List<String> getEntriesSince(int version) {
+
+        // Binary search for the first entry tagged with a later version
+        int low = 0;
+        int high = versions.size();
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+            if (versions.get(mid) <= version) {
+
+                low = mid + 1;
+            } else {
+
+                high = mid;
+            }
+        }
+
+        return new ArrayList<String>(entries.subList(low, entries.size()));
+    }
+
+    /**
+     * Returns the number of values in the list.
+     *
+     * @return Number of values
+     */
+    public int size() {
+
+        return entries.size();
+    }
+
+    /**
+     * Returns the values in sorted order. The list is a read-only view of
+     * the sorted values kept by the posting list, so it changes with the
+     * next append and must not be used after the store's read lock is
+     * released.
+     *
+     * @return Sorted list of values
+     */
+    public List<String> getSortedEntries() {
+
+        return Collections.unmodifiableList(sorted_entries);
+    }
+
+    /**
+     * Intersects two sorted lists. Each value of the smaller list is
+     * located in the larger list with a galloping search that starts from
+     * the previous match, so the cost grows with the smaller array rather
+     * than the sum of both.
+     *
+     * @param first Sorted list of values
+     * @param second Sorted list of values
+     * @return Sorted list of values found in both lists
+     */
+    public static List<String> intersect(List<String> first, List<String> second) {
+
+        List<String> small = (first.size() <= second.size()) ? first : second;
+        List<String> large = (first.size() <= second.size()) ? second : first;
+
+        ArrayList<String> intersection = new ArrayList<String>();
+        int position = 0;
+        for (String value : small) {
+
+            position = gallop(large, position, value);
+            if (position >= large.size()) {
+
+                break;
+            }
+            if (large.get(position).equals(value)) {
+
+                intersection.add(value);
+                position++;
+            }
+        }
+
+        return intersection;
+    }
+
+    /**
+     * Removes the values of one sorted list from another, galloping through
+     * the excluded values.
+     *
+     * @param values Sorted list of values
+     * @param excluded Sorted list of values to be removed
+     * @return Sorted list of values not found in the excluded list
+     */
+    public static List<String> subtract(List<String> values, List<String> excluded) {
+
+        ArrayList<String> difference = new ArrayList<String>();
+        int position = 0;
+        for (String value : values) {
+
+            position = gallop(excluded, position, value);
+            if (position >= excluded.size() || !excluded.get(position).equals(value)) {
+
+                difference.add(value);
+            }
+        }
+
+        return difference;
+    }
+
+    /**
+     * Merges two sorted lists, dropping duplicates.
+     *
+     * @param first Sorted list of values
+     * @param second Sorted list of values
+     * @return Sorted list of values found in either list
+     */
+    public static List<String> union(List<String> first, List<String> second) {
+
+        ArrayList<String> merged = new ArrayList<String>(first.size() + second.size());
+        int i = 0;
+        int j = 0;
+        while (i < first.size() || j < second.size()) {
+
+            int comparison;
+            if (i >= first.size()) {
+
+                comparison = 1;
+            } else if (j >= second.size()) {
+
+                comparison = -1;
+            } else {
+
+                comparison = first.get(i).compareTo(second.get(j));
+            }
+
+            if (comparison < 0) {
+
+                merged.add(first.get(i++));
+            } else if (comparison > 0) {
+
+                merged.add(second.get(j++));
+            } else {
+
+                merged.add(first.get(i++));
+                j++;
+            }
+        }
+
+        return merged;
+    }
+
+    /**
+     * Finds the first position at or after the start position holding a
+     * value not less than the target, doubling the step until the target is
+     * passed and then binary searching the last step.
+     *
+     * @param values Sorted list to be searched
+     * @param start Position from which to search
+     * @param target Value to be located
+     * @return First position holding a value not less than the target
+     */
+    private static int gallop(List<String> values, int start, String target) {
+
+        if (start >= values.size() || values.get(start).compareTo(target) >= 0) {
+
+            return start;
+        }
+
+        // Gallop until the value at the bound is not less than the target
+        int low = start;
+        int step = 1;
+        int high = start + step;
+        while (high < values.size() && values.get(high).compareTo(target) < 0) {
+
+            low = high;
+            step <<= 1;
+            high = start + step;
+        }
+        high = Math.min(high, values.size());
+
+        // Binary search between the last two bounds
+        low++;
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+            if (values.get(mid).compareTo(target) < 0) {
+
+                low = mid + 1;
+            } else {
+
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,161 @@
+package main;
+
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+
+/**
+ * Coalesces concurrent cache validations for identical queries on a front end
+ * server. The first worker to validate a query leads the validation while
+ * every other worker searching the same query waits for, and shares, the
+ * leader's response.
+ */
+public class QueryCoalescer {
+
+    private static QueryCoalescer singleton_query_coalescer = null;
+    private HashMap<String, InFlightQuery> in_flight_queries;
+
+    final static Logger logger = Logger.getLogger(QueryCoalescer.class);
+
+    /**
+     * Creates a coalescer separate from the singleton, with no validations
+     * in flight.
+     */
+    public QueryCoalescer() {
+
+        this.in_flight_queries = new HashMap<String, InFlightQuery>();
+    }
+
+    /**
+     * Provides access to the singleton coalescer for use across multiple
+     * front end threads.
+     *
+     * @return An instance of the singleton query coalescer
+     */
+    public synchronized static QueryCoalescer getInstance() {
+
+        if (singleton_query_coalescer == null) {
+
+            singleton_query_coalescer = new QueryCoalescer();
+        }
+
+        return singleton_query_coalescer;
+    }
+
+    /**
+     * Joins the validation in flight for the given query, or starts a new one
+     * if none is in flight. An in-flight validation is only joined if the
+     * timestamp it was sent with is at least as recent as the caller's
+     * timestamp, so the shared response never violates the caller's
+     * consistency requirement. Otherwise the caller leads a private
+     * validation that is not shared.
+     *
+     * @param query Query to be validated
+     * @param timestamp Front end timestamp required by the caller
+     * @return InFlightQuery led by the caller if isLeader() is true
+     */
+    public synchronized InFlightQuery join(String query, VectorTimestamp timestamp) {
+
+        InFlightQuery in_flight_query = in_flight_queries.get(query);
+
+        if (in_flight_query != null && timestamp.precedes(in_flight_query.timestamp, null)) {
+
+            logger.debug("Joining in-flight validation for query: " + query);
+            return in_flight_query;
+        }
+
+        InFlightQuery leader_query = new InFlightQuery(query, timestamp.copy());
+        if (in_flight_query == null) {
+
+            in_flight_queries.put(query, leader_query);
+        }
+
+        return leader_query;
+    }
+
+    /**
+     * Publishes the leader's validation response to every waiting worker and
+     * removes the validation from the in-flight map.
+     *
+     * @param in_flight_query Validation led by the caller
+     * @param response Validation response, or null if validation failed
+     */
+    public void complete(InFlightQuery in_flight_query, HTTPObject response) {
+
+        synchronized (this) {
+
+            if (in_flight_queries.get(in_flight_query.query) == in_flight_query) {
+
+                in_flight_queries.remove(in_flight_query.query);
+            }
+        }
+
+        in_flight_query.publish(response);
+    }
+
+    /**
+     * A single cache validation shared by a leader and any number of
+     * followers.
+     */
+    public static class InFlightQuery {
+
+        private String query;
+        private VectorTimestamp timestamp;
+        private Thread leader;
+        private boolean completed;
+        private HTTPObject response;
+
+        private InFlightQuery(String query, VectorTimestamp timestamp) {
+
+            this.query = query;
+            this.timestamp = timestamp;
+            this.leader = Thread.currentThread();
+            this.completed = false;
+            this.response = null;
+        }
+
+        /**
+         * Indicates whether the calling worker must run the validation.
+         *
+         * @return Boolean indicating leadership
+         */
+        public boolean isLeader() {
+
+            return leader == Thread.currentThread();
+        }
+
+        /**
+         * Stores the response and wakes any waiting followers.
+         *
+         * @param response Validation response
+         */
+        private synchronized void publish(HTTPObject response) {
+
+            this.response = response;
+            this.completed = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the leader to publish the validation response.
+         *
+         * @return Shared validation response, or null if validation failed
+         */
+        public synchronized HTTPObject awaitResponse() {
+
+            while (!completed) {
+
+                try {
+
+                    wait();
+                } catch (InterruptedException e) {
+
+                    logger.error(Constants.Messages.INTERRUPTED);
+                    return null;
+                }
+            }
+
+            return response;
+        }
+    }
+}
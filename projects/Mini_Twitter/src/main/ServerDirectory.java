@@ -1,21 +1,42 @@
 package main;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * A server mapping class that stores a map of server IDs to their locations.
+ * The directory carries a version which the directory master advances with
+ * every change. Each change is described by a delta naming the servers
+ * added, failed and recovered along with the version it applies to, so the
+ * master can broadcast the change rather than the whole directory. A copy
+ * of the directory that misses a delta notices the gap in versions and
+ * must fetch the whole directory again. Versions only count changes within
+ * an epoch, a random ID chosen when a directory is created, which deltas
+ * and complete copies carry along with their version. A restarted master
+ * starts a new epoch at version 0, so a copy that sees a new epoch takes
+ * the master's complete copy whatever its version rather than ignoring it
+ * as old.
+ *
+ * The directory is held as an immutable view published through a volatile
+ * reference. Reads use the current view without locking or copying, while
+ * updates, which are rare, build a new view and swap it in under the
+ * directory's monitor. Each view carries a consistent-hash ring of the live
+ * data stores placing the shards of the data store tier, and a new view's
+ * ring is built from the previous one by adding and removing only the data
+ * stores whose liveness changed.
  *
  * Created by luke on 10/29/14.
  */
 public class ServerDirectory {
 
     private static ServerDirectory singleton_server_directory = null;
-    private HashMap<String, String> location_map;
-    private MultiReaderLock update_lock;
-
+    private volatile DirectoryView view;
+    private String epoch;
 
     public synchronized static ServerDirectory getInstance(HashMap<String, String> mapping, boolean dev) {
 
@@ -31,14 +52,26 @@ public class ServerDirectory {
 
     private ServerDirectory(HashMap<String, String> mappings) {
 
+        this.epoch = UUID.randomUUID().toString();
         if (mappings != null) {
 
-            this.location_map = new HashMap<String, String>(mappings);
+            this.view = new DirectoryView(mappings, 0);
         } else {
 
-            this.location_map = new HashMap<String, String>();
+            this.view = new DirectoryView(new HashMap<String, String>(), 0);
         }
-        this.update_lock = new MultiReaderLock(-1);
+    }
+
+    /**
+     * Returns the current view of the directory. The view never changes, so
+     * a caller needing several reads to agree should read them all from one
+     * view.
+     *
+     * @return Current directory view
+     */
+    public DirectoryView getView() {
+
+        return view;
     }
 
     /**
@@ -46,45 +79,169 @@ public class ServerDirectory {
      *
      * @param json_map_object Map of server IDs to locations
      */
-    public void updateDirectoryMapping(JSONObject json_map_object) {
+    public synchronized void updateDirectoryMapping(JSONObject json_map_object) {
+
+        HashMap<String, String> location_map = new HashMap<String, String>(view.getLocations());
+        location_map.putAll(json_map_object);
+        view = new DirectoryView(location_map, view.getVersion(), view.getRing());
+    }
+
+    /**
+     * Updates the directory map with the values of a complete copy of the
+     * directory master, unless this directory is already at a later version.
+     *
+     * @param json_map_object Map of server IDs to locations
+     * @param map_version Version of the directory master copied
+     */
+    public synchronized void updateDirectoryMapping(JSONObject json_map_object, long map_version) {
+
+        updateDirectoryMapping(json_map_object, map_version, epoch);
+    }
+
+    /**
+     * Updates the directory map with the values of a complete copy of the
+     * directory master. A copy from this directory's epoch is applied unless
+     * this directory is already at a later version, while a copy from
+     * another epoch is always applied and its epoch taken on. Servers the
+     * copy does not name are kept, as a restarted master only learns of
+     * servers again as they register.
+     *
+     * @param json_map_object Map of server IDs to locations
+     * @param map_version Version of the directory master copied
+     * @param map_epoch Epoch of the directory master copied, or null for this directory's epoch
+     */
+    public synchronized void updateDirectoryMapping(JSONObject json_map_object, long map_version, String map_epoch) {
+
+        boolean new_epoch = map_epoch != null && !map_epoch.equals(epoch);
+
+        if (new_epoch || map_version >= view.getVersion()) {
+
+            HashMap<String, String> location_map = new HashMap<String, String>(view.getLocations());
+            location_map.putAll(json_map_object);
+            view = new DirectoryView(location_map, map_version, view.getRing());
+            epoch = new_epoch ? map_epoch : epoch;
+        }
+    }
+
+    /**
+     * Applies a delta broadcast by the directory master. A delta for a
+     * version already reached is ignored. A delta from another epoch, or
+     * one that does not follow on from the current version, is not applied,
+     * and the caller must fetch the whole directory instead.
+     *
+     * @param delta Delta built by the directory master
+     * @return Boolean indicating the directory is at or beyond the delta's version
+     */
+    public synchronized boolean applyDelta(JSONObject delta) {
+
+        if (!(delta.get(Constants.Discovery.VERSION) instanceof Number) ||
+                !(delta.get(Constants.Discovery.BASE) instanceof Number) ||
+                !epoch.equals(delta.get(Constants.Discovery.EPOCH))) {
+
+            return false;
+        }
+
+        long delta_version = ((Number) delta.get(Constants.Discovery.VERSION)).longValue();
+        long base_version = ((Number) delta.get(Constants.Discovery.BASE)).longValue();
+
+        if (delta_version <= view.getVersion()) {
 
-        update_lock.lockReadWrite();
+            return true;
+        }
+
+        if (base_version != view.getVersion()) {
+
+            return false;
+        }
+
+        HashMap<String, String> location_map = new HashMap<String, String>(view.getLocations());
+        putLocations(location_map, delta.get(Constants.Discovery.ADDED));
+        putLocations(location_map, delta.get(Constants.Discovery.RECOVERED));
+        if (delta.get(Constants.Discovery.FAILED) instanceof List) {
+
+            for (Object failed_id : (List) delta.get(Constants.Discovery.FAILED)) {
 
-        this.location_map.putAll(json_map_object);
+                location_map.put((String) failed_id, null);
+            }
+        }
+        view = new DirectoryView(location_map, delta_version, view.getRing());
+
+        return true;
+    }
+
+    /**
+     * Returns the version of the directory.
+     *
+     * @return Version of the directory
+     */
+    public long getVersion() {
 
-        update_lock.unlockReadWrite();
+        return view.getVersion();
     }
 
     /**
-     * Returns a copy of the location map.
+     * Returns the epoch in which the directory's version counts changes.
      *
-     * @return Copy of the location map
+     * @return Epoch ID
      */
-    public HashMap<String, String> getServerCollection() {
+    public synchronized String getEpoch() {
+
+        return epoch;
+    }
 
-        update_lock.lockRead();
+    /**
+     * Sets the epoch in which the directory's version counts changes, for
+     * directories whose changes are replicated from a log, where every
+     * replica must count versions in the same epoch. Must be called before
+     * the directory's first change.
+     *
+     * @param epoch Epoch ID
+     */
+    public synchronized void setEpoch(String epoch) {
 
-        HashMap<String, String> map_copy = new HashMap<String, String>(this.location_map);
+        this.epoch = epoch;
+    }
 
-        update_lock.unlockRead();
+    /**
+     * Returns the location map of the current view. The map cannot be
+     * modified and does not change with later updates.
+     *
+     * @return Map of server IDs to locations
+     */
+    public Map<String, String> getServerCollection() {
 
-        return map_copy;
+        return view.getLocations();
     }
 
     /**
-     * Puts or updates a given server ID with the given location.
+     * Puts or updates a given server ID with the given location, advancing
+     * the version if the directory changed.
      *
      * @param id String ID of the server to be added
      * @param location Location of the server to be added
+     * @return Delta describing the change, or null if nothing changed
      */
-    public void addServer(String id, String location) {
+    public synchronized JSONObject addServer(String id, String location) {
+
+        Map<String, String> current_locations = view.getLocations();
+        boolean known = current_locations.containsKey(id);
+        String previous_location = current_locations.get(id);
+
+        if (known && (location == null || location.equals(previous_location))) {
 
-        update_lock.lockReadWrite();
+            return null;
+        }
+
+        HashMap<String, String> location_map = new HashMap<String, String>(current_locations);
+        location_map.put(id, location);
 
-        this.location_map.put(id, location);
-        //update liveness_map
+        JSONObject locations = new JSONObject();
+        locations.put(id, location);
+        JSONObject delta = publish(location_map);
+        delta.put((known && previous_location == null) ? Constants.Discovery.RECOVERED : Constants.Discovery.ADDED,
+                locations);
 
-        update_lock.unlockReadWrite();
+        return delta;
     }
 
     /**
@@ -95,34 +252,44 @@ public class ServerDirectory {
      */
     public String getServerLocation(String id) {
 
-        String location = null;
-
-        if (id == null) {
-
-            return location;
-        }
-
-        update_lock.lockRead();
-
-        location = this.location_map.get(id);
+        return view.getLocation(id);
+    }
 
-        update_lock.unlockRead();
+    /**
+     * Returns the live data stores owning the shard of a hashtag, found on
+     * the ring of the current view by binary search.
+     *
+     * @param hashtag Hashtag to be placed
+     * @return List of server IDs
+     */
+    public List<String> ownersOf(String hashtag) {
 
-        return location;
+        return view.getOwners(hashtag);
     }
 
     /**
-     * Sets the location to null for the server with the given server ID.
+     * Sets the location to null for the server with the given server ID,
+     * advancing the version if the server was not already failed.
      *
      * @param server_id String ID of the server to be updated
+     * @return Delta describing the change, or null if nothing changed
      */
-    public void setServerFailed(String server_id) {
+    public synchronized JSONObject setServerFailed(String server_id) {
+
+        if (view.getLocation(server_id) == null) {
 
-        update_lock.lockReadWrite();
+            return null;
+        }
 
+        HashMap<String, String> location_map = new HashMap<String, String>(view.getLocations());
         location_map.put(server_id, null);
 
-        update_lock.unlockReadWrite();
+        JSONArray failed_ids = new JSONArray();
+        failed_ids.add(server_id);
+        JSONObject delta = publish(location_map);
+        delta.put(Constants.Discovery.FAILED, failed_ids);
+
+        return delta;
     }
 
     /**
@@ -132,12 +299,63 @@ public class ServerDirectory {
      */
     public JSONObject toJSONObject() {
 
-        update_lock.lockRead();
+        return new JSONObject(view.getLocations());
+    }
+
+    /**
+     * Returns a complete copy of the directory along with its version and
+     * epoch, for servers that are missing the directory or have missed a
+     * delta.
+     *
+     * @return JSONObject holding the location map, its version and its epoch
+     */
+    public synchronized JSONObject toVersionedJSONObject() {
+
+        DirectoryView current_view = view;
+
+        JSONObject versioned_copy = new JSONObject();
+        versioned_copy.put(Constants.Discovery.SERVERS, new JSONObject(current_view.getLocations()));
+        versioned_copy.put(Constants.Discovery.VERSION, current_view.getVersion());
+        versioned_copy.put(Constants.Discovery.EPOCH, epoch);
+
+        return versioned_copy;
+    }
+
+    /**
+     * Publishes a view of the given locations at the next version and
+     * starts a delta leading to it. Must be called while holding the
+     * directory's monitor.
+     *
+     * @param location_map Map of server IDs to locations after the change
+     * @return Delta holding the new version, the version it follows and the epoch
+     */
+    private JSONObject publish(HashMap<String, String> location_map) {
+
+        long base_version = view.getVersion();
+        view = new DirectoryView(location_map, base_version + 1, view.getRing());
+
+        JSONObject delta = new JSONObject();
+        delta.put(Constants.Discovery.BASE, base_version);
+        delta.put(Constants.Discovery.VERSION, base_version + 1);
+        delta.put(Constants.Discovery.EPOCH, epoch);
+
+        return delta;
+    }
+
+    /**
+     * Puts each server ID and location of a delta's map into a location map.
+     *
+     * @param location_map Map to be updated
+     * @param locations Map of server IDs to locations, or null
+     */
+    private static void putLocations(HashMap<String, String> location_map, Object locations) {
 
-        JSONObject json_copy = new JSONObject(this.location_map);
+        if (locations instanceof Map) {
 
-        update_lock.unlockRead();
+            for (Object entry : ((Map) locations).entrySet()) {
 
-        return json_copy;
+                location_map.put((String) ((Map.Entry) entry).getKey(), (String) ((Map.Entry) entry).getValue());
+            }
+        }
     }
 }
@@ -37,6 +37,12 @@ public abstract class ServerWorkerThread implements Runnable {
         this.input_socket = input_socket;
         this.server_id = server_id;
         this.development = development;
+
+        // Under gossip membership the directory is fed by the membership protocol rather than the discovery server
+        if (server_directory == null && GossipMembership.getInstance() != null) {
+
+            server_directory = GossipMembership.getInstance().getServerDirectory();
+        }
     }
 
     /**
@@ -156,24 +162,110 @@ public abstract class ServerWorkerThread implements Runnable {
 
     /**
      * Retrieves a server directory update from the request object and
-     * updates the local server directory with the retrieved directory.
+     * updates the local server directory with it. An update is either a
+     * complete copy of the directory master or a delta of it. A delta that
+     * does not follow on from the local directory's version means a delta
+     * was missed, so the whole directory is fetched from the discovery
+     * server instead.
      */
     protected void updateServerDirectory() {
 
-        JSONObject replacement_server_map = (JSONObject) request_body.get(Constants.Tokens.SERVERS);
+        if (request_body.get(Constants.Tokens.DELTA) instanceof JSONObject) {
+
+            JSONObject delta = (JSONObject) request_body.get(Constants.Tokens.DELTA);
+            if (server_directory == null || !server_directory.applyDelta(delta)) {
+
+                logger.debug("Server directory version gap, fetching directory master");
+                fetchServerDirectory();
+            }
+            return;
+        }
+
+        replaceServerDirectory(request_body);
+    }
+
+    /**
+     * Hands a gossip message from another member to the membership protocol
+     * and prepares its reply.
+     */
+    protected void processGossip() {
+
+        GossipMembership gossip_membership = GossipMembership.getInstance();
+
+        if (gossip_membership == null || request_body == null) {
+
+            setBadRequestResponse();
+        } else {
+
+            response_code = Constants.Codes.OK;
+            response_body = gossip_membership.handleMessage(request_body);
+        }
+
+        response = SystemUtility.buildResponse(response_code, response_body);
+    }
+
+    /**
+     * Updates the local server directory with a complete copy of the
+     * directory master.
+     *
+     * @param directory_copy JSON object holding the location map, its version and its epoch
+     */
+    private void replaceServerDirectory(JSONObject directory_copy) {
+
+        JSONObject replacement_server_map = (JSONObject) directory_copy.get(Constants.Tokens.SERVERS);
 
         if (replacement_server_map == null) {
 
             return;
         }
 
+        Object map_version = directory_copy.get(Constants.Discovery.VERSION);
+
         if (server_directory == null) {
 
             server_directory = ServerDirectory.getInstance(new HashMap<String, String>(replacement_server_map),
                     this.development);
+        }
+
+        if (map_version instanceof Number) {
+
+            server_directory.updateDirectoryMapping(replacement_server_map, ((Number) map_version).longValue(),
+                    (String) directory_copy.get(Constants.Discovery.EPOCH));
         } else {
 
             server_directory.updateDirectoryMapping(replacement_server_map);
         }
     }
+
+    /**
+     * Requests a complete copy of the directory master from the discovery
+     * service and updates the local server directory with it. Each member
+     * of a replicated discovery service holds a copy of the directory, so
+     * the members are tried in turn until one answers.
+     */
+    private void fetchServerDirectory() {
+
+        HTTPObject request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.GET,
+                Constants.Tokens.DISCOVER, null, null);
+
+        for (String discovery_location : SystemUtility.getDiscoveryLocations(this.development).values()) {
+
+            try {
+
+                HTTPObject directory_response = SystemUtility.sendRequest(request.toString(),
+                        new Socket(discovery_location.split(":")[0], Integer.decode(discovery_location.split(":")[1])));
+
+                if (directory_response != null && directory_response.getStatusCode().equals(Constants.Codes.OK)) {
+
+                    replaceServerDirectory(directory_response.getBody());
+                    return;
+                }
+            } catch (IOException e) {
+
+                logger.error("Unable to initialize server socket for discovery server: " + discovery_location);
+            }
+        }
+
+        logger.error("Unable to retrieve server directory from discovery server");
+    }
 }
@@ -0,0 +1,279 @@
+package main;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
+
+/**
+ * Moves shards onto this data store when a membership change makes it an
+ * owner of shards it did not own before. Only the gained shards are copied,
+ * each from the servers that owned it under the previous view, so a server
+ * joining or failing moves the shards next to its virtual nodes on the ring
+ * and nothing else. Shards this server stops owning are left in place: they
+ * are no longer routed here and cost nothing but memory. A shard that could
+ * not be copied is not counted as owned, so it is requested again on the
+ * next directory update.
+ */
+public class ShardRebalancer {
+
+    private static ShardRebalancer singleton_shard_rebalancer = null;
+    private String server_id;
+    private DataStore data_store;
+    private SnapshotMarkers snapshot_markers;
+    private DirectoryView last_view;
+    private Set<Integer> owned_shards;
+
+    final static Logger logger = Logger.getLogger(ShardRebalancer.class);
+
+    private ShardRebalancer(String server_id) {
+
+        this.server_id = server_id;
+        this.data_store = DataStore.getInstance();
+        this.snapshot_markers = SnapshotMarkers.getInstance();
+        this.last_view = null;
+        this.owned_shards = null;
+    }
+
+    /**
+     * Provides access to the singleton rebalancer for use across multiple
+     * data store threads.
+     *
+     * @param server_id String ID of this data store server
+     * @return An instance of the singleton rebalancer
+     */
+    public synchronized static ShardRebalancer getInstance(String server_id) {
+
+        if (singleton_shard_rebalancer == null) {
+
+            singleton_shard_rebalancer = new ShardRebalancer(server_id);
+        }
+
+        return singleton_shard_rebalancer;
+    }
+
+    /**
+     * Copies the shards this server gained since the last call. On the first
+     * call every owned shard is gained.
+     *
+     * @param server_directory Server directory holding the current view
+     * @param timestamp Vector timestamp of this data store
+     */
+    public synchronized void rebalance(ServerDirectory server_directory, VectorTimestamp timestamp) {
+
+        DirectoryView view = server_directory.getView();
+        if (view == last_view) {
+
+            return;
+        }
+
+        Map<Integer, List<String>> transfers = getTransfers(last_view, view, this.server_id, owned_shards);
+        HashSet<Integer> failed_shards = new HashSet<Integer>();
+
+        for (int attempt = 0; attempt < Constants.Sharding.REPLICATION; attempt++) {
+
+            // Group the shards still to be copied by the server to copy them from
+            HashMap<String, HashSet<Integer>> shards_by_source = new HashMap<String, HashSet<Integer>>();
+            for (Map.Entry<Integer, List<String>> entry : transfers.entrySet()) {
+
+                if (attempt < entry.getValue().size() && (attempt == 0 || failed_shards.contains(entry.getKey()))) {
+
+                    String source_id = entry.getValue().get(attempt);
+                    if (!shards_by_source.containsKey(source_id)) {
+
+                        shards_by_source.put(source_id, new HashSet<Integer>());
+                    }
+                    shards_by_source.get(source_id).add(entry.getKey());
+                }
+            }
+
+            for (Map.Entry<String, HashSet<Integer>> entry : shards_by_source.entrySet()) {
+
+                if (requestShardCopy(server_directory, timestamp, entry.getKey(), entry.getValue())) {
+
+                    failed_shards.removeAll(entry.getValue());
+                } else {
+
+                    failed_shards.addAll(entry.getValue());
+                }
+            }
+        }
+
+        if (!failed_shards.isEmpty()) {
+
+            logger.debug("Unable to copy shards: " + failed_shards);
+        }
+
+        owned_shards = new HashSet<Integer>(view.getOwnedShards(this.server_id));
+        owned_shards.removeAll(failed_shards);
+        last_view = view;
+    }
+
+    /**
+     * Finds the shards a server gains going from one view to the next, and
+     * the servers to copy each of them from: first the owners under the old
+     * view that are still live, then the rest of the shard's ranking. A shard
+     * with no other live server has nothing to be copied and is left out.
+     *
+     * @param old_view Previous view, or null if there is none
+     * @param new_view Current view
+     * @param server_id String ID of the gaining server
+     * @param owned_shards Shards held under the previous view, or null for none
+     * @return Map of each gained shard to its ordered list of sources
+     */
+    public static Map<Integer, List<String>> getTransfers(DirectoryView old_view, DirectoryView new_view,
+                                                          String server_id, Set<Integer> owned_shards) {
+
+        TreeMap<Integer, List<String>> transfers = new TreeMap<Integer, List<String>>();
+        for (Integer shard : new_view.getOwnedShards(server_id)) {
+
+            if (owned_shards != null && owned_shards.contains(shard)) {
+
+                continue;
+            }
+
+            LinkedHashSet<String> source_ids = new LinkedHashSet<String>();
+            if (old_view != null) {
+
+                source_ids.addAll(old_view.getShardOwners(shard));
+            }
+            source_ids.addAll(new_view.getShardRanking(shard));
+            source_ids.retainAll(new_view.getLiveDataStoreIDs());
+            source_ids.remove(server_id);
+
+            if (!source_ids.isEmpty()) {
+
+                transfers.put(shard, new ArrayList<String>(source_ids));
+            }
+        }
+
+        return transfers;
+    }
+
+    /**
+     * Requests a copy of the given shards from another server and merges it
+     * into this data store. The stamps the other server holds for those
+     * shards are taken on as well, since the copy holds every write they
+     * count.
+     *
+     * @param server_directory Server directory holding the source's location
+     * @param timestamp Vector timestamp of this data store
+     * @param source_id String ID of the server to copy from
+     * @param shards Shards to be copied
+     * @return Boolean indicating the copy was merged
+     */
+    private boolean requestShardCopy(ServerDirectory server_directory, VectorTimestamp timestamp,
+                                     String source_id, Set<Integer> shards) {
+
+        String source_loc = server_directory.getServerLocation(source_id);
+        if (source_loc == null) {
+
+            return false;
+        }
+
+        JSONObject shard_request_body = new JSONObject();
+        shard_request_body.put(Constants.Tokens.SERVERID, this.server_id);
+        JSONArray shards_array = new JSONArray();
+        shards_array.addAll(shards);
+        shard_request_body.put(Constants.Tokens.SHARDS, shards_array);
+        String request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.GET,
+                Constants.Tokens.REPLICATE, null, shard_request_body).toString();
+
+        try {
+
+            Socket replication_socket = new Socket(source_loc.split(":")[0], Integer.decode(source_loc.split(":")[1]));
+            HTTPObject replication_response = SystemUtility.sendRequest(request, replication_socket);
+
+            if (replication_response == null || !replication_response.getStatusCode().equals(Constants.Codes.OK)) {
+
+                return false;
+            }
+
+            JSONObject replication_json = replication_response.getBody();
+            if (!isValidShardCopy(replication_json)) {
+
+                logger.error("Malformed shard copy from " + source_id);
+                return false;
+            }
+            JSONObject data_store_json = (JSONObject) replication_json.get(Constants.Tokens.REPLICATE);
+            Object origins = data_store_json.get(Constants.Tokens.ORIGINS);
+
+            snapshot_markers.beginWrite();
+            try {
+
+                timestamp.incrementTimestamp(this.server_id);
+                this.data_store.mergeReplicationData((JSONObject) data_store_json.get(Constants.Tokens.DATASTORE),
+                        (JSONObject) data_store_json.get(Constants.Tokens.VERSIONMAP),
+                        (origins instanceof Map) ? (Map) origins : null);
+                timestamp.updateTimestamp(new VectorTimestamp(new HashMap<String, String>(
+                        (JSONObject) replication_json.get(Constants.Tokens.TIMESTAMP))).getShardTimestampMap(shards));
+            } finally {
+
+                snapshot_markers.endWrite();
+            }
+
+            logger.debug("Copied shards " + shards + " from " + source_id);
+            return true;
+        } catch (IOException e) {
+
+            logger.error("Unable to open shard copy request socket to: " + source_loc);
+            return false;
+        }
+    }
+
+    /**
+     * Indicates whether a shard copy can be merged: it holds the copied
+     * tweets of each hashtag with their timestamps, the version number of
+     * each hashtag, and the source's timestamp. The copy is checked in full
+     * before it is merged, since a merge that fails part way would hold up
+     * the recording of snapshot cuts.
+     *
+     * @param replication_json Body of the shard copy response
+     * @return Boolean indicating the copy is well formed
+     */
+    private static boolean isValidShardCopy(JSONObject replication_json) {
+
+        if (replication_json == null || !(replication_json.get(Constants.Tokens.REPLICATE) instanceof JSONObject) ||
+                !VectorTimestamp.isWellFormed(replication_json.get(Constants.Tokens.TIMESTAMP))) {
+
+            return false;
+        }
+
+        JSONObject data_store_json = (JSONObject) replication_json.get(Constants.Tokens.REPLICATE);
+        Object data_map = data_store_json.get(Constants.Tokens.DATASTORE);
+        Object versions = data_store_json.get(Constants.Tokens.VERSIONMAP);
+        if (!(data_map instanceof JSONObject) || !(versions instanceof JSONObject)) {
+
+            return false;
+        }
+
+        for (Object version_number : ((JSONObject) versions).values()) {
+
+            if (!(version_number instanceof String)) {
+
+                return false;
+            }
+        }
+
+        for (Object tweets : ((JSONObject) data_map).values()) {
+
+            if (!(tweets instanceof JSONObject)) {
+
+                return false;
+            }
+
+            for (Object tweet_timestamp : ((JSONObject) tweets).values()) {
+
+                if (!(tweet_timestamp instanceof JSONObject) || !VectorTimestamp.isWellFormed(tweet_timestamp)) {
+
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+}
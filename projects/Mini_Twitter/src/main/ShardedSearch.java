@@ -0,0 +1,235 @@
+package main;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
+
+/**
+ * Searches a query whose conjunctions no single data store can answer
+ * together, which happens when the data store tier is sharded and the
+ * hashtags the conjunctions require belong to shards without a common
+ * owner. The conjunctions are grouped by an owner of a shard of a hashtag
+ * each requires, and the groups are searched on their owners in parallel.
+ * Each group's results are cached under the group's own query, along with
+ * the version number and the owner that issued it, so each owner is sent
+ * the version it issued for its group and answers 304 or a delta if the
+ * group has not been replaced. The version number of the merged results
+ * lists the owner and version number of each group, so a query whose groups
+ * are all unchanged is answered with 304 like any other.
+ */
+public class ShardedSearch {
+
+    private HashtagQuery hashtag_query;
+    private VectorTimestamp timestamp;
+    private DataStoreRouter router;
+    private CacheStore cache;
+
+    final static Logger logger = Logger.getLogger(ShardedSearch.class);
+
+    /**
+     * @param hashtag_query Parsed query
+     * @param timestamp Timestamp the data stores must reach before answering
+     * @param router Router choosing the owner of each conjunction
+     * @param cache Cache holding the results of the query and of its groups
+     */
+    public ShardedSearch(HashtagQuery hashtag_query, VectorTimestamp timestamp,
+                         DataStoreRouter router, CacheStore cache) {
+
+        this.hashtag_query = hashtag_query;
+        this.timestamp = timestamp;
+        this.router = router;
+        this.cache = cache;
+    }
+
+    /**
+     * Groups the conjunctions of the query by owner and searches the groups.
+     *
+     * @param directory_view Current view of the directory
+     * @return Response holding the merged results, or the first failed response
+     * @throws IOException If no live data store server owns a conjunction
+     */
+    public HTTPObject send(DirectoryView directory_view) throws IOException {
+
+        return send(directory_view, groupByOwner(directory_view));
+    }
+
+    /**
+     * Groups the conjunctions of the query by the owner the router chooses
+     * for the first hashtag each requires.
+     *
+     * @param directory_view Current view of the directory
+     * @return Map of each owner's ID to the query of its group
+     * @throws IOException If no live data store server owns a conjunction
+     */
+    public TreeMap<String, String> groupByOwner(DirectoryView directory_view) throws IOException {
+
+        TreeMap<String, String> group_queries = new TreeMap<String, String>();
+        for (HashtagQuery.Conjunction conjunction : hashtag_query.getConjunctions()) {
+
+            String owner_id = router.selectDataStore(null, timestamp,
+                    directory_view.getOwners(conjunction.getIncluded().get(0)));
+            if (owner_id == null) {
+
+                throw new IOException("No live data store server owns conjunction: " + conjunction);
+            }
+
+            String group_query = group_queries.get(owner_id);
+            group_queries.put(owner_id, (group_query == null) ? conjunction.toString() : group_query +
+                    HashtagQuery.SEPARATOR + HashtagQuery.OR + HashtagQuery.SEPARATOR + conjunction);
+        }
+
+        return group_queries;
+    }
+
+    /**
+     * Searches each group on its owner in parallel, updates the cached
+     * results of each group that changed, and merges the cached results of
+     * every group.
+     *
+     * @param directory_view Current view of the directory
+     * @param group_queries Map of each owner's ID to the query of its group
+     * @return Response holding the merged results, 304 if they are unchanged,
+     * or the first failed response, which is null if an owner could not be reached
+     */
+    public HTTPObject send(DirectoryView directory_view, Map<String, String> group_queries) {
+
+        ArrayList<GroupSearch> searches = new ArrayList<GroupSearch>();
+        for (Map.Entry<String, String> entry : group_queries.entrySet()) {
+
+            GroupSearch search = new GroupSearch(entry.getKey(), entry.getValue(),
+                    directory_view.getLocation(entry.getKey()));
+            searches.add(search);
+            search.start();
+        }
+
+        for (GroupSearch search : searches) {
+
+            try {
+
+                search.join();
+            } catch (InterruptedException e) {
+
+                logger.error(Constants.Messages.INTERRUPTED);
+                return null;
+            }
+        }
+
+        JSONObject merged_results = new JSONObject();
+        StringBuilder version_builder = new StringBuilder();
+
+        for (GroupSearch search : searches) {
+
+            HTTPObject search_response = search.response;
+            if (search_response == null) {
+
+                return null;
+            } else if (search_response.getStatusCode().equals(Constants.Codes.OK)) {
+
+                JSONObject search_update = search_response.getBody();
+                JSONObject results = (search_update.get(Constants.Tokens.TWEETS) instanceof Map) ?
+                        (JSONObject) search_update.get(Constants.Tokens.TWEETS) : new JSONObject();
+
+                // Merge a delta in place, otherwise replace the cached results of the group
+                if (Boolean.TRUE.equals(search_update.get(Constants.Tokens.DELTA))) {
+
+                    cache.mergeCache(search.group_query, results,
+                            (String) search_update.get(Constants.Tokens.VERSIONNUM), search.owner_id);
+                } else {
+
+                    cache.writeCache(search.group_query, results,
+                            (String) search_update.get(Constants.Tokens.VERSIONNUM), search.owner_id);
+                }
+            } else if (!search_response.getStatusCode().equals(Constants.Codes.NOTMODIFIED)) {
+
+                return search_response;
+            }
+
+            merged_results.putAll(cache.readCacheResults(search.group_query));
+            if (version_builder.length() > 0) {
+
+                version_builder.append(",");
+            }
+            version_builder.append(search.owner_id).append(":").append(cache.getVersionNumber(search.group_query));
+        }
+
+        JSONObject search_body = new JSONObject();
+        String version_number = version_builder.toString();
+
+        if (version_number.equals(cache.getVersionNumber(hashtag_query.toString()))) {
+
+            search_body.put(Constants.Tokens.STATUS, Constants.Messages.NOTMODIFIED);
+
+            return SystemUtility.buildResponse(Constants.Codes.NOTMODIFIED, search_body);
+        }
+
+        search_body.put(Constants.Tokens.QUERY, hashtag_query.toString());
+        search_body.put(Constants.Tokens.TWEETS, merged_results);
+        search_body.put(Constants.Tokens.VERSIONNUM, version_number);
+
+        return SystemUtility.buildResponse(Constants.Codes.OK, search_body);
+    }
+
+    /**
+     * Thread searching a single group on its owner, sending the version
+     * number of the group's cached results.
+     */
+    private class GroupSearch extends Thread {
+
+        private String owner_id;
+        private String group_query;
+        private String location;
+        private HTTPObject response;
+
+        public GroupSearch(String owner_id, String group_query, String location) {
+
+            this.owner_id = owner_id;
+            this.group_query = group_query;
+            this.location = location;
+            this.response = null;
+        }
+
+        @Override
+        public void run() {
+
+            if (location == null) {
+
+                logger.error("No location for data store server: " + owner_id);
+                return;
+            }
+
+            HashMap<String, String> query_params = new HashMap<String, String>();
+            query_params.put(Constants.Tokens.QUERY, group_query);
+            query_params.put(Constants.Tokens.VERSIONNUM, cache.getVersionNumber(group_query));
+
+            // Identify the data store that issued the cached version so it can answer 304 or a delta
+            String source_id = cache.getVersionSource(group_query);
+            if (source_id != null) {
+
+                query_params.put(Constants.Tokens.SOURCE, source_id);
+            }
+
+            JSONObject search_body = new JSONObject();
+            search_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
+            String request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.GET,
+                    Constants.Tokens.TWEETS, query_params, search_body).toString();
+
+            logger.debug("Searching " + group_query + " on " + owner_id);
+            long start_time = router.beginRequest(owner_id);
+            try {
+
+                response = SystemUtility.sendRequest(request,
+                        new Socket(location.split(":")[0], Integer.decode(location.split(":")[1])));
+            } catch (IOException e) {
+
+                logger.error("Unable to initialize server socket for location: " + location);
+            } finally {
+
+                // A refused connection is recorded as a failed request
+                router.endRequest(owner_id, start_time, response);
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Reads a snapshot file written by SnapshotFileWriter one row group at a
+ * time. Each row group is mapped into memory on its own, and its columns are
+ * decoded as they are asked for, so a scan over a single column reads only
+ * that column of each group.
+ *
+ * Run on its own, the reader prints a summary of a snapshot file:
+ * <pre>
+ * java main.SnapshotFileReader snapshots/snapshot-&lt;id&gt;.mts
+ * </pre>
+ */
+public class SnapshotFileReader implements Closeable {
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long position;
+    private long footer_offset;
+    private ArrayList<String> server_ids;
+    private String token;
+    private long row_count;
+
+    public SnapshotFileReader(File snapshot_file) throws IOException {
+
+        this.file = new RandomAccessFile(snapshot_file, "r");
+        this.channel = file.getChannel();
+
+        if (channel.size() < SnapshotFileWriter.HEADERSIZE) {
+
+            close();
+            throw new IOException("Snapshot file is too short");
+        }
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SnapshotFileWriter.HEADERSIZE);
+        byte[] magic = new byte[SnapshotFileWriter.MAGIC.length];
+        header.get(magic);
+        short version = header.getShort();
+        this.footer_offset = header.getLong();
+
+        if (!Arrays.equals(magic, SnapshotFileWriter.MAGIC) || version != SnapshotFileWriter.VERSION ||
+                footer_offset < SnapshotFileWriter.HEADERSIZE || footer_offset > channel.size()) {
+
+            close();
+            throw new IOException("Not a snapshot file");
+        }
+
+        MappedByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, footer_offset,
+                channel.size() - footer_offset);
+        int server_count = footer.getInt();
+        this.server_ids = new ArrayList<String>(server_count);
+        for (int i = 0; i < server_count; i++) {
+
+            server_ids.add(readString(footer));
+        }
+        this.token = readString(footer);
+        this.row_count = footer.getLong();
+
+        this.position = SnapshotFileWriter.HEADERSIZE;
+    }
+
+    /**
+     * Returns the token for the cut of the snapshot, which can be passed to
+     * a later snapshot request to retrieve only newer tweets.
+     *
+     * @return Snapshot token
+     */
+    public String getToken() {
+
+        return token;
+    }
+
+    /**
+     * Returns the total number of rows in the file.
+     *
+     * @return Number of rows
+     */
+    public long getRowCount() {
+
+        return row_count;
+    }
+
+    /**
+     * Returns the IDs of the servers referred to in the file.
+     *
+     * @return List of server IDs in index order
+     */
+    public List<String> getServerIDs() {
+
+        return Collections.unmodifiableList(server_ids);
+    }
+
+    /**
+     * Maps the next row group of the file.
+     *
+     * @return Next row group, or null once every row group has been read
+     * @throws IOException
+     */
+    public RowGroup nextRowGroup() throws IOException {
+
+        if (position >= footer_offset) {
+
+            return null;
+        }
+
+        MappedByteBuffer group_header = channel.map(FileChannel.MapMode.READ_ONLY, position, 8);
+        int rows = group_header.getInt();
+        int byte_length = group_header.getInt();
+
+        if (rows < 0 || byte_length < 0 || position + 8 + byte_length > footer_offset) {
+
+            throw new IOException("Corrupt row group at offset " + position);
+        }
+
+        RowGroup row_group = new RowGroup(channel.map(FileChannel.MapMode.READ_ONLY, position + 8, byte_length), rows);
+        position += 8 + byte_length;
+
+        return row_group;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        channel.close();
+        file.close();
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+
+        byte[] string_bytes = new byte[buffer.getInt()];
+        buffer.get(string_bytes);
+
+        return new String(string_bytes, SnapshotFileWriter.UTF8);
+    }
+
+    /**
+     * Rows of a single row group. The column offsets are located when the
+     * group is mapped, and the values of a column are decoded by row.
+     */
+    public class RowGroup {
+
+        private MappedByteBuffer group;
+        private int rows;
+        private int[] text_offsets;
+        private int[] hashtag_counts;
+        private int[] hashtag_offsets;
+        private int[] hashtag_length_offsets;
+        private int[] timestamp_counts;
+        private int[] timestamp_offsets;
+
+        private RowGroup(MappedByteBuffer group, int rows) {
+
+            this.group = group;
+            this.rows = rows;
+
+            // Text column follows the ids and origins
+            int offset = rows * (8 + 4);
+            this.text_offsets = new int[rows + 1];
+            int text_offset = offset + rows * 4;
+            for (int i = 0; i < rows; i++) {
+
+                text_offsets[i] = text_offset;
+                text_offset += group.getInt(offset + i * 4);
+            }
+            text_offsets[rows] = text_offset;
+
+            // Hashtag counts, then the hashtag lengths, then the hashtag bytes
+            offset = text_offset;
+            this.hashtag_counts = new int[rows];
+            this.hashtag_length_offsets = new int[rows];
+            int total_hashtags = 0;
+            for (int i = 0; i < rows; i++) {
+
+                hashtag_counts[i] = group.getInt(offset + i * 4);
+                hashtag_length_offsets[i] = offset + rows * 4 + total_hashtags * 4;
+                total_hashtags += hashtag_counts[i];
+            }
+            this.hashtag_offsets = new int[rows];
+            int hashtag_offset = offset + rows * 4 + total_hashtags * 4;
+            for (int i = 0; i < rows; i++) {
+
+                hashtag_offsets[i] = hashtag_offset;
+                for (int j = 0; j < hashtag_counts[i]; j++) {
+
+                    hashtag_offset += group.getInt(hashtag_length_offsets[i] + j * 4);
+                }
+            }
+
+            // Timestamp entry counts, then the entries
+            offset = hashtag_offset;
+            this.timestamp_counts = new int[rows];
+            this.timestamp_offsets = new int[rows];
+            int timestamp_offset = offset + rows * 4;
+            for (int i = 0; i < rows; i++) {
+
+                timestamp_counts[i] = group.getInt(offset + i * 4);
+                timestamp_offsets[i] = timestamp_offset;
+                timestamp_offset += timestamp_counts[i] * 8;
+            }
+        }
+
+        public int getRowCount() {
+
+            return rows;
+        }
+
+        public long getID(int row) {
+
+            return group.getLong(row * 8);
+        }
+
+        /**
+         * Returns the ID of the server the tweet of a row was posted to.
+         *
+         * @param row Row index within the group
+         * @return Server ID, or null if unknown
+         */
+        public String getOrigin(int row) {
+
+            int server_index = group.getInt(rows * 8 + row * 4);
+
+            return (server_index < 0) ? null : server_ids.get(server_index);
+        }
+
+        public String getText(int row) {
+
+            return readBytes(text_offsets[row], text_offsets[row + 1] - text_offsets[row]);
+        }
+
+        public List<String> getHashtags(int row) {
+
+            ArrayList<String> hashtags = new ArrayList<String>(hashtag_counts[row]);
+            int offset = hashtag_offsets[row];
+            for (int j = 0; j < hashtag_counts[row]; j++) {
+
+                int length = group.getInt(hashtag_length_offsets[row] + j * 4);
+                hashtags.add(readBytes(offset, length));
+                offset += length;
+            }
+
+            return hashtags;
+        }
+
+        /**
+         * Returns the timestamp of the tweet of a row.
+         *
+         * @param row Row index within the group
+         * @return Map of server IDs to stamp values
+         */
+        public HashMap<String, String> getTimestamp(int row) {
+
+            HashMap<String, String> timestamp_map = new HashMap<String, String>();
+            for (int j = 0; j < timestamp_counts[row]; j++) {
+
+                int entry_offset = timestamp_offsets[row] + j * 8;
+                timestamp_map.put(server_ids.get(group.getInt(entry_offset)),
+                        Integer.toString(group.getInt(entry_offset + 4)));
+            }
+
+            return timestamp_map;
+        }
+
+        private String readBytes(int offset, int length) {
+
+            byte[] string_bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+
+                string_bytes[i] = group.get(offset + i);
+            }
+
+            return new String(string_bytes, SnapshotFileWriter.UTF8);
+        }
+    }
+
+    /**
+     * Prints the token, the number of rows and the number of tweets posted to
+     * each server for each snapshot file given.
+     *
+     * @param args Paths of snapshot files
+     */
+    public static void main(String[] args) {
+
+        if (args.length == 0) {
+
+            System.out.println("Usage: SnapshotFileReader <snapshot file>...");
+            return;
+        }
+
+        for (String path : args) {
+
+            try {
+
+                SnapshotFileReader reader = new SnapshotFileReader(new File(path));
+                TreeMap<String, Integer> origin_counts = new TreeMap<String, Integer>();
+
+                RowGroup row_group;
+                while ((row_group = reader.nextRowGroup()) != null) {
+
+                    for (int i = 0; i < row_group.getRowCount(); i++) {
+
+                        String origin_id = row_group.getOrigin(i);
+                        origin_id = (origin_id == null) ? "unknown" : origin_id;
+                        Integer count = origin_counts.get(origin_id);
+                        origin_counts.put(origin_id, (count == null) ? 1 : count + 1);
+                    }
+                }
+                reader.close();
+
+                System.out.println(path);
+                System.out.println("  token: " + reader.getToken());
+                System.out.println("  rows:  " + reader.getRowCount());
+                for (Map.Entry<String, Integer> entry : origin_counts.entrySet()) {
+
+                    System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+                }
+            } catch (IOException e) {
+
+                System.out.println(path + ": " + e.getMessage());
+            }
+        }
+    }
+}
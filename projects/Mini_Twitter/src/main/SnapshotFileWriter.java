@@ -0,0 +1,342 @@
+package main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Writes a snapshot to a local file in a columnar layout for offline
+ * analysis. Rows are gathered into row groups, and each row group is written
+ * column by column: tweet IDs, origin servers, tweet text, hashtags and
+ * timestamps. The file is written sequentially through a window of the file
+ * mapped into memory, which is moved along the file as it fills.
+ *
+ * Layout, with all numbers big endian:
+ * <pre>
+ * header:    magic "MTSNAP", short version, long footer offset
+ * row group: int row count, int byte length, then the columns
+ *            ids       long per row
+ *            origins   int server index per row, -1 if unknown
+ *            text      int byte length per row, then the UTF-8 bytes
+ *            hashtags  int count per row, int byte length per hashtag,
+ *                      then the UTF-8 bytes
+ *            timestamp int entry count per row, then an int server index
+ *                      and int stamp value per entry
+ * footer:    int server count, each server ID as an int byte length and
+ *            UTF-8 bytes, the snapshot token in the same form, long row count
+ * </pre>
+ * Server IDs are stored once in the footer and referred to by index. Tweet
+ * IDs are unique within a file: a row whose hashed ID is already taken is
+ * given the next free ID instead.
+ */
+public class SnapshotFileWriter implements Closeable {
+
+    public static final byte[] MAGIC = "MTSNAP".getBytes(Charset.forName("US-ASCII"));
+    public static final short VERSION = 1;
+    public static final int HEADERSIZE = MAGIC.length + 2 + 8;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long window_start;
+    private LinkedHashMap<String, Integer> server_indexes;
+    private long row_count;
+    private HashSet<Long> used_ids;
+
+    private ArrayList<Long> group_ids;
+    private ArrayList<Integer> group_origins;
+    private ArrayList<byte[]> group_texts;
+    private ArrayList<byte[][]> group_hashtags;
+    private ArrayList<int[]> group_timestamps;
+
+    public SnapshotFileWriter(File export_file) throws IOException {
+
+        this.file = new RandomAccessFile(export_file, "rw");
+        this.file.setLength(0);
+        this.channel = file.getChannel();
+        this.server_indexes = new LinkedHashMap<String, Integer>();
+        this.row_count = 0;
+        this.used_ids = new HashSet<Long>();
+        this.group_ids = new ArrayList<Long>();
+        this.group_origins = new ArrayList<Integer>();
+        this.group_texts = new ArrayList<byte[]>();
+        this.group_hashtags = new ArrayList<byte[][]>();
+        this.group_timestamps = new ArrayList<int[]>();
+
+        mapWindow(0, Constants.Snapshot.MAPWINDOW);
+
+        // The footer offset is filled in when the file is closed
+        window.put(MAGIC);
+        window.putShort(VERSION);
+        window.putLong(0);
+    }
+
+    /**
+     * Returns a stable 64 bit ID for a tweet, computed as the FNV-1a hash of
+     * its UTF-8 bytes.
+     *
+     * @param tweet Tweet text
+     * @return Tweet ID
+     */
+    public static long getTweetID(String tweet) {
+
+        long id = 0xcbf29ce484222325L;
+        for (byte tweet_byte : tweet.getBytes(UTF8)) {
+
+            id ^= (tweet_byte & 0xff);
+            id *= 0x100000001b3L;
+        }
+
+        return id;
+    }
+
+    /**
+     * Adds a row to the file, writing the current row group once it is full.
+     * The row's ID is the tweet's hashed ID unless an earlier row already
+     * holds it, in which case the next free ID is taken.
+     *
+     * @param tweet Tweet text
+     * @param origin_id ID of the server the tweet was posted to, or null if unknown
+     * @param hashtags Hashtags of the tweet
+     * @param timestamp Map of server IDs to stamp values for the tweet
+     * @throws IOException
+     */
+    public void addRow(String tweet, String origin_id, Collection<String> hashtags,
+                       Map<String, String> timestamp) throws IOException {
+
+        long id = getTweetID(tweet);
+        while (!used_ids.add(id)) {
+
+            id++;
+        }
+        group_ids.add(id);
+        group_origins.add((origin_id == null) ? -1 : getServerIndex(origin_id));
+        group_texts.add(tweet.getBytes(UTF8));
+
+        byte[][] hashtag_bytes = new byte[hashtags.size()][];
+        int hashtag_index = 0;
+        for (String hashtag : hashtags) {
+
+            hashtag_bytes[hashtag_index++] = hashtag.getBytes(UTF8);
+        }
+        group_hashtags.add(hashtag_bytes);
+
+        int[] timestamp_entries = new int[timestamp.size() * 2];
+        int entry_index = 0;
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(timestamp).entrySet()) {
+
+            timestamp_entries[entry_index++] = getServerIndex(entry.getKey());
+            timestamp_entries[entry_index++] = Integer.decode(entry.getValue());
+        }
+        group_timestamps.add(timestamp_entries);
+
+        row_count++;
+        if (group_ids.size() >= Constants.Snapshot.ROWGROUP) {
+
+            writeRowGroup();
+        }
+    }
+
+    /**
+     * Returns the number of rows added so far.
+     *
+     * @return Number of rows
+     */
+    public long getRowCount() {
+
+        return row_count;
+    }
+
+    /**
+     * Writes the last row group and the footer, then truncates the file to
+     * the written length and closes it.
+     *
+     * @param token Token for the snapshot's cut
+     * @throws IOException
+     */
+    public void finish(String token) throws IOException {
+
+        writeRowGroup();
+
+        byte[] token_bytes = token.getBytes(UTF8);
+        int footer_size = 4 + 4 + token_bytes.length + 8;
+        ArrayList<byte[]> server_bytes = new ArrayList<byte[]>();
+        for (String server_id : server_indexes.keySet()) {
+
+            byte[] id_bytes = server_id.getBytes(UTF8);
+            server_bytes.add(id_bytes);
+            footer_size += 4 + id_bytes.length;
+        }
+
+        long footer_offset = ensureCapacity(footer_size);
+        window.putInt(server_bytes.size());
+        for (byte[] id_bytes : server_bytes) {
+
+            window.putInt(id_bytes.length);
+            window.put(id_bytes);
+        }
+        window.putInt(token_bytes.length);
+        window.put(token_bytes);
+        window.putLong(row_count);
+        long end = window_start + window.position();
+
+        mapWindow(0, HEADERSIZE);
+        window.putLong(MAGIC.length + 2, footer_offset);
+        window.force();
+
+        channel.truncate(end);
+        close();
+    }
+
+    /**
+     * Closes the file without writing any rows still buffered.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        window = null;
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * Writes the buffered rows as a row group, one column after another.
+     *
+     * @throws IOException
+     */
+    private void writeRowGroup() throws IOException {
+
+        int rows = group_ids.size();
+        if (rows == 0) {
+
+            return;
+        }
+
+        // Size the group before writing so it never crosses a window boundary
+        int byte_length = rows * (8 + 4 + 4 + 4 + 4);
+        for (int i = 0; i < rows; i++) {
+
+            byte_length += group_texts.get(i).length;
+            for (byte[] hashtag : group_hashtags.get(i)) {
+
+                byte_length += 4 + hashtag.length;
+            }
+            byte_length += group_timestamps.get(i).length * 4;
+        }
+
+        ensureCapacity(8 + byte_length);
+        window.putInt(rows);
+        window.putInt(byte_length);
+
+        for (Long id : group_ids) {
+
+            window.putLong(id);
+        }
+        for (Integer origin : group_origins) {
+
+            window.putInt(origin);
+        }
+        for (byte[] text : group_texts) {
+
+            window.putInt(text.length);
+        }
+        for (byte[] text : group_texts) {
+
+            window.put(text);
+        }
+        for (byte[][] hashtags : group_hashtags) {
+
+            window.putInt(hashtags.length);
+        }
+        for (byte[][] hashtags : group_hashtags) {
+
+            for (byte[] hashtag : hashtags) {
+
+                window.putInt(hashtag.length);
+            }
+        }
+        for (byte[][] hashtags : group_hashtags) {
+
+            for (byte[] hashtag : hashtags) {
+
+                window.put(hashtag);
+            }
+        }
+        for (int[] timestamp_entries : group_timestamps) {
+
+            window.putInt(timestamp_entries.length / 2);
+        }
+        for (int[] timestamp_entries : group_timestamps) {
+
+            for (int value : timestamp_entries) {
+
+                window.putInt(value);
+            }
+        }
+
+        group_ids.clear();
+        group_origins.clear();
+        group_texts.clear();
+        group_hashtags.clear();
+        group_timestamps.clear();
+    }
+
+    /**
+     * Moves the mapped window forward if fewer than the given number of
+     * bytes remain in it.
+     *
+     * @param size Number of bytes about to be written
+     * @return File offset at which the bytes will be written
+     * @throws IOException
+     */
+    private long ensureCapacity(int size) throws IOException {
+
+        long position = window_start + window.position();
+        if (window.remaining() < size) {
+
+            mapWindow(position, Math.max(size, Constants.Snapshot.MAPWINDOW));
+        }
+
+        return position;
+    }
+
+    /**
+     * Maps a region of the file for writing, growing the file if needed.
+     *
+     * @param start File offset of the region
+     * @param size Size of the region in bytes
+     * @throws IOException
+     */
+    private void mapWindow(long start, int size) throws IOException {
+
+        window = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        window_start = start;
+    }
+
+    /**
+     * Returns the index of a server ID, assigning the next index to a server
+     * ID not yet seen.
+     *
+     * @param server_id Server ID
+     * @return Index of the server ID
+     */
+    private int getServerIndex(String server_id) {
+
+        Integer index = server_indexes.get(server_id);
+        if (index == null) {
+
+            index = server_indexes.size();
+            server_indexes.put(server_id, index);
+        }
+
+        return index;
+    }
+}
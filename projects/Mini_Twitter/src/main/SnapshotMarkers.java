@@ -0,0 +1,166 @@
+package main;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+
+import java.util.*;
+
+/**
+ * Records the local cut of a data store server for each distributed snapshot
+ * it takes part in, following the marker rule of the Chandy-Lamport
+ * protocol. A server records its cut when the snapshot request reaches it or
+ * when a replication request carrying the snapshot's marker reaches it,
+ * whichever comes first. Markers are carried on every replication request
+ * sent after a cut is recorded, so a write sent after the sender's cut is
+ * never applied before the receiver's cut. Since replication requests are
+ * not delivered in order, each request carries the markers of every recent
+ * snapshot rather than a single marker message per channel.
+ *
+ * Writes hold the apply lock for reading while they advance the timestamp
+ * and update the data store, and a cut is recorded while holding it for
+ * writing, so every write below a recorded cut is already in the store.
+ */
+public class SnapshotMarkers {
+
+    private static SnapshotMarkers singleton_snapshot_markers = null;
+    private LinkedHashMap<String, VectorTimestamp> recorded_cuts;
+    private MultiReaderLock apply_lock;
+
+    final static Logger logger = Logger.getLogger(SnapshotMarkers.class);
+
+    private SnapshotMarkers() {
+
+        this.recorded_cuts = new LinkedHashMap<String, VectorTimestamp>();
+        this.apply_lock = new MultiReaderLock(-1);
+    }
+
+    /**
+     * Provides access to the singleton marker record for use across multiple
+     * data store threads.
+     *
+     * @return An instance of the singleton marker record
+     */
+    public synchronized static SnapshotMarkers getInstance() {
+
+        if (singleton_snapshot_markers == null) {
+
+            singleton_snapshot_markers = new SnapshotMarkers();
+        }
+
+        return singleton_snapshot_markers;
+    }
+
+    /**
+     * Marks the start of a write. Writes may run concurrently with each
+     * other but not with the recording of a cut.
+     */
+    public void beginWrite() {
+
+        apply_lock.lockRead();
+    }
+
+    /**
+     * Marks the end of a write started with beginWrite.
+     */
+    public void endWrite() {
+
+        apply_lock.unlockRead();
+    }
+
+    /**
+     * Returns the cut recorded for a snapshot, recording the given timestamp
+     * as the cut if none has been recorded yet.
+     *
+     * @param snapshot_id ID of the snapshot
+     * @param timestamp Current timestamp of the data store server
+     * @return Copy of the timestamp at the recorded cut
+     */
+    public VectorTimestamp record(String snapshot_id, VectorTimestamp timestamp) {
+
+        apply_lock.lockReadWrite();
+
+        VectorTimestamp cut_timestamp;
+        synchronized (this) {
+
+            cut_timestamp = recordCut(snapshot_id, timestamp);
+        }
+
+        apply_lock.unlockReadWrite();
+
+        return cut_timestamp.copy();
+    }
+
+    /**
+     * Records a cut for each marker carried by a replication request that
+     * has not been recorded yet. This method must be called before the
+     * request's writes are applied.
+     *
+     * @param markers Snapshot IDs carried by the request, or null
+     * @param timestamp Current timestamp of the data store server
+     */
+    public void recordAll(Object markers, VectorTimestamp timestamp) {
+
+        if (!(markers instanceof List) || ((List) markers).isEmpty()) {
+
+            return;
+        }
+
+        apply_lock.lockReadWrite();
+
+        synchronized (this) {
+
+            for (Object marker : (List) markers) {
+
+                if (marker instanceof String) {
+
+                    recordCut((String) marker, timestamp);
+                }
+            }
+        }
+
+        apply_lock.unlockReadWrite();
+    }
+
+    /**
+     * Returns the IDs of the snapshots with a recorded cut, to be carried on
+     * outgoing replication requests.
+     *
+     * @return Array of snapshot IDs
+     */
+    public synchronized JSONArray getMarkers() {
+
+        JSONArray markers = new JSONArray();
+        markers.addAll(recorded_cuts.keySet());
+
+        return markers;
+    }
+
+    /**
+     * Records the cut for a snapshot if none exists, dropping the oldest cut
+     * once the record is full. Must be called while holding this object's
+     * monitor.
+     *
+     * @param snapshot_id ID of the snapshot
+     * @param timestamp Current timestamp of the data store server
+     * @return Timestamp at the recorded cut
+     */
+    private VectorTimestamp recordCut(String snapshot_id, VectorTimestamp timestamp) {
+
+        VectorTimestamp cut_timestamp = recorded_cuts.get(snapshot_id);
+        if (cut_timestamp == null) {
+
+            cut_timestamp = timestamp.copy();
+            recorded_cuts.put(snapshot_id, cut_timestamp);
+            logger.debug("Recorded cut " + cut_timestamp + " for snapshot " + snapshot_id);
+
+            if (recorded_cuts.size() > Constants.Snapshot.MARKERS) {
+
+                Iterator<String> oldest = recorded_cuts.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+
+        return cut_timestamp;
+    }
+}
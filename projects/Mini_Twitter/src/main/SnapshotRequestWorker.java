@@ -4,6 +4,7 @@ import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Thread class used to request a snapshot from a data store server.
@@ -16,19 +17,28 @@ public class SnapshotRequestWorker extends Thread {
     private String request;
     private HTTPObject response;
     private String server_id;
+    private BlockingQueue<SnapshotRequestWorker> completion_queue;
 
     final static Logger logger = Logger.getLogger(ReplicationBroadcastWorker.class);
 
     public SnapshotRequestWorker(String server_location, String request, String server_id) {
 
+        this(server_location, request, server_id, null);
+    }
+
+    public SnapshotRequestWorker(String server_location, String request, String server_id,
+                                 BlockingQueue<SnapshotRequestWorker> completion_queue) {
+
         this.server_location = server_location;
         this.request = request;
         this.response = null;
         this.server_id = server_id;
+        this.completion_queue = completion_queue;
     }
 
     /**
-     * Sends a HTTP request to retrieve a snapshot from the destination server.
+     * Sends a HTTP request to retrieve a snapshot from the destination server
+     * and adds the worker to the completion queue if one was given.
      */
     @Override
     public void run() {
@@ -42,6 +52,11 @@ public class SnapshotRequestWorker extends Thread {
 
             logger.error("Unable to initialize server socket for location: " + server_location);
         }
+
+        if (completion_queue != null) {
+
+            completion_queue.add(this);
+        }
     }
 
     /**
@@ -54,6 +69,20 @@ public class SnapshotRequestWorker extends Thread {
         return response;
     }
 
+    /**
+     * Returns the response to the sent request if one exists and releases
+     * the worker's reference to it.
+     *
+     * @return HTTPObject response
+     */
+    public synchronized HTTPObject takeResponse() {
+
+        HTTPObject taken_response = response;
+        response = null;
+
+        return taken_response;
+    }
+
     /**
      * Returns the destination server ID.
      *
@@ -9,8 +9,7 @@ import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Scanner;
+import java.util.*;
 
 /**
  * A utility class for providing various functionality to all classes. This
@@ -35,11 +34,14 @@ public class SystemUtility {
     public static HTTPObject buildResponse(String response_code, JSONObject response_body) {
 
         HashMap<String, String> header_map = new HashMap<String, String>();
+        HTTPObject response = new HTTPObject(Constants.Tokens.HTTPVERSION + " " + response_code,
+                                header_map, response_body);
+
+        // Encode the body once for both the content length and the transmitted response
         header_map.put(Constants.Tokens.CONTENTLENGTH,
-                String.valueOf(response_body.toJSONString().getBytes().length));
+                String.valueOf(response.getEncodedBody().getBytes().length));
 
-        return new HTTPObject(Constants.Tokens.HTTPVERSION + " " + response_code,
-                                header_map, response_body);
+        return response;
     }
 
     /**
@@ -63,9 +65,10 @@ public class SystemUtility {
                 path, parameters, Constants.Tokens.HTTPVERSION);
 
         HashMap<String, String> header_map = new HashMap<String, String>();
-        header_map.put(Constants.Tokens.CONTENTLENGTH, String.valueOf(request_body.toJSONString().length()));
+        HTTPObject request = new HTTPObject(http_request_line, header_map, request_body);
+        header_map.put(Constants.Tokens.CONTENTLENGTH, String.valueOf(request.getEncodedBody().length()));
 
-        return new HTTPObject(http_request_line, header_map, request_body);
+        return request;
     }
 
     /**
@@ -131,35 +134,7 @@ public class SystemUtility {
      */
     public static String[] getServerConfig(String target_layer, String instance, boolean development) {
 
-        if (server_loc_map == null) {
-
-            // Read and parse the JSON configuration map from file
-            String json_string = "";
-            try {
-
-                File f = new File("./server_config.json");
-                Scanner fscanner = new Scanner(new FileReader(f));
-                while (fscanner.hasNext()) {
-
-                    json_string += fscanner.nextLine();
-                }
-
-            } catch (FileNotFoundException e) {
-
-                logger.error("Unable to find server configuration file");
-                System.exit(1);
-            }
-
-            JSONObject json_map = (JSONObject) JSONValue.parse(json_string);
-            if (development) {
-
-                json_map = (JSONObject) json_map.get(Constants.Config.DEV);
-            } else {
-
-                json_map = (JSONObject) json_map.get(Constants.Config.PRODUCTION);
-            }
-            server_loc_map = ((JSONObject) json_map.get(Constants.Config.LOCS));
-        }
+        loadServerConfig(development);
 
         JSONArray location;
         String ip;
@@ -178,7 +153,12 @@ public class SystemUtility {
             port = (String) location.get(1);
         } else if (target_layer.equals(Constants.Config.DISCOVERY)) {
 
-            location = (JSONArray) server_loc_map.get(Constants.Config.DISCOVERY);
+            // A replica of a replicated discovery service has a location of its own
+            location = (JSONArray) server_loc_map.get(Constants.Config.DISCOVERY + instance);
+            if (instance == null || location == null) {
+
+                location = (JSONArray) server_loc_map.get(Constants.Config.DISCOVERY);
+            }
             ip = (String) location.get(0);
             port = (String) location.get(1);
         } else {
@@ -190,6 +170,104 @@ public class SystemUtility {
         return new String[] {ip, port};
     }
 
+    /**
+     * Returns the configured location of every data store and front end
+     * server, for use as gossip seeds.
+     *
+     * @param development Environment flag for choosing ports
+     * @return Map of server IDs to locations
+     */
+    public static HashMap<String, String> getConfiguredLocations(boolean development) {
+
+        loadServerConfig(development);
+
+        HashMap<String, String> locations = new HashMap<String, String>();
+        for (Object entry : server_loc_map.entrySet()) {
+
+            String configured_id = (String) ((Map.Entry) entry).getKey();
+            JSONArray location = (JSONArray) ((Map.Entry) entry).getValue();
+            if (configured_id.startsWith(Constants.Config.DATASTORE) ||
+                    configured_id.startsWith(Constants.Config.FRONTEND)) {
+
+                locations.put(configured_id, location.get(0) + ":" + location.get(1));
+            }
+        }
+
+        return locations;
+    }
+
+    /**
+     * Returns the configured location of every replica of the discovery
+     * service, in order of replica ID. A discovery service that is not
+     * replicated has the single discovery server as its only member.
+     *
+     * @param development Environment flag for choosing ports
+     * @return Map of replica IDs to locations
+     */
+    public static LinkedHashMap<String, String> getDiscoveryLocations(boolean development) {
+
+        loadServerConfig(development);
+
+        TreeMap<String, String> replica_locations = new TreeMap<String, String>();
+        for (Object entry : server_loc_map.entrySet()) {
+
+            String configured_id = (String) ((Map.Entry) entry).getKey();
+            JSONArray location = (JSONArray) ((Map.Entry) entry).getValue();
+            if (configured_id.matches(Constants.Config.DISCOVERY + "[0-9]+")) {
+
+                replica_locations.put(configured_id, location.get(0) + ":" + location.get(1));
+            }
+        }
+
+        if (replica_locations.isEmpty()) {
+
+            String[] discovery_location = getServerConfig(Constants.Config.DISCOVERY, null, development);
+            replica_locations.put(Constants.Config.DISCOVERY, discovery_location[0] + ":" + discovery_location[1]);
+        }
+
+        return new LinkedHashMap<String, String>(replica_locations);
+    }
+
+    /**
+     * Reads and parses the server configuration file once.
+     *
+     * @param development Environment flag for choosing ports
+     */
+    private synchronized static void loadServerConfig(boolean development) {
+
+        if (server_loc_map != null) {
+
+            return;
+        }
+
+        // Read and parse the JSON configuration map from file
+        String json_string = "";
+        try {
+
+            File f = new File("./server_config.json");
+            Scanner fscanner = new Scanner(new FileReader(f));
+            while (fscanner.hasNext()) {
+
+                json_string += fscanner.nextLine();
+            }
+
+        } catch (FileNotFoundException e) {
+
+            logger.error("Unable to find server configuration file");
+            System.exit(1);
+        }
+
+        JSONObject json_map = (JSONObject) JSONValue.parse(json_string);
+        if (development) {
+
+            json_map = (JSONObject) json_map.get(Constants.Config.DEV);
+        } else {
+
+            json_map = (JSONObject) json_map.get(Constants.Config.PRODUCTION);
+        }
+        server_loc_map = ((JSONObject) json_map.get(Constants.Config.LOCS));
+    }
+
     /**
      * Sends a server registration request to the discovery server.
      *
@@ -219,6 +297,43 @@ public class SystemUtility {
         }
     }
 
+    /**
+     * Sends a server registration request to the first reachable member of
+     * the discovery service. A member that is not the leader of a
+     * replicated service passes the registration on to the leader.
+     *
+     * @param server_id ID of server to be registered
+     * @param server_location Location of server to be registered
+     * @param layer System layer of the server to be registered
+     * @param discovery_locations Locations of the discovery service members
+     */
+    public static void registerWithDiscoveryGroup(String server_id, String[] server_location, String layer,
+                                                  Collection<String> discovery_locations) {
+
+        JSONObject request_body = new JSONObject();
+        request_body.put(Constants.Tokens.SERVERID, server_id);
+        request_body.put(Constants.Tokens.SERVERLOC, server_location[0] + ":" + server_location[1]);
+        request_body.put(Constants.Tokens.LAYER, layer);
+        String request = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.POST,
+                Constants.Tokens.DISCOVER, null, request_body).toString();
+
+        for (String discovery_location : discovery_locations) {
+
+            try {
+
+                sendRequestWithoutWait(request, new Socket(discovery_location.split(":")[0],
+                        Integer.decode(discovery_location.split(":")[1])));
+                return;
+            } catch (IOException e) {
+
+                logger.error("Unable to initialize server socket at: " + discovery_location);
+            }
+        }
+
+        logger.error("Unable to reach any discovery server");
+        System.exit(1);
+    }
+
     /**
      * Convenience method for getting a location string from a socket.
      *
@@ -270,7 +385,7 @@ public class SystemUtility {
 
                 char[] request_body_array = null;
                 int content_length = -1;
-                String request_body;
+                String request_body = null;
                 if (header_map.get(Constants.Tokens.CONTENTLENGTH) != null) {
 
                     content_length = Integer.decode(header_map.get(Constants.Tokens.CONTENTLENGTH));
@@ -281,6 +396,12 @@ public class SystemUtility {
                 if (content_length != -1 && content_length == in.read(request_body_array, 0, content_length)) {
 
                     request_body = new String (request_body_array);
+                } else if (Constants.Tokens.CHUNKED.equals(header_map.get(Constants.Tokens.TRANSFERENCODING))) {
+
+                    request_body = readChunkedBody(in);
+                }
+
+                if (request_body != null) {
 
                     JSONObject request_body_json = null;
                     try {
@@ -312,6 +433,76 @@ public class SystemUtility {
         return http_object;
     }
 
+    /**
+     * Reads a body sent with chunked transfer encoding and joins the chunks.
+     * Chunk sizes count encoded bytes, so characters are read until their
+     * encoding fills each chunk.
+     *
+     * @param in Reader positioned at the start of the body
+     * @return Body of the message, or null if the body is incomplete
+     * @throws IOException
+     */
+    private static String readChunkedBody(BufferedReader in) throws IOException {
+
+        StringBuilder body = new StringBuilder();
+        String size_line = in.readLine();
+
+        while (size_line != null) {
+
+            int chunk_size;
+            try {
+
+                chunk_size = Integer.parseInt(size_line.split(";")[0].trim(), 16);
+            } catch (NumberFormatException e) {
+
+                logger.error("Unable to parse chunk size: " + size_line);
+                return null;
+            }
+
+            if (chunk_size == 0) {
+
+                return body.toString();
+            }
+
+            int bytes_read = 0;
+            while (bytes_read < chunk_size) {
+
+                int character = in.read();
+                if (character == -1) {
+
+                    return null;
+                }
+
+                if (character < 0x80) {
+
+                    bytes_read++;
+                    body.append((char) character);
+                } else {
+
+                    // Read both halves of a surrogate pair before encoding
+                    String encoded_character = String.valueOf((char) character);
+                    if (Character.isHighSurrogate((char) character)) {
+
+                        int low_surrogate = in.read();
+                        if (low_surrogate == -1) {
+
+                            return null;
+                        }
+                        encoded_character += (char) low_surrogate;
+                    }
+                    bytes_read += encoded_character.getBytes().length;
+                    body.append(encoded_character);
+                }
+            }
+
+            // Skip the line break that ends the chunk
+            in.readLine();
+            size_line = in.readLine();
+        }
+
+        return null;
+    }
+
     /**
      * Sends a request on a given socket and waits for the response.
      *
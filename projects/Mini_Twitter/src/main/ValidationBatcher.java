@@ -0,0 +1,288 @@
+package main;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Gathers the cache validations a front end server sends to the same data
+ * store server over a short window into a single multi-query request. The
+ * first worker to join a batch leads it: the leader waits for the window to
+ * close or the batch to fill, sends the batch and publishes the response,
+ * while every other worker in the batch waits for its own query's result.
+ */
+public class ValidationBatcher {
+
+    private static ValidationBatcher singleton_validation_batcher = null;
+    private HashMap<String, PendingBatch> open_batches;
+
+    final static Logger logger = Logger.getLogger(ValidationBatcher.class);
+
+    private ValidationBatcher() {
+
+        this.open_batches = new HashMap<String, PendingBatch>();
+    }
+
+    /**
+     * Provides access to the singleton batcher for use across multiple front
+     * end threads.
+     *
+     * @return An instance of the singleton validation batcher
+     */
+    public synchronized static ValidationBatcher getInstance() {
+
+        if (singleton_validation_batcher == null) {
+
+            singleton_validation_batcher = new ValidationBatcher();
+        }
+
+        return singleton_validation_batcher;
+    }
+
+    /**
+     * Adds a query to the open batch for the given data store server, or
+     * starts a new batch led by the caller if no batch is open or the open
+     * batch is full.
+     *
+     * @param target_id ID of the data store server
+     * @param query Normalized query to be validated
+     * @param version_number Version number of the query in the cache
+     * @param source_id ID of the data store that issued the version, or null
+     * @return PendingBatch led by the caller if isLeader() is true
+     */
+    public synchronized PendingBatch join(String target_id, String query, String version_number, String source_id) {
+
+        PendingBatch batch = open_batches.get(target_id);
+
+        if (batch == null || batch.size() >= Constants.Batching.MAXSIZE) {
+
+            batch = new PendingBatch(target_id);
+            open_batches.put(target_id, batch);
+        } else {
+
+            logger.debug("Joining open validation batch for " + target_id);
+        }
+
+        batch.add(query, version_number, source_id);
+
+        return batch;
+    }
+
+    /**
+     * Waits for the batch window to pass or the batch to fill, then closes
+     * the batch to further queries. Called by the batch leader.
+     *
+     * @param batch Batch led by the caller
+     */
+    public void close(PendingBatch batch) {
+
+        batch.awaitWindow(System.currentTimeMillis() + Constants.Batching.WINDOW);
+
+        synchronized (this) {
+
+            if (open_batches.get(batch.target_id) == batch) {
+
+                open_batches.remove(batch.target_id);
+            }
+        }
+    }
+
+    /**
+     * Publishes the response to a closed batch to every waiting worker.
+     *
+     * @param batch Batch led by the caller
+     * @param response Batch response, or null if the request failed
+     */
+    public void complete(PendingBatch batch, HTTPObject response) {
+
+        batch.publish(response);
+    }
+
+    /**
+     * A multi-query validation request shared by a leader and any number of
+     * followers.
+     */
+    public static class PendingBatch {
+
+        private String target_id;
+        private Thread leader;
+        private LinkedHashMap<String, JSONObject> queries;
+        private boolean completed;
+        private HTTPObject response;
+
+        private PendingBatch(String target_id) {
+
+            this.target_id = target_id;
+            this.leader = Thread.currentThread();
+            this.queries = new LinkedHashMap<String, JSONObject>();
+            this.completed = false;
+            this.response = null;
+        }
+
+        /**
+         * Indicates whether the calling worker must send the batch.
+         *
+         * @return Boolean indicating leadership
+         */
+        public boolean isLeader() {
+
+            return leader == Thread.currentThread();
+        }
+
+        /**
+         * Returns the ID of the data store server the batch is sent to.
+         *
+         * @return Data store server ID
+         */
+        public String getTargetID() {
+
+            return target_id;
+        }
+
+        /**
+         * Builds the map of each query to its cached version number and
+         * version source for the batch request body.
+         *
+         * @return JSONObject mapping queries to their validation parameters
+         */
+        public synchronized JSONObject getQueries() {
+
+            return new JSONObject(queries);
+        }
+
+        /**
+         * Returns the number of distinct queries in the batch.
+         *
+         * @return Number of queries
+         */
+        public synchronized int size() {
+
+            return queries.size();
+        }
+
+        /**
+         * Adds a query to the batch and wakes the leader if the batch is
+         * full. A query already in the batch is not added again.
+         *
+         * @param query Normalized query to be validated
+         * @param version_number Version number of the query in the cache
+         * @param source_id ID of the data store that issued the version, or null
+         */
+        private synchronized void add(String query, String version_number, String source_id) {
+
+            if (!queries.containsKey(query)) {
+
+                JSONObject query_params = new JSONObject();
+                query_params.put(Constants.Tokens.VERSIONNUM, version_number);
+                if (source_id != null) {
+
+                    query_params.put(Constants.Tokens.SOURCE, source_id);
+                }
+                queries.put(query, query_params);
+            }
+
+            if (queries.size() >= Constants.Batching.MAXSIZE) {
+
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until the deadline passes or the batch is full.
+         *
+         * @param deadline Time in milliseconds at which the window closes
+         */
+        private synchronized void awaitWindow(long deadline) {
+
+            long remaining = deadline - System.currentTimeMillis();
+            while (remaining > 0 && queries.size() < Constants.Batching.MAXSIZE) {
+
+                try {
+
+                    wait(remaining);
+                } catch (InterruptedException e) {
+
+                    logger.error(Constants.Messages.INTERRUPTED);
+                    return;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Stores the batch response and wakes any waiting followers.
+         *
+         * @param response Batch response
+         */
+        private synchronized void publish(HTTPObject response) {
+
+            this.response = response;
+            this.completed = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the leader to publish the batch response and extracts the
+         * result for a single query as a standalone validation response.
+         *
+         * @param query Normalized query whose result is requested
+         * @return Validation response for the query, or null if validation failed
+         */
+        public synchronized HTTPObject awaitResponse(String query) {
+
+            while (!completed) {
+
+                try {
+
+                    wait();
+                } catch (InterruptedException e) {
+
+                    logger.error(Constants.Messages.INTERRUPTED);
+                    return null;
+                }
+            }
+
+            return getQueryResponse(response, query);
+        }
+
+        /**
+         * Extracts the result for a single query from a batch response. An
+         * unsuccessful batch response is returned unchanged.
+         *
+         * @param batch_response Response to the batch request
+         * @param query Normalized query whose result is requested
+         * @return Validation response for the query, or null if none exists
+         */
+        public static HTTPObject getQueryResponse(HTTPObject batch_response, String query) {
+
+            if (batch_response == null || !batch_response.getStatusCode().equals(Constants.Codes.OK)) {
+
+                return batch_response;
+            }
+
+            Object results = batch_response.getBody().get(Constants.Tokens.RESULTS);
+            Object result = (results instanceof Map) ? ((Map) results).get(query) : null;
+            if (!(result instanceof Map)) {
+
+                logger.error("No batch result for query: " + query);
+                return null;
+            }
+
+            JSONObject response_body = new JSONObject((Map) result);
+            String response_code = (String) response_body.remove(Constants.Tokens.CODE);
+            if (response_code == null) {
+
+                return null;
+            }
+            if (response_code.equals(Constants.Codes.OK)) {
+
+                response_body.put(Constants.Tokens.TIMESTAMP, batch_response.getBody().get(Constants.Tokens.TIMESTAMP));
+            }
+
+            return SystemUtility.buildResponse(response_code, response_body);
+        }
+    }
+}
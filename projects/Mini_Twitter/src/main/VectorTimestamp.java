@@ -34,14 +34,44 @@ public class VectorTimestamp {
             this.vector_elements.put(server_id, "0");
         } else {
 
-            for (Map.Entry<String, String> entry : server_directory.getServerCollection().entrySet()) {
+            for (String data_store_id : server_directory.getView().getDataStoreIDs()) {
 
-                if (entry.getKey().startsWith(Constants.Config.DATASTORE)) {
+                this.vector_elements.put(data_store_id, "0");
+            }
+        }
+    }
 
-                    this.vector_elements.put(entry.getKey(), "0");
-                }
+    /**
+     * Indicates whether a value read from another server is a timestamp map,
+     * holding only stamps that are numbers.
+     *
+     * @param timestamp_json Value to be checked
+     * @return Boolean indicating the value can be read as a timestamp
+     */
+    public static boolean isWellFormed(Object timestamp_json) {
+
+        if (!(timestamp_json instanceof Map)) {
+
+            return false;
+        }
+
+        for (Object entry : ((Map) timestamp_json).entrySet()) {
+
+            if (!(((Map.Entry) entry).getKey() instanceof String) || !(((Map.Entry) entry).getValue() instanceof String)) {
+
+                return false;
+            }
+
+            try {
+
+                Integer.decode((String) ((Map.Entry) entry).getValue());
+            } catch (NumberFormatException e) {
+
+                return false;
             }
         }
+
+        return true;
     }
 
     /**
@@ -66,6 +96,91 @@ public class VectorTimestamp {
         return timestamp;
     }
 
+    /**
+     * Returns the key of the stamp counting the writes a server has made to
+     * one shard of the data store tier. Shard stamps sit alongside the stamp
+     * of each server, so they are merged and compared like any other.
+     *
+     * @param server_id String ID of the server making the writes
+     * @param shard Shard number
+     * @return Key of the shard stamp
+     */
+    public static String getShardKey(String server_id, int shard) {
+
+        return server_id + Constants.Sharding.SEPARATOR + shard;
+    }
+
+    /**
+     * Returns the shard counted by a stamp key.
+     *
+     * @param key Key of a stamp
+     * @return Shard number, or -1 if the stamp counts all writes of a server
+     */
+    public static int getKeyShard(String key) {
+
+        int separator_index = key.lastIndexOf(Constants.Sharding.SEPARATOR);
+        if (separator_index < 0) {
+
+            return -1;
+        }
+
+        try {
+
+            return Integer.parseInt(key.substring(separator_index + 1));
+        } catch (NumberFormatException e) {
+
+            return -1;
+        }
+    }
+
+    /**
+     * Returns a copy of the stamps counting writes to the given shards.
+     *
+     * @param shards Shard numbers
+     * @return Map of shard stamp keys to stamp values
+     */
+    public HashMap<String, String> getShardTimestampMap(Collection<Integer> shards) {
+
+        HashMap<String, String> shard_map = new HashMap<String, String>();
+
+        update_lock.lockRead();
+
+        for (Map.Entry<String, String> entry : this.vector_elements.entrySet()) {
+
+            if (shards.contains(getKeyShard(entry.getKey()))) {
+
+                shard_map.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        update_lock.unlockRead();
+
+        return shard_map;
+    }
+
+    /**
+     * Returns the sum of all stamp values. A timestamp that precedes another
+     * never has a greater total, so ordering by total extends the causal
+     * order.
+     *
+     * @return Sum of all stamp values
+     */
+    public long getStampTotal() {
+
+        long total = 0;
+
+        update_lock.lockRead();
+
+        for (String value : this.vector_elements.values()) {
+
+            total += Integer.decode(value);
+        }
+
+        update_lock.unlockRead();
+
+        return total;
+    }
+
     /**
      * Returns a copy of the time stamp map.
      *
@@ -91,10 +206,12 @@ public class VectorTimestamp {
 
         update_lock.lockReadWrite();
 
-        int new_value = Integer.decode(this.vector_elements.get(server_id)) + 1;
+        String value = this.vector_elements.get(server_id);
+        int new_value = ((value == null) ? 0 : Integer.decode(value)) + 1;
         this.vector_elements.put(server_id, String.valueOf(new_value));
 
         update_lock.unlockReadWrite();
+        notifyUpdate();
     }
 
     /**
@@ -120,6 +237,7 @@ public class VectorTimestamp {
         }
 
         update_lock.unlockReadWrite();
+        notifyUpdate();
     }
 
     /**
@@ -135,6 +253,27 @@ public class VectorTimestamp {
         this.vector_elements.put(server_id, value);
 
         update_lock.unlockReadWrite();
+        notifyUpdate();
+    }
+
+    /**
+     * Waits until this timestamp is updated or the timeout passes. Callers
+     * should check the stamp value they need before waiting and again after.
+     *
+     * @param timeout Maximum time to wait in milliseconds
+     * @throws InterruptedException
+     */
+    public synchronized void awaitUpdate(long timeout) throws InterruptedException {
+
+        this.wait(timeout);
+    }
+
+    /**
+     * Wakes any threads waiting for this timestamp to be updated.
+     */
+    private synchronized void notifyUpdate() {
+
+        this.notifyAll();
     }
 
     /**
@@ -223,12 +362,11 @@ public class VectorTimestamp {
 
             update_lock.lockReadWrite();
 
-            for (Map.Entry<String, String> entry : server_directory.getServerCollection().entrySet()) {
+            for (String data_store_id : server_directory.getView().getDataStoreIDs()) {
 
-                if (entry.getKey().startsWith(Constants.Config.DATASTORE)
-                        && this.vector_elements.get(entry.getKey()) == null) {
+                if (this.vector_elements.get(data_store_id) == null) {
 
-                    this.vector_elements.put(entry.getKey(), "0");
+                    this.vector_elements.put(data_store_id, "0");
                 }
             }
 
@@ -257,6 +395,62 @@ public class VectorTimestamp {
         return toJSONObject().toJSONString();
     }
 
+    /**
+     * Encodes the time stamp map as a URL-safe token, listing each server ID
+     * and stamp value in server ID order.
+     *
+     * @return Token representing the time stamp map
+     */
+    public String toToken() {
+
+        StringBuilder token_builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(getTimestampMap()).entrySet()) {
+
+            if (token_builder.length() > 0) {
+
+                token_builder.append(",");
+            }
+            token_builder.append(entry.getKey()).append(":").append(entry.getValue());
+        }
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token_builder.toString().getBytes());
+    }
+
+    /**
+     * Decodes a token built by toToken into a VectorTimestamp.
+     *
+     * @param token Token string
+     * @return VectorTimestamp represented by the token, or null if the token is malformed
+     */
+    public static VectorTimestamp fromToken(String token) {
+
+        HashMap<String, String> timestamp_map = new HashMap<String, String>();
+
+        try {
+
+            String token_value = new String(Base64.getUrlDecoder().decode(token));
+            if (token_value.isEmpty()) {
+
+                return new VectorTimestamp(timestamp_map);
+            }
+
+            for (String element : token_value.split(",")) {
+
+                String[] element_values = element.split(":");
+                if (element_values.length != 2 || Integer.parseInt(element_values[1]) < 0) {
+
+                    return null;
+                }
+                timestamp_map.put(element_values[0], element_values[1]);
+            }
+        } catch (IllegalArgumentException e) {
+
+            return null;
+        }
+
+        return new VectorTimestamp(timestamp_map);
+    }
+
     /**
      * Copies the server time stamp mapping into a new VectorTimestamp.
      *
@@ -0,0 +1,155 @@
+package test;
+
+import main.CacheStore;
+import main.Constants;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests the front end cache's recency index and paged reads.
+ */
+public class CacheStoreTest {
+
+    @Test
+    public void readCacheShouldReturnCausalOrder() {
+
+        CacheStore cache = CacheStore.getInstance();
+        JSONObject results = new JSONObject();
+        results.put("third", buildTimestamp("3", "2"));
+        results.put("first", buildTimestamp("1", "0"));
+        results.put("second", buildTimestamp("1", "1"));
+
+        cache.writeCache("ordertest", results, "3");
+
+        Assert.assertTrue(cache.readCache("ordertest").equals(Arrays.asList("first", "second", "third")));
+    }
+
+    @Test
+    public void pagesShouldWalkBackFromMostRecent() {
+
+        CacheStore cache = CacheStore.getInstance();
+        JSONObject results = new JSONObject();
+        for (int i = 1; i <= 5; i++) {
+
+            results.put("tweet" + i, buildTimestamp(String.valueOf(i), "0"));
+        }
+        cache.writeCache("pagetest", results, "5");
+
+        JSONObject first_page = cache.readCachePage("pagetest", 2, null);
+        Assert.assertTrue(first_page.get(Constants.Tokens.TWEETS).equals(Arrays.asList("tweet4", "tweet5")));
+
+        JSONObject second_page = cache.readCachePage("pagetest", 2, (String) first_page.get(Constants.Tokens.CURSOR));
+        Assert.assertTrue(second_page.get(Constants.Tokens.TWEETS).equals(Arrays.asList("tweet2", "tweet3")));
+
+        JSONObject last_page = cache.readCachePage("pagetest", 2, (String) second_page.get(Constants.Tokens.CURSOR));
+        Assert.assertTrue(last_page.get(Constants.Tokens.TWEETS).equals(Arrays.asList("tweet1")));
+        Assert.assertFalse(last_page.containsKey(Constants.Tokens.CURSOR));
+    }
+
+    @Test
+    public void mergedDeltaShouldAppendAndKeepCursorsValid() {
+
+        CacheStore cache = CacheStore.getInstance();
+        JSONObject results = new JSONObject();
+        results.put("old1", buildTimestamp("1", "0"));
+        results.put("old2", buildTimestamp("2", "0"));
+        cache.writeCache("mergetest", results, "2", "datastore1");
+
+        String cursor = (String) cache.readCachePage("mergetest", 1, null).get(Constants.Tokens.CURSOR);
+
+        JSONObject delta = new JSONObject();
+        delta.put("new1", buildTimestamp("3", "0"));
+        cache.mergeCache("mergetest", delta, "3", "datastore1");
+
+        Assert.assertTrue(cache.readCache("mergetest").equals(Arrays.asList("old1", "old2", "new1")));
+        Assert.assertTrue(cache.getVersionNumber("mergetest").equals("3"));
+        Assert.assertTrue(((JSONArray) cache.readCachePage("mergetest", 1, cursor).get(Constants.Tokens.TWEETS))
+                .equals(Arrays.asList("old1")));
+    }
+
+    @Test
+    public void lateDeltaShouldMergeIntoCausalOrder() {
+
+        CacheStore cache = CacheStore.getInstance();
+        JSONObject results = new JSONObject();
+        for (int i = 1; i <= 4; i++) {
+
+            results.put("late" + (2 * i), buildTimestamp(String.valueOf(2 * i), "0"));
+        }
+        cache.writeCache("latetest", results, "4", "datastore1");
+
+        JSONObject first_page = cache.readCachePage("latetest", 2, null);
+        String cursor = (String) first_page.get(Constants.Tokens.CURSOR);
+
+        // A delta replicated late holds results older than those cached
+        JSONObject delta = new JSONObject();
+        delta.put("late1", buildTimestamp("1", "0"));
+        delta.put("late5", buildTimestamp("5", "0"));
+        delta.put("late9", buildTimestamp("9", "0"));
+        cache.mergeCache("latetest", delta, "5", "datastore1");
+
+        Assert.assertTrue(cache.readCache("latetest").equals(
+                Arrays.asList("late1", "late2", "late4", "late5", "late6", "late8", "late9")));
+        Assert.assertTrue(cache.readCachePage("latetest", 2, null).get(Constants.Tokens.TWEETS)
+                .equals(Arrays.asList("late8", "late9")));
+
+        // The cursor resumes right before the oldest result of the first page
+        JSONObject second_page = cache.readCachePage("latetest", 2, cursor);
+        Assert.assertTrue(second_page.get(Constants.Tokens.TWEETS).equals(Arrays.asList("late4", "late5")));
+        JSONObject last_page = cache.readCachePage("latetest", 2, (String) second_page.get(Constants.Tokens.CURSOR));
+        Assert.assertTrue(last_page.get(Constants.Tokens.TWEETS).equals(Arrays.asList("late1", "late2")));
+    }
+
+    @Test
+    public void cursorShouldExpireAfterFullRefresh() {
+
+        CacheStore cache = CacheStore.getInstance();
+        JSONObject results = new JSONObject();
+        results.put("a", buildTimestamp("1", "0"));
+        results.put("b", buildTimestamp("2", "0"));
+        cache.writeCache("expiretest", results, "2");
+
+        String cursor = (String) cache.readCachePage("expiretest", 1, null).get(Constants.Tokens.CURSOR);
+        cache.writeCache("expiretest", results, "3");
+
+        Assert.assertTrue(cache.readCachePage("expiretest", 1, cursor) == null);
+        Assert.assertTrue(cache.readCachePage("expiretest", 1, "not-a-cursor") == null);
+    }
+
+    @Test
+    public void cursorShouldBeBoundToItsQuery() {
+
+        CacheStore cache = CacheStore.getInstance();
+        StringBuilder long_tweet = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+
+            long_tweet.append("word");
+        }
+
+        JSONObject results = new JSONObject();
+        results.put(long_tweet.toString() + "1", buildTimestamp("1", "0"));
+        results.put(long_tweet.toString() + "2", buildTimestamp("2", "0"));
+        cache.writeCache("boundtest", results, "2");
+        cache.writeCache("othertest", results, "2");
+
+        // The cursor does not carry the result text, and another query rejects it
+        String cursor = (String) cache.readCachePage("boundtest", 1, null).get(Constants.Tokens.CURSOR);
+        Assert.assertTrue(cursor.length() < long_tweet.length());
+        Assert.assertTrue(cache.readCachePage("othertest", 1, cursor) == null);
+        Assert.assertTrue(cache.readCachePage("boundtest", 1, cursor).get(Constants.Tokens.TWEETS)
+                .equals(Arrays.asList(long_tweet.toString() + "1")));
+    }
+
+    private static JSONObject buildTimestamp(String value1, String value2) {
+
+        JSONObject timestamp = new JSONObject();
+        timestamp.put("datastore1", value1);
+        timestamp.put("datastore2", value2);
+
+        return timestamp;
+    }
+}
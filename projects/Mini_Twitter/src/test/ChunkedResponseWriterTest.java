@@ -0,0 +1,80 @@
+package test;
+
+import main.ChunkedResponseWriter;
+import main.Constants;
+import main.HTTPObject;
+import main.SystemUtility;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Tests chunked responses written by the snapshot stream and their decoding.
+ */
+public class ChunkedResponseWriterTest {
+
+    @Test
+    public void chunkedResponseShouldBeReassembled() throws IOException {
+
+        JSONArray tweets = new JSONArray();
+        tweets.add("caf\u00e9 #chunktest");
+        tweets.add("emoji \ud83d\ude00 #chunktest");
+        for (int i = 0; i < 20; i++) {
+
+            tweets.add("tweet number " + i + " #chunktest");
+        }
+        JSONObject body = new JSONObject();
+        body.put(Constants.Tokens.SNAPSHOT, tweets);
+
+        // Sockets carry the platform charset, so expect only what it can encode
+        JSONObject expected_body = new JSONObject();
+        JSONArray expected_tweets = new JSONArray();
+        for (Object tweet : tweets) {
+
+            expected_tweets.add(new String(((String) tweet).getBytes()));
+        }
+        expected_body.put(Constants.Tokens.SNAPSHOT, expected_tweets);
+
+        ServerSocket server_socket = new ServerSocket(0);
+        Socket client_socket = new Socket("localhost", server_socket.getLocalPort());
+        Socket accepted_socket = server_socket.accept();
+
+        // A small chunk size splits multi-byte characters across chunk boundaries
+        ChunkedResponseWriter writer = new ChunkedResponseWriter(accepted_socket, Constants.Codes.OK, 7);
+        body.writeJSONString(writer);
+        writer.flush();
+        writer.close();
+
+        HTTPObject response = SystemUtility.readSocket(client_socket);
+        client_socket.close();
+        server_socket.close();
+
+        Assert.assertTrue(response.getStatusCode().equals(Constants.Codes.OK));
+        Assert.assertTrue(response.getHeader(Constants.Tokens.TRANSFERENCODING).equals(Constants.Tokens.CHUNKED));
+        Assert.assertTrue(response.getBody().equals(expected_body));
+    }
+
+    @Test
+    public void abortedResponseShouldHaveNoBody() throws IOException {
+
+        ServerSocket server_socket = new ServerSocket(0);
+        Socket client_socket = new Socket("localhost", server_socket.getLocalPort());
+        Socket accepted_socket = server_socket.accept();
+
+        ChunkedResponseWriter writer = new ChunkedResponseWriter(accepted_socket, Constants.Codes.OK);
+        writer.write("{\"" + Constants.Tokens.SNAPSHOT + "\":{");
+        writer.flush();
+        writer.abort();
+
+        HTTPObject response = SystemUtility.readSocket(client_socket);
+        client_socket.close();
+        server_socket.close();
+
+        Assert.assertTrue(response.getBody().isEmpty());
+    }
+}
@@ -0,0 +1,74 @@
+package test;
+
+import main.DataStoreRouter;
+import main.ServerDirectory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+/**
+ * Tests selection of data store servers by the front end router.
+ */
+public class DataStoreRouterTest {
+
+    @Test
+    public void livePreferredServerShouldBeKept() {
+
+        DataStoreRouter router = DataStoreRouter.getInstance();
+        router.refresh(buildDirectory("datastore1", "datastore2"));
+
+        for (int i = 0; i < 20; i++) {
+
+            Assert.assertTrue(router.selectDataStore("datastore1", null).equals("datastore1"));
+        }
+    }
+
+    @Test
+    public void deadPreferredServerShouldBeAvoided() {
+
+        DataStoreRouter router = DataStoreRouter.getInstance();
+        router.refresh(buildDirectory("datastore1", "datastore2"));
+
+        for (int i = 0; i < 20; i++) {
+
+            String selected_id = router.selectDataStore("datastore3", null);
+            Assert.assertTrue(selected_id.equals("datastore1") || selected_id.equals("datastore2"));
+        }
+    }
+
+    @Test
+    public void slowPreferredServerShouldBeAvoided() {
+
+        DataStoreRouter router = DataStoreRouter.getInstance();
+        router.refresh(buildDirectory("datastore4", "datastore5"));
+
+        // A failed request counts as a request at the latency upper bound
+        router.endRequest("datastore4", router.beginRequest("datastore4"), null);
+
+        for (int i = 0; i < 20; i++) {
+
+            Assert.assertTrue(router.selectDataStore("datastore4", null).equals("datastore5"));
+        }
+    }
+
+    @Test
+    public void emptyDirectoryShouldSelectNothing() {
+
+        DataStoreRouter router = DataStoreRouter.getInstance();
+        router.refresh(buildDirectory());
+
+        Assert.assertTrue(router.selectDataStore("datastore1", null) == null);
+    }
+
+    private static ServerDirectory buildDirectory(String... server_ids) {
+
+        HashMap<String, String> mapping = new HashMap<String, String>();
+        for (String server_id : server_ids) {
+
+            mapping.put(server_id, "localhost:1000");
+        }
+
+        return ServerDirectory.getInstance(mapping, true);
+    }
+}
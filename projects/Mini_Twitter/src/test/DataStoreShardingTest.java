@@ -0,0 +1,105 @@
+package test;
+
+import main.*;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+/**
+ * Tests how a data store splits replicated batches between shard owners
+ * and waits for the shard stamps a search depends on.
+ */
+public class DataStoreShardingTest {
+
+    @Test
+    public void batchShouldBeSplitByOwner() {
+
+        ServerDirectory directory = ServerDirectory.getInstance(null, true);
+        for (int i = 1; i <= 5; i++) {
+
+            directory.addServer("datastore" + i, "localhost:800" + i);
+        }
+        DirectoryView view = directory.getView();
+
+        JSONArray batch = new JSONArray();
+        batch.add(buildItem("first", "news"));
+        batch.add(buildItem("second", "sports", "news"));
+        batch.add(buildItem("third", "music"));
+
+        HashMap<String, JSONArray> split = DataStoreWorker.splitBatchByOwner(batch, view);
+
+        // Each owner receives exactly the tweets of its shards, in batch order
+        for (String server_id : view.getLiveDataStoreIDs()) {
+
+            JSONArray expected = new JSONArray();
+            for (Object item : batch) {
+
+                if (view.getOwners((List<String>) ((Map) item).get(Constants.Tokens.HASH)).contains(server_id)) {
+
+                    expected.add(item);
+                }
+            }
+
+            Assert.assertTrue(expected.isEmpty() ? !split.containsKey(server_id) : split.get(server_id).equals(expected));
+        }
+        Assert.assertTrue(view.getLiveDataStoreIDs().containsAll(split.keySet()));
+    }
+
+    @Test
+    public void searchShouldWaitForShardStampsOfLiveWriters() throws InterruptedException {
+
+        ServerDirectory directory = ServerDirectory.getInstance(null, true);
+        directory.addServer("datastore1", "localhost:8001");
+        directory.addServer("datastore2", "localhost:8002");
+
+        final VectorTimestamp timestamp = new VectorTimestamp(new HashMap<String, String>());
+        VectorTimestamp required = new VectorTimestamp(new HashMap<String, String>());
+        required.updateTimestamp(VectorTimestamp.getShardKey("datastore2", 3), "2");
+        required.updateTimestamp(VectorTimestamp.getShardKey("datastore2", 4), "9");
+
+        // Replication brings the stamp of the searched shard up to date
+        Thread replication = new Thread() {
+            @Override
+            public void run() {
+
+                try {
+
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {}
+                timestamp.updateTimestamp(VectorTimestamp.getShardKey("datastore2", 3), "2");
+            }
+        };
+        replication.start();
+
+        long start_time = System.currentTimeMillis();
+        DataStoreWorker.waitForShardTimestamps(timestamp, required, Collections.singleton(3), "datastore1", directory);
+        long waited = System.currentTimeMillis() - start_time;
+        replication.join();
+
+        Assert.assertTrue(waited >= 150 && waited < Constants.Discovery.TIMEOUT);
+        Assert.assertTrue(timestamp.getTimestamp(VectorTimestamp.getShardKey("datastore2", 3)) == 2);
+
+        // Stamps of this server's own writes and of failed writers are not waited for
+        required.updateTimestamp(VectorTimestamp.getShardKey("datastore1", 3), "5");
+        required.updateTimestamp(VectorTimestamp.getShardKey("datastore2", 3), "7");
+        directory.setServerFailed("datastore2");
+
+        start_time = System.currentTimeMillis();
+        DataStoreWorker.waitForShardTimestamps(timestamp, required, Collections.singleton(3), "datastore1", directory);
+        Assert.assertTrue(System.currentTimeMillis() - start_time < Constants.Discovery.LATENCYUPBOUND);
+    }
+
+    private static JSONObject buildItem(String tweet, String... hashtags) {
+
+        JSONObject item = new JSONObject();
+        item.put(Constants.Tokens.TWEET, tweet);
+        JSONArray hashtag_array = new JSONArray();
+        hashtag_array.addAll(Arrays.asList(hashtags));
+        item.put(Constants.Tokens.HASH, hashtag_array);
+
+        return item;
+    }
+}
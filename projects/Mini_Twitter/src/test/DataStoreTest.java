@@ -13,7 +13,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -274,6 +277,119 @@ public class DataStoreTest {
         Assert.assertTrue(((JSONObject) snapshot_response.getBody().get(Constants.Tokens.SNAPSHOT)).size() > 1);
     }
 
+    @Test
+    public void deltaSearchShouldReturnTweetsAddedSinceVersion() {
+
+        DataStore data_store = DataStore.getInstance();
+        List<String> hashtags = Arrays.asList("deltatest");
+
+        data_store.postToDataStore(hashtags, "delta tweet one", TestTimestamps.buildTimestamp("1"));
+        data_store.postToDataStore(hashtags, "delta tweet two", TestTimestamps.buildTimestamp("2"));
+
+        JSONObject search_results = new JSONObject();
+        String version_number = data_store.searchDataStoreDelta("deltatest", "1", search_results);
+
+        Assert.assertTrue(version_number.equals("2"));
+        Assert.assertTrue(search_results.size() == 1);
+        Assert.assertTrue(search_results.containsKey("delta tweet two"));
+    }
+
+    @Test
+    public void deltaSearchFromFutureVersionShouldFallBack() {
+
+        DataStore data_store = DataStore.getInstance();
+        data_store.postToDataStore(Arrays.asList("futuretest"), "future tweet", TestTimestamps.buildTimestamp("1"));
+
+        Assert.assertTrue(data_store.searchDataStoreDelta("futuretest", "5", new JSONObject()) == null);
+        Assert.assertTrue(data_store.searchDataStoreDelta("unknowntest", "0", new JSONObject()) == null);
+    }
+
+    @Test
+    public void booleanSearchShouldEvaluatePostingLists() throws HTTPRequestException {
+
+        DataStore data_store = DataStore.getInstance();
+        data_store.postToDataStore(Arrays.asList("booltesta", "booltestb"), "both tags", TestTimestamps.buildTimestamp("1"));
+        data_store.postToDataStore(Arrays.asList("booltesta"), "only a", TestTimestamps.buildTimestamp("2"));
+        data_store.postToDataStore(Arrays.asList("booltestb", "booltestc"), "b and c", TestTimestamps.buildTimestamp("3"));
+
+        JSONObject and_results = new JSONObject();
+        String version_number = data_store.searchDataStore(HashtagQuery.parse("booltesta AND booltestb"), "0", and_results);
+
+        Assert.assertTrue(version_number.equals("2.2"));
+        Assert.assertTrue(and_results.keySet().equals(new HashSet<String>(Arrays.asList("both tags"))));
+
+        JSONObject not_results = new JSONObject();
+        data_store.searchDataStore(HashtagQuery.parse("booltestb AND NOT booltestc OR booltesta AND NOT booltestb"),
+                "0", not_results);
+
+        Assert.assertTrue(not_results.keySet().equals(new HashSet<String>(Arrays.asList("both tags", "only a"))));
+    }
+
+    @Test
+    public void encodedSearchShouldBeReusedUntilVersionChanges() throws HTTPRequestException {
+
+        DataStore data_store = DataStore.getInstance();
+        HashtagQuery query = HashtagQuery.parse("encodetest");
+        data_store.postToDataStore(Arrays.asList("encodetest"), "encoded tweet one", TestTimestamps.buildTimestamp("1"));
+
+        JSONObject first_body = new JSONObject();
+        JSONObject second_body = new JSONObject();
+        Assert.assertTrue(data_store.searchDataStoreEncoded(query, "", first_body).equals("1"));
+        data_store.searchDataStoreEncoded(query, "", second_body);
+
+        JSONObject search_results = new JSONObject();
+        data_store.searchDataStore(query, "", search_results);
+
+        Assert.assertTrue(first_body.get(Constants.Tokens.TWEETS) == second_body.get(Constants.Tokens.TWEETS));
+        Assert.assertTrue(first_body.get(Constants.Tokens.TWEETS).toString().equals(search_results.toJSONString()));
+
+        JSONObject current_body = new JSONObject();
+        Assert.assertTrue(data_store.searchDataStoreEncoded(query, "1", current_body).equals("1"));
+        Assert.assertFalse(current_body.containsKey(Constants.Tokens.TWEETS));
+
+        data_store.postToDataStore(Arrays.asList("encodetest"), "encoded tweet two", TestTimestamps.buildTimestamp("2"));
+
+        JSONObject updated_body = new JSONObject();
+        Assert.assertTrue(data_store.searchDataStoreEncoded(query, "1", updated_body).equals("2"));
+        Assert.assertTrue(updated_body.toJSONString().contains("encoded tweet two"));
+    }
+
+    @Test
+    public void batchPostShouldWriteEveryTweet() {
+
+        DataStore data_store = DataStore.getInstance();
+        List<List<String>> hashtag_lists = Arrays.asList(Arrays.asList("batchtest"),
+                Arrays.asList("batchtest", "batchtestb"));
+
+        data_store.postBatchToDataStore(hashtag_lists, Arrays.asList("batch one", "batch two"),
+                Arrays.asList(TestTimestamps.buildTimestamp("1"), TestTimestamps.buildTimestamp("2")));
+
+        JSONObject search_results = new JSONObject();
+        Assert.assertTrue(data_store.searchDataStore("batchtest", "0", search_results).equals("2"));
+        Assert.assertTrue(search_results.keySet().equals(new HashSet<String>(Arrays.asList("batch one", "batch two"))));
+        Assert.assertTrue(data_store.searchDataStoreDelta("batchtest", "1", new JSONObject()).equals("2"));
+    }
+
+    @Test
+    public void batchSearchShouldAnswerEachQuery() throws HTTPRequestException {
+
+        DataStore data_store = DataStore.getInstance();
+        data_store.postToDataStore(Arrays.asList("batchsearcha"), "batch search a", TestTimestamps.buildTimestamp("1"));
+        data_store.postToDataStore(Arrays.asList("batchsearchb"), "batch search b", TestTimestamps.buildTimestamp("2"));
+        data_store.postToDataStore(Arrays.asList("batchsearchb"), "batch search c", TestTimestamps.buildTimestamp("3"));
+
+        List<JSONObject> results = data_store.searchDataStoreBatch(
+                Arrays.asList(HashtagQuery.parse("batchsearcha"), HashtagQuery.parse("batchsearchb")),
+                Arrays.asList("1", "1"), Arrays.asList(false, true));
+
+        Assert.assertTrue(results.get(0).get(Constants.Tokens.VERSIONNUM).equals("1"));
+        Assert.assertFalse(results.get(0).containsKey(Constants.Tokens.TWEETS));
+        Assert.assertTrue(results.get(1).get(Constants.Tokens.VERSIONNUM).equals("2"));
+        Assert.assertTrue(results.get(1).get(Constants.Tokens.DELTA).equals(true));
+        Assert.assertTrue(((JSONObject) results.get(1).get(Constants.Tokens.TWEETS)).keySet()
+                .equals(new HashSet<String>(Arrays.asList("batch search c"))));
+    }
+
     private static void waitBetweenTests() {
 
         synchronized (DataStore.class) {
@@ -0,0 +1,89 @@
+package test;
+
+import main.*;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tests coalescing of directory broadcasts sent through the bounded pool.
+ */
+public class DirectoryBroadcasterTest {
+
+    @Test
+    public void burstShouldBeCoalescedIntoOneCopy() throws IOException, InterruptedException {
+
+        List<JSONObject> received = Collections.synchronizedList(new ArrayList<JSONObject>());
+        ServerSocket server_socket = startServer(received);
+
+        HashMap<String, String> mapping = new HashMap<String, String>();
+        mapping.put("frontend1", "localhost:" + server_socket.getLocalPort());
+        ServerDirectory server_directory = ServerDirectory.getInstance(mapping, true);
+        DirectoryBroadcaster directory_broadcaster = new DirectoryBroadcaster(server_directory, 200, 2);
+
+        // Ten registrations in quick succession each broadcast a delta
+        for (int i = 1; i <= 10; i++) {
+
+            JSONObject delta_body = new JSONObject();
+            delta_body.put(Constants.Tokens.DELTA, server_directory.addServer("datastore" + i, "localhost:" + (9000 + i)));
+            directory_broadcaster.broadcast(delta_body, "datastore" + i);
+        }
+
+        Thread.sleep(600);
+        Assert.assertTrue(directory_broadcaster.getRequestsSent() == 1);
+        Assert.assertTrue(received.size() == 1);
+
+        // The coalesced request is a complete copy at the latest version
+        JSONObject copy = received.get(0);
+        Assert.assertTrue(copy.get(Constants.Tokens.DELTA) == null);
+        Assert.assertTrue(((Number) copy.get(Constants.Discovery.VERSION)).longValue() == server_directory.getVersion());
+
+        // A lone update is sent as it is
+        JSONObject delta_body = new JSONObject();
+        delta_body.put(Constants.Tokens.DELTA, server_directory.setServerFailed("datastore1"));
+        directory_broadcaster.broadcast(delta_body, null);
+
+        Thread.sleep(600);
+        Assert.assertTrue(received.size() == 2);
+        Assert.assertTrue(received.get(1).get(Constants.Tokens.DELTA) != null);
+
+        directory_broadcaster.shutdown();
+        server_socket.close();
+    }
+
+    /**
+     * Starts a server recording the body of every request until its socket
+     * is closed.
+     */
+    private static ServerSocket startServer(final List<JSONObject> received) throws IOException {
+
+        final ServerSocket server_socket = new ServerSocket(0);
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+
+                while (!server_socket.isClosed()) {
+
+                    try {
+
+                        Socket socket = server_socket.accept();
+                        received.add(SystemUtility.readSocket(socket).getBody());
+                        socket.close();
+                    } catch (IOException ignored) {}
+                }
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+
+        return server_socket;
+    }
+}
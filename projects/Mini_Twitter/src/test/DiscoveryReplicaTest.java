@@ -0,0 +1,230 @@
+package test;
+
+import main.*;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tests leader election and log replication among discovery replicas
+ * running in a single process.
+ */
+public class DiscoveryReplicaTest {
+
+    private static final List<String> REPLICA_IDS = Arrays.asList("discovery1", "discovery2", "discovery3");
+
+    @Test
+    public void committedChangesShouldReachEveryDirectory() throws InterruptedException, IOException {
+
+        HashMap<String, DiscoveryReplica> replicas = startReplicas(createStateDir());
+
+        DiscoveryReplica leader = awaitLeader(replicas);
+        Assert.assertTrue(leader != null);
+
+        JSONObject result = leader.propose(DiscoveryReplica.addCommand("datastore1", "localhost:8001"));
+        Assert.assertTrue(Boolean.TRUE.equals(result.get(Constants.Consensus.COMMITTED)));
+        Assert.assertTrue(result.get(Constants.Tokens.DELTA) != null);
+
+        // A follower refuses commands and names the leader instead
+        DiscoveryReplica follower = replicas.get(REPLICA_IDS.get((REPLICA_IDS.indexOf(leader.getReplicaID()) + 1) % 3));
+        result = follower.propose(DiscoveryReplica.addCommand("datastore2", "localhost:8002"));
+        Assert.assertFalse(Boolean.TRUE.equals(result.get(Constants.Consensus.COMMITTED)));
+        Assert.assertTrue(leader.getReplicaID().equals(result.get(Constants.Consensus.LEADER)));
+
+        // Followers apply the entry once the leader tells them it is committed
+        Thread.sleep(300);
+        for (DiscoveryReplica replica : replicas.values()) {
+
+            Assert.assertTrue("localhost:8001".equals(replica.getServerDirectory().getServerLocation("datastore1")));
+            Assert.assertTrue(replica.getServerDirectory().getVersion() == leader.getServerDirectory().getVersion());
+        }
+
+        stopReplicas(replicas);
+    }
+
+    @Test
+    public void groupShouldElectNewLeaderAfterLeaderCrash() throws InterruptedException, IOException {
+
+        HashMap<String, DiscoveryReplica> replicas = startReplicas(createStateDir());
+
+        DiscoveryReplica leader = awaitLeader(replicas);
+        Assert.assertTrue(Boolean.TRUE.equals(leader.propose(
+                DiscoveryReplica.addCommand("datastore1", "localhost:8001")).get(Constants.Consensus.COMMITTED)));
+
+        leader.stop();
+        replicas.remove(leader.getReplicaID());
+
+        DiscoveryReplica new_leader = awaitLeader(replicas);
+        Assert.assertTrue(new_leader != null);
+        Assert.assertTrue(new_leader.getTerm() > leader.getTerm());
+
+        // The new leader holds the change committed under the old one and goes on committing with two of three
+        JSONObject result = new_leader.propose(DiscoveryReplica.failCommand("datastore1"));
+        Assert.assertTrue(Boolean.TRUE.equals(result.get(Constants.Consensus.COMMITTED)));
+        Assert.assertTrue(((List) ((JSONObject) result.get(Constants.Tokens.DELTA)).get(
+                Constants.Discovery.FAILED)).contains("datastore1"));
+
+        Thread.sleep(300);
+        for (DiscoveryReplica replica : replicas.values()) {
+
+            Assert.assertTrue(replica.getServerDirectory().getServerLocation("datastore1") == null);
+            Assert.assertTrue(replica.getServerDirectory().getView().getDataStoreIDs().contains("datastore1"));
+        }
+
+        stopReplicas(replicas);
+    }
+
+    @Test
+    public void restartedReplicaShouldKeepItsVote() throws IOException {
+
+        File state_file = new File(createStateDir(), "discovery1.log");
+        DiscoveryReplica replica = new DiscoveryReplica("discovery1", REPLICA_IDS, null,
+                ServerDirectory.getInstance(null, true), 10000, state_file);
+        replica.start();
+        Assert.assertTrue(Boolean.TRUE.equals(replica.handleMessage(buildVoteRequest(5, "discovery2"))
+                .get(Constants.Consensus.GRANTED)));
+        replica.stop();
+
+        // The vote given before the restart still holds for the rest of the term
+        DiscoveryReplica restarted = new DiscoveryReplica("discovery1", REPLICA_IDS, null,
+                ServerDirectory.getInstance(null, true), 10000, state_file);
+        restarted.start();
+        Assert.assertTrue(restarted.getTerm() == 5);
+        Assert.assertFalse(Boolean.TRUE.equals(restarted.handleMessage(buildVoteRequest(5, "discovery3"))
+                .get(Constants.Consensus.GRANTED)));
+        Assert.assertTrue(Boolean.TRUE.equals(restarted.handleMessage(buildVoteRequest(5, "discovery2"))
+                .get(Constants.Consensus.GRANTED)));
+        restarted.stop();
+    }
+
+    @Test
+    public void restartedGroupShouldKeepLogAndEpoch() throws InterruptedException, IOException {
+
+        File state_dir = createStateDir();
+        HashMap<String, DiscoveryReplica> replicas = startReplicas(state_dir);
+
+        DiscoveryReplica leader = awaitLeader(replicas);
+        Assert.assertTrue(Boolean.TRUE.equals(leader.propose(
+                DiscoveryReplica.addCommand("datastore1", "localhost:8001")).get(Constants.Consensus.COMMITTED)));
+        String epoch = leader.getServerDirectory().getEpoch();
+        long version = leader.getServerDirectory().getVersion();
+        stopReplicas(replicas);
+
+        // Every replica rebuilds the same directory, in the same epoch, from the log it saved
+        replicas = startReplicas(state_dir);
+        DiscoveryReplica new_leader = awaitLeader(replicas);
+        Assert.assertTrue(new_leader != null);
+        Assert.assertTrue(new_leader.getTerm() > leader.getTerm());
+
+        Thread.sleep(300);
+        for (DiscoveryReplica replica : replicas.values()) {
+
+            Assert.assertTrue(replica.getServerDirectory().getEpoch().equals(epoch));
+            Assert.assertTrue(replica.getServerDirectory().getVersion() == version);
+            Assert.assertTrue("localhost:8001".equals(replica.getServerDirectory().getServerLocation("datastore1")));
+        }
+
+        stopReplicas(replicas);
+    }
+
+    /**
+     * Starts a group of replicas that reach each other by calling one
+     * another directly, each saving its state in the given directory. A
+     * stopped replica does not answer.
+     */
+    private static HashMap<String, DiscoveryReplica> startReplicas(File state_dir) throws IOException {
+
+        final HashMap<String, DiscoveryReplica> replicas = new HashMap<String, DiscoveryReplica>();
+        DiscoveryTransport transport = new DiscoveryTransport() {
+
+            @Override
+            public JSONObject send(String replica_id, JSONObject message, int timeout) {
+
+                DiscoveryReplica replica;
+                synchronized (replicas) {
+
+                    replica = replicas.get(replica_id);
+                }
+
+                return (replica == null) ? null : replica.handleMessage(message);
+            }
+        };
+
+        synchronized (replicas) {
+
+            for (String replica_id : REPLICA_IDS) {
+
+                replicas.put(replica_id, new DiscoveryReplica(replica_id, REPLICA_IDS, transport,
+                        ServerDirectory.getInstance(null, true), 300, new File(state_dir, replica_id + ".log")));
+            }
+        }
+
+        for (DiscoveryReplica replica : replicas.values()) {
+
+            replica.start();
+        }
+
+        return new HashMap<String, DiscoveryReplica>(replicas);
+    }
+
+    /**
+     * Waits for one of the given replicas to become leader.
+     */
+    private static DiscoveryReplica awaitLeader(HashMap<String, DiscoveryReplica> replicas) throws InterruptedException {
+
+        for (int i = 0; i < 50; i++) {
+
+            for (DiscoveryReplica replica : replicas.values()) {
+
+                if (replica.isLeader()) {
+
+                    return replica;
+                }
+            }
+            Thread.sleep(50);
+        }
+
+        return null;
+    }
+
+    /**
+     * Creates an empty directory for the state files of a test's replicas.
+     */
+    private static File createStateDir() throws IOException {
+
+        File state_dir = File.createTempFile("consensus", "");
+        if (!state_dir.delete() || !state_dir.mkdir()) {
+
+            throw new IOException("Unable to create " + state_dir);
+        }
+        state_dir.deleteOnExit();
+
+        return state_dir;
+    }
+
+    private static JSONObject buildVoteRequest(long term, String candidate_id) {
+
+        JSONObject request = new JSONObject();
+        request.put(Constants.Consensus.TYPE, Constants.Consensus.VOTE);
+        request.put(Constants.Consensus.TERM, term);
+        request.put(Constants.Tokens.SERVERID, candidate_id);
+        request.put(Constants.Consensus.LASTINDEX, 0L);
+        request.put(Constants.Consensus.LASTTERM, 0L);
+
+        return request;
+    }
+
+    private static void stopReplicas(HashMap<String, DiscoveryReplica> replicas) {
+
+        for (DiscoveryReplica replica : replicas.values()) {
+
+            replica.stop();
+        }
+    }
+}
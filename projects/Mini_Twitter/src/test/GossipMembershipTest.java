@@ -0,0 +1,164 @@
+package test;
+
+import main.*;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Tests SWIM style gossip membership among servers in a single process.
+ */
+public class GossipMembershipTest {
+
+    @Test
+    public void membersShouldJoinThroughSeedAndDetectFailure() throws IOException, InterruptedException {
+
+        ServerSocket[] server_sockets = new ServerSocket[3];
+        GossipMembership[] members = new GossipMembership[3];
+        ServerDirectory[] directories = new ServerDirectory[3];
+
+        for (int i = 0; i < 3; i++) {
+
+            server_sockets[i] = new ServerSocket(0);
+        }
+
+        // Every member is seeded with the first member only
+        ArrayList<String> seeds = new ArrayList<String>(
+                Collections.singletonList("localhost:" + server_sockets[0].getLocalPort()));
+
+        for (int i = 0; i < 3; i++) {
+
+            directories[i] = ServerDirectory.getInstance(null, true);
+            members[i] = new GossipMembership("datastore" + (i + 11), "localhost:" + server_sockets[i].getLocalPort(),
+                    directories[i], seeds, 100);
+            startServer(server_sockets[i], members[i]);
+            members[i].start();
+        }
+
+        Thread.sleep(1500);
+        for (int i = 0; i < 3; i++) {
+
+            for (int j = 0; j < 3; j++) {
+
+                Assert.assertTrue(directories[i].getServerLocation("datastore" + (j + 11)) != null);
+            }
+        }
+        Assert.assertTrue(Constants.Gossip.ALIVE.equals(members[1].getState("datastore13")));
+
+        members[2].stop();
+        server_sockets[2].close();
+
+        Thread.sleep(2500);
+        Assert.assertTrue(Constants.Gossip.DEAD.equals(members[0].getState("datastore13")));
+        Assert.assertTrue(Constants.Gossip.DEAD.equals(members[1].getState("datastore13")));
+        Assert.assertTrue(directories[0].getServerLocation("datastore13") == null);
+        Assert.assertTrue(directories[1].getServerLocation("datastore13") == null);
+        Assert.assertTrue(directories[1].getServerLocation("datastore11") != null);
+
+        members[0].stop();
+        members[1].stop();
+        server_sockets[0].close();
+        server_sockets[1].close();
+    }
+
+    @Test
+    public void restartedMemberShouldRejoin() throws IOException, InterruptedException {
+
+        ServerSocket[] server_sockets = new ServerSocket[3];
+        GossipMembership[] members = new GossipMembership[3];
+        ServerDirectory[] directories = new ServerDirectory[3];
+
+        for (int i = 0; i < 3; i++) {
+
+            server_sockets[i] = new ServerSocket(0);
+        }
+
+        ArrayList<String> seeds = new ArrayList<String>(
+                Collections.singletonList("localhost:" + server_sockets[0].getLocalPort()));
+
+        for (int i = 0; i < 3; i++) {
+
+            directories[i] = ServerDirectory.getInstance(null, true);
+            members[i] = new GossipMembership("datastore" + (i + 21), "localhost:" + server_sockets[i].getLocalPort(),
+                    directories[i], seeds, 100);
+            startServer(server_sockets[i], members[i]);
+            members[i].start();
+        }
+
+        Thread.sleep(1500);
+        members[2].stop();
+        server_sockets[2].close();
+
+        Thread.sleep(2500);
+        Assert.assertTrue(Constants.Gossip.DEAD.equals(members[0].getState("datastore23")));
+        Assert.assertTrue(Constants.Gossip.DEAD.equals(members[1].getState("datastore23")));
+
+        // The restarted member has lost its state and rejoins at a new location through the seed
+        server_sockets[2] = new ServerSocket(0);
+        directories[2] = ServerDirectory.getInstance(null, true);
+        members[2] = new GossipMembership("datastore23", "localhost:" + server_sockets[2].getLocalPort(),
+                directories[2], seeds, 100);
+        startServer(server_sockets[2], members[2]);
+        members[2].start();
+
+        Thread.sleep(1500);
+        for (int i = 0; i < 2; i++) {
+
+            Assert.assertTrue(Constants.Gossip.ALIVE.equals(members[i].getState("datastore23")));
+            Assert.assertTrue(("localhost:" + server_sockets[2].getLocalPort())
+                    .equals(directories[i].getServerLocation("datastore23")));
+        }
+        Assert.assertTrue(Constants.Gossip.ALIVE.equals(members[2].getState("datastore21")));
+        Assert.assertTrue(Constants.Gossip.ALIVE.equals(members[2].getState("datastore22")));
+
+        for (int i = 0; i < 3; i++) {
+
+            members[i].stop();
+            server_sockets[i].close();
+        }
+    }
+
+    /**
+     * Starts a server handing every gossip message to the given member until
+     * its socket is closed.
+     */
+    private static void startServer(final ServerSocket server_socket, final GossipMembership member) {
+
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+
+                while (!server_socket.isClosed()) {
+
+                    try {
+
+                        final Socket socket = server_socket.accept();
+                        Thread handler = new Thread() {
+                            @Override
+                            public void run() {
+
+                                try {
+
+                                    JSONObject reply = member.handleMessage(SystemUtility.readSocket(socket).getBody());
+                                    socket.getOutputStream().write(
+                                            SystemUtility.buildResponse(Constants.Codes.OK, reply).toString().getBytes());
+                                    socket.close();
+                                } catch (IOException ignored) {}
+                            }
+                        };
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException ignored) {}
+                }
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+    }
+}
@@ -0,0 +1,72 @@
+package test;
+
+import main.HashRing;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests placement on the consistent-hash ring and the keys moved when a
+ * server joins or leaves it.
+ */
+public class HashRingTest {
+
+    @Test
+    public void ringShouldNotDependOnOrderOfChanges() {
+
+        HashRing ring = new HashRing(16).withServer("datastore1").withServer("datastore2").withServer("datastore3");
+        HashRing other_ring = new HashRing(16).withServer("datastore4").withServer("datastore3")
+                .withServer("datastore2").withServer("datastore1").withoutServer("datastore4");
+
+        Assert.assertTrue(ring.getServerIDs().equals(other_ring.getServerIDs()));
+        for (int key = 0; key < 200; key++) {
+
+            long position = HashRing.getPosition("key" + key);
+            Assert.assertTrue(ring.getOwners(position, 3).equals(other_ring.getOwners(position, 3)));
+        }
+
+        Assert.assertTrue(ring.withServer("datastore1") == ring);
+        Assert.assertTrue(ring.withoutServer("datastore9") == ring);
+        Assert.assertTrue(new HashRing(16).getOwners(0, 2).isEmpty());
+    }
+
+    @Test
+    public void joiningServerShouldOnlyTakeKeys() {
+
+        HashRing ring = new HashRing(64);
+        for (int i = 1; i <= 4; i++) {
+
+            ring = ring.withServer("datastore" + i);
+        }
+        HashRing joined_ring = ring.withServer("datastore5");
+
+        int moved_keys = 0;
+        for (int key = 0; key < 1000; key++) {
+
+            long position = HashRing.getPosition("key" + key);
+            List<String> owners = ring.getOwners(position, 2);
+            List<String> joined_owners = joined_ring.getOwners(position, 2);
+            Assert.assertTrue(owners.size() == 2 && joined_owners.size() == 2);
+
+            // Owners only change by the new server taking a place
+            if (!owners.equals(joined_owners)) {
+
+                moved_keys++;
+                Assert.assertTrue(joined_owners.contains("datastore5"));
+                List<String> kept_owners = new ArrayList<String>(joined_owners);
+                kept_owners.remove("datastore5");
+                Assert.assertTrue(owners.containsAll(kept_owners));
+            }
+
+            // The full walk keeps the order of the other servers
+            List<String> walk = new ArrayList<String>(joined_ring.getOwners(position, Integer.MAX_VALUE));
+            walk.remove("datastore5");
+            Assert.assertTrue(walk.equals(ring.getOwners(position, Integer.MAX_VALUE)));
+        }
+
+        // A fifth server takes roughly two fifths of the places of a replication factor of two
+        Assert.assertTrue(moved_keys > 200 && moved_keys < 600);
+    }
+}
@@ -0,0 +1,85 @@
+package test;
+
+import main.*;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Tests parsing and normalization of boolean hashtag queries.
+ */
+public class HashtagQueryTest {
+
+    @Test
+    public void singleHashtagShouldNormalizeToItself() throws HTTPRequestException {
+
+        HashtagQuery query = HashtagQuery.parse("tweet");
+
+        Assert.assertTrue(query.isSingleTerm());
+        Assert.assertTrue(query.toString().equals("tweet"));
+    }
+
+    @Test
+    public void hashtagWithoutSpacesShouldBeLiteral() throws HTTPRequestException {
+
+        for (String hashtag : Arrays.asList("c++", "a+b", "a+AND+b", "OR", "NOT")) {
+
+            HashtagQuery query = HashtagQuery.parse(hashtag);
+
+            Assert.assertTrue(query.isSingleTerm());
+            Assert.assertTrue(query.getTerms().equals(Arrays.asList(hashtag)));
+            Assert.assertTrue(query.toString().equals(hashtag));
+        }
+    }
+
+    @Test
+    public void queryShouldSurviveRequestLine() throws HTTPRequestException {
+
+        for (String query : Arrays.asList("c++ AND NOT 100%", "a+b", "news OR #tag")) {
+
+            HashMap<String, String> query_params = new HashMap<String, String>();
+            query_params.put(Constants.Tokens.QUERY, query);
+            String request_line = SystemUtility.buildRequest(HTTPConstants.HTTPMethod.GET, Constants.Tokens.TWEETS,
+                    query_params, new JSONObject()).toString().split("\r?\n")[0];
+
+            Assert.assertTrue(HTTPRequestLineParser.parse(request_line).getParameter(Constants.Tokens.QUERY).equals(query));
+        }
+    }
+
+    @Test
+    public void equivalentQueriesShouldNormalizeIdentically() throws HTTPRequestException {
+
+        String first = HashtagQuery.parse("news AND sports AND NOT golf OR breaking").toString();
+        String second = HashtagQuery.parse("breaking OR NOT golf sports news").toString();
+
+        Assert.assertTrue(first.equals(second));
+        Assert.assertTrue(first.equals("breaking OR news AND sports AND NOT golf"));
+    }
+
+    @Test
+    public void termsShouldIncludeExcludedHashtags() throws HTTPRequestException {
+
+        HashtagQuery query = HashtagQuery.parse("b AND NOT c OR a");
+
+        Assert.assertFalse(query.isSingleTerm());
+        Assert.assertTrue(query.getTerms().equals(Arrays.asList("a", "b", "c")));
+    }
+
+    @Test
+    public void invalidQueriesShouldBeRejected() {
+
+        String[] invalid_queries = {"", "AND a", "a OR", "NOT a", "a OR NOT b", "a  b", "a NOT NOT b"};
+
+        for (String invalid_query : invalid_queries) {
+
+            try {
+
+                HashtagQuery.parse(invalid_query);
+                Assert.fail("Exception expected for query: " + invalid_query);
+            } catch (HTTPRequestException ignored) { }
+        }
+    }
+}
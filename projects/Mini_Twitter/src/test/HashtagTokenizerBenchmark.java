@@ -0,0 +1,81 @@
+package test;
+
+import main.HashtagTokenizer;
+import org.json.simple.JSONArray;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A program for comparing the throughput of the single-pass hashtag
+ * tokenizer with the regular expression it replaced on the post path.
+ *
+ * Usage: java test.HashtagTokenizerBenchmark [iterations]
+ */
+public class HashtagTokenizerBenchmark {
+
+    private static final String[] WORDS = {"the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog",
+            "#news", "#sports", "#java", "#news", "@someone", "#weather"};
+
+    public static void main(String[] args) {
+
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        String[] tweets = buildTweets(1024);
+
+        // Warm up both implementations before measuring
+        run("regex", tweets, iterations / 10, false);
+        run("tokenizer", tweets, iterations / 10, true);
+
+        run("regex", tweets, iterations, false);
+        run("tokenizer", tweets, iterations, true);
+    }
+
+    private static void run(String name, String[] tweets, int iterations, boolean use_tokenizer) {
+
+        long tag_count = 0;
+        long start_time = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++) {
+
+            String tweet = tweets[i & (tweets.length - 1)];
+            JSONArray hashtags = use_tokenizer ? HashtagTokenizer.extractHashtags(tweet) : extractWithRegex(tweet);
+            tag_count += hashtags.size();
+        }
+
+        long elapsed_time = System.nanoTime() - start_time;
+        System.out.println(name + ": " + (elapsed_time / iterations) + " ns/op (" + tag_count + " tags)");
+    }
+
+    private static JSONArray extractWithRegex(String tweet) {
+
+        Matcher hashtag_matcher = Pattern.compile("#(\\S)+").matcher(tweet);
+        JSONArray hashtags = new JSONArray();
+
+        while (hashtag_matcher.find()) {
+
+            hashtags.add(hashtag_matcher.group().substring(1));
+        }
+
+        return hashtags;
+    }
+
+    private static String[] buildTweets(int count) {
+
+        Random random = new Random(42);
+        String[] tweets = new String[count];
+
+        for (int i = 0; i < count; i++) {
+
+            StringBuilder tweet_builder = new StringBuilder();
+            int word_count = 5 + random.nextInt(20);
+            for (int j = 0; j < word_count; j++) {
+
+                tweet_builder.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            tweets[i] = tweet_builder.toString();
+        }
+
+        return tweets;
+    }
+}
@@ -0,0 +1,72 @@
+package test;
+
+import main.HashtagTokenizer;
+import org.json.simple.JSONArray;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests single-pass extraction of hashtags and mentions from tweets.
+ */
+public class HashtagTokenizerTest {
+
+    @Test
+    public void tokenizerShouldMatchRegularExpression() {
+
+        String[] tweets = {
+                "Hello #world",
+                "#start middle #end",
+                "no tags at all",
+                "bare # sigil and #tag",
+                "#a#b joined ##double",
+                "tabs\t#tab\nnewline #line\r\n",
+                "#",
+                "trailing #",
+                "#unicode\u00e9 and #punct!?"
+        };
+
+        for (String tweet : tweets) {
+
+            Assert.assertTrue(tweet, HashtagTokenizer.extractHashtags(tweet).equals(extractWithRegex(tweet)));
+        }
+    }
+
+    @Test
+    public void repeatedTagsShouldBeDropped() {
+
+        JSONArray hashtags = HashtagTokenizer.extractHashtags("#one #two #one #three #two");
+
+        Assert.assertTrue(hashtags.equals(Arrays.asList("one", "two", "three")));
+    }
+
+    @Test
+    public void sigilShouldSelectTagType() {
+
+        String tweet = "@alice meet @bob at #lunch with @alice";
+
+        Assert.assertTrue(HashtagTokenizer.extract(tweet, HashtagTokenizer.MENTION)
+                .equals(Arrays.asList("alice", "bob")));
+        Assert.assertTrue(HashtagTokenizer.extractHashtags(tweet).equals(Arrays.asList("lunch")));
+    }
+
+    private static JSONArray extractWithRegex(String tweet) {
+
+        Matcher hashtag_matcher = Pattern.compile("#(\\S)+").matcher(tweet);
+        LinkedHashSet<String> hashtags = new LinkedHashSet<String>();
+
+        while (hashtag_matcher.find()) {
+
+            hashtags.add(hashtag_matcher.group().substring(1));
+        }
+
+        JSONArray hashtag_array = new JSONArray();
+        hashtag_array.addAll(hashtags);
+
+        return hashtag_array;
+    }
+}
@@ -0,0 +1,133 @@
+package test;
+
+import main.*;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+
+/**
+ * Tests heart beat monitoring of data store servers from the shared
+ * scheduler.
+ */
+public class HeartbeatSchedulerTest {
+
+    @Test
+    public void serverShouldFailOnceSuspicionReachesThreshold() throws IOException, InterruptedException {
+
+        ServerSocket server_socket = startServer();
+
+        HashMap<String, String> mapping = new HashMap<String, String>();
+        mapping.put("datastore6", "localhost:" + server_socket.getLocalPort());
+        ServerDirectory server_directory = ServerDirectory.getInstance(mapping, true);
+
+        HeartbeatScheduler heartbeat_scheduler = new HeartbeatScheduler(server_directory, 0, 100, 8.0);
+        heartbeat_scheduler.startMonitor("datastore6");
+
+        Thread.sleep(500);
+        Assert.assertTrue(heartbeat_scheduler.isMonitored("datastore6"));
+        Assert.assertTrue(heartbeat_scheduler.getMissedBeats("datastore6") == 0);
+        Assert.assertTrue(heartbeat_scheduler.getPhi("datastore6") < 1.0);
+
+        server_socket.close();
+
+        Thread.sleep(1000);
+        Assert.assertFalse(heartbeat_scheduler.isMonitored("datastore6"));
+        Assert.assertTrue(heartbeat_scheduler.getMissedBeats("datastore6") > 1);
+        Assert.assertTrue(heartbeat_scheduler.getPhi("datastore6") >= 8.0);
+        Assert.assertTrue(server_directory.getServerLocation("datastore6") == null);
+
+        heartbeat_scheduler.shutdown();
+    }
+
+    @Test
+    public void failedServerShouldBeMonitoredAgainWhenItReturns() throws IOException, InterruptedException {
+
+        HashMap<String, String> mapping = new HashMap<String, String>();
+        mapping.put("datastore7", "localhost:1");
+        ServerDirectory server_directory = ServerDirectory.getInstance(mapping, true);
+
+        HeartbeatScheduler heartbeat_scheduler = new HeartbeatScheduler(server_directory, 0, 100, 8.0);
+        heartbeat_scheduler.startMonitor("datastore7");
+
+        Thread.sleep(1000);
+        Assert.assertFalse(heartbeat_scheduler.isMonitored("datastore7"));
+
+        ServerSocket server_socket = startServer();
+        server_directory.addServer("datastore7", "localhost:" + server_socket.getLocalPort());
+        heartbeat_scheduler.startMonitor("datastore7");
+
+        Thread.sleep(500);
+        Assert.assertTrue(heartbeat_scheduler.isMonitored("datastore7"));
+
+        heartbeat_scheduler.shutdown();
+        server_socket.close();
+    }
+
+    @Test
+    public void reportedLivenessShouldReplaceHeartBeats() throws IOException, InterruptedException {
+
+        ServerSocket server_socket = startServer();
+
+        HashMap<String, String> mapping = new HashMap<String, String>();
+        mapping.put("datastore8", "localhost:" + server_socket.getLocalPort());
+        ServerDirectory server_directory = ServerDirectory.getInstance(mapping, true);
+
+        HeartbeatScheduler heartbeat_scheduler = new HeartbeatScheduler(server_directory, 0, 100, 8.0);
+        heartbeat_scheduler.startMonitor("datastore8");
+
+        // Report replication traffic more often than the beat interval
+        Thread.sleep(50);
+        for (int i = 0; i < 25; i++) {
+
+            heartbeat_scheduler.recordLiveness("datastore8", System.currentTimeMillis());
+            Thread.sleep(30);
+        }
+        Assert.assertTrue(heartbeat_scheduler.isMonitored("datastore8"));
+        Assert.assertTrue(heartbeat_scheduler.getHeartBeatsSent("datastore8") <= 2);
+
+        // Once the reports stop, heart beats resume and detect the failure
+        server_socket.close();
+
+        Thread.sleep(1000);
+        Assert.assertFalse(heartbeat_scheduler.isMonitored("datastore8"));
+        Assert.assertTrue(heartbeat_scheduler.getHeartBeatsSent("datastore8") > 2);
+
+        heartbeat_scheduler.shutdown();
+    }
+
+    /**
+     * Starts a server answering every heart beat until its socket is closed.
+     */
+    private static ServerSocket startServer() throws IOException {
+
+        final ServerSocket server_socket = new ServerSocket(0);
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+
+                while (!server_socket.isClosed()) {
+
+                    try {
+
+                        Socket socket = server_socket.accept();
+                        SystemUtility.readSocket(socket);
+                        JSONObject response_body = new JSONObject();
+                        response_body.put(Constants.Tokens.STATUS, Constants.Messages.OK);
+                        socket.getOutputStream().write(
+                                SystemUtility.buildResponse(Constants.Codes.OK, response_body).toString().getBytes());
+                        socket.close();
+                    } catch (IOException ignored) {}
+                }
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+
+        return server_socket;
+    }
+}
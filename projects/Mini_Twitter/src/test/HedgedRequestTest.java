@@ -0,0 +1,97 @@
+package test;
+
+import main.*;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+
+/**
+ * Tests hedging of search requests to a second data store server.
+ */
+public class HedgedRequestTest {
+
+    @Test
+    public void slowPrimaryShouldBeHedged() throws IOException {
+
+        ServerSocket slow_server = startServer(2000, "slow");
+        ServerSocket fast_server = startServer(0, "fast");
+
+        HashMap<String, String> mapping = new HashMap<String, String>();
+        mapping.put("datastore6", "localhost:" + slow_server.getLocalPort());
+        mapping.put("datastore7", "localhost:" + fast_server.getLocalPort());
+        ServerDirectory server_directory = ServerDirectory.getInstance(mapping, true);
+
+        DataStoreRouter router = DataStoreRouter.getInstance();
+        router.refresh(server_directory);
+
+        long start_time = System.currentTimeMillis();
+        HTTPObject response = new HedgedRequest(buildRequest(), TestTimestamps.buildTimestamp("1"), router,
+                server_directory).send("datastore6", 50);
+
+        Assert.assertTrue(response.getBody().get(Constants.Tokens.SERVERID).equals("fast"));
+        Assert.assertTrue(System.currentTimeMillis() - start_time < 1500);
+
+        slow_server.close();
+        fast_server.close();
+    }
+
+    @Test
+    public void staleResponseShouldNotBeAccepted() {
+
+        HTTPObject response = buildResponse("stale", TestTimestamps.buildTimestamp("1"));
+
+        Assert.assertTrue(HedgedRequest.isAcceptable(response, TestTimestamps.buildTimestamp("1")));
+        Assert.assertFalse(HedgedRequest.isAcceptable(response, TestTimestamps.buildTimestamp("2")));
+        Assert.assertTrue(HedgedRequest.isAcceptable(SystemUtility.buildResponse(Constants.Codes.NOTMODIFIED,
+                new JSONObject()), TestTimestamps.buildTimestamp("2")));
+        Assert.assertFalse(HedgedRequest.isAcceptable(null, TestTimestamps.buildTimestamp("1")));
+    }
+
+    private static ServerSocket startServer(final long delay, final String server_id) throws IOException {
+
+        final ServerSocket server_socket = new ServerSocket(0);
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+
+                try {
+
+                    Socket socket = server_socket.accept();
+                    SystemUtility.readSocket(socket);
+                    Thread.sleep(delay);
+                    socket.getOutputStream().write(
+                            buildResponse(server_id, TestTimestamps.buildTimestamp("1")).toString().getBytes());
+                    socket.close();
+                } catch (Exception ignored) {}
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+
+        return server_socket;
+    }
+
+    private static String buildRequest() {
+
+        HashMap<String, String> query_params = new HashMap<String, String>();
+        query_params.put(Constants.Tokens.QUERY, "hedge");
+        query_params.put(Constants.Tokens.VERSIONNUM, "");
+
+        return SystemUtility.buildRequest(HTTPConstants.HTTPMethod.GET, Constants.Tokens.TWEETS,
+                query_params, new JSONObject()).toString();
+    }
+
+    private static HTTPObject buildResponse(String server_id, VectorTimestamp timestamp) {
+
+        JSONObject response_body = new JSONObject();
+        response_body.put(Constants.Tokens.SERVERID, server_id);
+        response_body.put(Constants.Tokens.TIMESTAMP, timestamp.toJSONObject());
+
+        return SystemUtility.buildResponse(Constants.Codes.OK, response_body);
+    }
+}
@@ -0,0 +1,67 @@
+package test;
+
+import main.PersistentMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the persistent hash map backing the data store.
+ */
+public class PersistentMapTest {
+
+    @Test
+    public void putShouldLeaveEarlierVersionsUnchanged() {
+
+        PersistentMap<String, String> first = PersistentMap.<String, String>empty().put("a", "1");
+        PersistentMap<String, String> second = first.put("b", "2");
+        PersistentMap<String, String> third = second.put("a", "3");
+
+        Assert.assertTrue(first.size() == 1 && first.get("a").equals("1") && first.get("b") == null);
+        Assert.assertTrue(second.size() == 2 && second.get("a").equals("1") && second.get("b").equals("2"));
+        Assert.assertTrue(third.size() == 2 && third.get("a").equals("3"));
+        Assert.assertTrue(third.put("a", third.get("a")) == third);
+    }
+
+    @Test
+    public void collidingKeysShouldBeKeptApart() {
+
+        // "Aa" and "BB" have the same hash code
+        PersistentMap<String, String> map = PersistentMap.<String, String>empty().put("Aa", "1").put("BB", "2");
+
+        Assert.assertTrue(map.size() == 2);
+        Assert.assertTrue(map.get("Aa").equals("1") && map.get("BB").equals("2"));
+        Assert.assertTrue(map.put("BB", "3").get("BB").equals("3"));
+        Assert.assertTrue(map.put("C#", "4").size() == 3);
+        Assert.assertFalse(map.containsKey("C#"));
+    }
+
+    @Test
+    public void manyKeysShouldAllBeFoundAndIterated() {
+
+        PersistentMap<String, Integer> map = PersistentMap.empty();
+        HashMap<String, Integer> expected = new HashMap<String, Integer>();
+        for (int i = 0; i < 10000; i++) {
+
+            map = map.put("key" + i, i);
+            expected.put("key" + i, i);
+        }
+
+        Assert.assertTrue(map.size() == 10000);
+        for (int i = 0; i < 10000; i++) {
+
+            Assert.assertTrue(map.get("key" + i) == i);
+        }
+
+        int count = 0;
+        for (Map.Entry<String, Integer> entry : map) {
+
+            Assert.assertTrue(expected.get(entry.getKey()).equals(entry.getValue()));
+            count++;
+        }
+        Assert.assertTrue(count == 10000);
+        Assert.assertTrue(map.toHashMap().equals(expected));
+    }
+}
@@ -0,0 +1,62 @@
+package test;
+
+import main.PhiAccrualDetector;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the suspicion levels reported by the accrual failure detector.
+ */
+public class PhiAccrualDetectorTest {
+
+    @Test
+    public void suspicionShouldGrowWithSilence() {
+
+        PhiAccrualDetector detector = new PhiAccrualDetector(1000, 100, 100, 0);
+        long now = 0;
+        for (int i = 0; i < 20; i++) {
+
+            detector.heartBeat(now);
+            now += 1000;
+        }
+        long last_heart_beat = now - 1000;
+
+        Assert.assertTrue(detector.phi(last_heart_beat + 500) < 0.1);
+        Assert.assertTrue(detector.phi(last_heart_beat + 1000) < 1.0);
+        Assert.assertTrue(detector.phi(last_heart_beat + 1500) > detector.phi(last_heart_beat + 1200));
+        Assert.assertTrue(detector.phi(last_heart_beat + 2000) > 8.0);
+    }
+
+    @Test
+    public void irregularHeartBeatsShouldBeGivenMoreTime() {
+
+        PhiAccrualDetector regular_detector = new PhiAccrualDetector(1000, 100, 100, 0);
+        PhiAccrualDetector irregular_detector = new PhiAccrualDetector(1000, 100, 100, 0);
+        long regular_now = 0;
+        long irregular_now = 0;
+        for (int i = 0; i < 20; i++) {
+
+            regular_detector.heartBeat(regular_now);
+            irregular_detector.heartBeat(irregular_now);
+            regular_now += 1000;
+            irregular_now += (i % 2 == 0) ? 200 : 1800;
+        }
+
+        Assert.assertTrue(Math.abs(irregular_detector.getMeanInterval() - regular_detector.getMeanInterval()) < 100);
+        Assert.assertTrue(irregular_detector.phi(irregular_detector.getLastHeartBeat() + 2000) <
+                regular_detector.phi(regular_detector.getLastHeartBeat() + 2000));
+    }
+
+    @Test
+    public void acceptablePauseShouldDelaySuspicion() {
+
+        PhiAccrualDetector detector = new PhiAccrualDetector(1000, 100, 100, 0);
+        PhiAccrualDetector pausing_detector = new PhiAccrualDetector(1000, 100, 100, 1000);
+        detector.start(0);
+        pausing_detector.start(0);
+
+        Assert.assertTrue(detector.phi(2000) > 8.0);
+        Assert.assertTrue(pausing_detector.phi(2000) < 1.0);
+        Assert.assertTrue(detector.phi(-1) < 0.1);
+    }
+}
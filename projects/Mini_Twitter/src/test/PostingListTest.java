@@ -0,0 +1,73 @@
+package test;
+
+import main.PostingList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the per-hashtag posting lists used to build delta and boolean search
+ * results.
+ */
+public class PostingListTest {
+
+    @Test
+    public void entriesSinceVersionShouldReturnOnlyLaterEntries() {
+
+        PostingList posting_list = new PostingList();
+        posting_list.append("first", 1);
+        posting_list.append("second", 2);
+        posting_list.append("third", 2);
+        posting_list.append("fourth", 4);
+
+        Assert.assertTrue(posting_list.getEntriesSince(0).equals(Arrays.asList("first", "second", "third", "fourth")));
+        Assert.assertTrue(posting_list.getEntriesSince(1).equals(Arrays.asList("second", "third", "fourth")));
+        Assert.assertTrue(posting_list.getEntriesSince(3).equals(Arrays.asList("fourth")));
+        Assert.assertTrue(posting_list.getEntriesSince(4).isEmpty());
+    }
+
+    @Test
+    public void intersectShouldKeepCommonEntries() {
+
+        List<String> first = Arrays.asList("a", "c", "e", "g", "i", "k", "m", "o");
+        List<String> second = Arrays.asList("c", "k", "z");
+
+        Assert.assertTrue(PostingList.intersect(first, second).equals(Arrays.asList("c", "k")));
+        Assert.assertTrue(PostingList.intersect(second, first).equals(Arrays.asList("c", "k")));
+        Assert.assertTrue(PostingList.intersect(first, new ArrayList<String>()).isEmpty());
+    }
+
+    @Test
+    public void subtractAndUnionShouldPreserveSortedOrder() {
+
+        List<String> first = Arrays.asList("a", "b", "d", "f");
+        List<String> second = Arrays.asList("b", "c", "f");
+
+        Assert.assertTrue(PostingList.subtract(first, second).equals(Arrays.asList("a", "d")));
+        Assert.assertTrue(PostingList.union(first, second).equals(Arrays.asList("a", "b", "c", "d", "f")));
+    }
+
+    @Test
+    public void sortedEntriesShouldFollowAppends() {
+
+        PostingList posting_list = new PostingList();
+        posting_list.append("m", 1);
+        posting_list.append("c", 2);
+        List<String> sorted_entries = posting_list.getSortedEntries();
+        Assert.assertTrue(sorted_entries.equals(Arrays.asList("c", "m")));
+
+        posting_list.append("x", 3);
+        posting_list.append("a", 3);
+        posting_list.append("c", 4);
+
+        Assert.assertTrue(posting_list.getSortedEntries().equals(Arrays.asList("a", "c", "c", "m", "x")));
+        Assert.assertTrue(posting_list.getEntriesSince(2).equals(Arrays.asList("x", "a", "c")));
+
+        posting_list.appendAll(Arrays.asList("z", "b", "m"), 5);
+        Assert.assertTrue(posting_list.getSortedEntries().equals(Arrays.asList("a", "b", "c", "c", "m", "m", "x", "z")));
+        Assert.assertTrue(posting_list.getEntriesSince(4).equals(Arrays.asList("z", "b", "m")));
+    }
+}
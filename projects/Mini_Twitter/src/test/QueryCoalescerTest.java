@@ -0,0 +1,83 @@
+package test;
+
+import main.*;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests sharing of in-flight cache validations between front end workers.
+ */
+public class QueryCoalescerTest {
+
+    @Test
+    public void concurrentIdenticalQueryShouldShareLeaderResponse() throws InterruptedException {
+
+        final QueryCoalescer coalescer = new QueryCoalescer();
+        final VectorTimestamp timestamp = TestTimestamps.buildTimestamp("1");
+        final CountDownLatch follower_joined = new CountDownLatch(1);
+
+        QueryCoalescer.InFlightQuery leader_query = coalescer.join("shared", timestamp);
+        Assert.assertTrue(leader_query.isLeader());
+
+        final HTTPObject[] follower_response = new HTTPObject[1];
+        final boolean[] follower_led = new boolean[1];
+        Thread follower = new Thread() {
+            @Override
+            public void run() {
+
+                QueryCoalescer.InFlightQuery follower_query = coalescer.join("shared", timestamp);
+                follower_led[0] = follower_query.isLeader();
+                follower_joined.countDown();
+                if (!follower_led[0]) {
+
+                    follower_response[0] = follower_query.awaitResponse();
+                }
+            }
+        };
+        follower.start();
+
+        // The leader's validation is held open until the follower has joined it
+        HTTPObject response = SystemUtility.buildResponse(Constants.Codes.NOTMODIFIED, new JSONObject());
+        follower_joined.await();
+        coalescer.complete(leader_query, response);
+        follower.join();
+
+        Assert.assertFalse(follower_led[0]);
+        Assert.assertTrue(follower_response[0] == response);
+    }
+
+    @Test
+    public void newerTimestampShouldNotJoinOlderValidation() {
+
+        QueryCoalescer coalescer = new QueryCoalescer();
+
+        QueryCoalescer.InFlightQuery older_query = coalescer.join("fresh", TestTimestamps.buildTimestamp("1"));
+        QueryCoalescer.InFlightQuery newer_query = coalescer.join("fresh", TestTimestamps.buildTimestamp("2"));
+
+        Assert.assertTrue(older_query.isLeader());
+        Assert.assertTrue(newer_query.isLeader());
+        Assert.assertTrue(older_query != newer_query);
+
+        coalescer.complete(newer_query, null);
+        coalescer.complete(older_query, null);
+    }
+
+    @Test
+    public void completedValidationShouldNotBeJoined() {
+
+        QueryCoalescer coalescer = new QueryCoalescer();
+        VectorTimestamp timestamp = TestTimestamps.buildTimestamp("1");
+
+        QueryCoalescer.InFlightQuery first_query = coalescer.join("done", timestamp);
+        coalescer.complete(first_query, null);
+        QueryCoalescer.InFlightQuery second_query = coalescer.join("done", timestamp);
+
+        Assert.assertTrue(first_query != second_query);
+        Assert.assertTrue(second_query.isLeader());
+
+        coalescer.complete(second_query, null);
+    }
+}
@@ -0,0 +1,236 @@
+package test;
+
+import main.Constants;
+import main.DirectoryView;
+import main.HTTPRequestException;
+import main.HashtagQuery;
+import main.ServerDirectory;
+import main.ShardRebalancer;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+/**
+ * Tests the versioned deltas built by the directory master and their
+ * application to copies of the directory.
+ */
+public class ServerDirectoryTest {
+
+    @Test
+    public void changesShouldBeDescribedByDeltas() {
+
+        ServerDirectory master = ServerDirectory.getInstance(null, true);
+
+        JSONObject added = master.addServer("datastore1", "localhost:8001");
+        Assert.assertTrue(((Map) added.get(Constants.Discovery.ADDED)).get("datastore1").equals("localhost:8001"));
+        Assert.assertTrue(((Number) added.get(Constants.Discovery.VERSION)).longValue() == 1);
+        Assert.assertTrue(master.addServer("datastore1", "localhost:8001") == null);
+
+        JSONObject failed = master.setServerFailed("datastore1");
+        Assert.assertTrue(((List) failed.get(Constants.Discovery.FAILED)).contains("datastore1"));
+        Assert.assertTrue(master.setServerFailed("datastore1") == null);
+
+        JSONObject recovered = master.addServer("datastore1", "localhost:8002");
+        Assert.assertTrue(((Map) recovered.get(Constants.Discovery.RECOVERED)).get("datastore1").equals("localhost:8002"));
+        Assert.assertTrue(master.getVersion() == 3);
+    }
+
+    @Test
+    public void copyShouldDetectMissedDelta() {
+
+        ServerDirectory master = ServerDirectory.getInstance(null, true);
+        ServerDirectory copy = ServerDirectory.getInstance(null, true);
+        copy.updateDirectoryMapping(new JSONObject(), 0, master.getEpoch());
+
+        JSONObject first = master.addServer("datastore1", "localhost:8001");
+        JSONObject second = master.addServer("datastore2", "localhost:8002");
+        JSONObject third = master.setServerFailed("datastore1");
+
+        Assert.assertTrue(copy.applyDelta(first));
+        Assert.assertFalse(copy.applyDelta(third));
+        Assert.assertTrue(copy.getVersion() == 1);
+
+        Assert.assertTrue(copy.applyDelta(second));
+        Assert.assertTrue(copy.applyDelta(third));
+        Assert.assertTrue(copy.getServerLocation("datastore1") == null);
+        Assert.assertTrue(copy.getServerLocation("datastore2").equals("localhost:8002"));
+
+        // Deltas arriving after the copy has moved past them are ignored
+        Assert.assertTrue(copy.applyDelta(first));
+        Assert.assertTrue(copy.getServerLocation("datastore1") == null);
+        Assert.assertTrue(copy.getVersion() == 3);
+    }
+
+    @Test
+    public void completeCopyShouldNotMoveDirectoryBack() {
+
+        ServerDirectory master = ServerDirectory.getInstance(null, true);
+        ServerDirectory copy = ServerDirectory.getInstance(null, true);
+
+        master.addServer("datastore1", "localhost:8001");
+        JSONObject old_copy = master.toVersionedJSONObject();
+        master.setServerFailed("datastore1");
+        JSONObject new_copy = master.toVersionedJSONObject();
+
+        copy.updateDirectoryMapping((JSONObject) new_copy.get(Constants.Discovery.SERVERS),
+                ((Number) new_copy.get(Constants.Discovery.VERSION)).longValue(),
+                (String) new_copy.get(Constants.Discovery.EPOCH));
+        copy.updateDirectoryMapping((JSONObject) old_copy.get(Constants.Discovery.SERVERS),
+                ((Number) old_copy.get(Constants.Discovery.VERSION)).longValue(),
+                (String) old_copy.get(Constants.Discovery.EPOCH));
+
+        Assert.assertTrue(copy.getVersion() == 2);
+        Assert.assertTrue(copy.getServerLocation("datastore1") == null);
+        Assert.assertTrue(copy.applyDelta(master.addServer("datastore2", "localhost:8002")));
+    }
+
+    @Test
+    public void restartedMasterShouldStartNewEpoch() {
+
+        ServerDirectory master = ServerDirectory.getInstance(null, true);
+        ServerDirectory copy = ServerDirectory.getInstance(null, true);
+        copy.updateDirectoryMapping(new JSONObject(), 0, master.getEpoch());
+        for (int i = 1; i <= 3; i++) {
+
+            Assert.assertTrue(copy.applyDelta(master.addServer("datastore" + i, "localhost:800" + i)));
+        }
+
+        // The restarted master counts versions from 0 again, so its deltas fall behind the copy's version
+        ServerDirectory restarted_master = ServerDirectory.getInstance(null, true);
+        Assert.assertFalse(restarted_master.getEpoch().equals(master.getEpoch()));
+        restarted_master.addServer("datastore1", "localhost:8001");
+        Assert.assertFalse(copy.applyDelta(restarted_master.addServer("datastore4", "localhost:8004")));
+
+        JSONObject restarted_copy = restarted_master.toVersionedJSONObject();
+        copy.updateDirectoryMapping((JSONObject) restarted_copy.get(Constants.Discovery.SERVERS),
+                ((Number) restarted_copy.get(Constants.Discovery.VERSION)).longValue(),
+                (String) restarted_copy.get(Constants.Discovery.EPOCH));
+
+        Assert.assertTrue(copy.getVersion() == 2);
+        Assert.assertTrue(copy.getEpoch().equals(restarted_master.getEpoch()));
+        Assert.assertTrue(copy.getServerLocation("datastore4").equals("localhost:8004"));
+        Assert.assertTrue(copy.getServerLocation("datastore2").equals("localhost:8002"));
+
+        Assert.assertTrue(copy.applyDelta(restarted_master.setServerFailed("datastore4")));
+        Assert.assertTrue(copy.getServerLocation("datastore4") == null);
+    }
+
+    @Test
+    public void viewShouldIndexServersAndStayUnchanged() {
+
+        ServerDirectory directory = ServerDirectory.getInstance(null, true);
+        directory.addServer("frontend1", "localhost:7001");
+        directory.addServer("datastore2", "localhost:8002");
+        directory.addServer("datastore1", "localhost:8001");
+        directory.setServerFailed("datastore2");
+
+        DirectoryView view = directory.getView();
+        Assert.assertTrue(view.getDataStoreIDs().equals(Arrays.asList("datastore1", "datastore2")));
+        Assert.assertTrue(view.getLiveDataStoreIDs().equals(Arrays.asList("datastore1")));
+        Assert.assertTrue(view.getLiveFrontEndIDs().equals(Arrays.asList("frontend1")));
+        Assert.assertTrue(view.getSlot("datastore2") == 1);
+        Assert.assertTrue(view.getSlot("datastore9") == -1);
+
+        directory.addServer("datastore2", "localhost:8003");
+
+        Assert.assertTrue(view.getLocation("datastore2") == null);
+        Assert.assertTrue(view.getVersion() == 4);
+        Assert.assertTrue(directory.getView().getLiveDataStoreIDs().equals(Arrays.asList("datastore1", "datastore2")));
+        Assert.assertTrue(directory.getServerLocation("datastore2").equals("localhost:8003"));
+    }
+
+    @Test
+    public void shardRankingShouldOnlyChangeForChangedServer() {
+
+        ServerDirectory directory = ServerDirectory.getInstance(null, true);
+        for (int i = 1; i <= 4; i++) {
+
+            directory.addServer("datastore" + i, "localhost:800" + i);
+        }
+        DirectoryView before = directory.getView();
+
+        directory.setServerFailed("datastore2");
+        directory.addServer("datastore5", "localhost:8005");
+        DirectoryView after = directory.getView();
+
+        for (int shard = 0; shard < Constants.Sharding.SHARDS; shard++) {
+
+            List<String> expected = new ArrayList<String>(before.getShardRanking(shard));
+            expected.remove("datastore2");
+            List<String> actual = new ArrayList<String>(after.getShardRanking(shard));
+            actual.remove("datastore5");
+
+            Assert.assertTrue(actual.equals(expected));
+            Assert.assertTrue(after.getShardOwners(shard).equals(Constants.Sharding.ENABLED ?
+                    after.getShardRanking(shard).subList(0, Constants.Sharding.REPLICATION) :
+                    after.getLiveDataStoreIDs()));
+        }
+
+        Assert.assertTrue(DirectoryView.getShard("news") == DirectoryView.getShard("news"));
+        Assert.assertTrue(after.getOwners("news").equals(after.getShardOwners(DirectoryView.getShard("news"))));
+        Assert.assertTrue(directory.ownersOf("news").equals(after.getOwners("news")));
+    }
+
+    @Test
+    public void failedServerShouldOnlyMoveItsShards() {
+
+        ServerDirectory directory = ServerDirectory.getInstance(null, true);
+        for (int i = 1; i <= 4; i++) {
+
+            directory.addServer("datastore" + i, "localhost:800" + i);
+        }
+        DirectoryView before = directory.getView();
+
+        directory.setServerFailed("datastore2");
+        DirectoryView failed = directory.getView();
+
+        for (String server_id : failed.getLiveDataStoreIDs()) {
+
+            Set<Integer> owned_shards = before.getOwnedShards(server_id);
+            Map<Integer, List<String>> transfers = ShardRebalancer.getTransfers(before, failed, server_id, owned_shards);
+
+            // Only shards of the failed server are gained, and copied first from a surviving owner
+            Set<Integer> gained_shards = new TreeSet<Integer>(failed.getOwnedShards(server_id));
+            gained_shards.removeAll(owned_shards);
+            Assert.assertTrue(transfers.keySet().equals(gained_shards));
+            for (Map.Entry<Integer, List<String>> entry : transfers.entrySet()) {
+
+                Assert.assertTrue(before.getShardOwners(entry.getKey()).contains("datastore2"));
+                Assert.assertTrue(before.getShardOwners(entry.getKey()).contains(entry.getValue().get(0)));
+                Assert.assertFalse(entry.getValue().contains("datastore2"));
+                Assert.assertFalse(entry.getValue().contains(server_id));
+            }
+        }
+
+        // A joining server copies every shard it owns
+        directory.addServer("datastore5", "localhost:8005");
+        DirectoryView joined = directory.getView();
+        Map<Integer, List<String>> transfers = ShardRebalancer.getTransfers(failed, joined, "datastore5", null);
+        Assert.assertTrue(transfers.keySet().equals(joined.getOwnedShards("datastore5")));
+    }
+
+    @Test
+    public void queryOwnersShouldAnswerEveryConjunction() throws HTTPRequestException {
+
+        ServerDirectory directory = ServerDirectory.getInstance(null, true);
+        for (int i = 1; i <= 5; i++) {
+
+            directory.addServer("datastore" + i, "localhost:800" + i);
+        }
+        DirectoryView view = directory.getView();
+
+        // A conjunction is answered by an owner of any hashtag it requires
+        List<String> owners = view.getQueryOwners(HashtagQuery.parse("news AND sports"));
+        Set<String> expected = new TreeSet<String>(view.getOwners("news"));
+        expected.addAll(view.getOwners("sports"));
+        Assert.assertTrue(new TreeSet<String>(owners).equals(expected));
+
+        // A disjunction is answered only by servers answering both sides
+        owners = view.getQueryOwners(HashtagQuery.parse("news OR sports"));
+        expected = new TreeSet<String>(view.getOwners("news"));
+        expected.retainAll(view.getOwners("sports"));
+        Assert.assertTrue(new TreeSet<String>(owners).equals(expected));
+    }
+}
@@ -0,0 +1,169 @@
+package test;
+
+import main.*;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+
+/**
+ * Tests searches split by owner across the shards of the data store tier.
+ */
+public class ShardedSearchTest {
+
+    @Test
+    public void groupsShouldBeMergedAndRevalidated() throws IOException, HTTPRequestException {
+
+        StubDataStore first = new StubDataStore("datastore1", "1", "splitone1");
+        StubDataStore second = new StubDataStore("datastore2", "1", "splittwo1");
+
+        HashMap<String, String> mapping = new HashMap<String, String>();
+        mapping.put("datastore1", "localhost:" + first.getPort());
+        mapping.put("datastore2", "localhost:" + second.getPort());
+        DirectoryView view = ServerDirectory.getInstance(mapping, true).getView();
+
+        CacheStore cache = CacheStore.getInstance();
+        HashtagQuery query = HashtagQuery.parse("splitone OR splittwo");
+        TreeMap<String, String> group_queries = new TreeMap<String, String>();
+        group_queries.put("datastore1", "splitone");
+        group_queries.put("datastore2", "splittwo");
+        ShardedSearch search = new ShardedSearch(query, TestTimestamps.buildTimestamp("1"),
+                DataStoreRouter.getInstance(), cache);
+
+        HTTPObject response = search.send(view, group_queries);
+        Assert.assertTrue(response.getStatusCode().equals(Constants.Codes.OK));
+        Assert.assertTrue(((Map) response.getBody().get(Constants.Tokens.TWEETS)).keySet()
+                .equals(new HashSet<String>(Arrays.asList("splitone1", "splittwo1"))));
+        Assert.assertTrue(response.getBody().get(Constants.Tokens.VERSIONNUM).equals("datastore1:1,datastore2:1"));
+        cache.writeCache(query.toString(), (JSONObject) response.getBody().get(Constants.Tokens.TWEETS),
+                (String) response.getBody().get(Constants.Tokens.VERSIONNUM));
+
+        // Each owner is sent the version it issued for its group, so unchanged groups answer 304
+        response = search.send(view, group_queries);
+        Assert.assertTrue(response.getStatusCode().equals(Constants.Codes.NOTMODIFIED));
+        Assert.assertTrue(first.getNotModified() == 1 && second.getNotModified() == 1);
+
+        // Only the changed group is sent again, and the unchanged group is read from the cache
+        second.setResults("2", "splittwo1", "splittwo2");
+        response = search.send(view, group_queries);
+        Assert.assertTrue(response.getStatusCode().equals(Constants.Codes.OK));
+        Assert.assertTrue(((Map) response.getBody().get(Constants.Tokens.TWEETS)).keySet()
+                .equals(new HashSet<String>(Arrays.asList("splitone1", "splittwo1", "splittwo2"))));
+        Assert.assertTrue(response.getBody().get(Constants.Tokens.VERSIONNUM).equals("datastore1:1,datastore2:2"));
+        Assert.assertTrue(first.getNotModified() == 2 && second.getNotModified() == 1);
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void unreachableOwnerShouldFailSearch() throws IOException, HTTPRequestException {
+
+        StubDataStore first = new StubDataStore("datastore1", "1", "unreachable1");
+        ServerSocket closed_server = new ServerSocket(0);
+        closed_server.close();
+
+        HashMap<String, String> mapping = new HashMap<String, String>();
+        mapping.put("datastore1", "localhost:" + first.getPort());
+        mapping.put("datastore2", "localhost:" + closed_server.getLocalPort());
+        DirectoryView view = ServerDirectory.getInstance(mapping, true).getView();
+
+        TreeMap<String, String> group_queries = new TreeMap<String, String>();
+        group_queries.put("datastore1", "unreachableone");
+        group_queries.put("datastore2", "unreachabletwo");
+
+        HTTPObject response = new ShardedSearch(HashtagQuery.parse("unreachableone OR unreachabletwo"),
+                TestTimestamps.buildTimestamp("1"), DataStoreRouter.getInstance(), CacheStore.getInstance())
+                .send(view, group_queries);
+        Assert.assertTrue(response == null);
+
+        first.close();
+    }
+
+    /**
+     * Data store answering searches with fixed results, and with 304 when
+     * sent the version it issued for them.
+     */
+    private static class StubDataStore extends Thread {
+
+        private String server_id;
+        private ServerSocket server_socket;
+        private String version;
+        private JSONObject results;
+        private int not_modified;
+
+        private StubDataStore(String server_id, String version, String... results) throws IOException {
+
+            this.server_id = server_id;
+            this.server_socket = new ServerSocket(0);
+            this.not_modified = 0;
+            setResults(version, results);
+            setDaemon(true);
+            start();
+        }
+
+        private synchronized void setResults(String version, String... results) {
+
+            this.version = version;
+            this.results = new JSONObject();
+            for (String result : results) {
+
+                this.results.put(result, TestTimestamps.buildMap(server_id, version));
+            }
+        }
+
+        private synchronized int getNotModified() {
+
+            return not_modified;
+        }
+
+        private int getPort() {
+
+            return server_socket.getLocalPort();
+        }
+
+        private void close() throws IOException {
+
+            server_socket.close();
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                while (true) {
+
+                    Socket socket = server_socket.accept();
+                    HTTPRequestLine request_line = SystemUtility.readSocket(socket).getRequestLine();
+                    socket.getOutputStream().write(buildResponse(
+                            request_line.getParameter(Constants.Tokens.VERSIONNUM),
+                            request_line.getParameter(Constants.Tokens.SOURCE)).toString().getBytes());
+                    socket.close();
+                }
+            } catch (Exception ignored) {}
+        }
+
+        private synchronized HTTPObject buildResponse(String cached_version, String source_id) {
+
+            JSONObject response_body = new JSONObject();
+            if (server_id.equals(source_id) && version.equals(cached_version)) {
+
+                not_modified++;
+                response_body.put(Constants.Tokens.STATUS, Constants.Messages.NOTMODIFIED);
+                return SystemUtility.buildResponse(Constants.Codes.NOTMODIFIED, response_body);
+            }
+
+            response_body.put(Constants.Tokens.TWEETS, results);
+            response_body.put(Constants.Tokens.VERSIONNUM, version);
+            response_body.put(Constants.Tokens.SERVERID, server_id);
+            response_body.put(Constants.Tokens.DELTA, false);
+
+            return SystemUtility.buildResponse(Constants.Codes.OK, response_body);
+        }
+    }
+}
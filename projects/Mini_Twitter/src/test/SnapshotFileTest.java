@@ -0,0 +1,110 @@
+package test;
+
+import main.Constants;
+import main.SnapshotFileReader;
+import main.SnapshotFileWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests that snapshot files read back the rows written to them.
+ */
+public class SnapshotFileTest {
+
+    @Test
+    public void rowsShouldBeReadBackAcrossRowGroups() throws IOException {
+
+        File snapshot_file = File.createTempFile("snapshot", ".mts");
+        snapshot_file.deleteOnExit();
+
+        int row_total = Constants.Snapshot.ROWGROUP + 10;
+        SnapshotFileWriter writer = new SnapshotFileWriter(snapshot_file);
+        for (int i = 0; i < row_total; i++) {
+
+            writer.addRow("caf\u00e9 " + i + " #filetest", (i % 3 == 0) ? null : "datastore" + (i % 3),
+                    Arrays.asList("filetest", "row" + i),
+                    TestTimestamps.buildMap("datastore" + (i % 3), Integer.toString(i)));
+        }
+        writer.finish("datastore1.4");
+
+        SnapshotFileReader reader = new SnapshotFileReader(snapshot_file);
+        Assert.assertTrue(reader.getToken().equals("datastore1.4"));
+        Assert.assertTrue(reader.getRowCount() == row_total);
+
+        int row = 0;
+        int group_count = 0;
+        SnapshotFileReader.RowGroup row_group;
+        while ((row_group = reader.nextRowGroup()) != null) {
+
+            group_count++;
+            for (int i = 0; i < row_group.getRowCount(); i++, row++) {
+
+                String tweet = "caf\u00e9 " + row + " #filetest";
+                Assert.assertTrue(row_group.getText(i).equals(tweet));
+                Assert.assertTrue(row_group.getID(i) == SnapshotFileWriter.getTweetID(tweet));
+                Assert.assertTrue((row % 3 == 0) ? row_group.getOrigin(i) == null :
+                        row_group.getOrigin(i).equals("datastore" + (row % 3)));
+                Assert.assertTrue(row_group.getHashtags(i).equals(Arrays.asList("filetest", "row" + row)));
+                Assert.assertTrue(row_group.getTimestamp(i).equals(
+                        TestTimestamps.buildMap("datastore" + (row % 3), Integer.toString(row))));
+            }
+        }
+        reader.close();
+
+        Assert.assertTrue(row == row_total);
+        Assert.assertTrue(group_count == 2);
+    }
+
+    @Test
+    public void collidingIDsShouldBeMadeUnique() throws IOException {
+
+        File snapshot_file = File.createTempFile("snapshot", ".mts");
+        snapshot_file.deleteOnExit();
+
+        // Rows with the same text hash to the same ID
+        SnapshotFileWriter writer = new SnapshotFileWriter(snapshot_file);
+        for (int i = 0; i < 3; i++) {
+
+            writer.addRow("collision #filetest", null, Arrays.asList("filetest"),
+                    TestTimestamps.buildMap("datastore1", Integer.toString(i)));
+        }
+        writer.finish("datastore1.2");
+
+        SnapshotFileReader reader = new SnapshotFileReader(snapshot_file);
+        SnapshotFileReader.RowGroup row_group = reader.nextRowGroup();
+        long id = SnapshotFileWriter.getTweetID("collision #filetest");
+        Assert.assertTrue(row_group.getRowCount() == 3);
+        Assert.assertTrue(row_group.getID(0) == id && row_group.getID(1) == id + 1 && row_group.getID(2) == id + 2);
+        reader.close();
+    }
+
+    @Test
+    public void emptySnapshotShouldHaveNoRowGroups() throws IOException {
+
+        File snapshot_file = File.createTempFile("snapshot", ".mts");
+        snapshot_file.deleteOnExit();
+
+        new SnapshotFileWriter(snapshot_file).finish("");
+
+        SnapshotFileReader reader = new SnapshotFileReader(snapshot_file);
+        Assert.assertTrue(reader.getRowCount() == 0);
+        Assert.assertTrue(reader.nextRowGroup() == null);
+        reader.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesShouldBeRejected() throws IOException {
+
+        File other_file = File.createTempFile("snapshot", ".txt");
+        other_file.deleteOnExit();
+
+        SnapshotFileWriter writer = new SnapshotFileWriter(other_file);
+        writer.close();
+
+        new SnapshotFileReader(other_file);
+    }
+}
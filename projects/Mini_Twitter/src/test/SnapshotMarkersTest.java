@@ -0,0 +1,84 @@
+package test;
+
+import main.Constants;
+import main.DataStore;
+import main.SnapshotMarkers;
+import main.VectorTimestamp;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Tests the recording of snapshot cuts by marker and the copies taken below
+ * a recorded cut.
+ */
+public class SnapshotMarkersTest {
+
+    @Test
+    public void cutShouldBeRecordedOnlyOnce() {
+
+        SnapshotMarkers snapshot_markers = SnapshotMarkers.getInstance();
+        VectorTimestamp timestamp = new VectorTimestamp(TestTimestamps.buildMap("datastore1", "4"));
+
+        VectorTimestamp cut = snapshot_markers.record("recordtest", timestamp);
+        timestamp.incrementTimestamp("datastore1");
+
+        Assert.assertTrue(cut.getTimestamp("datastore1") == 4);
+        Assert.assertTrue(snapshot_markers.record("recordtest", timestamp).getTimestamp("datastore1") == 4);
+        Assert.assertTrue(snapshot_markers.getMarkers().contains("recordtest"));
+    }
+
+    @Test
+    public void piggybackedMarkerShouldRecordCutBeforeRequestArrives() {
+
+        SnapshotMarkers snapshot_markers = SnapshotMarkers.getInstance();
+        VectorTimestamp timestamp = new VectorTimestamp(TestTimestamps.buildMap("datastore1", "7"));
+
+        JSONArray markers = new JSONArray();
+        markers.add("piggybacktest");
+        snapshot_markers.recordAll(markers, timestamp);
+
+        // Writes applied after the marker arrived are above the cut
+        timestamp.incrementTimestamp("datastore1");
+
+        Assert.assertTrue(snapshot_markers.record("piggybacktest", timestamp).getTimestamp("datastore1") == 7);
+    }
+
+    @Test
+    public void oldestCutShouldBeDroppedWhenRecordIsFull() {
+
+        SnapshotMarkers snapshot_markers = SnapshotMarkers.getInstance();
+        VectorTimestamp timestamp = new VectorTimestamp(TestTimestamps.buildMap("datastore1", "1"));
+
+        for (int i = 0; i <= Constants.Snapshot.MARKERS; i++) {
+
+            snapshot_markers.record("evicttest" + i, timestamp);
+        }
+
+        Assert.assertFalse(snapshot_markers.getMarkers().contains("evicttest0"));
+        Assert.assertTrue(snapshot_markers.getMarkers().contains("evicttest" + Constants.Snapshot.MARKERS));
+        Assert.assertTrue(snapshot_markers.getMarkers().size() == Constants.Snapshot.MARKERS);
+    }
+
+    @Test
+    public void copyBelowCutShouldLeaveOutLaterWrites() {
+
+        DataStore data_store = DataStore.getInstance();
+        data_store.postToDataStore(Arrays.asList("markertest"), "below cut",
+                new VectorTimestamp(TestTimestamps.buildMap("datastore6", "2")));
+        data_store.postToDataStore(Arrays.asList("markertest"), "above cut",
+                new VectorTimestamp(TestTimestamps.buildMap("datastore6", "3")));
+        data_store.postToDataStore(Arrays.asList("markerlatertest"), "later tag",
+                new VectorTimestamp(TestTimestamps.buildMap("datastore6", "4")));
+
+        JSONObject copy = (JSONObject) data_store.getDataStoreCopy(-1, 2, "datastore6").get(Constants.Tokens.DATASTORE);
+
+        Assert.assertTrue(((JSONObject) copy.get("markertest")).keySet().equals(
+                new HashSet<String>(Arrays.asList("below cut"))));
+        Assert.assertFalse(copy.containsKey("markerlatertest"));
+    }
+}
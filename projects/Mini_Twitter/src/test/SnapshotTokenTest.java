@@ -0,0 +1,55 @@
+package test;
+
+import main.Constants;
+import main.DataStore;
+import main.VectorTimestamp;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Tests snapshot cut tokens and incremental data store copies.
+ */
+public class SnapshotTokenTest {
+
+    @Test
+    public void tokenShouldRoundTripTimestamp() {
+
+        HashMap<String, String> cut_map = new HashMap<String, String>();
+        cut_map.put("datastore1", "12");
+        cut_map.put("datastore2", "7");
+        VectorTimestamp cut = new VectorTimestamp(cut_map);
+
+        VectorTimestamp decoded_cut = VectorTimestamp.fromToken(cut.toToken());
+
+        Assert.assertTrue(decoded_cut.getTimestampMap().equals(cut_map));
+        Assert.assertTrue(cut.toToken().equals(new VectorTimestamp(new HashMap<String, String>(cut_map)).toToken()));
+    }
+
+    @Test
+    public void malformedTokenShouldBeRejected() {
+
+        Assert.assertTrue(VectorTimestamp.fromToken("not base64!") == null);
+        Assert.assertTrue(VectorTimestamp.fromToken(new VectorTimestamp(TestTimestamps.buildMap("datastore1", "x")).toToken()) == null);
+    }
+
+    @Test
+    public void copySinceLowerBoundShouldOnlyHoldLaterTweets() {
+
+        DataStore data_store = DataStore.getInstance();
+        data_store.postToDataStore(Arrays.asList("sincetest"), "before cut", new VectorTimestamp(TestTimestamps.buildMap("datastore5", "3")));
+        data_store.postToDataStore(Arrays.asList("sincetest"), "after cut", new VectorTimestamp(TestTimestamps.buildMap("datastore5", "5")));
+
+        JSONObject copy = (JSONObject) data_store.getDataStoreCopy(null, "datastore5", 4).get(Constants.Tokens.DATASTORE);
+        JSONObject tweets = (JSONObject) copy.get("sincetest");
+
+        Assert.assertTrue(tweets.size() == 1);
+        Assert.assertTrue(tweets.containsKey("after cut"));
+
+        JSONObject full_copy = (JSONObject) data_store.getDataStoreCopy(null, "datastore5").get(Constants.Tokens.DATASTORE);
+        Assert.assertTrue(((JSONObject) full_copy.get("sincetest")).size() == 2);
+    }
+}
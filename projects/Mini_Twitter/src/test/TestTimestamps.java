@@ -0,0 +1,37 @@
+package test;
+
+import main.VectorTimestamp;
+
+import java.util.HashMap;
+
+/**
+ * Builds the single-server timestamps used as fixtures by the test classes.
+ */
+public class TestTimestamps {
+
+    /**
+     * Builds a timestamp map holding a single server's value.
+     *
+     * @param server_id String ID of the server
+     * @param value Timestamp value of the server
+     * @return Timestamp map
+     */
+    public static HashMap<String, String> buildMap(String server_id, String value) {
+
+        HashMap<String, String> timestamp_map = new HashMap<String, String>();
+        timestamp_map.put(server_id, value);
+
+        return timestamp_map;
+    }
+
+    /**
+     * Builds a vector timestamp holding a value for datastore1 only.
+     *
+     * @param value Timestamp value of datastore1
+     * @return Vector timestamp
+     */
+    public static VectorTimestamp buildTimestamp(String value) {
+
+        return new VectorTimestamp(buildMap("datastore1", value));
+    }
+}
@@ -0,0 +1,103 @@
+package test;
+
+import main.*;
+import org.json.simple.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests batching of cache validations sent to the same data store server.
+ */
+public class ValidationBatcherTest {
+
+    @Test
+    public void queriesJoiningOpenBatchShouldShareRequest() throws InterruptedException {
+
+        final ValidationBatcher batcher = ValidationBatcher.getInstance();
+        ValidationBatcher.PendingBatch batch = batcher.join("datastore8", "first", "1", null);
+        Assert.assertTrue(batch.isLeader());
+
+        final HTTPObject[] follower_response = new HTTPObject[1];
+        final boolean[] follower_led = new boolean[1];
+        Thread follower = new Thread() {
+            @Override
+            public void run() {
+
+                ValidationBatcher.PendingBatch follower_batch = batcher.join("datastore8", "second", "2", "datastore8");
+                follower_led[0] = follower_batch.isLeader();
+                if (!follower_led[0]) {
+
+                    follower_response[0] = follower_batch.awaitResponse("second");
+                }
+            }
+        };
+        follower.start();
+        waitForBatchSize(batch, 2);
+        batcher.close(batch);
+
+        JSONObject queries = batch.getQueries();
+        Assert.assertTrue(queries.size() == 2);
+        Assert.assertTrue(((JSONObject) queries.get("second")).get(Constants.Tokens.SOURCE).equals("datastore8"));
+
+        HTTPObject batch_response = buildBatchResponse();
+        batcher.complete(batch, batch_response);
+        follower.join();
+
+        Assert.assertFalse(follower_led[0]);
+        Assert.assertTrue(follower_response[0].getStatusCode().equals(Constants.Codes.OK));
+        Assert.assertTrue(follower_response[0].getBody().get(Constants.Tokens.VERSIONNUM).equals("3"));
+        Assert.assertTrue(follower_response[0].getBody().containsKey(Constants.Tokens.TIMESTAMP));
+
+        HTTPObject leader_response = ValidationBatcher.PendingBatch.getQueryResponse(batch_response, "first");
+        Assert.assertTrue(leader_response.getStatusCode().equals(Constants.Codes.NOTMODIFIED));
+    }
+
+    @Test
+    public void closedBatchShouldNotBeJoined() {
+
+        ValidationBatcher batcher = ValidationBatcher.getInstance();
+        ValidationBatcher.PendingBatch first_batch = batcher.join("datastore9", "closed", "1", null);
+        batcher.close(first_batch);
+
+        ValidationBatcher.PendingBatch second_batch = batcher.join("datastore9", "closed", "1", null);
+        Assert.assertTrue(first_batch != second_batch);
+        Assert.assertTrue(second_batch.isLeader());
+
+        batcher.close(second_batch);
+        batcher.complete(first_batch, null);
+        batcher.complete(second_batch, null);
+        Assert.assertTrue(second_batch.awaitResponse("closed") == null);
+    }
+
+    private static HTTPObject buildBatchResponse() {
+
+        JSONObject first_result = new JSONObject();
+        first_result.put(Constants.Tokens.CODE, Constants.Codes.NOTMODIFIED);
+
+        JSONObject second_result = new JSONObject();
+        second_result.put(Constants.Tokens.CODE, Constants.Codes.OK);
+        second_result.put(Constants.Tokens.VERSIONNUM, "3");
+        second_result.put(Constants.Tokens.TWEETS, new JSONObject());
+
+        JSONObject results = new JSONObject();
+        results.put("first", first_result);
+        results.put("second", second_result);
+
+        JSONObject timestamp_json = new JSONObject();
+        timestamp_json.put("datastore8", "3");
+
+        JSONObject response_body = new JSONObject();
+        response_body.put(Constants.Tokens.RESULTS, results);
+        response_body.put(Constants.Tokens.TIMESTAMP, timestamp_json);
+
+        return SystemUtility.buildResponse(Constants.Codes.OK, response_body);
+    }
+
+    private static void waitForBatchSize(ValidationBatcher.PendingBatch batch, int size) throws InterruptedException {
+
+        for (int i = 0; i < 100 && batch.size() < size; i++) {
+
+            Thread.sleep(10);
+        }
+    }
+}